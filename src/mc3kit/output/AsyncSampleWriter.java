@@ -0,0 +1,79 @@
+/***
+  This file is part of mc3kit.
+  
+  Copyright (C) 2013 Edward B. Baskerville
+
+  This program is free software: you can redistribute it and/or modify
+  it under the terms of the GNU Affero General Public License as
+  published by the Free Software Foundation, either version 3 of the
+  License, or (at your option) any later version.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU Affero General Public License for more details.
+
+  You should have received a copy of the GNU Affero General Public License
+  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+***/
+
+package mc3kit.output;
+
+import java.io.*;
+
+import mc3kit.*;
+
+/**
+ * Sample writer that takes an immutable snapshot of the sample on the chain
+ * thread and hands it off to a BackgroundWriter, so that serialization and
+ * disk writes do not hold up the chain.
+ * 
+ * @param <S> The snapshot type of the wrapped writer.
+ */
+@SuppressWarnings("serial")
+public class AsyncSampleWriter<S> implements SampleWriter
+{
+	private SnapshotSampleWriter<S> writer;
+	private BackgroundWriter<S> backgroundWriter;
+	
+	protected AsyncSampleWriter() { }
+	
+	public AsyncSampleWriter(SnapshotSampleWriter<S> writer, String name, int queueSize, int batchSize, long flushIntervalMillis)
+	{
+		this.writer = writer;
+		this.backgroundWriter = new BackgroundWriter<S>(writer, name, queueSize, batchSize, flushIntervalMillis);
+	}
+	
+	public static <S> AsyncSampleWriter<S> wrap(SnapshotSampleWriter<S> writer, String name, int queueSize, int batchSize, long flushIntervalMillis)
+	{
+		return new AsyncSampleWriter<S>(writer, name, queueSize, batchSize, flushIntervalMillis);
+	}
+	
+	private void writeObject(ObjectOutputStream out) throws IOException {
+		// the wrapped writer is serialized before the background writer drains itself
+		try {
+			backgroundWriter.drain();
+		}
+		catch(MC3KitException e) {
+			throw new IOException("Error writing pending samples", e);
+		}
+		out.defaultWriteObject();
+	}
+	
+	@Override
+	public void writeSample(Model model) throws MC3KitException
+	{
+		backgroundWriter.submit(writer.makeSnapshot(model));
+	}
+	
+	// Blocks until samples written so far are in the file
+	public void flush() throws MC3KitException
+	{
+		backgroundWriter.drain();
+	}
+	
+	public void close() throws MC3KitException
+	{
+		backgroundWriter.close();
+	}
+}
@@ -0,0 +1,275 @@
+/***
+  This file is part of mc3kit.
+  
+  Copyright (C) 2013 Edward B. Baskerville
+
+  This program is free software: you can redistribute it and/or modify
+  it under the terms of the GNU Affero General Public License as
+  published by the Free Software Foundation, either version 3 of the
+  License, or (at your option) any later version.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU Affero General Public License for more details.
+
+  You should have received a copy of the GNU Affero General Public License
+  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+***/
+
+package mc3kit.output;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import mc3kit.*;
+
+/**
+ * Writes snapshots handed off by chain threads on a dedicated writer thread.
+ * 
+ * Snapshots wait in a bounded queue; a chain that hands off a snapshot while
+ * the queue is full blocks until the writer catches up, so memory held by
+ * pending snapshots is bounded. The writer thread takes up to batchSize
+ * snapshots at a time, and flushes after a batch if at least
+ * flushIntervalMillis have passed since the last flush (otherwise as soon as
+ * the interval has passed). Pending snapshots are written before
+ * serialization (checkpoints) and when the JVM exits.
+ * 
+ * @param <S> The snapshot type.
+ */
+@SuppressWarnings("serial")
+public class BackgroundWriter<S> implements Serializable
+{
+	private SnapshotWriter<S> writer;
+	private String name;
+	private int queueSize;
+	private int batchSize;
+	private long flushIntervalMillis;
+	
+	private transient WriterThread thread;
+	private transient volatile Throwable error; // first error of the writer thread
+	
+	protected BackgroundWriter() { }
+	
+	public BackgroundWriter(SnapshotWriter<S> writer, String name, int queueSize, int batchSize, long flushIntervalMillis)
+	{
+		if(queueSize < 1 || batchSize < 1 || flushIntervalMillis < 0)
+			throw new IllegalArgumentException(String.format(
+				"Invalid background writer settings: queueSize %d, batchSize %d, flushIntervalMillis %d.",
+				queueSize, batchSize, flushIntervalMillis));
+		this.writer = writer;
+		this.name = name;
+		this.queueSize = queueSize;
+		this.batchSize = batchSize;
+		this.flushIntervalMillis = flushIntervalMillis;
+	}
+	
+	private void writeObject(ObjectOutputStream out) throws IOException {
+		try {
+			drain();
+		}
+		catch(MC3KitException e) {
+			throw new IOException("Error writing pending samples", e);
+		}
+		out.defaultWriteObject();
+	}
+	
+	/*** METHODS ***/
+	
+	// Hands off snapshot to the writer thread, blocks while the queue is full
+	public void submit(S snapshot) throws MC3KitException
+	{
+		put(snapshot);
+	}
+	
+	// Blocks until all snapshots submitted so far are written and flushed
+	public void drain() throws MC3KitException
+	{
+		if(thread != null)
+			await(new FlushRequest(false));
+	}
+	
+	// Writes pending snapshots and stops the writer thread, a later submit starts a new one
+	public void close() throws MC3KitException
+	{
+		WriterThread stopped;
+		synchronized(this) {
+			stopped = thread;
+			if(stopped == null) return;
+			thread = null;
+		}
+		FlushRequest request = new FlushRequest(true);
+		putInto(stopped, request);
+		waitFor(stopped, request);
+		checkError();
+	}
+	
+	private void await(FlushRequest request) throws MC3KitException
+	{
+		WriterThread current = put(request);
+		waitFor(current, request);
+		checkError();
+	}
+	
+	private synchronized WriterThread start()
+	{
+		if(thread == null) {
+			thread = new WriterThread();
+			thread.setDaemon(true); // pending snapshots are written by the shutdown hook
+			thread.start();
+			Runtime.getRuntime().addShutdownHook(new Thread() {
+				@Override
+				public void run() {
+					try {
+						close();
+					}
+					catch(MC3KitException e) {
+						e.printStackTrace();
+					}
+				}
+			});
+		}
+		return thread;
+	}
+	
+	private WriterThread put(Object entry) throws MC3KitException
+	{
+		checkError();
+		WriterThread current = start();
+		putInto(current, entry);
+		return current;
+	}
+	
+	private void putInto(WriterThread current, Object entry) throws MC3KitException
+	{
+		try {
+			// the writer thread only stops after an error or close
+			while(!current.queue.offer(entry, 1, TimeUnit.SECONDS)) {
+				if(!current.isAlive()) {
+					checkError();
+					throw new MC3KitException(String.format("%s stopped", name));
+				}
+			}
+		}
+		catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new MC3KitException("Interrupted while waiting for sample writer", e);
+		}
+	}
+	
+	private void waitFor(WriterThread current, FlushRequest request) throws MC3KitException
+	{
+		try {
+			while(!request.done.await(1, TimeUnit.SECONDS)) {
+				if(!current.isAlive()) break;
+			}
+		}
+		catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new MC3KitException("Interrupted while waiting for sample writer", e);
+		}
+	}
+	
+	private void checkError() throws MC3KitException
+	{
+		Throwable e = error;
+		if(e != null)
+			throw new MC3KitException(String.format("Error in %s", name), e);
+	}
+	
+	/*** WRITER THREAD ***/
+	
+	private static class FlushRequest
+	{
+		CountDownLatch done = new CountDownLatch(1);
+		boolean close;
+		
+		FlushRequest(boolean close)
+		{
+			this.close = close;
+		}
+	}
+	
+	private class WriterThread extends Thread
+	{
+		BlockingQueue<Object> queue = new ArrayBlockingQueue<Object>(queueSize); // snapshots and flush requests
+		
+		WriterThread()
+		{
+			super(name);
+		}
+		
+		@SuppressWarnings("unchecked")
+		@Override
+		public void run()
+		{
+			List<Object> batch = new ArrayList<Object>(batchSize);
+			boolean unflushed = false;
+			long lastFlush = System.currentTimeMillis();
+			boolean closed = false;
+			while(!closed) {
+				try {
+					Object entry;
+					if(unflushed)
+						entry = queue.poll(Math.max(0, lastFlush + flushIntervalMillis - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+					else
+						entry = queue.take();
+					if(entry != null) {
+						batch.add(entry);
+						queue.drainTo(batch, batchSize - 1);
+					}
+				}
+				catch(InterruptedException e) {
+					error = e;
+					return;
+				}
+				
+				for(Object entry : batch) {
+					if(entry instanceof FlushRequest) {
+						FlushRequest request = (FlushRequest) entry;
+						flush();
+						unflushed = false;
+						lastFlush = System.currentTimeMillis();
+						request.done.countDown();
+						closed |= request.close;
+					}
+					else {
+						write((S) entry);
+						unflushed = true;
+					}
+				}
+				batch.clear();
+				
+				if(unflushed && System.currentTimeMillis() - lastFlush >= flushIntervalMillis) {
+					flush();
+					unflushed = false;
+					lastFlush = System.currentTimeMillis();
+				}
+			}
+		}
+		
+		// after an error snapshots are discarded, the error is thrown to the chains
+		private void write(S snapshot)
+		{
+			if(error != null) return;
+			try {
+				writer.writeSnapshot(snapshot);
+			}
+			catch(Throwable e) {
+				error = e;
+			}
+		}
+		
+		private void flush()
+		{
+			if(error != null) return;
+			try {
+				writer.flush();
+			}
+			catch(Throwable e) {
+				error = e;
+			}
+		}
+	}
+}
@@ -0,0 +1,98 @@
+/***
+  This file is part of mc3kit.
+  
+  Copyright (C) 2013 Edward B. Baskerville
+
+  This program is free software: you can redistribute it and/or modify
+  it under the terms of the GNU Affero General Public License as
+  published by the Free Software Foundation, either version 3 of the
+  License, or (at your option) any later version.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU Affero General Public License for more details.
+
+  You should have received a copy of the GNU Affero General Public License
+  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+***/
+
+package mc3kit.output;
+
+import java.io.*;
+import java.util.*;
+
+import mc3kit.*;
+
+import com.google.gson.*;
+
+/**
+ * Converts a binary sample file to JSONS, CSV or TXT (tab separated), chosen by
+ * the extension of the output file:
+ * 
+ *   java mc3kit.output.BinarySampleConverter samples.sbin samples.jsons
+ * 
+ * JSONS output is what JsonsSampleWriter would have written for the same samples.
+ * CSV columns are the keys of the hierarchical sample joined by '.', values are
+ * quoted, arrays and other non-numeric values are written as JSON.
+ */
+public class BinarySampleConverter
+{
+	public static void main(String[] args) throws Exception
+	{
+		if(args.length != 2) {
+			System.err.println("Usage: java mc3kit.output.BinarySampleConverter <input.sbin> <output.jsons|output.csv|output.txt>");
+			System.exit(1);
+		}
+		long count = convert(args[0], args[1]);
+		System.out.println(String.format("Converted %d samples from %s to %s", count, args[0], args[1]));
+	}
+	
+	// Returns the number of samples converted
+	@SuppressWarnings("unchecked")
+	public static long convert(String inputFilename, String outputFilename) throws IOException, MC3KitException
+	{
+		SampleWriter writer = SampleWriterFactory.getFactory().createSampleWriter(outputFilename, null, true);
+		Gson gson = new GsonBuilder()
+			.serializeSpecialFloatingPointValues()
+			.disableHtmlEscaping()
+			.create();
+		BinarySampleReader reader = new BinarySampleReader(inputFilename);
+		long count = 0;
+		try {
+			for(Map<String, Object> sample = reader.readSample(); sample != null; sample = reader.readSample()) {
+				if(writer instanceof CsvSampleWriter) {
+					Map<String, String> flatSample = new LinkedHashMap<String, String>();
+					flatten(sample, "", flatSample, gson);
+					((CsvSampleWriter) writer).writeSnapshot(flatSample);
+				}
+				else {
+					((SnapshotSampleWriter<Map<String, Object>>) writer).writeSnapshot(sample);
+				}
+				count++;
+			}
+		}
+		finally {
+			reader.close();
+			((SnapshotWriter<?>) writer).flush();
+		}
+		return count;
+	}
+	
+	@SuppressWarnings("unchecked")
+	private static void flatten(Map<String, Object> map, String prefix, Map<String, String> flatSample, Gson gson)
+	{
+		for(Map.Entry<String, Object> entry : map.entrySet()) {
+			Object value = entry.getValue();
+			String key = prefix + entry.getKey();
+			if(value instanceof Map)
+				flatten((Map<String, Object>) value, key + ".", flatSample, gson);
+			else if(value instanceof Number || value instanceof Boolean || value instanceof String)
+				flatSample.put(key, value.toString());
+			else if(value instanceof JsonElement)
+				flatSample.put(key, gson.toJson((JsonElement) value));
+			else
+				flatSample.put(key, gson.toJson(value));
+		}
+	}
+}
@@ -0,0 +1,74 @@
+/***
+  This file is part of mc3kit.
+  
+  Copyright (C) 2013 Edward B. Baskerville
+
+  This program is free software: you can redistribute it and/or modify
+  it under the terms of the GNU Affero General Public License as
+  published by the Free Software Foundation, either version 3 of the
+  License, or (at your option) any later version.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU Affero General Public License for more details.
+
+  You should have received a copy of the GNU Affero General Public License
+  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+***/
+
+package mc3kit.output;
+
+/**
+ * Layout of binary sample files (BinarySampleWriter, BinarySampleReader).
+ * 
+ * A file starts with MAGIC and VERSION, followed by blocks:
+ *   byte compression (BLOCK_RAW or BLOCK_GZIP), int length, length bytes of records.
+ * Each block is self contained (it starts with an empty string dictionary and no
+ * columns), so a file can be appended to after a restart and a block cut short by
+ * a crash only loses that block. Records in a block:
+ *   byte type, int length, length bytes.
+ * 
+ * STRINGS: varint count, then count strings (varint length, UTF-8 bytes) that get
+ *   the next ids of the block's string dictionary.
+ * COLUMNS: varint count, then for each column: varint path length, path as
+ *   dictionary ids (keys from the top of the hierarchical sample), byte value type.
+ *   Replaces the columns of the block.
+ * SAMPLE: bitmap of present columns ((columns + 7) / 8 bytes), then the values of
+ *   the present columns in column order.
+ * 
+ * Values: LONG and INT zigzag varints, DOUBLE and FLOAT IEEE 754, BOOLEAN one byte,
+ * STRING dictionary id, TEXT int length and UTF-8 bytes, DOUBLE_ARRAY varint count and
+ * doubles, JSON int length and UTF-8 JSON for any other value. All multi-byte
+ * numbers are big endian.
+ */
+final class BinarySampleFormat
+{
+	private BinarySampleFormat() { }
+	
+	static final byte[] MAGIC = { 'M', 'C', '3', 'S' };
+	static final byte VERSION = 1;
+	
+	// block compression
+	static final byte BLOCK_RAW = 0;
+	static final byte BLOCK_GZIP = 1;
+	
+	// record types
+	static final byte STRINGS = 1;
+	static final byte COLUMNS = 2;
+	static final byte SAMPLE = 3;
+	
+	// value types
+	static final byte LONG = 1;
+	static final byte INT = 2;
+	static final byte DOUBLE = 3;
+	static final byte FLOAT = 4;
+	static final byte BOOLEAN = 5;
+	static final byte STRING = 6;
+	static final byte TEXT = 7;
+	static final byte DOUBLE_ARRAY = 8;
+	static final byte JSON = 9;
+	
+	static final int MAX_DICTIONARY_STRING = 64; // longer strings are stored as TEXT
+	static final int BLOCK_SIZE = 1 << 20; // records are written out as a block once they reach this size
+}
@@ -0,0 +1,226 @@
+/***
+  This file is part of mc3kit.
+  
+  Copyright (C) 2013 Edward B. Baskerville
+
+  This program is free software: you can redistribute it and/or modify
+  it under the terms of the GNU Affero General Public License as
+  published by the Free Software Foundation, either version 3 of the
+  License, or (at your option) any later version.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU Affero General Public License for more details.
+
+  You should have received a copy of the GNU Affero General Public License
+  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+***/
+
+package mc3kit.output;
+
+import static mc3kit.output.BinarySampleFormat.*;
+
+import java.io.*;
+import java.util.*;
+import java.util.zip.GZIPInputStream;
+
+import com.google.gson.*;
+
+/**
+ * Reads the samples of a file written by BinarySampleWriter one at a time.
+ * Samples are the hierarchical maps that were written: numbers as Long, Integer,
+ * Double or Float, texts as String, double arrays as Double[] and other values
+ * as JsonElement.
+ */
+public class BinarySampleReader implements Closeable
+{
+	private DataInputStream in;
+	private boolean started;
+	private DataInputStream records; // records of the current block, null if none
+	private List<String> dictionary = new ArrayList<String>();
+	private List<String[]> columnPaths = new ArrayList<String[]>();
+	private byte[] columnTypes = new byte[0];
+	private JsonParser jsonParser = new JsonParser();
+	
+	public BinarySampleReader(String filename) throws FileNotFoundException
+	{
+		this(new FileInputStream(filename));
+	}
+	
+	public BinarySampleReader(InputStream in)
+	{
+		this.in = new DataInputStream(new BufferedInputStream(in));
+	}
+	
+	// Next sample, null at the end of the file
+	public Map<String, Object> readSample() throws IOException
+	{
+		if(!started) {
+			started = true;
+			if(!readHeader()) return null;
+		}
+		while(true) {
+			if(records == null || records.available() == 0) {
+				if(!readBlock()) return null;
+				continue;
+			}
+			byte type = records.readByte();
+			int length = records.readInt();
+			switch(type) {
+			case STRINGS:
+				readStrings();
+				break;
+			case COLUMNS:
+				readColumns();
+				break;
+			case SAMPLE:
+				return readValues();
+			default:
+				records.skipBytes(length); // written by a later version
+			}
+		}
+	}
+	
+	@Override
+	public void close() throws IOException
+	{
+		in.close();
+	}
+	
+	// false for an empty file
+	private boolean readHeader() throws IOException {
+		byte[] magic = new byte[MAGIC.length];
+		int first = in.read();
+		if(first < 0) return false;
+		magic[0] = (byte)first;
+		in.readFully(magic, 1, magic.length - 1);
+		if(!Arrays.equals(magic, MAGIC))
+			throw new IOException("Not a binary sample file");
+		byte version = in.readByte();
+		if(version > VERSION)
+			throw new IOException(String.format("Unsupported binary sample format version %d", version));
+		return true;
+	}
+	
+	// false at the end of the file
+	private boolean readBlock() throws IOException {
+		int compression = in.read();
+		if(compression < 0) return false;
+		byte[] bytes;
+		try {
+			bytes = new byte[in.readInt()];
+			in.readFully(bytes);
+		}
+		catch(EOFException e) {
+			throw new EOFException("Last block of the file is cut short");
+		}
+		if(compression == BLOCK_GZIP) {
+			GZIPInputStream gzip = new GZIPInputStream(new ByteArrayInputStream(bytes));
+			ByteArrayOutputStream uncompressed = new ByteArrayOutputStream(4 * bytes.length);
+			byte[] buffer = new byte[1 << 16];
+			for(int n = gzip.read(buffer); n >= 0; n = gzip.read(buffer))
+				uncompressed.write(buffer, 0, n);
+			bytes = uncompressed.toByteArray();
+		}
+		else if(compression != BLOCK_RAW) {
+			throw new IOException(String.format("Unknown block compression %d", compression));
+		}
+		records = new DataInputStream(new ByteArrayInputStream(bytes));
+		dictionary.clear();
+		columnPaths.clear();
+		columnTypes = new byte[0];
+		return true;
+	}
+	
+	private void readStrings() throws IOException {
+		long count = readVarLong();
+		for(long i = 0; i < count; i++) {
+			byte[] bytes = new byte[(int)readVarLong()];
+			records.readFully(bytes);
+			dictionary.add(new String(bytes, "UTF-8"));
+		}
+	}
+	
+	private void readColumns() throws IOException {
+		int count = (int)readVarLong();
+		columnPaths.clear();
+		columnTypes = new byte[count];
+		for(int i = 0; i < count; i++) {
+			String[] path = new String[(int)readVarLong()];
+			for(int j = 0; j < path.length; j++)
+				path[j] = dictionary.get((int)readVarLong());
+			columnPaths.add(path);
+			columnTypes[i] = records.readByte();
+		}
+	}
+	
+	@SuppressWarnings("unchecked")
+	private Map<String, Object> readValues() throws IOException {
+		byte[] present = new byte[(columnTypes.length + 7) / 8];
+		records.readFully(present);
+		Map<String, Object> sample = new LinkedHashMap<String, Object>();
+		for(int column = 0; column < columnTypes.length; column++) {
+			if((present[column / 8] & (1 << (column % 8))) == 0) continue;
+			String[] path = columnPaths.get(column);
+			Map<String, Object> map = sample;
+			for(int i = 0; i < path.length - 1; i++) {
+				Object child = map.get(path[i]);
+				if(child == null) {
+					child = new LinkedHashMap<String, Object>();
+					map.put(path[i], child);
+				}
+				map = (Map<String, Object>)child;
+			}
+			map.put(path[path.length - 1], readValue(columnTypes[column]));
+		}
+		return sample;
+	}
+	
+	private Object readValue(byte type) throws IOException {
+		switch(type) {
+		case LONG:
+		case INT: {
+			long zigzag = readVarLong();
+			long number = (zigzag >>> 1) ^ -(zigzag & 1);
+			if(type == INT) return (int)number;
+			return number;
+		}
+		case DOUBLE:
+			return records.readDouble();
+		case FLOAT:
+			return records.readFloat();
+		case BOOLEAN:
+			return records.readBoolean();
+		case STRING:
+			return dictionary.get((int)readVarLong());
+		case TEXT:
+			return readText();
+		case DOUBLE_ARRAY: {
+			Double[] array = new Double[(int)readVarLong()];
+			for(int i = 0; i < array.length; i++)
+				array[i] = records.readDouble();
+			return array;
+		}
+		case JSON:
+			return jsonParser.parse(readText());
+		default:
+			throw new IOException(String.format("Unknown value type %d", type));
+		}
+	}
+	
+	private String readText() throws IOException {
+		byte[] bytes = new byte[records.readInt()];
+		records.readFully(bytes);
+		return new String(bytes, "UTF-8");
+	}
+	
+	private long readVarLong() throws IOException {
+		long value = 0;
+		for(int shift = 0; ; shift += 7) {
+			int b = records.readUnsignedByte();
+			value |= (long)(b & 0x7F) << shift;
+			if((b & 0x80) == 0) return value;
+		}
+	}
+}
@@ -0,0 +1,476 @@
+/***
+  This file is part of mc3kit.
+  
+  Copyright (C) 2013 Edward B. Baskerville
+
+  This program is free software: you can redistribute it and/or modify
+  it under the terms of the GNU Affero General Public License as
+  published by the Free Software Foundation, either version 3 of the
+  License, or (at your option) any later version.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU Affero General Public License for more details.
+
+  You should have received a copy of the GNU Affero General Public License
+  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+***/
+
+package mc3kit.output;
+
+import static mc3kit.output.BinarySampleFormat.*;
+
+import java.io.*;
+import java.util.*;
+import java.util.zip.GZIPOutputStream;
+
+import mc3kit.*;
+
+import com.google.gson.*;
+
+/**
+ * Writes samples in the binary format described in BinarySampleFormat: keys are
+ * stored once per block in a string dictionary, numbers in typed columns and
+ * texts (trees, stochastic mapping statistics) as UTF-8, optionally in gzip blocks.
+ * A block is written when it reaches BLOCK_SIZE, at a checkpoint (serialization)
+ * and at close, which is also done by a shutdown hook, flush only flushes written
+ * blocks to the file. Read with BinarySampleReader, convert to JSONS or CSV with
+ * BinarySampleConverter.
+ */
+@SuppressWarnings("serial")
+public class BinarySampleWriter implements SnapshotSampleWriter<Map<String, Object>>
+{
+	private String filename;
+	private boolean compress;
+	
+	private transient DataOutputStream file;
+	private transient boolean headerPending;
+	private transient Gson gson;
+	private transient BlockBuffer block; // records not written to the file yet
+	private transient DataOutputStream blockOut;
+	private transient Map<String, Integer> dictionary; // strings of the block
+	private transient List<String[]> columnPaths; // columns of the block, null if none
+	private transient byte[] columnTypes;
+	
+	private transient List<String[]> paths; // flattened sample
+	private transient List<Object> values;
+	private transient boolean closed; // blocks end at each flush after close
+	
+	protected BinarySampleWriter() { }
+	
+	public BinarySampleWriter(String filename, boolean compress) throws FileNotFoundException
+	{
+		this.filename = filename;
+		this.compress = compress;
+		initializeTransientObjects(false);
+	}
+	
+	private void initializeTransientObjects(boolean append) throws FileNotFoundException {
+		headerPending = !append || new File(filename).length() == 0;
+		file = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(filename, append)));
+		gson = new GsonBuilder()
+			.serializeSpecialFloatingPointValues()
+			.disableHtmlEscaping()
+			.create();
+		block = new BlockBuffer();
+		blockOut = new DataOutputStream(block);
+		dictionary = new HashMap<String, Integer>();
+		columnPaths = null;
+		columnTypes = null;
+		paths = new ArrayList<String[]>();
+		values = new ArrayList<Object>();
+		closed = false;
+		Runtime.getRuntime().addShutdownHook(new Thread() {
+			@Override
+			public void run() {
+				try {
+					close();
+				}
+				catch(MC3KitException e) {
+					e.printStackTrace();
+				}
+			}
+		});
+	}
+	
+	private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+		in.defaultReadObject();
+		initializeTransientObjects(true);
+	}
+	
+	// The file has all samples up to the checkpoint, a restart appends to it
+	private synchronized void writeObject(ObjectOutputStream out) throws IOException {
+		writeBlock();
+		file.flush();
+		out.defaultWriteObject();
+	}
+	
+	@Override
+	public synchronized void writeSample(Model model) throws MC3KitException
+	{
+		writeSnapshot(model.makeHierarchicalSample());
+		flush();
+	}
+	
+	@Override
+	public Map<String, Object> makeSnapshot(Model model) throws MC3KitException
+	{
+		return SampleSnapshots.snapshotMap(model.makeHierarchicalSample());
+	}
+	
+	@Override
+	public synchronized void writeSnapshot(Map<String, Object> sample) throws MC3KitException
+	{
+		try {
+			paths.clear();
+			values.clear();
+			flatten(sample, new ArrayList<String>());
+			
+			int[] columns = columnIndices();
+			List<String> newStrings = new ArrayList<String>();
+			if(columns == null) {
+				for(String[] path : paths) {
+					for(String key : path)
+						addString(key, newStrings);
+				}
+			}
+			for(int i = 0; i < values.size(); i++) {
+				if(typeOf(values.get(i)) == STRING)
+					addString((String)values.get(i), newStrings);
+			}
+			if(!newStrings.isEmpty())
+				writeStrings(newStrings);
+			if(columns == null)
+				columns = writeColumns();
+			writeValues(columns);
+			
+			if(block.size() >= BLOCK_SIZE)
+				writeBlock();
+		}
+		catch(IOException e) {
+			throw new MC3KitException("Error writing sample", e);
+		}
+	}
+	
+	// Flushes written blocks, the current block is kept to share its dictionary and columns with later samples
+	@Override
+	public synchronized void flush() throws MC3KitException
+	{
+		try {
+			if(closed)
+				writeBlock();
+			file.flush();
+		}
+		catch(IOException e) {
+			throw new MC3KitException(String.format("Error writing to %s", filename), e);
+		}
+	}
+	
+	// Writes the current block, the file stays open for samples that a background
+	// writer still writes during shutdown, each flush ends the block from then on
+	public synchronized void close() throws MC3KitException
+	{
+		closed = true;
+		flush();
+	}
+	
+	// Leaves of the hierarchical sample in order, null values are skipped (as by gson)
+	@SuppressWarnings("unchecked")
+	private void flatten(Map<String, Object> map, List<String> path) {
+		for(Map.Entry<String, Object> entry : map.entrySet()) {
+			Object value = entry.getValue();
+			if(value == null) continue;
+			path.add(String.valueOf(entry.getKey()));
+			if(value instanceof Map && !isEmpty((Map<String, Object>)value)) {
+				flatten((Map<String, Object>)value, path);
+			}
+			else {
+				paths.add(path.toArray(new String[path.size()]));
+				values.add(value);
+			}
+			path.remove(path.size() - 1);
+		}
+	}
+	
+	// Maps without values are kept as JSON values ({})
+	private static boolean isEmpty(Map<String, Object> map) {
+		for(Object value : map.values()) {
+			if(value != null) return false;
+		}
+		return true;
+	}
+	
+	private static byte typeOf(Object value) {
+		if(value instanceof Long) return LONG;
+		if(value instanceof Integer || value instanceof Short || value instanceof Byte) return INT;
+		if(value instanceof Double) return DOUBLE;
+		if(value instanceof Float) return FLOAT;
+		if(value instanceof Boolean) return BOOLEAN;
+		if(value instanceof String) return ((String)value).length() <= MAX_DICTIONARY_STRING ? STRING : TEXT;
+		if(value instanceof StreamedText) return TEXT;
+		if(value instanceof double[]) return DOUBLE_ARRAY;
+		if(value instanceof Double[] && !Arrays.asList((Double[])value).contains(null)) return DOUBLE_ARRAY;
+		return JSON;
+	}
+	
+	// Column of each value if the sample fits the block's columns, null otherwise
+	private int[] columnIndices() {
+		if(columnPaths == null) return null;
+		int[] returnValue = new int[paths.size()];
+		int column = 0;
+		for(int i = 0; i < paths.size(); i++) {
+			while(column < columnPaths.size() && !Arrays.equals(columnPaths.get(column), paths.get(i)))
+				column++;
+			if(column == columnPaths.size()) return null;
+			byte type = typeOf(values.get(i));
+			if(type != columnTypes[column] && !(type == STRING && columnTypes[column] == TEXT)) return null;
+			returnValue[i] = column++;
+		}
+		return returnValue;
+	}
+	
+	private void addString(String string, List<String> newStrings) {
+		if(!dictionary.containsKey(string)) {
+			dictionary.put(string, dictionary.size());
+			newStrings.add(string);
+		}
+	}
+	
+	/*** RECORDS ***/
+	
+	private int startRecord(byte type) throws IOException {
+		blockOut.writeByte(type);
+		int lengthPosition = block.size();
+		blockOut.writeInt(0);
+		return lengthPosition;
+	}
+	
+	private void endRecord(int lengthPosition) {
+		block.setInt(lengthPosition, block.size() - lengthPosition - 4);
+	}
+	
+	private void writeStrings(List<String> strings) throws IOException {
+		int record = startRecord(STRINGS);
+		writeVarLong(strings.size());
+		for(String string : strings) {
+			byte[] bytes = string.getBytes("UTF-8");
+			writeVarLong(bytes.length);
+			blockOut.write(bytes);
+		}
+		endRecord(record);
+	}
+	
+	// Columns of this sample become the block's columns
+	private int[] writeColumns() throws IOException {
+		columnPaths = new ArrayList<String[]>(paths);
+		columnTypes = new byte[paths.size()];
+		int record = startRecord(COLUMNS);
+		writeVarLong(paths.size());
+		for(int i = 0; i < paths.size(); i++) {
+			String[] path = paths.get(i);
+			writeVarLong(path.length);
+			for(String key : path)
+				writeVarLong(dictionary.get(key));
+			columnTypes[i] = typeOf(values.get(i));
+			blockOut.writeByte(columnTypes[i]);
+		}
+		endRecord(record);
+		
+		int[] returnValue = new int[paths.size()];
+		for(int i = 0; i < returnValue.length; i++)
+			returnValue[i] = i;
+		return returnValue;
+	}
+	
+	private void writeValues(int[] columns) throws IOException {
+		int record = startRecord(SAMPLE);
+		byte[] present = new byte[(columnPaths.size() + 7) / 8];
+		for(int column : columns)
+			present[column / 8] |= 1 << (column % 8);
+		blockOut.write(present);
+		for(int i = 0; i < columns.length; i++)
+			writeValue(columnTypes[columns[i]], values.get(i));
+		endRecord(record);
+	}
+	
+	private void writeValue(byte type, Object value) throws IOException {
+		switch(type) {
+		case LONG:
+		case INT:
+			long number = ((Number)value).longValue();
+			writeVarLong((number << 1) ^ (number >> 63));
+			break;
+		case DOUBLE:
+			blockOut.writeDouble((Double)value);
+			break;
+		case FLOAT:
+			blockOut.writeFloat((Float)value);
+			break;
+		case BOOLEAN:
+			blockOut.writeBoolean((Boolean)value);
+			break;
+		case STRING:
+			writeVarLong(dictionary.get(value));
+			break;
+		case TEXT: {
+			int lengthPosition = block.size();
+			blockOut.writeInt(0);
+			if(value instanceof StreamedText)
+				((StreamedText)value).writeTo(block);
+			else
+				block.append((String)value);
+			block.endText();
+			block.setInt(lengthPosition, block.size() - lengthPosition - 4);
+			break;
+		}
+		case DOUBLE_ARRAY:
+			if(value instanceof double[]) {
+				double[] array = (double[])value;
+				writeVarLong(array.length);
+				for(double x : array)
+					blockOut.writeDouble(x);
+			}
+			else {
+				Double[] array = (Double[])value;
+				writeVarLong(array.length);
+				for(Double x : array)
+					blockOut.writeDouble(x);
+			}
+			break;
+		default: {
+			int lengthPosition = block.size();
+			blockOut.writeInt(0);
+			gson.toJson(value, block);
+			block.endText();
+			block.setInt(lengthPosition, block.size() - lengthPosition - 4);
+			break;
+		}
+		}
+	}
+	
+	private void writeVarLong(long value) throws IOException {
+		while((value & ~0x7FL) != 0) {
+			blockOut.writeByte((int)(value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		blockOut.writeByte((int)value);
+	}
+	
+	// Blocks start with an empty dictionary and no columns
+	private void writeBlock() throws IOException {
+		if(block.size() == 0) return;
+		if(headerPending) {
+			file.write(MAGIC);
+			file.writeByte(VERSION);
+			headerPending = false;
+		}
+		if(compress) {
+			ByteArrayOutputStream compressed = new ByteArrayOutputStream(block.size() / 4 + 64);
+			GZIPOutputStream gzip = new GZIPOutputStream(compressed);
+			block.writeTo(gzip);
+			gzip.close();
+			file.writeByte(BLOCK_GZIP);
+			file.writeInt(compressed.size());
+			compressed.writeTo(file);
+		}
+		else {
+			file.writeByte(BLOCK_RAW);
+			file.writeInt(block.size());
+			block.writeTo(file);
+		}
+		block.reset();
+		dictionary.clear();
+		columnPaths = null;
+		columnTypes = null;
+	}
+	
+	// Record bytes, text is appended to it as UTF-8 without building strings
+	private static class BlockBuffer extends ByteArrayOutputStream implements Appendable
+	{
+		private char highSurrogate; // waiting for its low surrogate, 0 if none
+		
+		BlockBuffer()
+		{
+			super(1 << 16);
+		}
+		
+		void setInt(int position, int value) {
+			buf[position] = (byte)(value >>> 24);
+			buf[position + 1] = (byte)(value >>> 16);
+			buf[position + 2] = (byte)(value >>> 8);
+			buf[position + 3] = (byte)value;
+		}
+		
+		@Override
+		public Appendable append(CharSequence csq) {
+			if(csq == null) csq = "null";
+			return append(csq, 0, csq.length());
+		}
+		
+		@Override
+		public Appendable append(CharSequence csq, int start, int end) {
+			if(csq == null) csq = "null";
+			ensureCapacity(3 * (end - start));
+			for(int i = start; i < end; i++) {
+				char c = csq.charAt(i);
+				if(c < 0x80 && highSurrogate == 0)
+					buf[count++] = (byte)c;
+				else
+					append(c);
+			}
+			return this;
+		}
+		
+		@Override
+		public Appendable append(char c) {
+			ensureCapacity(4);
+			if(highSurrogate != 0) {
+				char high = highSurrogate;
+				highSurrogate = 0;
+				if(Character.isLowSurrogate(c)) {
+					int codePoint = Character.toCodePoint(high, c);
+					buf[count++] = (byte)(0xF0 | (codePoint >> 18));
+					buf[count++] = (byte)(0x80 | ((codePoint >> 12) & 0x3F));
+					buf[count++] = (byte)(0x80 | ((codePoint >> 6) & 0x3F));
+					buf[count++] = (byte)(0x80 | (codePoint & 0x3F));
+					return this;
+				}
+				buf[count++] = '?';
+				ensureCapacity(3);
+			}
+			if(c < 0x80) {
+				buf[count++] = (byte)c;
+			}
+			else if(c < 0x800) {
+				buf[count++] = (byte)(0xC0 | (c >> 6));
+				buf[count++] = (byte)(0x80 | (c & 0x3F));
+			}
+			else if(Character.isHighSurrogate(c)) {
+				highSurrogate = c;
+			}
+			else if(Character.isLowSurrogate(c)) {
+				buf[count++] = '?'; // unpaired, as String.getBytes
+			}
+			else {
+				buf[count++] = (byte)(0xE0 | (c >> 12));
+				buf[count++] = (byte)(0x80 | ((c >> 6) & 0x3F));
+				buf[count++] = (byte)(0x80 | (c & 0x3F));
+			}
+			return this;
+		}
+		
+		void endText() {
+			if(highSurrogate != 0) {
+				ensureCapacity(1);
+				buf[count++] = '?';
+				highSurrogate = 0;
+			}
+		}
+		
+		private void ensureCapacity(int extra) {
+			if(count + extra > buf.length)
+				buf = Arrays.copyOf(buf, Math.max(2 * buf.length, count + extra));
+		}
+	}
+}
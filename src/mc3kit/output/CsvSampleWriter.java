@@ -25,7 +25,7 @@ import java.util.*;
 import mc3kit.*;
 
 @SuppressWarnings("serial")
-public class CsvSampleWriter implements SampleWriter
+public class CsvSampleWriter implements SnapshotSampleWriter<Map<String, String>>
 {
   private String filename;
 	private transient PrintWriter writer;
@@ -52,8 +52,25 @@ public class CsvSampleWriter implements SampleWriter
 	@Override
 	public synchronized void writeSample(Model model) throws MC3KitException
 	{
-	  Map<String, String> samp = model.makeFlatSample();
-	  
+	  writeSnapshot(model.makeFlatSample());
+	}
+	
+	@Override
+	public Map<String, String> makeSnapshot(Model model) throws MC3KitException
+	{
+	  return Collections.unmodifiableMap(model.makeFlatSample());
+	}
+	
+	@Override
+	public synchronized void flush() throws MC3KitException
+	{
+	  if(writer.checkError()) // flushes
+	    throw new MC3KitException(String.format("Error writing to %s", filename));
+	}
+	
+	@Override
+	public synchronized void writeSnapshot(Map<String, String> samp) throws MC3KitException
+	{
 		// Establish keys to use and write headers if unestablished
 		if(keys == null)
 		{
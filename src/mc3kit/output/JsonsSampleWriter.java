@@ -20,13 +20,14 @@
 package mc3kit.output;
 
 import java.io.*;
+import java.util.*;
 
 import mc3kit.*;
 
 import com.google.gson.*;
 
 @SuppressWarnings("serial")
-public class JsonsSampleWriter implements SampleWriter
+public class JsonsSampleWriter implements SnapshotSampleWriter<Map<String, Object>>
 {
   private String filename;
 	private transient PrintWriter writer;
@@ -56,10 +57,159 @@ public class JsonsSampleWriter implements SampleWriter
 	
 	@Override
 	public synchronized void writeSample(Model model) throws MC3KitException
+	{
+	  writeSample(model.makeHierarchicalSample());
+	}
+	
+	// Same layout as gson's pretty printing, StreamedText values are written to the file
+	// as they are generated instead of being built as one string first
+	public synchronized void writeSample(Map<String, Object> sample) throws MC3KitException
+	{
+	  writeSnapshot(sample);
+	  flush();
+	}
+	
+	@Override
+	public Map<String, Object> makeSnapshot(Model model) throws MC3KitException
+	{
+	  return SampleSnapshots.snapshotMap(model.makeHierarchicalSample());
+	}
+	
+	@Override
+	public synchronized void writeSnapshot(Map<String, Object> sample) throws MC3KitException
 	{
 	  writer.println("---");
-		gson.toJson(model.makeHierarchicalSample(), writer);
-		writer.println();
-		writer.flush();
+	  try {
+	    writeValue(sample, "");
+	  }
+	  catch(IOException e) {
+	    throw new MC3KitException("Error writing sample", e);
+	  }
+	  writer.println();
+	}
+	
+	@Override
+	public synchronized void flush() throws MC3KitException
+	{
+	  if(writer.checkError()) // flushes
+	    throw new MC3KitException(String.format("Error writing to %s", filename));
+	}
+	
+	private void writeValue(Object value, String indent) throws IOException {
+	  if(value instanceof Map) {
+	    String innerIndent = indent + "  ";
+	    boolean empty = true;
+	    for(Map.Entry<?, ?> entry : ((Map<?, ?>)value).entrySet()) {
+	      if(entry.getValue() == null) continue; // skipped by gson
+	      writer.write(empty ? "{\n" : ",\n");
+	      empty = false;
+	      writer.write(innerIndent);
+	      writer.write('"');
+	      new JsonStringAppendable(writer).append(String.valueOf(entry.getKey()));
+	      writer.write("\": ");
+	      writeValue(entry.getValue(), innerIndent);
+	    }
+	    writer.write(empty ? "{}" : "\n" + indent + "}");
+	  }
+	  else if(value instanceof StreamedText) {
+	    writer.write('"');
+	    ((StreamedText)value).writeTo(new JsonStringAppendable(writer));
+	    writer.write('"');
+	  }
+	  else if(value instanceof JsonElement) { // i.e. read back by BinarySampleReader
+	    gson.toJson((JsonElement)value, new IndentingWriter(writer, indent));
+	  }
+	  else {
+	    gson.toJson(value, new IndentingWriter(writer, indent));
+	  }
+	}
+	
+	// Escapes text written to it as gson escapes strings (without html escaping)
+	private static class JsonStringAppendable implements Appendable {
+	  private Writer out;
+	  
+	  JsonStringAppendable(Writer out) {
+	    this.out = out;
+	  }
+	  
+	  @Override
+	  public Appendable append(CharSequence csq) throws IOException {
+	    if(csq == null) csq = "null";
+	    return append(csq, 0, csq.length());
+	  }
+	  
+	  @Override
+	  public Appendable append(CharSequence csq, int start, int end) throws IOException {
+	    if(csq == null) csq = "null";
+	    int unescaped = start; // start of the characters that are written as they are
+	    for(int i = start; i < end; i++) {
+	      String escaped = escape(csq.charAt(i));
+	      if(escaped != null) {
+	        if(i > unescaped) out.append(csq, unescaped, i);
+	        out.write(escaped);
+	        unescaped = i + 1;
+	      }
+	    }
+	    if(end > unescaped) out.append(csq, unescaped, end);
+	    return this;
+	  }
+	  
+	  @Override
+	  public Appendable append(char c) throws IOException {
+	    String escaped = escape(c);
+	    if(escaped != null)
+	      out.write(escaped);
+	    else
+	      out.write(c);
+	    return this;
+	  }
+	  
+	  private static String escape(char c) {
+	    switch(c) {
+	    case '"': return "\\\"";
+	    case '\\': return "\\\\";
+	    case '\t': return "\\t";
+	    case '\b': return "\\b";
+	    case '\n': return "\\n";
+	    case '\r': return "\\r";
+	    case '\f': return "\\f";
+	    case '\u2028': return "\\u2028";
+	    case '\u2029': return "\\u2029";
+	    default: return (c <= 0x1f ? String.format("\\u%04x", (int) c) : null);
+	    }
+	  }
+	}
+	
+	// Indents values written by gson to the depth at which they are nested
+	private static class IndentingWriter extends Writer {
+	  private Writer out;
+	  private String indent;
+	  
+	  IndentingWriter(Writer out, String indent) {
+	    this.out = out;
+	    this.indent = indent;
+	  }
+	  
+	  @Override
+	  public void write(char[] cbuf, int off, int len) throws IOException {
+	    int lineStart = off;
+	    for(int i = off; i < off + len; i++) {
+	      if(cbuf[i] == '\n') {
+	        out.write(cbuf, lineStart, i + 1 - lineStart);
+	        out.write(indent);
+	        lineStart = i + 1;
+	      }
+	    }
+	    out.write(cbuf, lineStart, off + len - lineStart);
+	  }
+	  
+	  @Override
+	  public void flush() throws IOException {
+	    out.flush();
+	  }
+	  
+	  @Override
+	  public void close() throws IOException {
+	  }
 	}
 }
@@ -12,6 +12,8 @@ public class PriorLikelihoodOutputStep implements Step, Serializable
 	private String filename;
 	private long thin;
 	private int chainCount;
+	private RowWriter rowWriter;
+	private BackgroundWriter<PriorLikelihoodRows> backgroundWriter; // null if rows are written on the chain thread
 	
 	transient PrintWriter writer;
 	transient Collector<LogPriorLikelihoodValue> collector;
@@ -22,8 +24,18 @@ public class PriorLikelihoodOutputStep implements Step, Serializable
 	protected PriorLikelihoodOutputStep() { };
 	
 	public PriorLikelihoodOutputStep(String filename, long thin) throws FileNotFoundException {
+	  this(filename, thin, 0, 1, 0);
+	}
+	
+	// Rows are written by a background thread if queueSize > 0, see BackgroundWriter
+	public PriorLikelihoodOutputStep(String filename, long thin, int queueSize, int batchSize, long flushIntervalMillis) throws FileNotFoundException {
 	  this.filename = filename;
 	  this.thin = thin;
+	  rowWriter = new RowWriter();
+	  if(queueSize > 0) {
+	    backgroundWriter = new BackgroundWriter<PriorLikelihoodRows>(rowWriter,
+	      String.format("Prior likelihood writer %s", filename), queueSize, batchSize, flushIntervalMillis);
+	  }
 	  
     writer = new PrintWriter(new FileOutputStream(filename, false));
     writer.println("iteration\tchainId\tlogPrior\tlogLikelihood");
@@ -35,6 +47,18 @@ public class PriorLikelihoodOutputStep implements Step, Serializable
 	  writer = new PrintWriter(new FileOutputStream(filename, true));
 	}
 	
+	private void writeObject(ObjectOutputStream out) throws IOException {
+	  if(backgroundWriter != null) {
+	    try {
+	      backgroundWriter.drain();
+	    }
+	    catch(MC3KitException e) {
+	      throw new IOException("Error writing pending rows", e);
+	    }
+	  }
+	  out.defaultWriteObject();
+	}
+	
 	private synchronized List<LogPriorLikelihoodValue> takeValue(long iteration, int index, double logPrior, double logLikelihood) {
 	  if(collector == null) {
 	    collector = new Collector<LogPriorLikelihoodValue>(chainCount);
@@ -88,18 +112,52 @@ public class PriorLikelihoodOutputStep implements Step, Serializable
 				
 				if(plValues != null)
 				{
-					for(int i = 0; i < chainCount; i++)
+					PriorLikelihoodRows rows = new PriorLikelihoodRows(iterationCount, plValues);
+					if(backgroundWriter != null)
+						backgroundWriter.submit(rows);
+					else
 					{
-						writer.printf("%d\t%d\t%.3f\t%.3f\n", iterationCount, i,
-							plValues.get(i).logPrior,
-							plValues.get(i).logLikelihood);
+						rowWriter.writeSnapshot(rows);
+						rowWriter.flush();
 					}
-          writer.flush();
 				}
 			}
 		}
 	}
 	
+	// Values of all chains at one iteration, complete when handed to the writer
+	private class PriorLikelihoodRows
+	{
+		long iteration;
+		List<LogPriorLikelihoodValue> values;
+		
+		PriorLikelihoodRows(long iteration, List<LogPriorLikelihoodValue> values)
+		{
+			this.iteration = iteration;
+			this.values = values;
+		}
+	}
+	
+	private class RowWriter implements SnapshotWriter<PriorLikelihoodRows>
+	{
+		@Override
+		public void writeSnapshot(PriorLikelihoodRows rows)
+		{
+			for(int i = 0; i < chainCount; i++)
+			{
+				writer.printf("%d\t%d\t%.3f\t%.3f\n", rows.iteration, i,
+					rows.values.get(i).logPrior,
+					rows.values.get(i).logLikelihood);
+			}
+		}
+		
+		@Override
+		public void flush()
+		{
+			writer.flush();
+		}
+	}
+	
 	private class LogPriorLikelihoodValue implements Serializable
 	{
 		double logPrior;
@@ -34,17 +34,33 @@ public class SampleOutputStep implements Step
   boolean useQuotes;
   long thin;
   int chainId;
+  int queueSize; // 0 if samples are written on the chain thread
+  int batchSize;
+  long flushIntervalMillis;
 	
   public SampleOutputStep(String filename, long thin) {
     this(filename, null, false, thin, 0);
   }
   
 	public SampleOutputStep(String filename, String format, boolean useQuotes, long thin, int chainId) {
+	  this(filename, format, useQuotes, thin, chainId, 0, 1, 0);
+	}
+	
+	// Samples are written by a background thread if queueSize > 0, see BackgroundWriter
+	public SampleOutputStep(String filename, long thin, int queueSize, int batchSize, long flushIntervalMillis) {
+	  this(filename, null, false, thin, 0, queueSize, batchSize, flushIntervalMillis);
+	}
+	
+	public SampleOutputStep(String filename, String format, boolean useQuotes, long thin, int chainId,
+	    int queueSize, int batchSize, long flushIntervalMillis) {
 	  this.filename = filename;
 	  this.format = format;
 	  this.useQuotes = useQuotes;
 	  this.thin = thin;
 	  this.chainId = chainId;
+	  this.queueSize = queueSize;
+	  this.batchSize = batchSize;
+	  this.flushIntervalMillis = flushIntervalMillis;
 	}
 
 	/*** METHODS ***/
@@ -79,6 +95,10 @@ public class SampleOutputStep implements Step
       catch(FileNotFoundException e) {
         throw new MC3KitException("File not found", e);
       }
+			if(queueSize > 0 && writer instanceof SnapshotSampleWriter) {
+			  writer = AsyncSampleWriter.wrap((SnapshotSampleWriter<?>) writer, 
+			    format("Sample writer %s", filename), queueSize, batchSize, flushIntervalMillis);
+			}
 		}
 		
 		@Override
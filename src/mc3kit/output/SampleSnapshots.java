@@ -0,0 +1,62 @@
+/***
+  This file is part of mc3kit.
+  
+  Copyright (C) 2013 Edward B. Baskerville
+
+  This program is free software: you can redistribute it and/or modify
+  it under the terms of the GNU Affero General Public License as
+  published by the Free Software Foundation, either version 3 of the
+  License, or (at your option) any later version.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU Affero General Public License for more details.
+
+  You should have received a copy of the GNU Affero General Public License
+  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+***/
+
+package mc3kit.output;
+
+import java.util.*;
+
+// Immutable copies of hierarchical samples, see SnapshotSampleWriter
+final class SampleSnapshots
+{
+	private SampleSnapshots() { }
+	
+	// Maps and arrays are copied, texts are snapshot; other values are immutable
+	// or made for this sample only (output objects)
+	static Map<String, Object> snapshotMap(Map<String, Object> map) {
+	  Map<String, Object> returnValue = new LinkedHashMap<String, Object>();
+	  for(Map.Entry<String, Object> entry : map.entrySet()) {
+	    returnValue.put(entry.getKey(), snapshotValue(entry.getValue()));
+	  }
+	  return Collections.unmodifiableMap(returnValue);
+	}
+	
+	@SuppressWarnings("unchecked")
+	static Object snapshotValue(Object value) {
+	  if(value instanceof Map) {
+	    return snapshotMap((Map<String, Object>)value);
+	  }
+	  else if(value instanceof StreamedText) {
+	    return ((StreamedText)value).snapshot();
+	  }
+	  else if(value instanceof Object[]) {
+	    Object[] returnValue = ((Object[])value).clone();
+	    for(int i = 0; i < returnValue.length; i++) {
+	      returnValue[i] = snapshotValue(returnValue[i]);
+	    }
+	    return returnValue;
+	  }
+	  else if(value != null && value.getClass().isArray()) {
+	    int length = java.lang.reflect.Array.getLength(value);
+	    Object returnValue = java.lang.reflect.Array.newInstance(value.getClass().getComponentType(), length);
+	    System.arraycopy(value, 0, returnValue, 0, length);
+	    return returnValue;
+	  }
+	  return value;
+	}
+}
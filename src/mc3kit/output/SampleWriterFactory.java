@@ -62,6 +62,12 @@ public class SampleWriterFactory {
     else if(format.equalsIgnoreCase("txt")) {
       return new CsvSampleWriter(filename, "\t", useQuotes);
     }
+    else if(format.equalsIgnoreCase("sbin")) {
+      return new BinarySampleWriter(filename, true);
+    }
+    else if(format.equalsIgnoreCase("sbinraw")) { // uncompressed blocks
+      return new BinarySampleWriter(filename, false);
+    }
     else {
       throw new MC3KitException(String.format("Unknown format %s.", format));
     }
@@ -0,0 +1,215 @@
+package mc3kit.output;
+
+import static org.junit.Assert.*;
+
+import java.io.*;
+import java.util.*;
+
+import mc3kit.MC3KitException;
+
+import org.junit.Test;
+
+import com.google.gson.GsonBuilder;
+
+public class SampleWriterTest {
+
+	@Test
+	public void testStreamedSampleOutput() throws Exception {
+		// Streamed values are written as gson writes the same values as strings, with escapes
+		StringBuilder text = new StringBuilder("{{0.1,true},\"quoted\"}\\");
+		for (char c=0;c<0x80;c++) {
+			text.append(c);
+		}
+		text.append("\u2028\u2029");
+		StreamedText streamed = streamed(text, 10);
+
+		Map<String, Object> sample = new LinkedHashMap<String, Object>();
+		Map<String, Object> expected = new LinkedHashMap<String, Object>();
+		for (Map<String, Object> map : Arrays.asList(sample, expected)) {
+			map.put("iterationCount", 10L);
+			map.put("logPrior", Double.NaN);
+			map.put("rates", new Double[] {0.5, 1.5});
+			map.put("skipped", null);
+			map.put("empty", new LinkedHashMap<String, Object>());
+			Map<String, Object> nulls = new LinkedHashMap<String, Object>();
+			nulls.put("0", null);
+			map.put("nulls", nulls);
+			Map<String, Object> trees = new LinkedHashMap<String, Object>();
+			trees.put("0", (map==sample ? streamed : text.toString()));
+			trees.put("1", "(1,2)");
+			map.put("smTrees", trees);
+		}
+
+		File file = tempFile("samples", ".jsons");
+		JsonsSampleWriter writer = new JsonsSampleWriter(file.getPath());
+		writer.writeSample(sample);
+		writer.writeSample(sample);
+
+		String json = new GsonBuilder().serializeSpecialFloatingPointValues().setPrettyPrinting().disableHtmlEscaping().create().toJson(expected);
+		String newLine = System.getProperty("line.separator");
+		assertEquals("---"+newLine+json+newLine+"---"+newLine+json+newLine, readFile(file));
+		assertEquals(text.toString(), streamed.toString());
+	}
+
+	@Test
+	public void testBackgroundSampleWriter() throws Exception {
+		// Snapshots written on the writer thread match samples written on the calling thread,
+		// text that changes after the hand off is written as it was when the snapshot was taken
+		StringBuilder text = new StringBuilder();
+		StreamedText streamed = streamed(text, 0);
+
+		File file = tempFile("samples", ".jsons");
+		BackgroundWriter<Map<String, Object>> writer = new BackgroundWriter<Map<String, Object>>(new JsonsSampleWriter(file.getPath()), "test writer", 2, 3, 60000);
+		List<Map<String, Object>> expected = new ArrayList<Map<String, Object>>();
+		for (int i=0;i<10;i++) {
+			text.setLength(0);
+			text.append("(1:"+i+",2:"+i+")");
+			Map<String, Object> sample = new LinkedHashMap<String, Object>();
+			sample.put("iterationCount", (long) i);
+			sample.put("tree", streamed.snapshot());
+			writer.submit(sample);
+			Map<String, Object> expectedSample = new LinkedHashMap<String, Object>();
+			expectedSample.put("iterationCount", (long) i);
+			expectedSample.put("tree", text.toString());
+			expected.add(expectedSample);
+			text.append("changed");
+		}
+		writer.drain();
+		assertEquals(readFile(expectedJsons(expected)), readFile(file));
+		writer.close();
+
+		// Errors of the writer thread are thrown to the thread handing off snapshots
+		@SuppressWarnings("serial")
+		SnapshotWriter<Long> failing = new SnapshotWriter<Long>() {
+			@Override
+			public void writeSnapshot(Long snapshot) throws MC3KitException {
+				throw new MC3KitException("failed");
+			}
+			@Override
+			public void flush() {
+			}
+		};
+		BackgroundWriter<Long> failingWriter = new BackgroundWriter<Long>(failing, "failing writer", 1, 1, 0);
+		failingWriter.submit(0L);
+		try {
+			failingWriter.drain();
+			fail();
+		} catch (MC3KitException e) {
+			assertEquals("failed", e.getCause().getMessage());
+		}
+	}
+
+	@Test
+	public void testBinarySampleOutput() throws Exception {
+		// Samples read back from binary files (raw and gzip blocks) are written to JSONS as the original samples
+		StringBuilder text = new StringBuilder("((a:1,b:2):0.5,\"c\":1) \u00e9\u4e2d\ud83d\ude00");
+		for (int i=0;i<100;i++) {
+			text.append("[&states="+i+"]");
+		}
+		StreamedText streamed = streamed(text, 5);
+
+		List<Map<String, Object>> samples = new ArrayList<Map<String, Object>>();
+		for (int i=0;i<6;i++) {
+			Map<String, Object> sample = new LinkedHashMap<String, Object>();
+			sample.put("iterationCount", (long) i);
+			sample.put("logPrior", (i==1 ? Double.NaN : -1.5*i));
+			sample.put("treeIndex", (i<4 ? (Object) i : (Object) 0.5)); // type changes
+			sample.put("flags", (i%2==0));
+			sample.put("ratio", 0.25f);
+			sample.put("name", "short name "+(i%2));
+			sample.put("longName", text.toString());
+			Map<String, Object> rates = new LinkedHashMap<String, Object>();
+			rates.put("0", new Double[] {0.5, 1.5*i});
+			rates.put("1", (i==2 ? null : new Double[] {null, 2.0}));
+			rates.put("2", new double[] {3.0});
+			sample.put("rates", rates);
+			sample.put("matrix", new int[][] {{1, 2}, {3, i}});
+			sample.put("empty", new LinkedHashMap<String, Object>());
+			if (i>=3) {
+				sample.put("added", "key added at sample 3");
+			}
+			Map<String, Object> trees = new LinkedHashMap<String, Object>();
+			trees.put("0", streamed);
+			trees.put("1", (i==4 ? null : "(1,2)"));
+			sample.put("smTrees", trees);
+			samples.add(sample);
+		}
+		String expected = readFile(expectedJsons(samples));
+
+		for (boolean compress : new boolean[] {false, true}) {
+			File file = tempFile("samples", ".sbin");
+			BinarySampleWriter writer = new BinarySampleWriter(file.getPath(), compress);
+			for (int i=0;i<samples.size();i++) {
+				writer.writeSnapshot(samples.get(i));
+				writer.flush();
+				if (i==0) {
+					assertEquals(0, file.length()); // the block is kept
+				}
+				if (i==1) { // checkpoint and restart, new block
+					ByteArrayOutputStream checkpoint = new ByteArrayOutputStream();
+					ObjectOutputStream out = new ObjectOutputStream(checkpoint);
+					out.writeObject(writer);
+					out.close();
+					assertTrue(file.length()>0);
+					writer = (BinarySampleWriter) new ObjectInputStream(new ByteArrayInputStream(checkpoint.toByteArray())).readObject();
+				}
+			}
+			writer.close();
+
+			File jsonsFile = tempFile("converted", ".jsons");
+			JsonsSampleWriter jsonsWriter = new JsonsSampleWriter(jsonsFile.getPath());
+			BinarySampleReader reader = new BinarySampleReader(file.getPath());
+			int count = 0;
+			for (Map<String, Object> sample = reader.readSample(); sample!=null; sample = reader.readSample()) {
+				jsonsWriter.writeSample(sample);
+				count++;
+			}
+			reader.close();
+			assertEquals(samples.size(), count);
+			assertEquals(expected, readFile(jsonsFile));
+
+			assertTrue(jsonsFile.delete());
+			assertEquals(samples.size(), BinarySampleConverter.convert(file.getPath(), jsonsFile.getPath()));
+			assertEquals(expected, readFile(jsonsFile));
+		}
+	}
+
+	/*** FIXTURES ***/
+
+	// Text as it is when written, appended as a range, the char at split and the rest
+	@SuppressWarnings("serial")
+	private static StreamedText streamed(final StringBuilder text, final int split) {
+		return new StreamedText() {
+			@Override
+			public void writeTo(Appendable out) throws IOException {
+				out.append(text, 0, split);
+				out.append(text.charAt(split));
+				out.append(text.subSequence(split+1, text.length()));
+			}
+		};
+	}
+
+	private static File tempFile(String prefix, String suffix) throws IOException {
+		File file = File.createTempFile(prefix, suffix);
+		file.deleteOnExit();
+		return file;
+	}
+
+	// Samples written by JsonsSampleWriter
+	private static File expectedJsons(List<Map<String, Object>> samples) throws Exception {
+		File file = tempFile("expected", ".jsons");
+		JsonsSampleWriter writer = new JsonsSampleWriter(file.getPath());
+		for (Map<String, Object> sample : samples) {
+			writer.writeSample(sample);
+		}
+		return file;
+	}
+
+	private static String readFile(File file) throws IOException {
+		byte[] bytes = new byte[(int) file.length()];
+		FileInputStream in = new FileInputStream(file);
+		assertEquals(bytes.length, in.read(bytes));
+		in.close();
+		return new String(bytes, "UTF-8");
+	}
+}
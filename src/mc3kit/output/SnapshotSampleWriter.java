@@ -0,0 +1,34 @@
+/***
+  This file is part of mc3kit.
+  
+  Copyright (C) 2013 Edward B. Baskerville
+
+  This program is free software: you can redistribute it and/or modify
+  it under the terms of the GNU Affero General Public License as
+  published by the Free Software Foundation, either version 3 of the
+  License, or (at your option) any later version.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU Affero General Public License for more details.
+
+  You should have received a copy of the GNU Affero General Public License
+  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+***/
+
+package mc3kit.output;
+
+import mc3kit.*;
+
+/**
+ * Sample writer that can take an immutable snapshot of the model's sample
+ * on the chain thread and write it later, see AsyncSampleWriter.
+ * 
+ * @param <S> The snapshot type.
+ */
+public interface SnapshotSampleWriter<S> extends SampleWriter, SnapshotWriter<S>
+{
+	// Snapshot that stays valid while the chain goes on changing the model
+	public S makeSnapshot(Model model) throws MC3KitException;
+}
@@ -0,0 +1,38 @@
+/***
+  This file is part of mc3kit.
+  
+  Copyright (C) 2013 Edward B. Baskerville
+
+  This program is free software: you can redistribute it and/or modify
+  it under the terms of the GNU Affero General Public License as
+  published by the Free Software Foundation, either version 3 of the
+  License, or (at your option) any later version.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU Affero General Public License for more details.
+
+  You should have received a copy of the GNU Affero General Public License
+  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+***/
+
+package mc3kit.output;
+
+import java.io.Serializable;
+
+import mc3kit.*;
+
+/**
+ * Writer of immutable sample snapshots, used by BackgroundWriter
+ * to write samples on a thread other than the chain's.
+ * 
+ * @param <S> The snapshot type.
+ */
+public interface SnapshotWriter<S> extends Serializable
+{
+	// Output may be buffered until flush
+	public void writeSnapshot(S snapshot) throws MC3KitException;
+	
+	public void flush() throws MC3KitException;
+}
@@ -0,0 +1,62 @@
+package mc3kit.output;
+
+import java.io.*;
+
+/**
+ * Sample value whose text is written directly to the sample file when the sample is written,
+ * instead of being built as one string first. JsonsSampleWriter writes it as a JSON string;
+ * other writers use toString.
+ */
+@SuppressWarnings("serial")
+public abstract class StreamedText implements Serializable
+{
+	public abstract void writeTo(Appendable out) throws IOException;
+
+	// Text to write on another thread while the model changes (see AsyncSampleWriter),
+	// by default it is formatted now. Subclasses whose text no longer changes return this.
+	public StreamedText snapshot()
+	{
+		return new FormattedText(toString());
+	}
+
+	@Override
+	public String toString()
+	{
+		StringBuilder returnValue = new StringBuilder();
+		try {
+			writeTo(returnValue);
+		}
+		catch(IOException e) {
+			throw new RuntimeException(e); // not thrown by StringBuilder
+		}
+		return returnValue.toString();
+	}
+
+	private static class FormattedText extends StreamedText
+	{
+		private String text;
+
+		FormattedText(String text)
+		{
+			this.text = text;
+		}
+
+		@Override
+		public void writeTo(Appendable out) throws IOException
+		{
+			out.append(text);
+		}
+
+		@Override
+		public StreamedText snapshot()
+		{
+			return this;
+		}
+
+		@Override
+		public String toString()
+		{
+			return text;
+		}
+	}
+}
@@ -19,6 +19,7 @@ import seasmig.treelikelihood.LikelihoodTree;
 import seasmig.treelikelihood.TransitionModel;
 import seasmig.treelikelihood.trees.AttributeLoader;
 import seasmig.treelikelihood.trees.Sequence;
+import seasmig.treelikelihood.trees.SitePatterns;
 import seasmig.treelikelihood.trees.SimpleAttributeLoader;
 import seasmig.treelikelihood.trees.TreeWithLocations;
 
@@ -197,6 +198,13 @@ public class DataFromFiles implements Data
 					seqLength=seqMap.get(seqMap.keySet().iterator().next()).length();
 			}
 
+			// Compress alignment columns into site patterns, shared by all trees
+			SitePatterns sitePatterns = null;
+			if (seqMap!=null && seqLength>0) {
+				sitePatterns = new SitePatterns(seqMap.values(), seqLength);
+				System.out.println("compressed "+seqLength+" sites into "+sitePatterns.getNumPatterns()+" site patterns");
+			}
+
 			double numIdentifiedLocations=0;
 			double numIdentifiedSeqs=0;
 			int numid = 0;
@@ -211,7 +219,7 @@ public class DataFromFiles implements Data
 					codonModel[1]=codonModelMap.get(Integer.toString(numid)+"."+"1");
 					codonModel[2]=codonModelMap.get(Integer.toString(numid)+"."+"2");					
 				}
-				trees.get(h).add(new TreeWithLocations((SimpleRootedTree) tree, taxaIndices, locationMap,numLocations,config.lastTipTime[h],seqMap,seqLength,config, migrationModel, codonModel));
+				trees.get(h).add(new TreeWithLocations((SimpleRootedTree) tree, taxaIndices, locationMap,numLocations,config.lastTipTime[h],seqMap,seqLength,sitePatterns,config, migrationModel, codonModel));
 				numid++;								
 				if (numid%10==0) System.out.print(".");
 				numIdentifiedLocations+=((TreeWithLocations)trees.get(h).get(trees.get(h).size()-1)).getNumIdentifiedLocations();
@@ -73,6 +73,18 @@ public class Config implements Serializable
 		VARIABLE_SELECTION
 	}
 	
+	// CONDITIONAL LIKELIHOOD REPRESENTATION
+	public static enum PartialsMode { 
+		LOG, // log space partials, log-sum-exp per entry
+		SCALED // probability space partials with per node log scale factors
+	}
+	
+	// STOCHASTIC MAPPING OF BRANCHES
+	public static enum StochasticMappingMethod {
+		UNIFORMIZATION, // endpoint conditioned sampling by uniformization, bounded cost per branch
+		REJECTION // forward simulation restarted when the end state does not match, up to maxSMBranchRetries (for validation)
+	}
+
 	// STATE MODEL
 	public static enum StateModel { NONE, BROWNIAN, BROWNIAN_SEASONAL };   // TODO: 
 
@@ -82,7 +94,7 @@ public class Config implements Serializable
 		PROBS, // output conditional probability of internal node states based on children
 		ASR, // output realization of internal node states // TODO: better test
 		STOCHASTIC_MAPPING, // output realization of branches and internal node states // TODO: better test  
-		EXACT_MAPPING_EXPECTATION,  // output realization of branches and internal node states // TODO: 
+		EXACT_MAPPING_EXPECTATION,  // output expected migrations and dwelling times of branches (smTrees, smTransitions, smTipDwellings select outputs)
 		SEQ_STOCHASTIC_MAPPING 
 	};
 
@@ -98,6 +110,9 @@ public class Config implements Serializable
 	public String priorLikelihoodFilename = "F:\\Daniel\\Dropbox\\SharedFolderBobDanielRV\\who_and_us\\for_testing_seasmig_mapping_without_mcmc\\prior_likelihood.txt";
 	public String mlFilename = "F:\\Daniel\\Dropbox\\SharedFolderBobDanielRV\\who_and_us\\for_testing_seasmig_mapping_without_mcmc\\ml.txt";
 	public long thin = 20;
+	public int sampleWriterQueueSize = 4; // samples waiting for the background writer, a chain blocks when it is full (0 writes samples on the chain thread)
+	public int sampleWriterBatchSize = 4; // samples the background writer takes at a time
+	public long sampleWriterFlushMillis = 1000; // minimal time between flushes of the background writer, 0 flushes after every batch
 	
 	// MCMC RELATED PARAMETERS
 	public long burnIn = 200; 	// in iterations	
@@ -142,6 +157,14 @@ public class Config implements Serializable
 	
 	// GENERAL PARAMETERS
 	public double veryLongTime = 1000;		
+	public PartialsMode partialsMode = PartialsMode.LOG;
+	public int numThreads = 1; // thread budget for likelihood evaluation, trees of different files and location/sequence pruning are evaluated concurrently if >1
+	public int parallelPruningMinNodes = 20000; // trees with at least this many nodes are pruned level by level on numThreads threads  
+	public int parallelPruningGrainSize = 256; // minimal number of nodes per task in parallel location pruning
+	public int parallelPruningSiteBlock = 64; // site patterns per task in parallel sequence pruning
+	public int expmvMinLocations = 50; // with at least this many locations and a constant migration model, location pruning and ASR apply exp(Q*t) to vectors instead of filling per branch matrices
+	public int transitionMatrixCacheCapacity = 0; // max transition matrices cached per model, 0 for model defaults (16000 constant and two season, 1600 epochal and piecewise)
+	public double transitionTimeGrid = 0; // if >0 branch durations and seasonal phases are snapped to this grid (i.e. 1E-4 years) so that trees share cached transition matrices, the resulting error bound is printed  
 	
 	// STOCHASTIC MAPPING OUTPUT
 	
@@ -157,6 +180,7 @@ public class Config implements Serializable
 	public boolean smDescendants = false;
 	public boolean smTrunkStats = false;
 	public boolean smMigrationNodeNumTipAndSequenceData = true; // output sequence and node data for each migration event
+	public int smRealizations = 1; // reconstructions and stochastic mappings per sample drawn from one pruning pass, smTransitions and smTipDwellings pool all of them, other outputs show the last
 	public boolean seqMutationStats = true;
 	public boolean seqMutationsStatsCodonOutput = true;
 	public boolean seqMutationsStatsSeqOutput = true;
@@ -180,6 +204,10 @@ public class Config implements Serializable
 	public double presentDayTipInterval = 2.25; // width of time interval of recent tips considered to have "survived" for trunk designation purpose  
 	public double timeToDesignateTrunk = 4.0; // time back from present day tip ancestry designated as trunk 
 	public int maxSMBranchRetries = 200000; // maximum number of retries for stochastically mapping a single branch
+	public StochasticMappingMethod stochasticMappingMethod = StochasticMappingMethod.UNIFORMIZATION; // REJECTION is also used for models without endpoint conditioned sampling
+	public boolean parallelStochasticMapping = false; // map branches (sites for sequences) on numThreads threads in blocks with their own random streams, output depends on randomSeed and block sizes but not on numThreads
+	public int parallelMappingBlockSize = 64; // branches per block in parallel stochastic mapping
+	public int parallelSeqMappingSiteBlock = 32; // sites per block in parallel sequence stochastic mapping
 
 	public String[] alignmentFilenames = {"F:\\Daniel\\Dropbox\\SharedFolderBobDanielRV\\who_and_us\\for_testing_seasmig_mapping_without_mcmc\\all_epitopes.txt"};
 
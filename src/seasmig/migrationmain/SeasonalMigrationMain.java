@@ -7,6 +7,8 @@ import seasmig.data.Data;
 import seasmig.data.DataFromFiles;
 import seasmig.models.migrationandsequencemodels.SequenceAndMigrationModelFactory;
 import seasmig.models.migrationmodels.MigrationModelFactory;
+import seasmig.util.TimeQuantization;
+import seasmig.util.TransitionMatrixCache;
 import mc3kit.ChainParity;
 import mc3kit.MCMC;
 import mc3kit.Step;
@@ -42,6 +44,9 @@ public class SeasonalMigrationMain
 		config.outputToFile("out.config",gson);
 		System.out.println(" done");
 
+		TransitionMatrixCache.setCapacityOverride(config.transitionMatrixCacheCapacity);
+		TimeQuantization.setGrid(config.transitionTimeGrid);
+
 		try {
 			MCMC mcmc;
 
@@ -130,13 +135,15 @@ public class SeasonalMigrationMain
 				Step verificationStep = new VerificationStep(config.thin, config.verificationTolerance);
 				
 				// Sample output step
-				Step sampOutStep = new SampleOutputStep(config.sampleFilename, config.thin);
+				Step sampOutStep = new SampleOutputStep(config.sampleFilename, config.thin,
+						config.sampleWriterQueueSize, config.sampleWriterBatchSize, config.sampleWriterFlushMillis);
 
 				// Marginal-likelihood calculation during run
 				Step mlOutStep = new MarginalLikelihoodStep(config.mlFilename, config.burnIn, config.mlthin);
 
 				// Prior-likelihood output step for marginal likelihood calculation
-				Step plOutStep = new PriorLikelihoodOutputStep(config.priorLikelihoodFilename, config.thin);
+				Step plOutStep = new PriorLikelihoodOutputStep(config.priorLikelihoodFilename, config.thin,
+						config.sampleWriterQueueSize, config.sampleWriterBatchSize, config.sampleWriterFlushMillis);
 
 				// Assemble all steps into a sequence; repeat swaps chainCount times
 				// since they're so cheap and beneficial for mixing.
@@ -46,53 +46,74 @@ public abstract class MigrationModel extends Model implements Serializable {
 			}
 		}
 		
+		// Text outputs are written straight to the sample file by the sample writer (see StreamedText)
+		if (outputObject.probTrees!=null) {
+			for (int i=0;i<outputObject.probTrees.length;i++) {
+				flatMap.put("probTrees."+i,outputObject.probTrees[i]);
+			}
+		}
 		if (outputObject.asrTrees!=null) {
 			for (int i=0;i<outputObject.asrTrees.length;i++) {
-				flatMap.put("trees."+i,String.format("%s",outputObject.asrTrees[i]));
+				flatMap.put("trees."+i,outputObject.asrTrees[i]);
 			}
 		}
 		if (outputObject.smTrees!=null) {
 			for (int i=0;i<outputObject.smTrees.length;i++) {
-				flatMap.put("smTrees."+i,String.format("%s",outputObject.smTrees[i]));
+				flatMap.put("smTrees."+i,outputObject.smTrees[i]);
 			}
 		}
 		if (outputObject.smTransitions!=null) {
 			for (int i=0;i<outputObject.smTransitions.length;i++) {
-				flatMap.put("smTransitions."+i,String.format("%s",outputObject.smTransitions[i]));
+				flatMap.put("smTransitions."+i,outputObject.smTransitions[i]);
 			}
 		}
 		if (outputObject.smTipDwellings!=null) {
 			for (int i=0;i<outputObject.smTipDwellings.length;i++) {
-				flatMap.put("smTipDwellings."+i,String.format("%s",outputObject.smTipDwellings[i]));
+				flatMap.put("smTipDwellings."+i,outputObject.smTipDwellings[i]);
 			}
 		}
 		if (outputObject.smLineages!=null) {
 			for (int i=0;i<outputObject.smLineages.length;i++) {
-				flatMap.put("smLineages."+i,String.format("%s",outputObject.smLineages[i]));
+				flatMap.put("smLineages."+i,outputObject.smLineages[i]);
 			}
 		}
 		if (outputObject.smDescendants!=null) {
 			for (int i=0;i<outputObject.smDescendants.length;i++) {
-				flatMap.put("smDescendants."+i,String.format("%s",outputObject.smDescendants[i]));
+				flatMap.put("smDescendants."+i,outputObject.smDescendants[i]);
 			}
 		}
 		if (outputObject.smTrunkStats!=null) {
 			for (int i=0;i<outputObject.smTrunkStats.length;i++) {
-				flatMap.put("smTrunkStats."+i,String.format("%s",outputObject.smTrunkStats[i]));
+				flatMap.put("smTrunkStats."+i,outputObject.smTrunkStats[i]);
 			}
 		}	
+		if (outputObject.expTrees!=null) {
+			for (int i=0;i<outputObject.expTrees.length;i++) {
+				flatMap.put("expTrees."+i,outputObject.expTrees[i]);
+			}
+		}
+		if (outputObject.expTransitions!=null) {
+			for (int i=0;i<outputObject.expTransitions.length;i++) {
+				flatMap.put("expTransitions."+i,outputObject.expTransitions[i]);
+			}
+		}
+		if (outputObject.expDwellings!=null) {
+			for (int i=0;i<outputObject.expDwellings.length;i++) {
+				flatMap.put("expDwellings."+i,outputObject.expDwellings[i]);
+			}
+		}
 
 		///////////////////////////////////////
 		if (outputObject.pies!=null) {
 			for (int i=0;i<outputObject.pies.length;i++) {
-				flatMap.put("pi."+i,String.format("%s",outputObject.pies[i]));
+				flatMap.put("pi."+i,outputObject.pies[i]);
 			}
 		}
 		
 		///////////////////////////////////////
 		if (outputObject.seqMutationStats!=null) {
 			for (int i=0;i<outputObject.seqMutationStats.length;i++) {
-				flatMap.put("seqMutationStats."+i,String.format("%s",outputObject.seqMutationStats[i]));
+				flatMap.put("seqMutationStats."+i,outputObject.seqMutationStats[i]);
 			}
 		}
 		
@@ -1,19 +1,31 @@
 package seasmig.models;
 
+import java.io.IOException;
 import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
 
 import seasmig.migrationmain.Config;
 import seasmig.treelikelihood.LikelihoodTree;
-import seasmig.util.AltTreeOutput;
+import seasmig.util.Parallel;
+import seasmig.util.SplittableRng;
 import mc3kit.Model;
 import mc3kit.Variable;
+import mc3kit.output.StreamedText;
 
 @SuppressWarnings("serial")
 public class TreesLikelihoodVariable extends Variable {
+
+	// PART OF THE TREE LIKELIHOOD EVALUATED BY treesLogLikelihood
+	protected static enum LikelihoodPart { ALL, LOCATION, SEQUENCE };
+
 	protected double oldLogP;
 	protected boolean firstCall;
 	protected LikelihoodTree[] trees;
 	private Config config;
+	private SplittableRng samplingRng = null; // this chain's stream for sampling output, see getSamplingRng
+	private LikelihoodTree[] outputTrees = null; // trees referenced by text output of the last output object
 
 	public TreesLikelihoodVariable(Model m,
 			String name, boolean observable, int numTrees, Config config_) {
@@ -23,35 +35,189 @@ public class TreesLikelihoodVariable extends Variable {
 		config = config_;
 	}
 
+	// Working copy of tree for trees[i], recycles the state of the working copy it replaces.
+	// Each chain has its own likelihood variables, so trees[] acts as a per chain pool.
+	// Trees referenced by text output are not recycled, the sample writer may still be writing them.
+	protected LikelihoodTree workingCopy(int i, LikelihoodTree tree) {
+		return tree.copy(outputTrees==null || outputTrees[i]!=trees[i] ? trees[i] : null);
+	}
+
+	// Replaces trees that are still referenced by the last output object with copies, so that 
+	// a sample taken before trees[] changed doesn't modify trees the sample writer may be writing
+	protected void releaseOutputTrees() {
+		if (outputTrees==null) return;
+		for (int i=0;i<trees.length;i++) {
+			if (outputTrees[i]!=null && outputTrees[i]==trees[i]) {
+				trees[i]=trees[i].copy();
+			}
+			outputTrees[i]=null;
+		}
+	}
+
+	// Sequence log likelihood of trees[i] for output
+	protected double seqLogLikelihood(int i) {
+		return trees[i].seqLikelihood();
+	}
+
+	// Log likelihood of trees[i] for output
+	protected double logLikelihood(int i) {
+		return trees[i].logLikelihood();
+	}
+
+	// Weighted sum of the log likelihoods of trees[], trees of different files 
+	// are evaluated concurrently if config.numThreads>1
+	protected double treesLogLikelihood(final LikelihoodPart part) {
+		List<Callable<Double>> tasks = new ArrayList<Callable<Double>>(trees.length);
+		for (int i=0;i<trees.length;i++) {
+			final LikelihoodTree tree = trees[i];
+			tasks.add(new Callable<Double>() {
+				@Override
+				public Double call() {
+					switch (part) {
+					case LOCATION: return tree.locLogLikelihood();
+					case SEQUENCE: return tree.seqLogLikelihood();
+					default: return tree.logLikelihood();
+					}
+				}
+			});
+		}
+		double[] logLikelihoods = Parallel.invokeAll(config.numThreads, tasks);
+		double returnValue = 0;
+		for (int i=0;i<trees.length;i++) {
+			returnValue+=config.treeWeights[i]*logLikelihoods[i];
+		}
+		return returnValue;
+	}
+
 	public class TreesLikelihoodVariableOutputObject implements Serializable {		
 		protected TreesLikelihoodVariableOutputObject() {};
 		
-		String[] probTrees = null;
-		public String[] asrTrees = null;
-		public String[] smTrees = null;
-		public String[] smTransitions = null;
-		public String[] smTipDwellings = null;
-		public String[] smLineages = null;	
-		public String[] smDescendants = null;
-		public String[] smTrunkStats = null;
-		public String[] smSeqMigStats = null;
-		public String[] pies = null;
-		public String[] seqMutationStats = null;
-		public String[] altNodes = null;
-		public String[] altBranches = null;
+		StreamedText[] probTrees = null;
+		public StreamedText[] asrTrees = null;
+		public StreamedText[] smTrees = null;
+		public StreamedText[] smTransitions = null;
+		public StreamedText[] smTipDwellings = null;
+		public StreamedText[] smLineages = null;	
+		public StreamedText[] smDescendants = null;
+		public StreamedText[] smTrunkStats = null;
+		public StreamedText[] expTrees = null;
+		public StreamedText[] expTransitions = null;
+		public StreamedText[] expDwellings = null;
+		public StreamedText[] smSeqMigStats = null;
+		public StreamedText[] pies = null;
+		public StreamedText[] seqMutationStats = null;
+		public StreamedText[] altNodes = null;
+		public StreamedText[] altBranches = null;
 		public Double[] seqLikelihood = null;
 		public Double[] locLikelihood = null;
 		
 	}
 	
+	// TEXT OUTPUT OF A TREE
+	protected static enum TreeTextType { PROB_TREE, ASR_TREE, SM_TREE, SM_TRANSITIONS, SM_TIP_DWELLINGS, SM_LINEAGES, SM_DESCENDANTS, SM_TRUNK_STATS, 
+		EXP_TREE, EXP_TRANSITIONS, EXP_DWELLINGS, SEQ_MUTATION_STATS, PIES, ALT_NODES };
+
+	// Text output of a tree that is written straight to the sample file when the sample is written.
+	// Sampling (ASR and stochastic mapping) and the outside pass are done when the output object is made, 
+	// writing only formats it.
+	// The tree isn't changed after that (see workingCopy), so it can be written on another thread as is.
+	protected static class TreeText extends StreamedText {
+		private LikelihoodTree tree;
+		private TreeTextType type;
+		private String header; // null if none
+		private Config config;
+
+		protected TreeText() {};
+
+		public TreeText(LikelihoodTree tree_, TreeTextType type_, String header_, Config config_) {
+			tree = tree_;
+			type = type_;
+			header = header_;
+			config = config_;
+		}
+
+		@Override
+		public void writeTo(Appendable out) throws IOException {
+			if (header!=null) out.append(header);
+			switch (type) {
+			case PROB_TREE: tree.newickProbs(out); break;
+			case ASR_TREE: tree.newickASR(out); break;
+			case SM_TREE: tree.newickSM(config.maxSMBranchRetries, out); break;
+			case SM_TRANSITIONS: tree.smTransitions(out); break;
+			case SM_TIP_DWELLINGS: tree.smTipDwellings(out); break;
+			case SM_LINEAGES: tree.smLineages(out); break;
+			case SM_DESCENDANTS: tree.smDescendants(out); break;
+			case SM_TRUNK_STATS: tree.smTrunkStats(config.presentDayTipInterval, config.timeToDesignateTrunk, out); break;
+			case EXP_TREE: tree.newickExpectation(out); break;
+			case EXP_TRANSITIONS: tree.expectedTransitions(out); break;
+			case EXP_DWELLINGS: tree.expectedDwellings(out); break;
+			case SEQ_MUTATION_STATS: {
+				try {
+					tree.seqMutationStats(config.maxSMBranchRetries, out);
+				} catch (IOException e) {
+					throw e;
+				} catch (Exception e) {
+					throw new IOException(e);
+				}
+				break;
+			}
+			case PIES: tree.pies(out); break;
+			case ALT_NODES: tree.smAlternativeTreeOutput(out); break;
+			}
+		}
+
+		@Override
+		public StreamedText snapshot() {
+			return this;
+		}
+	}
 
+	// Text output of type for each tree, with a tree header if withHeader 
+	private StreamedText[] treeTexts(TreeTextType type, boolean withHeader) {
+		StreamedText[] returnValue = new StreamedText[trees.length];
+		if (outputTrees==null) {
+			outputTrees = new LikelihoodTree[trees.length];
+		}
+		for (int i=0;i<trees.length;i++) {
+			outputTrees[i]=trees[i];
+			String header = null;
+			if (withHeader) {
+				Model model = this.getModel();		 	
+				// "tree STATE_50850000 [&lnP=-34291.617355973016,posterior=-34291.617355973016] = [&R]"
+				header = "tree STATE_" + getChain().getIterationCount() + " [&lnP=" + (model.getLogPrior()+logLikelihood(i)) + "]" +  " = [&R] ";			
+			}
+			returnValue[i]=new TreeText(trees[i], type, header, config);
+		}
+		return returnValue;
+	}
+
+	// Stream of this chain, derived from config.randomSeed and the chain id when a seed is set
+	private SplittableRng getSamplingRng() {
+		if (samplingRng==null) {
+			if (config.randomSeed!=null)
+				samplingRng = SplittableRng.stream(config.randomSeed, getChain().getChainId());
+			else
+				samplingRng = new SplittableRng(getRng().nextLong());
+		}
+		return samplingRng;
+	}
+
+	// Text outputs are written by the sample writer after this returns, possibly on another thread, 
+	// so reconstructions are kept on the trees and the trees are not recycled (see workingCopy)
 	@Override
 	public Object makeOutputObject() {		
 		TreesLikelihoodVariableOutputObject outputObject = new TreesLikelihoodVariableOutputObject();
+		releaseOutputTrees();
+
+		// each tree samples from its own stream split from the chain's stream
+		SplittableRng chainRng = getSamplingRng();
+		for (int i=0;i<trees.length;i++) {
+			trees[i].setRng(chainRng.split());
+		}
 		
 		outputObject.seqLikelihood=new Double[trees.length];
 		for (int i=0;i<trees.length;i++) {
-			outputObject.seqLikelihood[i]=trees[i].seqLikelihood();
+			outputObject.seqLikelihood[i]=seqLogLikelihood(i);
 		}				
 		
 		outputObject.locLikelihood=new Double[trees.length];
@@ -64,166 +230,118 @@ public class TreesLikelihoodVariable extends Variable {
 			return outputObject;		
 		}
 		case PROBS: {
-			String[] returnValue=new String[trees.length];
 			for (int i=0;i<trees.length;i++) {
-				Model model = this.getModel();		 	
-				// "tree STATE_50850000 [&lnP=-34291.617355973016,posterior=-34291.617355973016] = [&R]"
-				String header = "tree STATE_" + getChain().getIterationCount() + " [&lnP=" + (model.getLogPrior()+trees[i].logLikelihood()) + "]" +  " = [&R] ";			
-				returnValue[i]=(header + (trees[i].newickProbs()));
+				trees[i].marginalPosteriors();
 			}
-			outputObject.probTrees=returnValue;
+			outputObject.probTrees=treeTexts(TreeTextType.PROB_TREE, true);
 			return outputObject;
 		}
 		case ASR: {
-			String[] returnValue=new String[trees.length];
 			for (int i=0;i<trees.length;i++) {
-				Model model = this.getModel();		 	
-				// "tree STATE_50850000 [&lnP=-34291.617355973016,posterior=-34291.617355973016] = [&R]"
-				String header = "tree STATE_" + getChain().getIterationCount() + " [&lnP=" + (model.getLogPrior()+trees[i].logLikelihood()) + "]" +  " = [&R] ";			
-				returnValue[i]=(header + (trees[i].newickASR()));
-				trees[i].clearInternalNodes();
+				trees[i].ancestralStateReconstruction();
 			}
-			outputObject.asrTrees=returnValue;
+			outputObject.asrTrees=treeTexts(TreeTextType.ASR_TREE, true);
 			
 			// TODO: add alternative tree output to ASR without SM
 			return outputObject;
 		}
 		case STOCHASTIC_MAPPING: {					
+			if (config.smRealizations>1) {
+				for (int i=0;i<trees.length;i++) {
+					trees[i].smRealizations(config.smRealizations, config.maxSMBranchRetries);
+				}
+			}
 			if (config.smTrees) {				
-				String[] returnValue=new String[trees.length];
 				for (int i=0;i<trees.length;i++) {
-					Model model = this.getModel();		 	
-					// "tree STATE_50850000 [&lnP=-34291.617355973016,posterior=-34291.617355973016] = [&R]"
-					String header = "tree STATE_" + getChain().getIterationCount() + " [&lnP=" + (model.getLogPrior()+trees[i].logLikelihood()) + "]" +  " = [&R] ";			
-					returnValue[i]=(header + (trees[i].newickSM(config.maxSMBranchRetries)));
+					trees[i].stochasticMapping(config.maxSMBranchRetries);
 				}				
-				outputObject.smTrees=returnValue;
+				outputObject.smTrees=treeTexts(TreeTextType.SM_TREE, true);
 			}		
 			if (config.asrTrees) {				
-				String[] returnValue=new String[trees.length];
 				for (int i=0;i<trees.length;i++) {
-					Model model = this.getModel();		 	
-					// "tree STATE_50850000 [&lnP=-34291.617355973016,posterior=-34291.617355973016] = [&R]"
-					String header = "tree STATE_" + getChain().getIterationCount() + " [&lnP=" + (model.getLogPrior()+trees[i].logLikelihood()) + "]" +  " = [&R] ";			
-					returnValue[i]=(header + (trees[i].newickASR()));
-				}				
-				outputObject.asrTrees=returnValue;
+					trees[i].ancestralStateReconstruction();
+				}
+				outputObject.asrTrees=treeTexts(TreeTextType.ASR_TREE, true);
 			}
 			if (config.smAlternativeTreeOutput) {
-				outputObject.altNodes = new String[trees.length];
-				outputObject.altBranches = new String[trees.length];
-				for (int i=0;i<trees.length;i++) {
-					AltTreeOutput smAlternativeTreeOutput = trees[i].smAlternativeTreeOutput();
-					outputObject.altNodes[i] = smAlternativeTreeOutput.getNodes();				
-				}									
+				outputObject.altNodes = treeTexts(TreeTextType.ALT_NODES, false);
+				outputObject.altBranches = new StreamedText[trees.length];
 			}
 			if (config.smTransitions) {
-				String[] returnValue=new String[trees.length];
-				for (int i=0;i<trees.length;i++) {
-					returnValue[i]=trees[i].smTransitions();
-				}				
-				outputObject.smTransitions=returnValue;				
+				outputObject.smTransitions=treeTexts(TreeTextType.SM_TRANSITIONS, false);				
 			}
 			if (config.smTipDwellings) {
-				String[] returnValue=new String[trees.length];
-				for (int i=0;i<trees.length;i++) {
-					returnValue[i]=trees[i].smTipDwellings();
-				}				
-				outputObject.smTipDwellings=returnValue;				
+				outputObject.smTipDwellings=treeTexts(TreeTextType.SM_TIP_DWELLINGS, false);				
 			}
 			if (config.smLineages) {
-				String[] returnValue=new String[trees.length];
-				for (int i=0;i<trees.length;i++) {	 			
-					returnValue[i]=trees[i].smLineages();
-				}				
-				outputObject.smLineages=returnValue;				
+				outputObject.smLineages=treeTexts(TreeTextType.SM_LINEAGES, false);				
 			}
 			if (config.smDescendants) {
-				String[] returnValue=new String[trees.length];
-				for (int i=0;i<trees.length;i++) {	 			
-					returnValue[i]=trees[i].smDescendants();
-				}				
-				outputObject.smDescendants=returnValue;				
+				outputObject.smDescendants=treeTexts(TreeTextType.SM_DESCENDANTS, false);				
 			}
 			if (config.smTrunkStats) {
-				String[] returnValue=new String[trees.length];
-				for (int i=0;i<trees.length;i++) {	 			
-					returnValue[i]=trees[i].smTrunkStats(config.presentDayTipInterval, config.timeToDesignateTrunk);
-				}				
-				outputObject.smTrunkStats=returnValue;				
+				outputObject.smTrunkStats=treeTexts(TreeTextType.SM_TRUNK_STATS, false);				
 			}
-			for (int i=0;i<trees.length;i++) {
-				trees[i].clearInternalNodes();
+			return outputObject;
+		}
+		case EXACT_MAPPING_EXPECTATION: {
+			if (config.smTrees || config.smTransitions || config.smTipDwellings) {
+				for (int i=0;i<trees.length;i++) {
+					trees[i].expectations();
+				}
+			}
+			if (config.smTrees) {				
+				outputObject.expTrees=treeTexts(TreeTextType.EXP_TREE, true);
+			}
+			if (config.smTransitions) {
+				outputObject.expTransitions=treeTexts(TreeTextType.EXP_TRANSITIONS, false);				
+			}
+			if (config.smTipDwellings) {
+				outputObject.expDwellings=treeTexts(TreeTextType.EXP_DWELLINGS, false);				
 			}
 			return outputObject;
 		}
 		case SEQ_STOCHASTIC_MAPPING: {	
+			if (config.smRealizations>1) {
+				for (int i=0;i<trees.length;i++) {
+					trees[i].smRealizations(config.smRealizations, config.maxSMBranchRetries);
+				}
+			}
 			if (config.smTrees) {				
-				String[] returnValue=new String[trees.length];
 				for (int i=0;i<trees.length;i++) {
-					Model model = this.getModel();		 	
-					// "tree STATE_50850000 [&lnP=-34291.617355973016,posterior=-34291.617355973016] = [&R]"
-					String header = "tree STATE_" + getChain().getIterationCount() + " [&lnP=" + (model.getLogPrior()+trees[i].logLikelihood()) + "]" +  " = [&R] ";			
-					returnValue[i]=(header + (trees[i].newickSM(config.maxSMBranchRetries)));
+					trees[i].stochasticMapping(config.maxSMBranchRetries);
 				}				
-				outputObject.smTrees=returnValue;
+				outputObject.smTrees=treeTexts(TreeTextType.SM_TREE, true);
 			}		
 			if (config.asrTrees) {				
-				String[] returnValue=new String[trees.length];
-				for (int i=0;i<trees.length;i++) {
-					Model model = this.getModel();		 	
-					// "tree STATE_50850000 [&lnP=-34291.617355973016,posterior=-34291.617355973016] = [&R]"
-					String header = "tree STATE_" + getChain().getIterationCount() + " [&lnP=" + (model.getLogPrior()+trees[i].logLikelihood()) + "]" +  " = [&R] ";			
-					returnValue[i]=(header + (trees[i].newickASR()));
-				}				
-				outputObject.asrTrees=returnValue;
+				outputObject.asrTrees=treeTexts(TreeTextType.ASR_TREE, true);
 			}
 			if (config.smTransitions) {
-				
-				String[] returnValue=new String[trees.length];
-				for (int i=0;i<trees.length;i++) {
-					returnValue[i]=trees[i].smTransitions();
-				}				
-				outputObject.smTransitions=returnValue;				
+				outputObject.smTransitions=treeTexts(TreeTextType.SM_TRANSITIONS, false);				
 			}
 			if (config.smTipDwellings) {
-				String[] returnValue=new String[trees.length];
-				for (int i=0;i<trees.length;i++) {
-					returnValue[i]=trees[i].smTipDwellings();
-				}				
-				outputObject.smTipDwellings=returnValue;				
+				outputObject.smTipDwellings=treeTexts(TreeTextType.SM_TIP_DWELLINGS, false);				
 			}
 			if (config.smLineages) {
-				String[] returnValue=new String[trees.length];
-				for (int i=0;i<trees.length;i++) {	 			
-					returnValue[i]=trees[i].smLineages();
-				}				
-				outputObject.smLineages=returnValue;				
+				outputObject.smLineages=treeTexts(TreeTextType.SM_LINEAGES, false);				
 			}
 			if (config.smDescendants) {
-				String[] returnValue=new String[trees.length];
-				for (int i=0;i<trees.length;i++) {	 			
-					returnValue[i]=trees[i].smDescendants();
-				}				
-				outputObject.smDescendants=returnValue;				
+				outputObject.smDescendants=treeTexts(TreeTextType.SM_DESCENDANTS, false);				
 			}
 			if (config.smTrunkStats) {
-				String[] returnValue=new String[trees.length];
-				for (int i=0;i<trees.length;i++) {	 			
-					returnValue[i]=trees[i].smTrunkStats(config.presentDayTipInterval, config.timeToDesignateTrunk);
-				}				
-				outputObject.smTrunkStats=returnValue;				
+				outputObject.smTrunkStats=treeTexts(TreeTextType.SM_TRUNK_STATS, false);				
 			}
 			
 			/////////////////////////////////////
 			if (config.seqMutationStats) {
-				String[] returnValue=new String[trees.length];
+				StreamedText[] returnValue=treeTexts(TreeTextType.SEQ_MUTATION_STATS, false);
 				for (int i=0;i<trees.length;i++) {	 			
 					try {
-						returnValue[i]=trees[i].seqMutationStats(config.maxSMBranchRetries);
+						trees[i].seqStochasticMapping(config.maxSMBranchRetries);
 					} catch (Exception e) {
 						// TODO Auto-generated catch block
 						e.printStackTrace();
+						returnValue[i]=null;
 					}
 				}				
 				outputObject.seqMutationStats=returnValue;				
@@ -231,20 +349,19 @@ public class TreesLikelihoodVariable extends Variable {
 			
 			////////////////////////////////////////
 			if (config.smAlternativeTreeOutput) {
-				outputObject.altNodes = new String[trees.length];
-				outputObject.altBranches = new String[trees.length];
-				for (int i=0;i<trees.length;i++) {
-					AltTreeOutput smAlternativeTreeOutput = trees[i].smAlternativeTreeOutput();
-					outputObject.altNodes[i] = smAlternativeTreeOutput.getNodes();		
-				}									
+				outputObject.altNodes = treeTexts(TreeTextType.ALT_NODES, false);
+				outputObject.altBranches = new StreamedText[trees.length];
 			}			
 			////////////////////////////////////////
+			
+			// location ASR after sequence mapping, keeping the order of draws from each tree's stream
+			if (config.asrTrees) {				
+				for (int i=0;i<trees.length;i++) {
+					trees[i].ancestralStateReconstruction();
+				}
+			}
 					
-			String[] returnValue=new String[trees.length];
-			for (int i=0;i<trees.length;i++) {	 			
-				returnValue[i]=trees[i].pies();
-			}				
-			outputObject.pies=returnValue;											
+			outputObject.pies=treeTexts(TreeTextType.PIES, false);											
 
 			return outputObject;
 		}
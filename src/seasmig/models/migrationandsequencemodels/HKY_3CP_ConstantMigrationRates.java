@@ -25,8 +25,6 @@ import seasmig.util.Util;
 @SuppressWarnings("serial")
 public class HKY_3CP_ConstantMigrationRates extends MigrationModel {
 
-	// TODO: seperate into two variables for seqence and location likelihood...
-
 	Config config;
 	Data data;
 	int numLocations;
@@ -42,8 +40,9 @@ public class HKY_3CP_ConstantMigrationRates extends MigrationModel {
 	// Trees
 	IntVariable treeIndices[];
 
-	// Likelihood Variable
-	LikelihoodVariable likeVar;
+	// Likelihood Variables, location likelihood and sequence likelihood are updated separately
+	LocationLikelihoodVariable likeVar;
+	SequenceLikelihoodVariable seqLikeVar;
 
 	// Realization trees
 	private int nTrees[];
@@ -146,16 +145,81 @@ public class HKY_3CP_ConstantMigrationRates extends MigrationModel {
 		}
 
 
-		// Custom likelihood variable
-		likeVar = new LikelihoodVariable(this);
+		// Custom likelihood variables
+		if (!inputCodonModel) {
+			seqLikeVar = new SequenceLikelihoodVariable(this);
+		}
+		likeVar = new LocationLikelihoodVariable(this);
 
 		endConstruction();
 
 	} 	
 
-	private class LikelihoodVariable extends TreesLikelihoodVariable {
+	private TransitionModel makeMigrationModel() {
+		double[][] ratesdoubleForm = new double[numLocations][numLocations];
+		for (int i=0;i<numLocations;i++) {
+			double rowsum=0;
+			for (int j=0;j<numLocations;j++) {
+				if (i!=j) {
+					ratesdoubleForm[i][j]=rates[i][j].getValue();
+					rowsum-=rates[i][j].getValue();
+				}
+			}
+			ratesdoubleForm[i][i]=rowsum;
+		}
+		return new ConstantTransitionBaseModel(ratesdoubleForm);
+	}
+
+	private TransitionModel[] makeCodonModel() {
+		double[] mudoubleForm = new double[3];
+		for (int i=0;i<3;i++) {				
+			mudoubleForm[i]=mu[i].getValue();
+			//System.err.println("mu["+i+"]="+mudoubleForm[i]);
+		}
+
+		double[] kdoubleForm = new double[3];
+		for (int i=0;i<3;i++) {				
+			kdoubleForm[i]=cern.jet.math.Functions.exp.apply(logk[i].getValue());		
+			//System.err.println("kappa["+i+"]="+kdoubleForm[i]);
+		}
+
+		// TODO: add Dirichlet distribution...
+
+		double[][] forPisdoubleform= new double[3][3];
+		for (int i=0;i<3;i++) {
+			for (int j=0;j<3;j++) {
+				forPisdoubleform[i][j] = forPis[i][j].getValue();
+			}
+		}
 
-		LikelihoodVariable(HKY_3CP_ConstantMigrationRates m) throws MC3KitException {
+		double[][] pisdoubleform = new double[3][3];
+		for (int i=0;i<3;i++) {
+			pisdoubleform[i] = Util.toDirichletNonDegenerate(forPisdoubleform[i]);
+			//				for (int j=0;j<3;j++) {
+			//					System.err.println("pi["+i+"]"+"["+j+"]"+"="+pisdoubleform[i][j]);
+			//				}
+		}
+		// TODO: add update to migration model instead of reconstructing...
+
+		TransitionModel[] codonModel = new TransitionModel[3];
+		for (int i=0; i<3; i++) {
+			codonModel[i]=new ConstantTransitionBaseModel(mudoubleForm[i],kdoubleForm[i],pisdoubleform[i][0],pisdoubleform[i][1],pisdoubleform[i][2]);
+		}
+		return codonModel;
+	}
+
+	private LikelihoodTree selectedTree(int i) {
+		if (nTrees[i]>1)
+			return data.getTrees().get(i).get((int)treeIndices[i].getValue()); 
+		else
+			return data.getTrees().get(i).get(0);
+	}
+
+	// Location likelihood, depends on trees and migration rates
+	// Named likeVar as it also produces the tree output, sequence partials for output are calculated on demand
+	private class LocationLikelihoodVariable extends TreesLikelihoodVariable {
+
+		LocationLikelihoodVariable(HKY_3CP_ConstantMigrationRates m) throws MC3KitException {
 			// Call superclass constructor specifying that this is an
 			// OBSERVED random variable (true for last parameter).
 			super(m, "likeVar", true, nTrees.length,config);
@@ -182,39 +246,14 @@ public class HKY_3CP_ConstantMigrationRates extends MigrationModel {
 					}
 				}
 			}
-
-			// Sequence Model
-			if (!inputCodonModel) {
-				for(int i = 0; i < 3; i++) {
-					for(int j = 0; j < 3; j++) {			
-						m.addEdge(this,forPis[i][j]);
-					}
-				}
-
-				for(int i = 0; i < 3; i++) {			
-					m.addEdge(this,logk[i]);
-				}
-
-				for(int i = 0; i < 3; i++) {			
-					m.addEdge(this,mu[i]);
-				}
-			}
 		}
 
-
 		/*
 		 * The update method is called whenever a node this variable
 		 * depends on has changed; random variables should typically
 		 * just recalculate their log-probability and call setLogP here.
 		 * 
-		 * The method returns a boolean indicating whether this node actually
-		 * changed during the update process. Typically you just return true,
-		 * but this can be used to optimize updating: e.g., a maximum
-		 * function may get updated very frequently without its value
-		 * actually changing.
-		 * 
-		 * This example assumes that the data is a mixture between two normal
-		 * distributions.
+		 * Only the location pruning is done here, sequence likelihood is in seqLikeVar.
 		 */
 		@Override
 		public boolean update() {
@@ -222,93 +261,142 @@ public class HKY_3CP_ConstantMigrationRates extends MigrationModel {
 			double logP = 0.0;
 
 			TransitionModel migrationBaseModel = null;
-			TransitionModel[] codonModel = new TransitionModel[3];
 
 			// Migration Model
 			if (!inputMigrationModel) {
-				double[][] ratesdoubleForm = new double[numLocations][numLocations];
-				for (int i=0;i<numLocations;i++) {
-					double rowsum=0;
-					for (int j=0;j<numLocations;j++) {
-						if (i!=j) {
-							ratesdoubleForm[i][j]=rates[i][j].getValue();
-							rowsum-=rates[i][j].getValue();
-						}
-					}
-					ratesdoubleForm[i][i]=rowsum;
+				migrationBaseModel = makeMigrationModel();
+			}
+
+			LikelihoodTree workingCopy;
+			for (int i=0;i<nTrees.length;i++) {
+				workingCopy = workingCopy(i, selectedTree(i));
+
+				if (!inputMigrationModel) { 
+					workingCopy.setMigrationModel(migrationBaseModel);
 				}
-				migrationBaseModel = new ConstantTransitionBaseModel(ratesdoubleForm);
+				trees[i]=workingCopy;
+			}
+			if (!inputMigrationModel) {
+				logP+=treesLogLikelihood(LikelihoodPart.LOCATION);
+			}
+
+			setLogP(logP);
+			oldLogP=logP;
+			return true;
+		}
 
+		/*
+		 * If you want to avoid calculating the log-probability again
+		 * when a proposal is rejected, override these methods to restore
+		 * a cached value of the log-probability.
+		 */
+		@Override
+		public boolean updateAfterRejection() {
+			if (!firstCall)
+				setLogP(oldLogP);
+			else {
+				super.updateAfterRejection();
+				firstCall=false;
 			}
+			return true;
+		}
 
-			if (!inputCodonModel) {
-				double[] mudoubleForm = new double[3];
-				for (int i=0;i<3;i++) {				
-					mudoubleForm[i]=mu[i].getValue();
-					//System.err.println("mu["+i+"]="+mudoubleForm[i]);
+		@Override
+		public Object makeOutputObject() {
+			releaseOutputTrees();
+			// Output trees use the current codon model 
+			if (seqLikeVar!=null) {
+				for (int i=0;i<trees.length;i++) {
+					trees[i].setCodonModel(seqLikeVar.codonModel);
 				}
+			}
+			return super.makeOutputObject();
+		}
 
-				double[] kdoubleForm = new double[3];
-				for (int i=0;i<3;i++) {				
-					kdoubleForm[i]=cern.jet.math.Functions.exp.apply(logk[i].getValue());		
-					//System.err.println("kappa["+i+"]="+kdoubleForm[i]);
-				}
+		// The sequence likelihood of trees[i] is the one seqLikeVar evaluated for the same tree and codon model,
+		// so output doesn't prune the sequences again
+		@Override
+		protected double seqLogLikelihood(int i) {
+			if (seqLikeVar==null) 
+				return super.seqLogLikelihood(i);
+			return seqLikeVar.treeLogLikelihood(i);
+		}
 
-				// TODO: add Dirichlet distribution...
+		@Override
+		protected double logLikelihood(int i) {
+			if (seqLikeVar==null) 
+				return super.logLikelihood(i);
+			return (inputMigrationModel ? 0 : trees[i].locLikelihood())+seqLogLikelihood(i);
+		}
 
-				double[][] forPisdoubleform= new double[3][3];
-				for (int i=0;i<3;i++) {
-					for (int j=0;j<3;j++) {
-						forPisdoubleform[i][j] = forPis[i][j].getValue();
-					}
-				}
+	}
+
+	// Sequence likelihood, depends on trees and HKY parameters
+	private class SequenceLikelihoodVariable extends TreesLikelihoodVariable {
+
+		TransitionModel[] codonModel = null;
+		TransitionModel[] oldCodonModel = null;
+
+		SequenceLikelihoodVariable(HKY_3CP_ConstantMigrationRates m) throws MC3KitException {
+			// Call superclass constructor specifying that this is an
+			// OBSERVED random variable (true for last parameter).
+			super(m, "seqLikeVar", true, nTrees.length,config);
+
+			// Add dependency between likelihood variable and parameters			
 
-				double[][] pisdoubleform = new double[3][3];
-				for (int i=0;i<3;i++) {
-					pisdoubleform[i] = Util.toDirichletNonDegenerate(forPisdoubleform[i]);
-					//				for (int j=0;j<3;j++) {
-					//					System.err.println("pi["+i+"]"+"["+j+"]"+"="+pisdoubleform[i][j]);
-					//				}
+			// Trees
+			for (int i=0;i<nTrees.length;i++) {
+				if (nTrees[i]>1) {
+					m.addEdge(this, m.treeIndices[i]);
 				}
-				// TODO: add update to migration model instead of reconstructing...
+			}
 
-				codonModel = new TransitionModel[3];
-				for (int i=0; i<3; i++) {
-					codonModel[i]=new ConstantTransitionBaseModel(mudoubleForm[i],kdoubleForm[i],pisdoubleform[i][0],pisdoubleform[i][1],pisdoubleform[i][2]);
+			// Sequence Model
+			for(int i = 0; i < 3; i++) {
+				for(int j = 0; j < 3; j++) {			
+					m.addEdge(this,forPis[i][j]);
 				}
+			}
 
+			for(int i = 0; i < 3; i++) {			
+				m.addEdge(this,logk[i]);
 			}
 
-			LikelihoodTree workingCopy;
-			for (int i=0;i<nTrees.length;i++) {
-				if (nTrees[i]>1)
-					workingCopy = data.getTrees().get(i).get((int)treeIndices[i].getValue()).copy(); 
-				else
-					workingCopy = data.getTrees().get(i).get(0).copy();
+			for(int i = 0; i < 3; i++) {			
+				m.addEdge(this,mu[i]);
+			}
+		}
 
-				if (!inputMigrationModel) 
-					workingCopy.setMigrationModel(migrationBaseModel);
-				if (!inputCodonModel) 
-					workingCopy.setCodonModel(codonModel);
+		/*
+		 * Only the sequence pruning is done here, location likelihood is in likeVar.
+		 */
+		@Override
+		public boolean update() {
+
+			double logP = 0.0;
+
+			oldCodonModel = codonModel;
+			codonModel = makeCodonModel();
 
-				logP+=config.treeWeights[i]*workingCopy.logLikelihood();
+			LikelihoodTree workingCopy;
+			for (int i=0;i<nTrees.length;i++) {
+				workingCopy = workingCopy(i, selectedTree(i));
+				workingCopy.setCodonModel(codonModel);
 				trees[i]=workingCopy;
 			}
+			logP+=treesLogLikelihood(LikelihoodPart.SEQUENCE);
 
 			setLogP(logP);
 			oldLogP=logP;
 			return true;
 		}
 
-		/*
-		 * If you want to avoid calculating the log-probability again
-		 * when a proposal is rejected, override these methods to restore
-		 * a cached value of the log-probability.
-		 */
 		@Override
 		public boolean updateAfterRejection() {
-			if (!firstCall)
+			if (!firstCall) {
 				setLogP(oldLogP);
+				codonModel = oldCodonModel;
+			}
 			else {
 				super.updateAfterRejection();
 				firstCall=false;
@@ -316,7 +404,16 @@ public class HKY_3CP_ConstantMigrationRates extends MigrationModel {
 			return true;
 		}
 
+		@Override
+		public Object makeOutputObject() {
+			// Tree output is produced by likeVar
+			return null;
+		}
 
+		// Sequence log likelihood of trees[i], pruned in update
+		double treeLogLikelihood(int i) {
+			return trees[i].seqLikelihood();
+		}
 
 	}
 }
@@ -206,13 +206,13 @@ public class EpochalMigrationModel extends MigrationModel {
 			LikelihoodTree workingCopy;		
 			for (int i=0;i<nTrees.length;i++) {
 				if (nTrees[i]>1)
-					workingCopy = data.getTrees().get(i).get((int)treeIndices[i].getValue()).copy(); 
+					workingCopy = workingCopy(i, data.getTrees().get(i).get((int)treeIndices[i].getValue())); 
 				else
-					workingCopy = data.getTrees().get(i).get(0).copy();
+					workingCopy = workingCopy(i, data.getTrees().get(i).get(0));
 				workingCopy.setMigrationModel(migrationBaseModel);
-				logLikelihood+=config.treeWeights[i]*workingCopy.logLikelihood();
 				trees[i]=workingCopy;
-			}						
+			}
+			logLikelihood+=treesLogLikelihood(LikelihoodPart.ALL);						
 
 			setLogP(logLikelihood);			
 			oldLogP=logLikelihood;		
@@ -138,13 +138,13 @@ public class MigrationModelNoSeasonalityVarSelect extends MigrationModel {
 			LikelihoodTree workingCopy;
 			for (int i=0;i<nTrees.length;i++) {
 				if (nTrees[i]>1)
-					workingCopy = data.getTrees().get(i).get((int)treeIndices[i].getValue()).copy(); 
+					workingCopy = workingCopy(i, data.getTrees().get(i).get((int)treeIndices[i].getValue())); 
 				else
-					workingCopy = data.getTrees().get(i).get(0).copy();
+					workingCopy = workingCopy(i, data.getTrees().get(i).get(0));
 				workingCopy.setMigrationModel(migrationBaseModel);
-				logP+=config.treeWeights[i]*workingCopy.logLikelihood();
 				trees[i]=workingCopy;
 			}
+			logP+=treesLogLikelihood(LikelihoodPart.ALL);
 
 			setLogP(logP);
 			oldLogP=logP;
@@ -0,0 +1,13 @@
+package seasmig.treelikelihood;
+
+import seasmig.treelikelihood.transitionmodels.MarkovJumpExpectation;
+import seasmig.treelikelihood.transitionmodels.UniformizationSampler;
+
+// Transition model with constant rates, the pieces of models given by TransitionModel.constantSegments
+public interface ConstantRateModel extends TransitionModel {
+
+	public UniformizationSampler getUniformizationSampler(); // endpoint conditioned sampling of paths
+	public MarkovJumpExpectation getMarkovJumpExpectation(); // expected jumps and dwelling times of paths
+	public double getRateNorm(); // max absolute row sum of the rates, bounds the error of time quantization
+
+}
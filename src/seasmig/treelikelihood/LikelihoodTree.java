@@ -1,8 +1,9 @@
 package seasmig.treelikelihood;
 
+import java.io.IOException;
 import java.io.Serializable;
 
-import seasmig.util.AltTreeOutput;
+import seasmig.util.SplittableRng;
 
 public interface LikelihoodTree extends Serializable {
 	
@@ -14,31 +15,49 @@ public interface LikelihoodTree extends Serializable {
 	public double logLikelihood(); // doesn't recalculate likelihood if already calculated after copy
 	public Double seqLikelihood();
 	public Double locLikelihood();
+	public double locLogLikelihood(); // recalculates location likelihood only
+	public double seqLogLikelihood(); // recalculates sequence likelihood only
 
 	// MAKE CLEAN WORKING COPY
 	public LikelihoodTree copy();
+	public LikelihoodTree copy(LikelihoodTree reuse); // recycles state of reuse, a working copy that is no longer needed
 
 	// GET OUTPUT
+	// Text output is written to out as it is generated, i.e. straight to the sample file
 	public int getNumLocations();
-	public String newickProbs();
+	public void marginalPosteriors(); // marginal posterior of the location of each node, done once per model
+	public void newickProbs(Appendable out) throws IOException;
 
 	
 	// Stochastic Mapping & State Reconstruction of Migration
-	public String newickASR();
-	public String newickSM(int maxBranchRetries);
-	public String smTransitions();	
-	public String smTipDwellings();
-	public String smLineages();
-	public String smDescendants();
-	public String smTrunkStats(double presentDayTipInterval, double timeToDesignateTrunk);
+	public void ancestralStateReconstruction(); // ASR of locations, done once per copy
+	public void stochasticMapping(int maxBranchRetries); // ASR and stochastic mapping of locations, done once per copy
+	public void newickASR(Appendable out) throws IOException;
+	public void newickSM(int maxBranchRetries, Appendable out) throws IOException;
+	public void smTransitions(Appendable out) throws IOException;	
+	public void smTipDwellings(Appendable out) throws IOException;
+	public void smLineages(Appendable out) throws IOException;
+	public void smDescendants(Appendable out) throws IOException;
+	public void smTrunkStats(double presentDayTipInterval, double timeToDesignateTrunk, Appendable out) throws IOException;
+	public void smRealizations(int numRealizations, int maxBranchRetries); // pools smTransitions and smTipDwellings over realizations
 	
-	// Alternative tree output nodes and branches following stochastic mapping
-	public AltTreeOutput smAlternativeTreeOutput();
+	// Alternative tree output nodes following stochastic mapping
+	public void smAlternativeTreeOutput(Appendable nodes) throws IOException;
+	
+	// Expected migrations and dwelling times given all data, without sampling
+	public void expectations(); // done once per model
+	public void newickExpectation(Appendable out) throws IOException;
+	public void expectedTransitions(Appendable out) throws IOException;
+	public void expectedDwellings(Appendable out) throws IOException;
 	
 	// Stochastic Mapping & State Reconstruction of Sequence and Location
-	public String seqMutationStats(int maxBranchRetries) throws Exception;
-	public String seqMigrationsSeqOutput() throws Exception;
-	String pies();
+	public void seqStochasticMapping(int maxBranchRetries) throws Exception; // ASR and stochastic mapping of sequences, done once per copy
+	public void seqMutationStats(int maxBranchRetries, Appendable out) throws Exception;
+	public void seqMigrationsSeqOutput(Appendable out) throws Exception;
+	public void pies(Appendable out) throws IOException;
+	
+	// Random stream used by reconstruction and stochastic mapping
+	public void setRng(SplittableRng rng);
 	
 	// Cleanup after reconstruction
 	public void clearInternalNodes();
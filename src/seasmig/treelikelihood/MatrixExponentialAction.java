@@ -0,0 +1,11 @@
+package seasmig.treelikelihood;
+
+import java.io.Serializable;
+
+// Action of exp(Q*t) on a vector, for rate matrices too large to exponentiate per branch
+public interface MatrixExponentialAction extends Serializable {
+
+	void expmv(double t, double[] v, int vOffset, double[] out, int outOffset); // out = exp(Q*t)*v (column vector), out may be v at another offset
+	void vexpm(double t, double[] v, int vOffset, double[] out, int outOffset); // out = v*exp(Q*t) (row vector), for a unit vector v a row of exp(Q*t)
+
+}
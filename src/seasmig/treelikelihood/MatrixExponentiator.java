@@ -7,6 +7,7 @@ import cern.colt.matrix.DoubleMatrix2D;
 public interface MatrixExponentiator extends Serializable {
 	
 	DoubleMatrix2D expm(double t); 	// return exp(Q*t)
+	void expm(double[] times, int from, int to, double[] out, int offset, int stride); // exp(Q*times[i]) for i in [from,to), row major at out[offset+i*stride]
 	boolean checkMethod(); // check if method is applicable to a specific Q matrix
 	String getMethodName();
 
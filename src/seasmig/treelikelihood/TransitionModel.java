@@ -1,9 +1,12 @@
 package seasmig.treelikelihood;
 
 import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
 
 import cern.colt.matrix.DoubleMatrix1D;
 import cern.colt.matrix.DoubleMatrix2D;
+import cern.jet.random.engine.RandomEngine;
 
 
 public interface TransitionModel extends Serializable {
@@ -23,6 +26,8 @@ public interface TransitionModel extends Serializable {
 	
 	public double logprobability(int from_trait, int to_trait, double from_time, double to_time);
 	public DoubleMatrix2D transitionMatrix(double from_time, double to_time);
+	// transition matrices from fromTimes[i] to toTimes[i] for i in [from,to), row major at out[offset+i*stride]
+	public void transitionMatrices(double[] fromTimes, double[] toTimes, int from, int to, double[] out, int offset, int stride);
 	public int getNumLocations();
 	public String print();
 	public String parse();
@@ -30,5 +35,12 @@ public interface TransitionModel extends Serializable {
 	public DoubleMatrix1D probability(int from_trait, double from_time, double to_time);
 	public DoubleMatrix1D rootfreq(double when);
 	public Transition nextEvent(double time, int trait);
+	// same as nextEvent drawing from rng, written into event (reused by the caller) and returned
+	public Transition nextEvent(double time, int trait, Transition event, RandomEngine rng);
+	// events of a path conditioned on its end states (to_trait<0 for a free end), with bounded cost, 
+	// null if not supported by the model or if to_trait can not be reached
+	public ArrayList<Transition> endpointConditionedEvents(int from_trait, int to_trait, double from_time, double to_time, RandomEngine rng);
+	// constant rate pieces of [from_time,to_time], piece i is [times[i],times[i+1]] with the rates of models[i]
+	public void constantSegments(double from_time, double to_time, List<Double> times, List<ConstantRateModel> models);
 	
 }
@@ -95,6 +95,13 @@ public class AnalyticMatrixExp2 implements MatrixExponentiator {
 		System.out.println("time1: "+time1+"[ms] time2: "+time2+"[ms]");	
 	}
 
+	@Override
+	public void expm(double[] times, int from, int to, double[] out, int offset, int stride) {
+		for (int i=from;i<to;i++) {
+			Util.toArray(expm(times[i]), out, offset+i*stride);
+		}
+	}
+
 	@Override
 	public boolean checkMethod() {		
 		return methodOK;
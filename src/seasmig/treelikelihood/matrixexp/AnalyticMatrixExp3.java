@@ -5,6 +5,7 @@ import org.junit.Test;
 import cern.colt.matrix.DoubleFactory2D;
 import cern.colt.matrix.DoubleMatrix2D;
 import seasmig.treelikelihood.MatrixExponentiator;
+import seasmig.util.Util;
 
 @SuppressWarnings("serial")
 public class AnalyticMatrixExp3 implements MatrixExponentiator {
@@ -129,6 +130,13 @@ public class AnalyticMatrixExp3 implements MatrixExponentiator {
 
 	}
 
+	@Override
+	public void expm(double[] times, int from, int to, double[] out, int offset, int stride) {
+		for (int i=from;i<to;i++) {
+			Util.toArray(expm(times[i]), out, offset+i*stride);
+		}
+	}
+
 	@Override
 	public boolean checkMethod() {		
 		return methodOK;
@@ -1,9 +1,10 @@
 package seasmig.treelikelihood.matrixexp;
 
-import java.util.HashMap;
-
 import cern.colt.matrix.DoubleMatrix2D;
 import seasmig.treelikelihood.MatrixExponentiator;
+import seasmig.util.TimeQuantization;
+import seasmig.util.TransitionMatrixCache;
+import seasmig.util.Util;
 
 @SuppressWarnings("serial")
 public class CachedMatrixExponentiator implements MatrixExponentiator {
@@ -11,19 +12,31 @@ public class CachedMatrixExponentiator implements MatrixExponentiator {
 	boolean methodOK;
 	private MatrixExponentiator matrixExp;
 	
-	// cache
-	// TODO: improve caching method
-	HashMap<Double, DoubleMatrix2D> cachedTransitionMatrices = new HashMap<Double, DoubleMatrix2D>();
+	// cache (LRU approximation, see TransitionMatrixCache)
+	TransitionMatrixCache cachedTransitionMatrices = new TransitionMatrixCache(maxCachedTransitionMatrices);
 	final static int maxCachedTransitionMatrices=16000;
 
+	// max absolute row sum of the rate matrix, bounds the error of time quantization  
+	private double rateNorm = Double.POSITIVE_INFINITY;
+
 	protected CachedMatrixExponentiator() {};	
 
 	public CachedMatrixExponentiator(MatrixExponentiator matrixExp_) {			
 		matrixExp = matrixExp_;
 	}
 
+	public CachedMatrixExponentiator(MatrixExponentiator matrixExp_, double rateNorm_) {			
+		matrixExp = matrixExp_;
+		rateNorm = rateNorm_;
+	}
+
 	@Override
 	public DoubleMatrix2D expm(double t) {
+		if (TimeQuantization.isOn()) { // snap to grid, so that branches of all trees share cached matrices
+			double snapped = TimeQuantization.snap(t);
+			TimeQuantization.recordShift(rateNorm, snapped-t);
+			t = snapped;
+		}
 		DoubleMatrix2D cached = cachedTransitionMatrices.get(t);
 		if (cached!=null) {
 			return cached;
@@ -31,16 +44,25 @@ public class CachedMatrixExponentiator implements MatrixExponentiator {
 		else {
 			DoubleMatrix2D result = matrixExp.expm(t);
 			// cache result
-			if (cachedTransitionMatrices.size()>=maxCachedTransitionMatrices) {
-				for (int i=0;i<cachedTransitionMatrices.size()/3;i++) {	
-					cachedTransitionMatrices.remove(cachedTransitionMatrices.keySet().iterator().next());
-				}				
-			}			
-			cachedTransitionMatrices.put(t, result);
+			cachedTransitionMatrices.put(t,result);
 			return result;
 		}		
 	}
 
+	// Batch results fill a whole tree's branch table, they are computed directly without going through the cache
+	// unless times are quantized
+	@Override
+	public void expm(double[] times, int from, int to, double[] out, int offset, int stride) {
+		if (TimeQuantization.isOn()) {
+			for (int i=from;i<to;i++) {
+				Util.toArray(expm(times[i]), out, offset+i*stride);
+			}
+		}
+		else {
+			matrixExp.expm(times, from, to, out, offset, stride);
+		}
+	}
+
 	@Override
 	public boolean checkMethod() {		 
 		return matrixExp.checkMethod();
@@ -21,6 +21,13 @@ public class EigenDecomposionExp implements MatrixExponentiator {
 	private DoubleMatrix1D diagD;
 	private boolean checkMethod;
 
+	// Flat copies of the decomposition for the batch expm
+	private int n;
+	private double[] flatV; // [row][column]
+	private double[] flatInvV; // [row][column]
+	private double[] eigenvalues;
+	private boolean realEigenvalues;
+
 
 	// Q = V*D*invV
 	// Exp(Q*t) = V*Exp(D*t)*invV
@@ -39,7 +46,17 @@ public class EigenDecomposionExp implements MatrixExponentiator {
 		for (int i=1;i<diagD.size();i++) {
 			checkMethod=checkMethod && (diagD.get(i-1)!=diagD.get(i));
 		}
-		
+
+		n = diagD.size();
+		flatV = new double[n*n];
+		flatInvV = new double[n*n];
+		Util.toArray(V, flatV, 0);
+		Util.toArray(invV, flatInvV, 0);
+		eigenvalues = diagD.toArray();
+		realEigenvalues = true;
+		for (double imag : eigenDecomposition.getImagEigenvalues().toArray()) {
+			realEigenvalues = realEigenvalues && imag==0;
+		}
 	}
 
 		
@@ -57,6 +74,45 @@ public class EigenDecomposionExp implements MatrixExponentiator {
 		return V.zMult(expDt.zMult(invV,null,1,0,false,false),null,1,0,false,false);
 	}
 	
+	// V*Exp(D*t)*invV for all times in one pass over the flat decomposition, without intermediate matrices 
+	@Override
+	public void expm(double[] times, int from, int to, double[] out, int offset, int stride) {
+		double[] expD = new double[n];
+		for (int b=from;b<to;b++) {
+			for (int k=0;k<n;k++) {
+				expD[k]=Math.exp(eigenvalues[k]*times[b]);
+			}
+			int outOffset = offset+b*stride;
+			for (int i=0;i<n;i++) {
+				for (int j=0;j<n;j++) {
+					double sum = 0;
+					for (int k=0;k<n;k++) {
+						sum+=flatV[i*n+k]*(expD[k]*flatInvV[k*n+j]);
+					}
+					out[outOffset+i*n+j]=sum;
+				}
+			}
+		}
+	}
+
+	// Q = V*D*invV, flat row major copies, for the Markov jump integrals (see MarkovJumpExpectation)
+	public double[] getEigenvalues() {
+		return eigenvalues;
+	}
+
+	public double[] getV() {
+		return flatV;
+	}
+
+	public double[] getInvV() {
+		return flatInvV;
+	}
+
+	// D is diagonal only if Q has no complex eigenvalues
+	public boolean hasRealEigenvalues() {
+		return realEigenvalues;
+	}
+
 	@Override
 	public boolean checkMethod() {
 		// TODO: this....	
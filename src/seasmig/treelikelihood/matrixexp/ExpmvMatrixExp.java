@@ -0,0 +1,156 @@
+package seasmig.treelikelihood.matrixexp;
+
+import cern.colt.matrix.DoubleFactory2D;
+import cern.colt.matrix.DoubleMatrix2D;
+import seasmig.treelikelihood.MatrixExponentialAction;
+import seasmig.treelikelihood.MatrixExponentiator;
+
+// exp(Q*t)*v by truncated Taylor series with scaling (after Al-Mohy and Higham 2011, expmv),
+// costs O(n^2) per unit of |Q*t| instead of the O(n^3) of forming exp(Q*t).
+// Q is shifted by mu=trace(Q)/n to reduce its norm, exp(Q*t) = exp(mu*t)*exp((Q-mu*I)*t).
+// t is split into s steps with |(Q-mu*I)*t/s| <= maxStepNorm, each step sums Taylor terms until they are negligible.  
+@SuppressWarnings("serial")
+public class ExpmvMatrixExp implements MatrixExponentiator, MatrixExponentialAction {
+
+	static final double maxStepNorm = 2.0;
+	static final int maxTerms = 40; // maxStepNorm^maxTerms/maxTerms! < 1E-35
+	static final double tolerance = 1.0E-16;
+
+	private int n;
+	private double[] A; // Q-mu*I [row][column]
+	private double[] AT; // transpose of A
+	private double mu;
+	private double normA; // max absolute column sum of A (1-norm)
+	private double normAT; // max absolute column sum of AT (infinity norm of A)
+	private boolean methodOK;
+
+	protected ExpmvMatrixExp() {};
+
+	public ExpmvMatrixExp(double[][] Q) {
+		n = Q.length;
+		A = new double[n*n];
+		AT = new double[n*n];
+		mu = 0;
+		for (int i=0;i<n;i++) {
+			mu+=Q[i][i];
+		}
+		mu/=n;
+		methodOK = true;
+		for (int i=0;i<n;i++) {
+			for (int j=0;j<n;j++) {
+				A[i*n+j] = Q[i][j]-(i==j ? mu : 0);
+				AT[j*n+i] = A[i*n+j];
+				methodOK = methodOK && !Double.isNaN(Q[i][j]) && !Double.isInfinite(Q[i][j]);
+			}
+		}
+		normA = columnNorm(A);
+		normAT = columnNorm(AT);
+	}
+
+	private double columnNorm(double[] M) {
+		double returnValue = 0;
+		for (int j=0;j<n;j++) {
+			double sum = 0;
+			for (int i=0;i<n;i++) {
+				sum+=Math.abs(M[i*n+j]);
+			}
+			returnValue = Math.max(returnValue, sum);
+		}
+		return returnValue;
+	}
+
+	@Override
+	public void expmv(double t, double[] v, int vOffset, double[] out, int outOffset) {
+		action(A, normA, t, v, vOffset, out, outOffset);
+	}
+
+	@Override
+	public void vexpm(double t, double[] v, int vOffset, double[] out, int outOffset) {
+		action(AT, normAT, t, v, vOffset, out, outOffset); // v*exp(Q*t) = (exp(Q'*t)*v')'
+	}
+
+	private void action(double[] M, double normM, double t, double[] v, int vOffset, double[] out, int outOffset) {
+		int s = Math.max(1, (int) Math.ceil(normM*Math.abs(t)/maxStepNorm));
+		double h = t/s;
+		double eta = Math.exp(mu*h);
+		double[] b = new double[n];
+		double[] term = new double[n];
+		double[] next = new double[n];
+		System.arraycopy(v, vOffset, b, 0, n);
+		for (int step=0;step<s;step++) {
+			System.arraycopy(b, 0, term, 0, n);
+			double termNorm = normInf(term);
+			for (int k=1;k<=maxTerms;k++) {
+				double previousTermNorm = termNorm;
+				double scale = h/k;
+				for (int i=0;i<n;i++) {
+					double sum = 0;
+					int row = i*n;
+					for (int j=0;j<n;j++) {
+						sum+=M[row+j]*term[j];
+					}
+					next[i]=scale*sum;
+				}
+				double[] temp = term; term = next; next = temp;
+				termNorm = normInf(term);
+				for (int i=0;i<n;i++) {
+					b[i]+=term[i];
+				}
+				if (previousTermNorm+termNorm<=tolerance*normInf(b)) break;
+			}
+			for (int i=0;i<n;i++) {
+				b[i]*=eta;
+			}
+		}
+		System.arraycopy(b, 0, out, outOffset, n);
+	}
+
+	private double normInf(double[] x) {
+		double returnValue = 0;
+		for (int i=0;i<n;i++) {
+			returnValue = Math.max(returnValue, Math.abs(x[i]));
+		}
+		return returnValue;
+	}
+
+	// Full matrix, one row per action (O(n^3) per unit of |Q*t|, intended for occasional use only) 
+	@Override
+	public DoubleMatrix2D expm(double t) {
+		double[] flat = new double[n*n];
+		expm(new double[]{t}, 0, 1, flat, 0, n*n);
+		DoubleMatrix2D returnValue = DoubleFactory2D.dense.make(n,n);
+		for (int i=0;i<n;i++) {
+			for (int j=0;j<n;j++) {
+				returnValue.setQuick(i, j, flat[i*n+j]);
+			}
+		}
+		return returnValue;
+	}
+
+	@Override
+	public void expm(double[] times, int from, int to, double[] out, int offset, int stride) {
+		double[] unit = new double[n];
+		for (int b=from;b<to;b++) {
+			for (int i=0;i<n;i++) {
+				unit[i]=1;
+				vexpm(times[b], unit, 0, out, offset+b*stride+i*n);
+				unit[i]=0;
+			}
+		}
+	}
+
+	@Override
+	public boolean checkMethod() {
+		return methodOK;
+	}
+
+	@Override
+	public String getMethodName() {
+		Class<?> enclosingClass = getClass().getEnclosingClass();
+		if (enclosingClass != null) 
+			return enclosingClass.getName();
+		else 
+			return getClass().getName();
+	}
+
+}
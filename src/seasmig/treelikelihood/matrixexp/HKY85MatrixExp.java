@@ -3,6 +3,7 @@ package seasmig.treelikelihood.matrixexp;
 import cern.colt.matrix.DoubleFactory2D;
 import cern.colt.matrix.DoubleMatrix2D;
 import seasmig.treelikelihood.MatrixExponentiator;
+import seasmig.util.Util;
 
 @SuppressWarnings("serial")
 public class HKY85MatrixExp implements MatrixExponentiator {
@@ -46,24 +47,14 @@ public class HKY85MatrixExp implements MatrixExponentiator {
 		double exp_mu_t = cern.jet.math.Functions.exp.apply(mu*t);
 		
 		if (!Double.isInfinite(exp_mu_t)) {
+			double[] values = new double[16];
+			expm(t, exp_mu_t, values, 0);
 			DoubleMatrix2D returnValue = DoubleFactory2D.dense.make(4,4);
-			returnValue.setQuick(0, 0, (piC/cern.jet.math.Functions.exp.apply((-1 + k)*mu*(piC + piT)*t) - piT*(-1 + piC + piT) + exp_mu_t*piT*(piC + piT))/(exp_mu_t*(piC + piT)));
-			returnValue.setQuick(0, 1, (piC*(1 - cern.jet.math.Functions.exp.apply(-((-1 + k)*mu*(piC + piT)*t)) - piC - piT + exp_mu_t*(piC + piT)))/(exp_mu_t*(piC+piT)));
-			returnValue.setQuick(0, 2, -(((-1 + exp_mu_t)*(-1 + piC + piG + piT))/exp_mu_t));
-			returnValue.setQuick(0, 3, piG - piG/exp_mu_t);
-			returnValue.setQuick(1, 0, (piT*(1 - cern.jet.math.Functions.exp.apply(-((-1 + k)*mu*(piC + piT)*t)) - piC - piT + exp_mu_t*(piC + piT)))/(exp_mu_t*(piC + piT)));
-			returnValue.setQuick(1, 1, (piT/cern.jet.math.Functions.exp.apply((-1 + k)*mu*(piC + piT)*t) - piC*(-1 + piC + piT) + exp_mu_t*piC*(piC + piT))/(exp_mu_t*(piC + piT)));
-			returnValue.setQuick(1, 2, returnValue.getQuick(0,2));
-			returnValue.setQuick(1, 3, returnValue.getQuick(0,3));
-			returnValue.setQuick(2, 0, piT - piT/exp_mu_t);
-			returnValue.setQuick(2, 1, piC - piC/exp_mu_t);
-			returnValue.setQuick(2, 2, (cern.jet.math.Functions.exp.apply((-1 + k)*mu*(-1 + piC + piT)*t)*piG + exp_mu_t*(-1 + piC + piT)*(-1 + piC + piG + piT) - (piC + piT)*(-1 + piC + piG + piT))/
-				 (exp_mu_t*(piA + piG)));
-			returnValue.setQuick(2, 3, (piG*(-cern.jet.math.Functions.exp.apply((-1 + k)*mu*(-1 + piC + piT)*t) + piC + piT - exp_mu_t*(-1 + piC + piT)))/(exp_mu_t*(piA + piG)));
-			returnValue.setQuick(3, 0, returnValue.getQuick(2,0));
-			returnValue.setQuick(3, 1, returnValue.getQuick(2,1));
-			returnValue.setQuick(3, 2, ((-1 + piC + piG + piT)*(cern.jet.math.Functions.exp.apply((-1 + k)*mu*(-1 + piC + piT)*t) - piC - piT + exp_mu_t*(-1 + piC + piT)))/(exp_mu_t*(piA + piG)));
-			returnValue.setQuick(3, 3, (-(exp_mu_t*piG*(-1 + piC + piT)) + piG*(piC + piT) - cern.jet.math.Functions.exp.apply((-1 + k)*mu*(-1 + piC + piT)*t)*(-1 + piC + piG + piT))/(exp_mu_t*(piA + piG)));
+			for (int i=0;i<4;i++) {
+				for (int j=0;j<4;j++) {
+					returnValue.setQuick(i, j, values[i*4+j]);
+				}
+			}
 			return returnValue;
 		}
 		else {
@@ -72,8 +63,37 @@ public class HKY85MatrixExp implements MatrixExponentiator {
 		}
 	}
 
+	@Override
+	public void expm(double[] times, int from, int to, double[] out, int offset, int stride) {
+		for (int i=from;i<to;i++) {
+			double exp_mu_t = cern.jet.math.Functions.exp.apply(mu*times[i]);
+			if (!Double.isInfinite(exp_mu_t)) 
+				expm(times[i], exp_mu_t, out, offset+i*stride);
+			else
+				Util.toArray(expm(times[i]), out, offset+i*stride);
+		}
+	}
 
-
+	// exp(Q*t) row major at out[offset]
+	private void expm(double t, double exp_mu_t, double[] out, int offset) {
+		out[offset]=(piC/cern.jet.math.Functions.exp.apply((-1 + k)*mu*(piC + piT)*t) - piT*(-1 + piC + piT) + exp_mu_t*piT*(piC + piT))/(exp_mu_t*(piC + piT));
+		out[offset+1]=(piC*(1 - cern.jet.math.Functions.exp.apply(-((-1 + k)*mu*(piC + piT)*t)) - piC - piT + exp_mu_t*(piC + piT)))/(exp_mu_t*(piC+piT));
+		out[offset+2]=-(((-1 + exp_mu_t)*(-1 + piC + piG + piT))/exp_mu_t);
+		out[offset+3]=piG - piG/exp_mu_t;
+		out[offset+4]=(piT*(1 - cern.jet.math.Functions.exp.apply(-((-1 + k)*mu*(piC + piT)*t)) - piC - piT + exp_mu_t*(piC + piT)))/(exp_mu_t*(piC + piT));
+		out[offset+5]=(piT/cern.jet.math.Functions.exp.apply((-1 + k)*mu*(piC + piT)*t) - piC*(-1 + piC + piT) + exp_mu_t*piC*(piC + piT))/(exp_mu_t*(piC + piT));
+		out[offset+6]=out[offset+2];
+		out[offset+7]=out[offset+3];
+		out[offset+8]=piT - piT/exp_mu_t;
+		out[offset+9]=piC - piC/exp_mu_t;
+		out[offset+10]=(cern.jet.math.Functions.exp.apply((-1 + k)*mu*(-1 + piC + piT)*t)*piG + exp_mu_t*(-1 + piC + piT)*(-1 + piC + piG + piT) - (piC + piT)*(-1 + piC + piG + piT))/
+			 (exp_mu_t*(piA + piG));
+		out[offset+11]=(piG*(-cern.jet.math.Functions.exp.apply((-1 + k)*mu*(-1 + piC + piT)*t) + piC + piT - exp_mu_t*(-1 + piC + piT)))/(exp_mu_t*(piA + piG));
+		out[offset+12]=out[offset+8];
+		out[offset+13]=out[offset+9];
+		out[offset+14]=((-1 + piC + piG + piT)*(cern.jet.math.Functions.exp.apply((-1 + k)*mu*(-1 + piC + piT)*t) - piC - piT + exp_mu_t*(-1 + piC + piT)))/(exp_mu_t*(piA + piG));
+		out[offset+15]=(-(exp_mu_t*piG*(-1 + piC + piT)) + piG*(piC + piT) - cern.jet.math.Functions.exp.apply((-1 + k)*mu*(-1 + piC + piT)*t)*(-1 + piC + piG + piT))/(exp_mu_t*(piA + piG));
+	}
 
 	@Override
 	public boolean checkMethod() {		 
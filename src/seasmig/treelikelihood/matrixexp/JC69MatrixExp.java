@@ -3,6 +3,7 @@ package seasmig.treelikelihood.matrixexp;
 import cern.colt.matrix.DoubleFactory2D;
 import cern.colt.matrix.DoubleMatrix2D;
 import seasmig.treelikelihood.MatrixExponentiator;
+import seasmig.util.Util;
 
 @SuppressWarnings("serial")
 public class JC69MatrixExp implements MatrixExponentiator {
@@ -46,6 +47,13 @@ public class JC69MatrixExp implements MatrixExponentiator {
 	}
 
 
+	@Override
+	public void expm(double[] times, int from, int to, double[] out, int offset, int stride) {
+		for (int i=from;i<to;i++) {
+			Util.toArray(expm(times[i]), out, offset+i*stride);
+		}
+	}
+
 	@Override
 	public boolean checkMethod() {		
 		return methodOK;
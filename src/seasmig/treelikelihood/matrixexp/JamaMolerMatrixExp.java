@@ -103,6 +103,13 @@ public class JamaMolerMatrixExp implements MatrixExponentiator {
 		return DoubleFactory2D.dense.make(E.getArray());
 	}
 
+	@Override
+	public void expm(double[] times, int from, int to, double[] out, int offset, int stride) {
+		for (int i=from;i<to;i++) {
+			Util.toArray(expm(times[i]), out, offset+i*stride);
+		}
+	}
+
 	@Override
 	public boolean checkMethod() {
 		// TODO: this....
@@ -6,6 +6,7 @@ import org.jblas.MatrixFunctions;
 import cern.colt.matrix.DoubleFactory2D;
 import cern.colt.matrix.DoubleMatrix2D;
 import seasmig.treelikelihood.MatrixExponentiator;
+import seasmig.util.Util;
 
 @SuppressWarnings("serial")
 public class JblasMatrixExp implements MatrixExponentiator {
@@ -22,6 +23,13 @@ public class JblasMatrixExp implements MatrixExponentiator {
 		return DoubleFactory2D.dense.make(MatrixFunctions.expm(Q.mul(t)).toArray2());
 	}
 	
+	@Override
+	public void expm(double[] times, int from, int to, double[] out, int offset, int stride) {
+		for (int i=from;i<to;i++) {
+			Util.toArray(expm(times[i]), out, offset+i*stride);
+		}
+	}
+
 	@Override
 	public boolean checkMethod() {
 		// TODO: this....
@@ -39,4 +47,4 @@ public class JblasMatrixExp implements MatrixExponentiator {
 	}
 }
 
-	
\ No newline at end of file
+	
\ No newline at end of file
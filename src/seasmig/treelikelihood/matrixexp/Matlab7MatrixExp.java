@@ -264,6 +264,13 @@ public class Matlab7MatrixExp implements MatrixExponentiator {
 		return F;
 	}
 	
+	@Override
+	public void expm(double[] times, int from, int to, double[] out, int offset, int stride) {
+		for (int i=from;i<to;i++) {
+			Util.toArray(expm(times[i]), out, offset+i*stride);
+		}
+	}
+
 	@Override
 	public boolean checkMethod() {
 		// TODO: this....
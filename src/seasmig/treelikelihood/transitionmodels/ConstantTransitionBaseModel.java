@@ -1,19 +1,29 @@
 package seasmig.treelikelihood.transitionmodels;
+import java.util.ArrayList;
+import java.util.List;
+
 import cern.colt.matrix.DoubleMatrix1D;
 import cern.colt.matrix.DoubleMatrix2D;
 import cern.colt.matrix.impl.DenseDoubleMatrix1D;
+import cern.jet.random.engine.RandomEngine;
+import seasmig.treelikelihood.ConstantRateModel;
+import seasmig.treelikelihood.MatrixExponentialAction;
 import seasmig.treelikelihood.MatrixExponentiator;
 import seasmig.treelikelihood.TransitionModel;
 import seasmig.treelikelihood.matrixexp.AnalyticMatrixExp2;
 import seasmig.treelikelihood.matrixexp.AnalyticMatrixExp3;
 import seasmig.treelikelihood.matrixexp.EigenDecomposionExp;
+import seasmig.treelikelihood.matrixexp.ExpmvMatrixExp;
 import seasmig.treelikelihood.matrixexp.HKY85MatrixExp;
 import seasmig.treelikelihood.matrixexp.JC69MatrixExp;
 import seasmig.treelikelihood.matrixexp.CachedMatrixExponentiator;
 import seasmig.treelikelihood.matrixexp.Matlab7MatrixExp;
+import seasmig.util.AliasTable;
+import seasmig.util.SplittableRng;
+import seasmig.util.TimeQuantization;
 
 @SuppressWarnings("serial")
-public class ConstantTransitionBaseModel implements TransitionModel {
+public class ConstantTransitionBaseModel implements ConstantRateModel {
 
 	// Precision Parameter
 	static final double timePrecision = 1.0E-5;
@@ -28,11 +38,26 @@ public class ConstantTransitionBaseModel implements TransitionModel {
 
 	private DoubleMatrix1D basefreq;	
 
+	private double rateNorm = -1; // max absolute row sum of Q, computed on first use
+
+	// exp(Q*t)*v without forming exp(Q*t), for large dimensions (see TreeWithLocations), created on first use
+	private MatrixExponentialAction matrixExponentialAction = null;
+
+	// Exit rates and jump destination tables for nextEvent, by row
+	private double[] exitRates;
+	private AliasTable[] jumpTables;
+
+	// Endpoint conditioned stochastic mapping, created on first use
+	private UniformizationSampler uniformizationSampler = null;
+
+	// Expected jumps and dwelling times of branches, created on first use
+	private MarkovJumpExpectation markovJumpExpectation = null;
+
 	protected ConstantTransitionBaseModel() {};
 
 	// Constructor	
 	public ConstantTransitionBaseModel(double[][] Q_) {	
-		Q = Q_;
+		Q = Q_;
 		dimension=Q_.length;
 		switch (dimension) {
 		case 2:
@@ -49,9 +74,9 @@ public class ConstantTransitionBaseModel implements TransitionModel {
 			break;			
 		default:
 			// TODO: check if this helps
-			matrixExponentiator=new CachedMatrixExponentiator(new EigenDecomposionExp(Q));
+			matrixExponentiator=new CachedMatrixExponentiator(new EigenDecomposionExp(Q),getRateNorm());
 			if (!matrixExponentiator.checkMethod()) {
-				matrixExponentiator=new CachedMatrixExponentiator(new Matlab7MatrixExp(Q));
+				matrixExponentiator=new CachedMatrixExponentiator(new Matlab7MatrixExp(Q),getRateNorm());
 			}
 		}
 		// TODO: Maybe use other method to get s.s. freq		
@@ -61,6 +86,7 @@ public class ConstantTransitionBaseModel implements TransitionModel {
 			baseFreqdoubleform[i]=stationaryDist.get(0, i);
 		}
 		basefreq=new DenseDoubleMatrix1D(baseFreqdoubleform);	
+		initJumps();
 
 		// TODO: Figure out if calculating base freq helps or interferes. 
 		//		basefreq=new double[num_locations];
@@ -89,13 +115,12 @@ public class ConstantTransitionBaseModel implements TransitionModel {
 		dimension=4;
 		basefreq=new DenseDoubleMatrix1D(new double[]{0.25,0.25,0.25,0.25});
 		this.Q=Q;
+		initJumps();
 	}
 
 
 	// Constructor	
 	public ConstantTransitionBaseModel(double mu, double kappa, double piC, double piA, double piG) {	// HKY85
-		// TODO: check if cache helps
-		matrixExponentiator=new CachedMatrixExponentiator(new HKY85MatrixExp(mu, kappa, piC, piA, piG));
 		basefreq=new DenseDoubleMatrix1D(new double[]{1.0-piC-piA-piG,piC,piA,piG});
 		double piT = 1.0 - piA - piG - piC;
 		double[][] Q = {
@@ -112,6 +137,46 @@ public class ConstantTransitionBaseModel implements TransitionModel {
 			Q[i][i]=-rowsum;
 		}
 		this.Q=Q;
+		initJumps();
+		// TODO: check if cache helps
+		matrixExponentiator=new CachedMatrixExponentiator(new HKY85MatrixExp(mu, kappa, piC, piA, piG),getRateNorm());
+	}
+
+	public synchronized MatrixExponentialAction getMatrixExponentialAction() {
+		if (matrixExponentialAction==null)
+			matrixExponentialAction=new ExpmvMatrixExp(Q);
+		return matrixExponentialAction;
+	}
+
+	@Override
+	public synchronized UniformizationSampler getUniformizationSampler() {
+		if (uniformizationSampler==null)
+			uniformizationSampler=new UniformizationSampler(this);
+		return uniformizationSampler;
+	}
+
+	@Override
+	public synchronized MarkovJumpExpectation getMarkovJumpExpectation() {
+		if (markovJumpExpectation==null)
+			markovJumpExpectation=new MarkovJumpExpectation(Q);
+		return markovJumpExpectation;
+	}
+
+	// Used to bound the error of time quantization (see TimeQuantization)
+	@Override
+	public double getRateNorm() {
+		if (rateNorm<0) 
+			rateNorm=TimeQuantization.rateNorm(Q);
+		return rateNorm;
+	}
+
+	// Max rate norm of constant models, bounds the error of time quantization for models made of them
+	public static double maxRateNorm(ConstantRateModel[] models) {
+		double returnValue = 0;
+		for (ConstantRateModel model : models) {
+			returnValue = Math.max(returnValue, model.getRateNorm());
+		}
+		return returnValue;
 	}
 
 	// Methods
@@ -127,6 +192,16 @@ public class ConstantTransitionBaseModel implements TransitionModel {
 		return matrixExponentiator.expm(dt);		
 	}
 
+	// All branch lengths are exponentiated in one batch call
+	@Override
+	public void transitionMatrices(double[] fromTimes, double[] toTimes, int from, int to, double[] out, int offset, int stride) {
+		double[] times = new double[to-from];
+		for (int i=from;i<to;i++) {
+			times[i-from]=toTimes[i]-fromTimes[i];
+		}
+		matrixExponentiator.expm(times, 0, to-from, out, offset+from*stride, stride);
+	}
+
 	@Override
 	public String print() {		
 		String returnValue = "{";
@@ -193,33 +268,49 @@ public class ConstantTransitionBaseModel implements TransitionModel {
 
 	@Override
 	public Transition nextEvent(double from_time, int from) {
-		double lambda = -Q[from][from];
-		double time = cern.jet.random.Exponential.staticNextDouble(lambda); // TODO: ??????????
-		// mean of this exponential is 1/lambda, higher the rate, the shorter the time interval --> nextDouble(lambda) is the correct direction.
-		//System.err.println("lambda: "+String.format("%.3f", lambda)+" interval: "+String.format("%.3f", time)+" Q:"+Util.parse(Q));
-		
-		int first = (from+1)%dimension;
-		double p=-Q[from][first]/Q[from][from];
-		double rnd = cern.jet.random.Uniform.staticNextDouble();
-		int loc = first;
-		while (rnd>p) {
-			loc=(loc+1)%dimension;
-			p = p-Q[from][loc]/Q[from][from];
-			if (loc==first) {
-				loc=(loc-1)%dimension;
-				break;
-			}			
-		}
-		// TODO: check this
-		if (loc>=dimension) {
-			System.err.println("error in stochastic mapping nextEvent, dimension="+dimension+" loc="+loc+" from="+from);
-			System.exit(-1);
+		return nextEvent(from_time, from, new Transition(from_time, from), SplittableRng.newDefault());
+	}
+
+	// Writes the next event into event instead of allocating one, event.time is infinite for states without exits
+	@Override
+	public Transition nextEvent(double from_time, int from, Transition event, RandomEngine rng) {
+		double lambda = exitRates[from];
+		if (lambda<=0) {
+			event.time = Double.POSITIVE_INFINITY;
+			event.toTrait = from;
+			return event;
 		}
-		if (loc==from) {
-			System.err.println("error in stochastic mapping nextEvent, dimension="+dimension+" loc="+loc+" from="+from);
-			System.exit(-1);
+		// exponential waiting time, mean of this exponential is 1/lambda
+		event.time = from_time-Math.log(rng.nextDouble())/lambda;
+		event.toTrait = jumpTables[from].sample(rng.nextDouble());
+		return event;
+	}
+
+	// Exit rates and alias tables of jump destinations, rows of Q are fixed once the model is constructed
+	private void initJumps() {
+		exitRates = new double[dimension];
+		jumpTables = new AliasTable[dimension];
+		for (int i=0;i<dimension;i++) {
+			exitRates[i]=-Q[i][i];
+			if (exitRates[i]<=0) continue;
+			double[] weights = new double[dimension];
+			for (int j=0;j<dimension;j++) {
+				if (j!=i) weights[j]=Math.max(0, Q[i][j]);
+			}
+			jumpTables[i]=new AliasTable(weights);
 		}
-		return new Transition(time+from_time, loc);
+	}
+
+	@Override
+	public ArrayList<Transition> endpointConditionedEvents(int from, int to, double from_time, double to_time, RandomEngine rng) {
+		return getUniformizationSampler().sample(from, to, from_time, to_time, rng);
+	}
+
+	@Override
+	public void constantSegments(double from_time, double to_time, List<Double> times, List<ConstantRateModel> models) {
+		times.add(from_time);
+		times.add(to_time);
+		models.add(this);
 	}
 
 
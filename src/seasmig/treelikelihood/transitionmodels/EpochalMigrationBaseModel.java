@@ -1,17 +1,22 @@
 package seasmig.treelikelihood.transitionmodels;
 
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.List;
 
 import mc3kit.DoubleVariable;
 
-import org.javatuples.Pair;
-
+import seasmig.treelikelihood.ConstantRateModel;
 import seasmig.treelikelihood.TransitionModel;
+import seasmig.util.SplittableRng;
+import seasmig.util.TimeQuantization;
+import seasmig.util.TransitionMatrixCache;
+import seasmig.util.Util;
 import cern.colt.function.DoubleFunction;
 import cern.colt.matrix.DoubleFactory1D;
 import cern.colt.matrix.DoubleFactory2D;
 import cern.colt.matrix.DoubleMatrix1D;
 import cern.colt.matrix.DoubleMatrix2D;
+import cern.jet.random.engine.RandomEngine;
 
 @SuppressWarnings("serial")
 public class EpochalMigrationBaseModel implements TransitionModel {
@@ -32,11 +37,11 @@ public class EpochalMigrationBaseModel implements TransitionModel {
 	DoubleFunction[] rootFreq;
 
 	// Constant Migration Models
-	TransitionModel constantModels[];
+	ConstantRateModel constantModels[];
 
 	// Caching
 	DoubleFactory2D F = DoubleFactory2D.dense;
-	HashMap<Pair<Double,Double>, DoubleMatrix2D> cachedTransitionMatrices = new HashMap<Pair<Double,Double>,DoubleMatrix2D>();
+	TransitionMatrixCache cachedTransitionMatrices = new TransitionMatrixCache(maxCachedTransitionMatrices);
 
 	private int num_locations = 0;
 
@@ -88,7 +93,12 @@ public class EpochalMigrationBaseModel implements TransitionModel {
 
 	@Override
 	public DoubleMatrix2D transitionMatrix(double from_time, double to_time) {
-		DoubleMatrix2D cached = cachedTransitionMatrices.get(new Pair<Double,Double>(from_time,to_time));
+		if (TimeQuantization.isOn()) { // snap start and duration to the grid, so that branches of all trees share cached matrices
+			double[] snapped = TimeQuantization.snapInterval(ConstantTransitionBaseModel.maxRateNorm(constantModels), from_time, to_time);
+			from_time = snapped[0];
+			to_time = snapped[1];
+		}
+		DoubleMatrix2D cached = cachedTransitionMatrices.get(from_time,to_time);
 		if (cached!=null) {
 			return cached;
 		}
@@ -108,10 +118,7 @@ public class EpochalMigrationBaseModel implements TransitionModel {
 			}
 
 			// cache result
-			if (cachedTransitionMatrices.size()>=maxCachedTransitionMatrices) {
-				cachedTransitionMatrices.remove(cachedTransitionMatrices.keySet().iterator().next());
-			}			
-			cachedTransitionMatrices.put(new Pair<Double,Double>(from_time, to_time),result);
+			cachedTransitionMatrices.put(from_time,to_time,result);
 
 			// TODO: replace with no conversion step
 			return result;
@@ -134,6 +141,14 @@ public class EpochalMigrationBaseModel implements TransitionModel {
 			return Double.MAX_VALUE;
 	}
 
+	// Products over seasons (epochs) are composed per branch from the cached constant model matrices 
+	@Override
+	public void transitionMatrices(double[] fromTimes, double[] toTimes, int from, int to, double[] out, int offset, int stride) {
+		for (int i=from;i<to;i++) {
+			Util.toArray(transitionMatrix(fromTimes[i], toTimes[i]), out, offset+i*stride);
+		}
+	}
+
 	@Override
 	public String print() {
 		String returnValue = "Epochal Migration Model:\n";
@@ -186,14 +201,18 @@ public class EpochalMigrationBaseModel implements TransitionModel {
 
 	@Override
 	public Transition nextEvent(double time, int from) {
+		return nextEvent(time, from, new Transition(time, from), SplittableRng.newDefault());
+	}
+
+	@Override
+	public Transition nextEvent(double time, int from, Transition nextEvent, RandomEngine rng) {
 		// TODO: check this...
-		Transition nextEvent = null;
 		boolean done = false;
 		double currentTime = time;
 		int currentLoc = from;
 		do {
 			int currentEpochIndex = epochIndex(currentTime);
-			nextEvent = constantModels[currentEpochIndex].nextEvent(currentTime, currentLoc);
+			constantModels[currentEpochIndex].nextEvent(currentTime, currentLoc, nextEvent, rng);
 			int nextEpochIndex = epochIndex(nextEvent.time);
 			done = (nextEpochIndex==currentEpochIndex);
 			if (!done) {
@@ -203,5 +222,30 @@ public class EpochalMigrationBaseModel implements TransitionModel {
 		return nextEvent;
 	}
 
+	// Path sampled epoch by epoch
+	@Override
+	public ArrayList<Transition> endpointConditionedEvents(int from, int to, double from_time, double to_time, RandomEngine rng) {
+		ArrayList<Double> times = new ArrayList<Double>();
+		ArrayList<ConstantRateModel> models = new ArrayList<ConstantRateModel>();
+		constantSegments(from_time, to_time, times, models);
+		if (models.size()==0) 
+			return (to<0 || from==to) ? new ArrayList<Transition>() : null;
+		return UniformizationSampler.samplePiecewise(times, models, from, to, rng);
+	}
+
+	@Override
+	public void constantSegments(double from_time, double to_time, List<Double> times, List<ConstantRateModel> models) {
+		double step_start_time = from_time;
+		int epochIndex = epochIndex(from_time);
+		times.add(step_start_time);
+		while (step_start_time<to_time) {
+			double step_end_time = Math.min(to_time, epochEndTime(epochIndex));
+			models.add(constantModels[epochIndex]);
+			times.add(step_end_time);
+			step_start_time = step_end_time;
+			epochIndex=epochIndex+1;
+		}
+	}
+
 }
 
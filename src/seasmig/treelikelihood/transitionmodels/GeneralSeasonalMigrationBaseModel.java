@@ -1,15 +1,20 @@
 package seasmig.treelikelihood.transitionmodels;
 
-import java.util.HashMap;
-
-import org.javatuples.Pair;
+import java.util.ArrayList;
+import java.util.List;
 
+import seasmig.treelikelihood.ConstantRateModel;
 import seasmig.treelikelihood.TransitionModel;
+import seasmig.util.SplittableRng;
+import seasmig.util.TimeQuantization;
+import seasmig.util.TransitionMatrixCache;
+import seasmig.util.Util;
 import cern.colt.function.DoubleFunction;
 import cern.colt.matrix.DoubleFactory1D;
 import cern.colt.matrix.DoubleFactory2D;
 import cern.colt.matrix.DoubleMatrix1D;
 import cern.colt.matrix.DoubleMatrix2D;
+import cern.jet.random.engine.RandomEngine;
 
 @SuppressWarnings("serial")
 public class GeneralSeasonalMigrationBaseModel implements TransitionModel {
@@ -30,11 +35,11 @@ public class GeneralSeasonalMigrationBaseModel implements TransitionModel {
 	DoubleFunction[] rootFreq;
 	
 	// Constant Migration Models
-	TransitionModel constantModels[];
+	ConstantRateModel constantModels[];
 
 	// Caching
 	DoubleFactory2D F = DoubleFactory2D.dense;
-	HashMap<Pair<Double,Double>, DoubleMatrix2D> cachedTransitionMatrices = new HashMap<Pair<Double,Double>, DoubleMatrix2D>();
+	TransitionMatrixCache cachedTransitionMatrices = new TransitionMatrixCache(maxCachedTransitionMatrices);
 
 	private int num_locations = 0;
 	private double dt = 1.0/(double)nYearParts; 
@@ -87,7 +92,14 @@ public class GeneralSeasonalMigrationBaseModel implements TransitionModel {
 		double from_time_reminder = from_time % 1.0;
 		double from_time_div = from_time - from_time_reminder;		
 		double to_time_reminder = to_time - from_time_div;
-		DoubleMatrix2D cached = cachedTransitionMatrices.get(new Pair<Double,Double>(from_time_reminder,to_time_reminder));
+		if (TimeQuantization.isOn()) { // snap phase and duration to the grid, so that branches of all trees share cached matrices
+			double[] snapped = TimeQuantization.snapInterval(ConstantTransitionBaseModel.maxRateNorm(constantModels), from_time_reminder, to_time_reminder);
+			from_time_reminder = snapped[0];
+			to_time_reminder = snapped[1];
+			from_time = from_time_div+from_time_reminder;
+			to_time = from_time_div+to_time_reminder;
+		}
+		DoubleMatrix2D cached = cachedTransitionMatrices.get(from_time_reminder,to_time_reminder);
 		if (cached!=null) {
 			return cached;
 		}
@@ -98,7 +110,7 @@ public class GeneralSeasonalMigrationBaseModel implements TransitionModel {
 			DoubleMatrix2D result = F.identity(num_locations);	 
 			
 			while (step_start_time<to_time_reminder) {
-				int yearPartIndex = (int) Math.floor(step_start_time%1.0/dt);
+				int yearPartIndex = yearPartIndex(step_start_time);
 				// TODO: replace with other matrix mult
 				result = result.zMult(constantModels[yearPartIndex].transitionMatrix(step_start_time, step_end_time),null);	
 				step_start_time = step_end_time;
@@ -106,17 +118,25 @@ public class GeneralSeasonalMigrationBaseModel implements TransitionModel {
 			}
 
 			// cache result
-			if (cachedTransitionMatrices.size()>=maxCachedTransitionMatrices) {
-				cachedTransitionMatrices.remove(cachedTransitionMatrices.keySet().iterator().next());
-			}			
-			
-			cachedTransitionMatrices.put(new Pair<Double,Double>(from_time_reminder, to_time_reminder),result);
+			cachedTransitionMatrices.put(from_time_reminder,to_time_reminder,result);
 
 			// TODO: replace with no conversion step
 			return result;
 		}
 	}
 
+	private int yearPartIndex(double time) {
+		return Math.min((int) Math.floor(time%1.0/dt),nYearParts-1);
+	}
+
+	// Products over seasons (epochs) are composed per branch from the cached constant model matrices 
+	@Override
+	public void transitionMatrices(double[] fromTimes, double[] toTimes, int from, int to, double[] out, int offset, int stride) {
+		for (int i=from;i<to;i++) {
+			Util.toArray(transitionMatrix(fromTimes[i], toTimes[i]), out, offset+i*stride);
+		}
+	}
+
 	@Override
 	public String print() {
 		String returnValue = "General Seasonal Migration Model:\n";
@@ -166,8 +186,51 @@ public class GeneralSeasonalMigrationBaseModel implements TransitionModel {
 
 	@Override
 	public Transition nextEvent(double time, int from) {
-		// TODO Auto-generated method stub
-		return null;
+		return nextEvent(time, from, new Transition(time, from), SplittableRng.newDefault());
+	}
+
+	// Next event part by part of the year, with parts split as in constantSegments. Waiting times are memoryless,
+	// so an event past the end of a part is drawn again from the end of the part with the rates of the next part.
+	@Override
+	public Transition nextEvent(double time, int from, Transition event, RandomEngine rng) {
+		double step_start_time = time;
+		double step_end_time = Math.floor(step_start_time/dt)*dt+dt;
+		int partsWithoutExit = 0;
+		while (true) {
+			constantModels[yearPartIndex(step_start_time)].nextEvent(step_start_time, from, event, rng);
+			if (event.time<step_end_time) 
+				return event;
+			if (!Double.isInfinite(event.time)) 
+				partsWithoutExit = 0;
+			else if (++partsWithoutExit>=nYearParts) 
+				return event; // no exit from this state in any part of the year
+			step_start_time = step_end_time;
+			step_end_time = Math.floor((step_start_time+infinitesimalTime)/dt)*dt+dt;
+		}
+	}
+
+	// Path sampled part by part, with parts of the year split as in transitionMatrix
+	@Override
+	public ArrayList<Transition> endpointConditionedEvents(int from, int to, double from_time, double to_time, RandomEngine rng) {
+		ArrayList<Double> times = new ArrayList<Double>();
+		ArrayList<ConstantRateModel> models = new ArrayList<ConstantRateModel>();
+		constantSegments(from_time, to_time, times, models);
+		if (models.size()==0) 
+			return (to<0 || from==to) ? new ArrayList<Transition>() : null;
+		return UniformizationSampler.samplePiecewise(times, models, from, to, rng);
+	}
+
+	@Override
+	public void constantSegments(double from_time, double to_time, List<Double> times, List<ConstantRateModel> models) {
+		double step_start_time = from_time;
+		double step_end_time = Math.min(to_time, Math.floor(step_start_time/dt)*dt+dt);
+		times.add(step_start_time);
+		while (step_start_time<to_time) {
+			models.add(constantModels[yearPartIndex(step_start_time)]);
+			times.add(step_end_time);
+			step_start_time = step_end_time;
+			step_end_time = Math.min(to_time, Math.floor((step_start_time+infinitesimalTime)/dt)*dt+dt);
+		}
 	}
 
 
@@ -0,0 +1,196 @@
+package seasmig.treelikelihood.transitionmodels;
+
+import java.io.Serializable;
+import java.util.List;
+
+import cern.colt.matrix.DoubleMatrix2D;
+import seasmig.treelikelihood.ConstantRateModel;
+import seasmig.treelikelihood.matrixexp.EigenDecomposionExp;
+import seasmig.treelikelihood.matrixexp.Matlab7MatrixExp;
+
+// Expected number of jumps between each pair of states and expected time spent in each state along a branch,
+// given weights alpha of the state at the start of the branch and beta of the state at its end (Minin and Suchard 2008).
+// With P(s)=exp(Q*s) and the integral
+//   M[k][l] = int_0^t (alpha'*P(s))[k] * (P(t-s)*beta)[l] ds
+// the likelihood of the branch is L = alpha'*P(t)*beta = trace(M)/t, and given the end weights
+//   E[jumps k->l] = Q[k][l]*M[k][l]/L
+//   E[time in k] = M[k][k]/L
+// For real distinct eigenvalues (Q = U*D*inv(U)) M = inv(U)'*(C o I)*U' with C[i][j] = (U'*alpha)[i]*(inv(U)*beta)[j] and
+//   I[i][j] = (exp(d_i*t)-exp(d_j*t))/(d_i-d_j) or t*exp(d_i*t) for d_i=d_j,
+// otherwise M is the upper right block of exp(t*[[Q',alpha*beta'],[0,Q']]) (Van Loan 1978).
+// Weights may be scaled freely, expectations do not depend on their scale.
+@SuppressWarnings("serial")
+public class MarkovJumpExpectation implements Serializable {
+
+	private double[][] Q;
+	private int n;
+
+	// Flat row major decomposition, null if the Van Loan block exponential is used
+	private double[] eigenvalues = null;
+	private double[] U = null;
+	private double[] invU = null;
+
+	protected MarkovJumpExpectation() {};
+
+	public MarkovJumpExpectation(double[][] Q_) {
+		Q = Q_;
+		n = Q.length;
+		EigenDecomposionExp eigenDecomposition = new EigenDecomposionExp(Q);
+		if (eigenDecomposition.hasRealEigenvalues() && eigenDecomposition.checkMethod()) {
+			eigenvalues = eigenDecomposition.getEigenvalues();
+			U = eigenDecomposition.getV();
+			invU = eigenDecomposition.getInvV();
+		}
+	}
+
+	public boolean usesEigenDecomposition() {
+		return eigenvalues!=null;
+	}
+
+	// Adds expected jumps ([from][to], row major) and dwelling times of a branch of length t to jumps and dwellings,
+	// false if the end weights can not be connected over the branch
+	public boolean addExpectations(double[] alpha, double[] beta, double t, double[] jumps, double[] dwellings) {
+		if (!(t>0)) return true;
+		double[] M = (eigenvalues!=null ? eigenIntegral(alpha, beta, t) : vanLoanIntegral(alpha, beta, t));
+		if (M==null) return false;
+		double L = 0;
+		for (int k=0;k<n;k++) {
+			L+=M[k*n+k];
+		}
+		L/=t;
+		if (!(L>0)) return false;
+		for (int k=0;k<n;k++) {
+			for (int l=0;l<n;l++) {
+				if (k==l)
+					dwellings[k]+=Math.max(0, M[k*n+k])/L;
+				else
+					jumps[k*n+l]+=Math.max(0, Q[k][l]*M[k*n+l])/L;
+			}
+		}
+		return true;
+	}
+
+	private double[] eigenIntegral(double[] alpha, double[] beta, double t) {
+		double[] a = new double[n]; // U'*alpha
+		double[] b = new double[n]; // inv(U)*beta
+		for (int i=0;i<n;i++) {
+			for (int k=0;k<n;k++) {
+				a[i]+=U[k*n+i]*alpha[k];
+				b[i]+=invU[i*n+k]*beta[k];
+			}
+		}
+		double[] expDt = new double[n];
+		for (int i=0;i<n;i++) {
+			expDt[i]=Math.exp(eigenvalues[i]*t);
+		}
+		// C o I
+		double[] C = new double[n*n];
+		for (int i=0;i<n;i++) {
+			for (int j=0;j<n;j++) {
+				double d = eigenvalues[i]-eigenvalues[j];
+				double integral = (d==0 ? t*expDt[i] : expDt[j]*Math.expm1(d*t)/d);
+				C[i*n+j]=a[i]*b[j]*integral;
+			}
+		}
+		// W = inv(U)'*C, M = W*U'
+		double[] W = new double[n*n];
+		for (int i=0;i<n;i++) {
+			for (int k=0;k<n;k++) {
+				double u = invU[i*n+k];
+				if (u==0) continue;
+				for (int j=0;j<n;j++) {
+					W[k*n+j]+=u*C[i*n+j];
+				}
+			}
+		}
+		double[] M = new double[n*n];
+		for (int k=0;k<n;k++) {
+			for (int l=0;l<n;l++) {
+				double sum = 0;
+				for (int j=0;j<n;j++) {
+					sum+=W[k*n+j]*U[l*n+j];
+				}
+				M[k*n+l]=sum;
+			}
+		}
+		return M;
+	}
+
+	private double[] vanLoanIntegral(double[] alpha, double[] beta, double t) {
+		double[][] A = new double[2*n][2*n];
+		for (int i=0;i<n;i++) {
+			for (int j=0;j<n;j++) {
+				A[i][j]=Q[j][i];
+				A[n+i][n+j]=Q[j][i];
+				A[i][n+j]=alpha[i]*beta[j];
+			}
+		}
+		DoubleMatrix2D expA = new Matlab7MatrixExp(A).expm(t);
+		double[] M = new double[n*n];
+		for (int i=0;i<n;i++) {
+			for (int j=0;j<n;j++) {
+				M[i*n+j]=expA.getQuick(i, n+j);
+				if (Double.isNaN(M[i*n+j])) return null;
+			}
+		}
+		return M;
+	}
+
+	// Piecewise constant chain, segment i is [times[i],times[i+1]] with rates of models[i] (see TransitionModel.constantSegments).
+	// Start weights are carried forward and end weights backward to each segment, which then adds its own expectations.
+	public static boolean addExpectations(List<Double> times, List<ConstantRateModel> models, double[] alpha, double[] beta, double[] jumps, double[] dwellings) {
+		int numSegments = models.size();
+		if (numSegments==0) return true;
+		if (numSegments==1)
+			return models.get(0).getMarkovJumpExpectation().addExpectations(alpha, beta, times.get(1)-times.get(0), jumps, dwellings);
+		int n = alpha.length;
+		DoubleMatrix2D[] P = new DoubleMatrix2D[numSegments];
+		for (int i=0;i<numSegments;i++) {
+			P[i]=models.get(i).transitionMatrix(times.get(i), times.get(i+1));
+		}
+		// End weights of each segment (scaled)
+		double[][] betas = new double[numSegments][];
+		betas[numSegments-1]=beta;
+		for (int i=numSegments-2;i>=0;i--) {
+			betas[i]=scaled(multiply(P[i+1], betas[i+1], false, n));
+			if (betas[i]==null) return false;
+		}
+		double[] start = alpha;
+		for (int i=0;i<numSegments;i++) {
+			if (!models.get(i).getMarkovJumpExpectation().addExpectations(start, betas[i], times.get(i+1)-times.get(i), jumps, dwellings))
+				return false;
+			if (i<numSegments-1) {
+				start=scaled(multiply(P[i], start, true, n));
+				if (start==null) return false;
+			}
+		}
+		return true;
+	}
+
+	// P*v or P'*v
+	private static double[] multiply(DoubleMatrix2D P, double[] v, boolean transpose, int n) {
+		double[] returnValue = new double[n];
+		for (int i=0;i<n;i++) {
+			double sum = 0;
+			for (int j=0;j<n;j++) {
+				sum+=(transpose ? P.getQuick(j, i) : P.getQuick(i, j))*v[j];
+			}
+			returnValue[i]=Math.max(0, sum);
+		}
+		return returnValue;
+	}
+
+	// v divided by its max, null if v is zero
+	private static double[] scaled(double[] v) {
+		double max = 0;
+		for (int i=0;i<v.length;i++) {
+			max=Math.max(max, v[i]);
+		}
+		if (!(max>0)) return null;
+		for (int i=0;i<v.length;i++) {
+			v[i]/=max;
+		}
+		return v;
+	}
+
+}
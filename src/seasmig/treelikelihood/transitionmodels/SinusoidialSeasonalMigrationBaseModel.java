@@ -1,9 +1,14 @@
 package seasmig.treelikelihood.transitionmodels;
 
+import java.util.ArrayList;
+import java.util.List;
+
+import seasmig.treelikelihood.ConstantRateModel;
 import seasmig.treelikelihood.TransitionModel;
 import cern.colt.function.DoubleFunction;
 import cern.colt.matrix.DoubleMatrix1D;
 import cern.colt.matrix.DoubleMatrix2D;
+import cern.jet.random.engine.RandomEngine;
 
 
 @SuppressWarnings("serial")
@@ -77,6 +82,11 @@ public class SinusoidialSeasonalMigrationBaseModel implements TransitionModel {
 		return baseModel.transitionMatrix(from_time, to_time);
 	}
 
+	@Override
+	public void transitionMatrices(double[] fromTimes, double[] toTimes, int from, int to, double[] out, int offset, int stride) {
+		baseModel.transitionMatrices(fromTimes, toTimes, from, to, out, offset, stride);
+	}
+
 	@Override
 	public String print() {
 		return baseModel.print();	
@@ -107,8 +117,22 @@ public class SinusoidialSeasonalMigrationBaseModel implements TransitionModel {
 
 	@Override
 	public Transition nextEvent(double time, int from) {
-		// TODO Auto-generated method stub
-		return null;
+		return baseModel.nextEvent(time, from);
+	}
+
+	@Override
+	public Transition nextEvent(double time, int from, Transition event, RandomEngine rng) {
+		return baseModel.nextEvent(time, from, event, rng);
+	}
+
+	@Override
+	public ArrayList<Transition> endpointConditionedEvents(int from, int to, double from_time, double to_time, RandomEngine rng) {
+		return baseModel.endpointConditionedEvents(from, to, from_time, to_time, rng);
+	}
+
+	@Override
+	public void constantSegments(double from_time, double to_time, List<Double> times, List<ConstantRateModel> models) {
+		baseModel.constantSegments(from_time, to_time, times, models);
 	}
 
 }
@@ -1,14 +1,19 @@
 package seasmig.treelikelihood.transitionmodels;
 
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Vector;
 
-import org.javatuples.Pair;
-
+import seasmig.treelikelihood.ConstantRateModel;
 import seasmig.treelikelihood.TransitionModel;
+import seasmig.util.SplittableRng;
+import seasmig.util.TimeQuantization;
+import seasmig.util.TransitionMatrixCache;
+import seasmig.util.Util;
 import cern.colt.matrix.DoubleFactory2D;
 import cern.colt.matrix.DoubleMatrix1D;
 import cern.colt.matrix.DoubleMatrix2D;
+import cern.jet.random.engine.RandomEngine;
 
 //TODO: test multiplication order... ok for Q where rows sum to 1
 
@@ -20,8 +25,8 @@ public class TwoSeasonMigrationBaseModel implements TransitionModel {
 	static final int maxCachedTransitionMatrices = 16000;
 
 	// Seasonal Migration Models
-	TransitionModel season1MigrationModel = null;
-	TransitionModel season2MigrationModel = null;
+	ConstantRateModel season1MigrationModel = null;
+	ConstantRateModel season2MigrationModel = null;
 
 	// Seasonal Range [...season2....|...season1......|...season2..]
 	//                0             S1S              S1E        1 year
@@ -36,7 +41,7 @@ public class TwoSeasonMigrationBaseModel implements TransitionModel {
 	// Caching
 	DoubleFactory2D F = DoubleFactory2D.dense;
 	Vector<DoubleMatrix2D> cachedMatrixPower = new Vector<DoubleMatrix2D>();	
-	HashMap<Pair<Double,Double>, DoubleMatrix2D> cachedTransitionMatrices = new HashMap<Pair<Double,Double>, DoubleMatrix2D>();
+	TransitionMatrixCache cachedTransitionMatrices = new TransitionMatrixCache(maxCachedTransitionMatrices);
 
 	private int num_states = 0;
 
@@ -71,7 +76,14 @@ public class TwoSeasonMigrationBaseModel implements TransitionModel {
 		double from_time_reminder = from_time % 1.0;
 		double from_time_div = from_time - from_time_reminder;
 		double to_time_reminder = to_time - from_time_div;
-		DoubleMatrix2D cached = cachedTransitionMatrices.get(new Pair<Double,Double>(from_time_reminder,to_time_reminder));
+		if (TimeQuantization.isOn()) { // snap phase and duration to the grid, so that branches of all trees share cached matrices
+			double[] snapped = TimeQuantization.snapInterval(ConstantTransitionBaseModel.maxRateNorm(new ConstantRateModel[]{season1MigrationModel, season2MigrationModel}), from_time_reminder, to_time_reminder);
+			from_time_reminder = snapped[0];
+			to_time_reminder = snapped[1];
+			from_time = from_time_div+from_time_reminder;
+			to_time = from_time_div+to_time_reminder;
+		}
+		DoubleMatrix2D cached = cachedTransitionMatrices.get(from_time_reminder,to_time_reminder);
 		if (cached!=null) {
 			return cached;
 		}
@@ -101,17 +113,20 @@ public class TwoSeasonMigrationBaseModel implements TransitionModel {
 			}
 
 			// cache result
-			if (cachedTransitionMatrices.size()>=maxCachedTransitionMatrices) {
-				for (int i=0;i<cachedTransitionMatrices.size()/2;i++) {
-					cachedTransitionMatrices.remove(cachedTransitionMatrices.keySet().iterator().next());
-				}
-			}			
-			cachedTransitionMatrices.put(new Pair<Double,Double>(from_time_reminder, to_time_reminder),result);
+			cachedTransitionMatrices.put(from_time_reminder,to_time_reminder,result);
 			
 			return result;
 		}
 	}
 
+	// Products over seasons (epochs) are composed per branch from the cached constant model matrices 
+	@Override
+	public void transitionMatrices(double[] fromTimes, double[] toTimes, int from, int to, double[] out, int offset, int stride) {
+		for (int i=from;i<to;i++) {
+			Util.toArray(transitionMatrix(fromTimes[i], toTimes[i]), out, offset+i*stride);
+		}
+	}
+
 	@Override
 	public String print() {	
 		String returnValue="";
@@ -163,21 +178,25 @@ public class TwoSeasonMigrationBaseModel implements TransitionModel {
 
 	@Override
 	public Transition nextEvent(double time, int from) {
+		return nextEvent(time, from, new Transition(time, from), SplittableRng.newDefault());
+	}
+
+	@Override
+	public Transition nextEvent(double time, int from, Transition nextEvent, RandomEngine rng) {
 		// TODO: check this...
-		Transition nextEvent = null;
 		boolean done = false;
 		double currentTime = time;
 		int currentLoc = from;
 		do {
 			if (isInSeason1(currentTime)) {
-				nextEvent = season1MigrationModel.nextEvent(currentTime, currentLoc);
+				season1MigrationModel.nextEvent(currentTime, currentLoc, nextEvent, rng);
 				done = isInSameSeason(nextEvent.time, currentTime);
 				if (!done) {
 					currentTime = (currentTime-currentTime%1.0+season1Start+season1Length+infitesimalTimeInterval);				
 				}
 			}
 			else {
-				nextEvent = season2MigrationModel.nextEvent(currentTime, currentLoc);
+				season2MigrationModel.nextEvent(currentTime, currentLoc, nextEvent, rng);
 				done = isInSameSeason(nextEvent.time, currentTime);
 				if (!done) {
 					if (currentTime%1.0<season1Start)
@@ -190,4 +209,41 @@ public class TwoSeasonMigrationBaseModel implements TransitionModel {
 		return nextEvent;
 	}
 
+	// Path sampled season by season, with seasons split as in transitionMatrix
+	@Override
+	public ArrayList<Transition> endpointConditionedEvents(int from, int to, double from_time, double to_time, RandomEngine rng) {
+		ArrayList<Double> times = new ArrayList<Double>();
+		ArrayList<ConstantRateModel> models = new ArrayList<ConstantRateModel>();
+		constantSegments(from_time, to_time, times, models);
+		if (models.size()==0) 
+			return (to<0 || from==to) ? new ArrayList<Transition>() : null;
+		return UniformizationSampler.samplePiecewise(times, models, from, to, rng);
+	}
+
+	@Override
+	public void constantSegments(double from_time, double to_time, List<Double> times, List<ConstantRateModel> models) {
+		double step_start_time = from_time;
+		double step_end_time = step_start_time;
+		times.add(step_start_time);
+		while (step_start_time<to_time) {
+			double step_start_time_reminder=step_start_time%1.0;
+			double step_start_time_div=step_start_time - step_start_time_reminder;
+			if (isInSeason1(step_start_time)) {
+				step_end_time = Math.min(to_time,step_start_time_div+season1Start+season1Length+ infitesimalTimeInterval);
+				models.add(season1MigrationModel);
+			}
+			else { // In Season 2
+				if (step_start_time_reminder<season1Start) {
+					step_end_time = Math.min(to_time,step_start_time_div+season1Start+ infitesimalTimeInterval);
+				}
+				else {
+					step_end_time = Math.min(to_time,step_start_time_div+1.0+season1Start+ infitesimalTimeInterval);
+				}
+				models.add(season2MigrationModel);
+			}
+			times.add(step_end_time);
+			step_start_time=step_end_time;
+		}
+	}
+
 }
@@ -0,0 +1,351 @@
+package seasmig.treelikelihood.transitionmodels;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import seasmig.treelikelihood.ConstantRateModel;
+import seasmig.treelikelihood.TransitionModel.Transition;
+import cern.colt.matrix.DoubleMatrix2D;
+import cern.jet.random.engine.RandomEngine;
+
+// Endpoint conditioned sampling of a path of a constant rate chain by uniformization (Hobolth and Stone 2009).
+// With mu the max exit rate and R=I+Q/mu, jumps (real or virtual) occur as a Poisson process of rate mu and follow R.
+// Given the end points a,b over an interval of length t:
+//   P(n jumps | a,b) ~ Poisson(n; mu*t) * R^n[a,b]
+//   jump times are n sorted uniforms
+//   the state after a jump from c with k jumps left is s with probability ~ R[c,s]*R^k[s,b]
+// The number of jumps is truncated at mu*t+tailSds*sqrt(mu*t)+minJumps, so the cost per branch is bounded
+// and does not depend on how likely the end state is. Powers of R are cached and shared between branches up to 
+// maxCachedEntries, the column of the end state of higher powers is computed per branch as R times the previous column.
+@SuppressWarnings("serial")
+public class UniformizationSampler implements Serializable {
+
+	// Truncation of the number of jumps
+	static final double tailSds = 10;
+	static final int minJumps = 20;
+
+	// Bound on the entries of cached powers of R, above it a branch costs O(maxJumps*dimension^2) time and O(maxJumps*dimension) memory 
+	static final int maxCachedEntries = 1<<18;
+
+	private ConstantTransitionBaseModel model;
+	private int dimension;
+	private double mu; // uniformization rate, max exit rate
+
+	// Powers of R, row major, powers[k] is R^k, filled on demand up to maxPowers
+	private double[][] powers;
+	private int numPowers = 0;
+	private int maxPowers;
+
+	protected UniformizationSampler() {};
+
+	public UniformizationSampler(ConstantTransitionBaseModel model_) {
+		model = model_;
+		double[][] Q = model.Q;
+		dimension = Q.length;
+		mu = 0;
+		for (int i=0;i<dimension;i++) {
+			mu = Math.max(mu, -Q[i][i]);
+		}
+		maxPowers = Math.max(minJumps+1, maxCachedEntries/(dimension*dimension));
+		powers = new double[minJumps+1][];
+		double[] identity = new double[dimension*dimension];
+		for (int i=0;i<dimension;i++) {
+			identity[i*dimension+i]=1;
+		}
+		powers[0]=identity;
+		numPowers=1;
+		if (mu>0) {
+			double[] R = new double[dimension*dimension];
+			for (int i=0;i<dimension;i++) {
+				for (int j=0;j<dimension;j++) {
+					R[i*dimension+j]=(i==j ? 1 : 0)+Q[i][j]/mu;
+				}
+			}
+			powers[1]=R;
+			numPowers=2;
+		}
+	}
+
+	public double getRate() {
+		return mu;
+	}
+
+	public static int maxJumps(double expectedJumps) {
+		return (int) Math.ceil(expectedJumps+tailSds*Math.sqrt(expectedJumps))+minJumps;
+	}
+
+	// Powers R^0..R^min(n,maxPowers-1), entries of the returned array are never modified
+	private synchronized double[][] powers(int n) {
+		n = Math.min(n, maxPowers-1);
+		if (numPowers<=n) {
+			if (powers.length<=n) {
+				powers = Arrays.copyOf(powers, Math.max(n+1, powers.length*2));
+			}
+			double[] R = powers[1];
+			for (int k=numPowers;k<=n;k++) {
+				double[] prev = powers[k-1];
+				double[] next = new double[dimension*dimension];
+				for (int i=0;i<dimension;i++) {
+					for (int l=0;l<dimension;l++) {
+						double a = prev[i*dimension+l];
+						if (a==0) continue;
+						for (int j=0;j<dimension;j++) {
+							next[i*dimension+j]+=a*R[l*dimension+j];
+						}
+					}
+				}
+				powers[k]=next;
+			}
+			numPowers=n+1;
+		}
+		return powers;
+	}
+
+	// Columns of the end state to of R^0..R^n, columns[k][s] is R^k[s,to]
+	private double[][] columns(int n, int to) {
+		double[][] powers = powers(n);
+		int numCached = Math.min(n, maxPowers-1)+1;
+		double[] R = powers[1];
+		double[][] columns = new double[n+1][];
+		for (int k=0;k<=n;k++) {
+			columns[k] = new double[dimension];
+			if (k<numCached) {
+				for (int s=0;s<dimension;s++) {
+					columns[k][s]=powers[k][s*dimension+to];
+				}
+				continue;
+			}
+			double[] prev = columns[k-1];
+			for (int s=0;s<dimension;s++) {
+				double sum = 0;
+				for (int j=0;j<dimension;j++) {
+					sum+=R[s*dimension+j]*prev[j];
+				}
+				columns[k][s]=sum;
+			}
+		}
+		return columns;
+	}
+
+	// Events of a path from state from at fromTime to state to at toTime, to<0 for a free end state,
+	// null if the end state can not be reached
+	public ArrayList<Transition> sample(int from, int to, double fromTime, double toTime, RandomEngine rng) {
+		double t = toTime-fromTime;
+		if (from<0) return null;
+		if (to<0) {
+			to = sampleFrom(model.transitionMatrix(fromTime, toTime), from, null, rng);
+			if (to<0) return null;
+		}
+		ArrayList<Transition> returnValue = new ArrayList<Transition>();
+		if (mu==0 || t<=0) {
+			return (from==to ? returnValue : null);
+		}
+
+		// Number of jumps
+		double mut = mu*t;
+		int maxJumps = maxJumps(mut);
+		double[][] columns = columns(maxJumps, to);
+		double[] logWeights = new double[maxJumps+1];
+		double maxLogWeight = Double.NEGATIVE_INFINITY;
+		double logPoisson = -mut;
+		double logMut = Math.log(mut);
+		for (int n=0;n<=maxJumps;n++) {
+			if (n>0) logPoisson+=logMut-Math.log(n);
+			logWeights[n]=logPoisson+Math.log(columns[n][from]);
+			maxLogWeight=Math.max(maxLogWeight, logWeights[n]);
+		}
+		if (maxLogWeight==Double.NEGATIVE_INFINITY) return null;
+		double sum = 0;
+		double[] countWeights = new double[maxJumps+1];
+		for (int n=0;n<=maxJumps;n++) {
+			countWeights[n]=Math.exp(logWeights[n]-maxLogWeight);
+			sum+=countWeights[n];
+		}
+		double rnd = rng.nextDouble()*sum;
+		int numJumps = 0;
+		while (numJumps<maxJumps && rnd>=countWeights[numJumps]) {
+			rnd-=countWeights[numJumps];
+			numJumps++;
+		}
+
+		// Jump times
+		double[] times = new double[numJumps];
+		for (int i=0;i<numJumps;i++) {
+			times[i]=fromTime+rng.nextDouble()*t;
+		}
+		Arrays.sort(times);
+
+		// States, virtual jumps (to the same state) are dropped
+		double[] R = powers(1)[1];
+		double[] weights = new double[dimension];
+		int current = from;
+		for (int i=0;i<numJumps;i++) {
+			double[] left = columns[numJumps-i-1];
+			double total = 0;
+			for (int s=0;s<dimension;s++) {
+				weights[s]=R[current*dimension+s]*left[s];
+				total+=weights[s];
+			}
+			int next = sampleFrom(weights, total, rng);
+			if (next<0) return null;
+			if (next!=current) {
+				returnValue.add(new Transition(times[i], next));
+				current=next;
+			}
+		}
+		return returnValue;
+	}
+
+	// Events of a path from state to itself over [fromTime,toTime] with at least one real jump, null if there is none.
+	// With r=R[a,a], n jumps that are all virtual have weight r^n, so
+	//   P(n jumps, some real | a,a) ~ Poisson(n; mu*t) * (R^n[a,a]-r^n)
+	// and while no real jump occurred staying at a with k jumps left has weight r*(R^k[a,a]-r^k).
+	// Complements the no change probability exp(q_aa*t)/P_aa(t) when mapping paths with equal end states.
+	public ArrayList<Transition> sampleWithChange(int state, double fromTime, double toTime, RandomEngine rng) {
+		double t = toTime-fromTime;
+		if (state<0 || mu==0 || t<=0) return null;
+
+		// Number of jumps
+		double mut = mu*t;
+		int maxJumps = maxJumps(mut);
+		double[][] columns = columns(maxJumps, state);
+		double r = columns[1][state];
+		double[] logWeights = new double[maxJumps+1];
+		double maxLogWeight = Double.NEGATIVE_INFINITY;
+		double logPoisson = -mut;
+		double logMut = Math.log(mut);
+		logWeights[0]=Double.NEGATIVE_INFINITY;
+		for (int n=1;n<=maxJumps;n++) {
+			logPoisson+=logMut-Math.log(n);
+			logWeights[n]=logPoisson+Math.log(Math.max(0, columns[n][state]-Math.pow(r, n)));
+			maxLogWeight=Math.max(maxLogWeight, logWeights[n]);
+		}
+		if (maxLogWeight==Double.NEGATIVE_INFINITY) return null;
+		double sum = 0;
+		double[] countWeights = new double[maxJumps+1];
+		for (int n=0;n<=maxJumps;n++) {
+			countWeights[n]=Math.exp(logWeights[n]-maxLogWeight);
+			sum+=countWeights[n];
+		}
+		double rnd = rng.nextDouble()*sum;
+		int numJumps = 0;
+		while (numJumps<maxJumps && rnd>=countWeights[numJumps]) {
+			rnd-=countWeights[numJumps];
+			numJumps++;
+		}
+
+		// Jump times
+		double[] times = new double[numJumps];
+		for (int i=0;i<numJumps;i++) {
+			times[i]=fromTime+rng.nextDouble()*t;
+		}
+		Arrays.sort(times);
+
+		// States
+		ArrayList<Transition> returnValue = new ArrayList<Transition>();
+		double[] R = powers(1)[1];
+		double[] weights = new double[dimension];
+		int current = state;
+		for (int i=0;i<numJumps;i++) {
+			int k = numJumps-i-1;
+			double[] left = columns[k];
+			double total = 0;
+			for (int s=0;s<dimension;s++) {
+				weights[s]=R[current*dimension+s]*left[s];
+				total+=weights[s];
+			}
+			if (returnValue.isEmpty()) {
+				total-=weights[state];
+				weights[state]=r*Math.max(0, left[state]-Math.pow(r, k));
+				total+=weights[state];
+			}
+			int next = sampleFrom(weights, total, rng);
+			if (next<0) return null;
+			if (next!=current) {
+				returnValue.add(new Transition(times[i], next));
+				current=next;
+			}
+		}
+		return (returnValue.isEmpty() ? null : returnValue);
+	}
+
+	// Piecewise constant chain, segment i is [times[i],times[i+1]] with rates of models[i].
+	// States at segment ends are drawn given the end state first, then each segment is sampled by uniformization.
+	public static ArrayList<Transition> samplePiecewise(List<Double> times, List<ConstantRateModel> models, int from, int to, RandomEngine rng) {
+		int numSegments = models.size();
+		if (from<0) return null;
+		if (numSegments==1) {
+			return models.get(0).getUniformizationSampler().sample(from, to, times.get(0), times.get(1), rng);
+		}
+		int dimension = models.get(0).getNumLocations();
+
+		// Transition matrices of segments, and probabilities of the end state from the end of each segment (scaled)
+		DoubleMatrix2D[] P = new DoubleMatrix2D[numSegments];
+		double[][] beta = new double[numSegments][dimension];
+		for (int i=0;i<numSegments;i++) {
+			P[i]=models.get(i).transitionMatrix(times.get(i), times.get(i+1));
+		}
+		for (int s=0;s<dimension;s++) {
+			beta[numSegments-1][s]=(to<0 || s==to ? 1 : 0);
+		}
+		for (int i=numSegments-2;i>=0;i--) {
+			double max = 0;
+			for (int s=0;s<dimension;s++) {
+				double sum = 0;
+				for (int j=0;j<dimension;j++) {
+					sum+=P[i+1].getQuick(s,j)*beta[i+1][j];
+				}
+				beta[i][s]=sum;
+				max=Math.max(max, sum);
+			}
+			if (max==0) return null;
+			for (int s=0;s<dimension;s++) {
+				beta[i][s]/=max;
+			}
+		}
+
+		ArrayList<Transition> returnValue = new ArrayList<Transition>();
+		int current = from;
+		for (int i=0;i<numSegments;i++) {
+			int next = to;
+			if (i<numSegments-1) {
+				next = sampleFrom(P[i], current, beta[i], rng);
+				if (next<0) return null;
+			}
+			ArrayList<Transition> events = models.get(i).getUniformizationSampler().sample(current, next, times.get(i), times.get(i+1), rng);
+			if (events==null) return null;
+			returnValue.addAll(events);
+			current=events.size()>0 ? events.get(events.size()-1).toTrait : current;
+			if (next>=0 && current!=next) return null;
+		}
+		return returnValue;
+	}
+
+	// Row from of P weighted by w (if not null), -1 if all weights are zero
+	private static int sampleFrom(DoubleMatrix2D P, int from, double[] w, RandomEngine rng) {
+		int n = P.columns();
+		double[] weights = new double[n];
+		double total = 0;
+		for (int s=0;s<n;s++) {
+			weights[s]=Math.max(0, P.getQuick(from, s))*(w==null ? 1 : w[s]);
+			total+=weights[s];
+		}
+		return sampleFrom(weights, total, rng);
+	}
+
+	private static int sampleFrom(double[] weights, double total, RandomEngine rng) {
+		if (!(total>0)) return -1;
+		double rnd = rng.nextDouble()*total;
+		int last = -1;
+		for (int s=0;s<weights.length;s++) {
+			if (weights[s]<=0) continue;
+			last = s;
+			if (rnd<weights[s]) return s;
+			rnd-=weights[s];
+		}
+		return last; // rounding
+	}
+
+}
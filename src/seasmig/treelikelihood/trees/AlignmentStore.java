@@ -0,0 +1,55 @@
+package seasmig.treelikelihood.trees;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+
+// Aligned tip sequences packed one byte (4-bit IUPAC code) per site into a single array.
+// Tip sequences are views into the store, so all trees loaded with the same alignment share one copy of the data.
+@SuppressWarnings("serial")
+public class AlignmentStore implements Serializable {
+
+	byte[] codes = new byte[1024];
+	int size = 0;
+
+	// Rows in order of addition
+	LinkedHashMap<String,int[]> rows = new LinkedHashMap<String,int[]>(); // header -> {offset, length}
+
+	public AlignmentStore() {};
+
+	// Adds a sequence, exits on characters that are not IUPAC nucleotide codes
+	public void add(String header, String seqStr) {
+		if (size+seqStr.length()>codes.length) {
+			codes = Arrays.copyOf(codes, Math.max(codes.length*2, size+seqStr.length()));
+		}
+		for (int i=0;i<seqStr.length();i++) {
+			byte code = Sequence.encode(seqStr.charAt(i));
+			if (code==Sequence.NO_CODE) {
+				System.err.println("Error reading sequence #"+Integer.toString(i)+" "+seqStr);
+				System.exit(-1);
+			}
+			codes[size+i]=code;
+		}
+		rows.put(header, new int[]{size, seqStr.length()});
+		size+=seqStr.length();
+	}
+
+	public int getNumSequences() {
+		return rows.size();
+	}
+
+	// Tip sequences backed by this store, by header
+	public HashMap<String,Sequence> getSequences() {
+		if (codes.length>size) {
+			codes = Arrays.copyOf(codes, size);
+		}
+		HashMap<String,Sequence> returnValue = new HashMap<String,Sequence>();
+		for (String header : rows.keySet()) {
+			int[] row = rows.get(header);
+			returnValue.put(header, new Sequence(header, codes, row[0], row[1]));
+		}
+		return returnValue;
+	}
+
+}
@@ -0,0 +1,206 @@
+package seasmig.treelikelihood.trees;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Stack;
+
+// Flat array form of a binary TreeWithLocationsNode tree.
+// Nodes are numbered in preorder (root=0, left subtree before right subtree),
+// so a node graph with the same shape can be mapped onto the same indices with nodes(...).
+// The compiled tree is immutable and shared between a tree and all of its working copies.
+@SuppressWarnings("serial")
+public class CompiledTree implements Serializable {
+
+	// ENCODING FOR A MISSING PARENT OR CHILD
+	public static final int NO_NODE = -1;
+
+	final int numNodes;
+	final int numTips;
+
+	// Topology
+	final int[] parent;
+	final int[] leftChild;
+	final int[] rightChild;
+
+	// Times
+	final double[] nodeTime;
+	final double[] parentTime; // time of parent, branch of node is parentTime->nodeTime (root: its own time)
+
+	// Traversals
+	final int[] postorder;
+	final int[] preorder;
+
+	// Nodes grouped by height (tips are level 0, a parent is one level above its highest child),
+	// nodes of a level depend only on lower levels. Level l is levelOrder[levelStart[l]..levelStart[l+1]) 
+	final int[] levelOrder;
+	final int[] levelStart;
+	final int numLevels;
+
+	// Observed data
+	final int[] loc; // observed location or UNKNOWN_LOCATION
+	final int[] taxonIndex;
+	final Sequence[] tipSeq; // null for internal nodes, private copies so that ASR of tips does not change observed data
+
+	// Compact index of internal nodes (for sequence partials) or NO_NODE for tips
+	final int[] internalIndex;
+	final int numInternal;
+
+	protected CompiledTree() {
+		numNodes=0; numTips=0; numInternal=0;
+		parent=null; leftChild=null; rightChild=null; nodeTime=null; parentTime=null;
+		postorder=null; preorder=null; levelOrder=null; levelStart=null; numLevels=0; loc=null; taxonIndex=null; tipSeq=null; internalIndex=null;
+	};
+
+	public CompiledTree(TreeWithLocationsNode root) {
+		List<TreeWithLocationsNode> nodes = preorderNodes(root);
+		numNodes = nodes.size();
+		parent = new int[numNodes];
+		leftChild = new int[numNodes];
+		rightChild = new int[numNodes];
+		nodeTime = new double[numNodes];
+		parentTime = new double[numNodes];
+		preorder = new int[numNodes];
+		postorder = new int[numNodes];
+		loc = new int[numNodes];
+		taxonIndex = new int[numNodes];
+		tipSeq = new Sequence[numNodes];
+		internalIndex = new int[numNodes];
+
+		IdentityHashMap<TreeWithLocationsNode, Integer> index = new IdentityHashMap<TreeWithLocationsNode, Integer>();
+		for (int i=0;i<numNodes;i++) {
+			index.put(nodes.get(i), i);
+		}
+
+		int tips=0;
+		int internals=0;
+		for (int i=0;i<numNodes;i++) {
+			TreeWithLocationsNode node = nodes.get(i);
+			preorder[i]=i;
+			parent[i] = (i==0 ? NO_NODE : index.get(node.getParent()));
+			leftChild[i] = (node.children.size()>0 ? index.get(node.children.get(0)) : NO_NODE);
+			rightChild[i] = (node.children.size()>1 ? index.get(node.children.get(1)) : NO_NODE);
+			nodeTime[i] = node.time;
+			parentTime[i] = (i==0 ? node.time : node.getParent().time);
+			loc[i] = node.getLoc();
+			taxonIndex[i] = node.taxonIndex;
+			if (node.children.size()==0) {
+				tipSeq[i]=node.seq.copy();
+				internalIndex[i]=NO_NODE;
+				tips++;
+			}
+			else {
+				internalIndex[i]=internals;
+				internals++;
+			}
+		}
+		numTips=tips;
+		numInternal=internals;
+
+		// Children before parents, left subtree before right subtree (same order as postOrderIter)
+		int postIndex=0;
+		Stack<Integer> stack = new Stack<Integer>();
+		int current=0;
+		int lastVisited=NO_NODE;
+		while (!stack.isEmpty() || current!=NO_NODE) {
+			if (current!=NO_NODE) {
+				stack.push(current);
+				current=leftChild[current];
+			}
+			else {
+				int peek = stack.peek();
+				if (rightChild[peek]!=NO_NODE && lastVisited!=rightChild[peek]) {
+					current=rightChild[peek];
+				}
+				else {
+					postorder[postIndex++]=peek;
+					lastVisited=stack.pop();
+				}
+			}
+		}
+
+		// Levels (counting sort of nodes by height)
+		int[] height = new int[numNodes];
+		int maxHeight = 0;
+		for (int i=0;i<numNodes;i++) {
+			int node = postorder[i];
+			if (leftChild[node]!=NO_NODE) 
+				height[node] = Math.max(height[node], height[leftChild[node]]+1);
+			if (rightChild[node]!=NO_NODE) 
+				height[node] = Math.max(height[node], height[rightChild[node]]+1);
+			maxHeight = Math.max(maxHeight, height[node]);
+		}
+		numLevels = maxHeight+1;
+		levelStart = new int[numLevels+1];
+		for (int i=0;i<numNodes;i++) {
+			levelStart[height[i]+1]++;
+		}
+		for (int level=0;level<numLevels;level++) {
+			levelStart[level+1]+=levelStart[level];
+		}
+		levelOrder = new int[numNodes];
+		int[] next = Arrays.copyOf(levelStart, numLevels);
+		for (int i=0;i<numNodes;i++) {
+			levelOrder[next[height[i]]++]=i;
+		}
+	}
+
+	// Nodes of a tree in compiled index order, root must have the same shape as the compiled tree
+	public static TreeWithLocationsNode[] nodes(TreeWithLocationsNode root) {
+		List<TreeWithLocationsNode> nodes = preorderNodes(root);
+		return nodes.toArray(new TreeWithLocationsNode[nodes.size()]);
+	}
+
+	static List<TreeWithLocationsNode> preorderNodes(TreeWithLocationsNode root) {
+		List<TreeWithLocationsNode> returnValue = new ArrayList<TreeWithLocationsNode>();
+		Stack<TreeWithLocationsNode> stack = new Stack<TreeWithLocationsNode>();
+		stack.push(root);
+		while (!stack.isEmpty()) {
+			TreeWithLocationsNode node = stack.pop();
+			if (node.children.size()>2) {
+				System.err.println("compiled tree only supports binary trees, found node with "+node.children.size()+" children");
+				System.exit(-1);
+			}
+			returnValue.add(node);
+			for (int i=node.children.size()-1;i>=0;i--) {
+				stack.push(node.children.get(i));
+			}
+		}
+		return returnValue;
+	}
+
+	public int getNumNodes() {
+		return numNodes;
+	}
+
+	public int getNumTips() {
+		return numTips;
+	}
+
+	public boolean isTip(int node) {
+		return leftChild[node]==NO_NODE;
+	}
+
+	public int getParent(int node) {
+		return parent[node];
+	}
+
+	public double getTime(int node) {
+		return nodeTime[node];
+	}
+
+	public int[] getPostorder() {
+		return postorder;
+	}
+
+	public int[] getPreorder() {
+		return preorder;
+	}
+
+	public int getNumLevels() {
+		return numLevels;
+	}
+
+}
@@ -0,0 +1,150 @@
+package seasmig.treelikelihood.trees;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+// Columnar log of stochastically mapped events of a tree, parallel primitive arrays with one entry per event
+// instead of a Transition object per event and a list per branch (and site).
+// Events are added in any order and grouped by branch (the compiled index of the node at its end) with groupByBranch,
+// which keeps the order in which events of a branch were added. The events of a branch are then [branchStart(node),branchEnd(node)).
+// States are stored as unsigned shorts, so that large location counts fit.
+@SuppressWarnings("serial")
+public class EventLog implements Serializable {
+
+	public static final byte MIGRATION = 0;
+	public static final byte MUTATION = 1;
+	public static final byte TIP_DWELLING = 2; // time since the last migration at the end of a tip branch, from and to are its location
+
+	private static final int initialCapacity = 64;
+
+	private double[] time = new double[initialCapacity];
+	private int[] node = new int[initialCapacity];
+	private int[] site = new int[initialCapacity];
+	private short[] from = new short[initialCapacity];
+	private short[] to = new short[initialCapacity];
+	private byte[] type = new byte[initialCapacity];
+	private int size = 0;
+
+	private int[] branchOffsets = null; // events of node i are [branchOffsets[i],branchOffsets[i+1]), null if not grouped
+
+	public void clear() {
+		size = 0;
+		branchOffsets = null;
+	}
+
+	public void add(double time_, int node_, int site_, int from_, int to_, byte type_) {
+		if (size==time.length) {
+			grow(size+1);
+		}
+		time[size]=time_;
+		node[size]=node_;
+		site[size]=site_;
+		from[size]=(short) from_;
+		to[size]=(short) to_;
+		type[size]=type_;
+		size++;
+		branchOffsets = null;
+	}
+
+	public void addAll(EventLog other) {
+		if (size+other.size>time.length) {
+			grow(size+other.size);
+		}
+		System.arraycopy(other.time, 0, time, size, other.size);
+		System.arraycopy(other.node, 0, node, size, other.size);
+		System.arraycopy(other.site, 0, site, size, other.size);
+		System.arraycopy(other.from, 0, from, size, other.size);
+		System.arraycopy(other.to, 0, to, size, other.size);
+		System.arraycopy(other.type, 0, type, size, other.size);
+		size+=other.size;
+		branchOffsets = null;
+	}
+
+	private void grow(int minCapacity) {
+		int capacity = Math.max(minCapacity, time.length*2);
+		time = Arrays.copyOf(time, capacity);
+		node = Arrays.copyOf(node, capacity);
+		site = Arrays.copyOf(site, capacity);
+		from = Arrays.copyOf(from, capacity);
+		to = Arrays.copyOf(to, capacity);
+		type = Arrays.copyOf(type, capacity);
+	}
+
+	// Stable counting sort of events by node, numNodes is the number of nodes of the compiled tree
+	public void groupByBranch(int numNodes) {
+		int[] offsets = new int[numNodes+1];
+		for (int i=0;i<size;i++) {
+			offsets[node[i]+1]++;
+		}
+		for (int i=0;i<numNodes;i++) {
+			offsets[i+1]+=offsets[i];
+		}
+		int[] next = Arrays.copyOf(offsets, numNodes);
+		int capacity = Math.max(size, initialCapacity);
+		double[] sortedTime = new double[capacity];
+		int[] sortedNode = new int[capacity];
+		int[] sortedSite = new int[capacity];
+		short[] sortedFrom = new short[capacity];
+		short[] sortedTo = new short[capacity];
+		byte[] sortedType = new byte[capacity];
+		for (int i=0;i<size;i++) {
+			int j = next[node[i]]++;
+			sortedTime[j]=time[i];
+			sortedNode[j]=node[i];
+			sortedSite[j]=site[i];
+			sortedFrom[j]=from[i];
+			sortedTo[j]=to[i];
+			sortedType[j]=type[i];
+		}
+		time = sortedTime;
+		node = sortedNode;
+		site = sortedSite;
+		from = sortedFrom;
+		to = sortedTo;
+		type = sortedType;
+		branchOffsets = offsets;
+	}
+
+	public boolean isGrouped() {
+		return branchOffsets!=null;
+	}
+
+	// First event of the branch leading to node, requires groupByBranch
+	public int branchStart(int node_) {
+		return branchOffsets[node_];
+	}
+
+	// One past the last event of the branch leading to node, requires groupByBranch
+	public int branchEnd(int node_) {
+		return branchOffsets[node_+1];
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public double getTime(int i) {
+		return time[i];
+	}
+
+	public int getNode(int i) {
+		return node[i];
+	}
+
+	public int getSite(int i) {
+		return site[i];
+	}
+
+	public int getFrom(int i) {
+		return from[i] & 0xFFFF;
+	}
+
+	public int getTo(int i) {
+		return to[i] & 0xFFFF;
+	}
+
+	public byte getType(int i) {
+		return type[i];
+	}
+
+}
@@ -10,7 +10,7 @@ public class Sequence implements Serializable {
 
 	// HKY85 ORDER NOTATION TCAG
 
-	//	# Log probability of tip encoding of nucleotides (A,G,C,T,R,Y,S,W,K,M,B,D,H,V,N,-)	
+	//	# Log probability of tip encoding of nucleotides (A,G,C,T,R,Y,S,W,K,M,B,D,H,V,N,-)
 	public static final double[] NUC_T = new double[]{0,Double.NEGATIVE_INFINITY,Double.NEGATIVE_INFINITY,Double.NEGATIVE_INFINITY};
 	public static final double[] NUC_C = new double[]{Double.NEGATIVE_INFINITY,0,Double.NEGATIVE_INFINITY,Double.NEGATIVE_INFINITY};
 	public static final double[] NUC_A = new double[]{Double.NEGATIVE_INFINITY,Double.NEGATIVE_INFINITY,0,Double.NEGATIVE_INFINITY};
@@ -29,116 +29,143 @@ public class Sequence implements Serializable {
 	public static final double[] NUC_H = new double[]{Math.log(0.333333333333334),Math.log(0.333333333333333),Math.log(0.333333333333333),Double.NEGATIVE_INFINITY};
 
 	public static final double[] NUC_N = new double[]{Math.log(0.25),Math.log(0.25),Math.log(0.25),Math.log(0.25)};
-	public static final double[] NUC_GAP = new double[]{Math.log(0.25),Math.log(0.25),Math.log(0.25),Math.log(0.25)};
+	public static final double[] NUC_GAP = NUC_N;
 
 	public static final double[] INTERNAL = new double[]{0,0,0,0};
 
-	protected double[][] seq = null;
-	protected String seqStr = null;
+	// 4-BIT IUPAC CODES, ONE BIT PER NUCLEOTIDE IN TCAG ORDER (T=1,C=2,A=4,G=8), 0 FOR AN UNSET INTERNAL SITE
+	public static final byte CODE_INTERNAL = 0;
+	public static final byte CODE_N = 15;
+	public static final byte NO_CODE = -1;
+
+	// Tip partials by code, shared by all sequences
+	private static final double[][] LOG_PARTIALS = new double[][]{INTERNAL,NUC_T,NUC_C,NUC_Y,NUC_A,NUC_W,NUC_M,NUC_H,NUC_G,NUC_K,NUC_S,NUC_B,NUC_R,NUC_D,NUC_V,NUC_N};
+	private static final double[][] PROB_PARTIALS = new double[16][4];
+	static {
+		for (int code=0;code<16;code++) {
+			for (int i=0;i<4;i++) {
+				PROB_PARTIALS[code][i]=Math.exp(LOG_PARTIALS[code][i]);
+			}
+		}
+	}
+
+	// Nucleotide (0-T,1-C,2-A,3-G) by code, UNKNOWN_NUC for ambiguous or unset codes
+	private static final int[] NUCS = new int[]{-1,0,1,-1,2,-1,-1,-1,3,-1,-1,-1,-1,-1,-1,-1};
+
+	protected byte[] codes = null; // allocated on first use for internal nodes
+	protected int offset = 0; // position of first site in codes
+	private boolean shared = false; // codes belong to an alignment store or another sequence, copied before first set
 
 	protected String header = null;
 	private boolean tip;
 	private int seqLength = 0;
-	private boolean emptySeq = true;
 
 	static final int UNKNOWN_NUC = -1;
-	private static final Exception UNIDENTIFIED_NUCLEOTIDE_EXCEPTION = null;
 
 	protected Sequence() {};
 
 	// For constructing tip sequences
-	public Sequence(String header_, String seqStr_) {
+	public Sequence(String header_, String seqStr) {
 		header=header_;
-		seqStr=seqStr_;
 		seqLength=seqStr.length();
-		emptySeq=false;
 		tip=true;
-		seq = new double[seqStr.length()][];
-		for (int i=0;i<seqStr.length();i++) {
-			switch (seqStr.charAt(i)) { 
-			case 'A' : seq[i]=NUC_A; break;
-			case 'G' : seq[i]=NUC_G; break;
-			case 'C' : seq[i]=NUC_C; break;
-			case 'T' : seq[i]=NUC_T; break;
-			case 'R' : seq[i]=NUC_R; break;
-			case 'Y' : seq[i]=NUC_Y; break;
-			case 'S' : seq[i]=NUC_S; break;
-			case 'W' : seq[i]=NUC_W; break;
-			case 'K' : seq[i]=NUC_K; break;
-			case 'M' : seq[i]=NUC_M; break;
-			case 'B' : seq[i]=NUC_B; break;
-			case 'D' : seq[i]=NUC_D; break;
-			case 'H' : seq[i]=NUC_H; break;
-			case 'V' : seq[i]=NUC_V; break;
-			case 'N' : seq[i]=NUC_N; break;
-			case '-' : seq[i]=NUC_GAP; break;
-			default: 
+		codes = new byte[seqLength];
+		for (int i=0;i<seqLength;i++) {
+			codes[i]=encode(seqStr.charAt(i));
+			if (codes[i]==NO_CODE) {
 				System.err.println("Error reading sequence #"+Integer.toString(i)+" "+seqStr);
 				System.exit(-1);
 			}
 		}
 	}
 
+	// For tip sequences backed by an alignment store
+	Sequence(String header_, byte[] codes_, int offset_, int length) {
+		header=header_;
+		seqLength=length;
+		tip=true;
+		codes=codes_;
+		offset=offset_;
+		shared=true;
+	}
+
 	// For constructing internal node sequences
 	public Sequence(int length) {
-		emptySeq = true;
 		seqLength=length;
 		tip=false;
-		seq=null;
+		codes=null;
 	}
-	
-	private void fillSeq() {
-		emptySeq=false;
-		seq = new double[seqLength][];	
-		for (int i=0;i<seqLength;i++) {
-			seq[i]=INTERNAL; 				
+
+	public static byte encode(char nuc) {
+		switch (nuc) {
+		case 'T' : return 1;
+		case 'C' : return 2;
+		case 'A' : return 4;
+		case 'G' : return 8;
+		case 'Y' : return 3;
+		case 'W' : return 5;
+		case 'M' : return 6;
+		case 'H' : return 7;
+		case 'K' : return 9;
+		case 'S' : return 10;
+		case 'B' : return 11;
+		case 'R' : return 12;
+		case 'D' : return 13;
+		case 'V' : return 14;
+		case 'N' : return CODE_N;
+		case '-' : return CODE_N;
 		}
+		return NO_CODE;
+	}
+
+	public byte getCode(int pos) {
+		if (codes==null) return CODE_INTERNAL;
+		return codes[offset+pos];
 	}
 
 	public double[] get(int pos) {
-		if (seq==null) fillSeq();
-		return seq[pos];
-	}	
+		return LOG_PARTIALS[getCode(pos)];
+	}
+
+	public double[] getProbs(int pos) {
+		return PROB_PARTIALS[getCode(pos)];
+	}
 
 	public Sequence set(int pos, int value) {
-		if (seq==null) fillSeq();		
-		switch (value) {
-		case 0: seq[pos]=NUC_T; return this;
-		case 1: seq[pos]=NUC_C; return this;
-		case 2: seq[pos]=NUC_A; return this;
-		case 3: seq[pos]=NUC_G; return this;		
+		if (value<0 || value>3) {
+			System.err.println("failed to set nucleotide at position: "+pos+" with value (0-T,1-C,2-A,3-G): "+value);
+			return null;
+		}
+		if (codes==null) {
+			codes = new byte[seqLength];
+		}
+		else if (shared) {
+			byte[] ownCodes = new byte[seqLength];
+			System.arraycopy(codes, offset, ownCodes, 0, seqLength);
+			codes = ownCodes;
+			offset = 0;
+			shared = false;
 		}
-		System.err.println("failed to set nucleotide at position: "+pos+" with value (0-T,1-C,2-A,3-G): "+value);
-		return null;
-	}
-
-	public int getNuc(int pos) throws Exception{
-		if (seq==null) fillSeq();
-		if (pos>=seq.length) return UNKNOWN_NUC;
-		if (Arrays.equals(seq[pos],NUC_T)) return 0;
-		if (Arrays.equals(seq[pos],NUC_C)) return 1;
-		if (Arrays.equals(seq[pos],NUC_A)) return 2;
-		if (Arrays.equals(seq[pos],NUC_G)) return 3;
-		System.err.printf("(%f,%f,%f,%f) ",seq[pos][0],seq[pos][1],seq[pos][2],seq[pos][3]);
-		System.err.println("unidentified nucleotide at position: "+pos+" for sequence with header "+header+" seqLen="+this.length()+"\n"+toString());		
-		throw UNIDENTIFIED_NUCLEOTIDE_EXCEPTION;		
-	}	
+		codes[offset+pos]=(byte) (1<<value);
+		return this;
+	}
+
+	// Nucleotide at pos (0-T,1-C,2-A,3-G) or UNKNOWN_NUC for ambiguous, unset or out of range sites
+	public int getNuc(int pos) {
+		if (pos>=seqLength) return UNKNOWN_NUC;
+		return NUCS[getCode(pos)];
+	}
 
 	public String getHeader() {
 		return header;
-	}	
+	}
 
 	public String toString() {
-		if (seq==null) fillSeq();
-		String returnValue = "";
+		StringBuilder returnValue = new StringBuilder(seqLength);
 		for (int i=0;i<seqLength;i++) {
-			if (Arrays.equals(seq[i],NUC_T)) returnValue+="T"; 
-			else if (Arrays.equals(seq[i],NUC_C)) returnValue+="C";
-			else if (Arrays.equals(seq[i],NUC_A)) returnValue+="A";
-			else if (Arrays.equals(seq[i],NUC_G)) returnValue+="G";
-			else returnValue+="?";
+			returnValue.append(toChar(getNuc(i)));
 		}
-		return returnValue;
+		return returnValue.toString();
 	}
 
 	public int length() {
@@ -155,38 +182,26 @@ public class Sequence implements Serializable {
 		return '?';
 	}
 
+	// Copies share codes until one of them is set
 	public Sequence copy() {
-		Sequence returnValue = new Sequence(0);		
+		Sequence returnValue = new Sequence(0);
 		returnValue.header = header;
-		returnValue.seqStr = seqStr;
-		returnValue.emptySeq = emptySeq;
 		returnValue.seqLength = seqLength;
 		returnValue.tip = tip;
-		returnValue.seq = seq;
-		if (seq==null) return returnValue;
-		if (seq.length<1) return returnValue;
-		if (emptySeq) return returnValue;
-		if (!tip) {
-			returnValue.seq = new double[seq.length][seq[0].length];
-			for (int i=0;i<seq.length;i++) {
-				if (seq[0]!=null) {
-					for (int j=0;j<seq[0].length;j++) {
-						returnValue.seq[i][j]=seq[i][j];
-					}
-				}
-			}
+		returnValue.codes = codes;
+		returnValue.offset = offset;
+		if (codes!=null) {
+			shared = true;
+			returnValue.shared = true;
 		}
 		return returnValue;
 	}
 
-	public static int getNuc(double[] nuc) throws Exception {
-		if (Arrays.equals(nuc,NUC_T)) return 0;
-		if (Arrays.equals(nuc,NUC_C)) return 1;
-		if (Arrays.equals(nuc,NUC_A)) return 2;
-		if (Arrays.equals(nuc,NUC_G)) return 3;
-		System.err.printf("(%f,%f,%f,%f) ",nuc[0],nuc[1],nuc[2],nuc[3]);
-		System.err.println("unidentified nucleotide!\n");		
-		throw UNIDENTIFIED_NUCLEOTIDE_EXCEPTION;	
+	public static int getNuc(double[] nuc) {
+		for (int code=1;code<16;code<<=1) {
+			if (Arrays.equals(nuc,LOG_PARTIALS[code])) return NUCS[code];
+		}
+		return UNKNOWN_NUC;
 	}
 
 	public boolean isTip() {
@@ -212,7 +212,7 @@ public class SimpleAttributeLoader implements AttributeLoader{
 		DataInputStream seqDIStream = new DataInputStream(seqFIStream);
 		BufferedReader seqReader = new BufferedReader(new InputStreamReader(seqDIStream));
 
-		HashMap<String,Sequence> seqMap = new HashMap<String,Sequence>();
+		AlignmentStore alignment = new AlignmentStore();
 		
 		String strLine;
 		//Read File Line By Line
@@ -229,7 +229,7 @@ public class SimpleAttributeLoader implements AttributeLoader{
 				if (seq.length()>0) {
 					seq.replaceAll("\n", "");
 					seq.replaceAll("\r", "");
-					seqMap.put(taxa, new Sequence(taxa,seq));
+					alignment.add(taxa,seq);
 					
 					// COUNT ACTG FREQ
 					String tempA=seq; String tempC=seq; String tempG=seq; String tempT=seq;
@@ -276,7 +276,7 @@ public class SimpleAttributeLoader implements AttributeLoader{
 		if (seq.length()>0) {
 			seq.replaceAll("\n", "");
 			seq.replaceAll("\r", "");
-			seqMap.put(taxa, new Sequence(taxa,seq));
+			alignment.add(taxa,seq);
 			
 			// COUNT ACTG FREQ
 			String tempA=seq; String tempC=seq; String tempG=seq; String tempT=seq;
@@ -314,6 +314,8 @@ public class SimpleAttributeLoader implements AttributeLoader{
 		
 		seqReader.close();
 
+		// Tip sequences of all trees are views into the same store
+		HashMap<String,Sequence> seqMap = alignment.getSequences();
 		attributes.put("alignments",seqMap);
 		if (!seqMap.isEmpty()) {
 			attributes.put("seqLength",((Sequence) seqMap.values().toArray()[0]).length());
@@ -0,0 +1,124 @@
+package seasmig.treelikelihood.trees;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+
+// Unique alignment columns (site patterns) for each codon position, with the number of loci sharing each pattern.
+// Sequence partials are computed once per pattern, per site output maps loci back to their pattern.
+@SuppressWarnings("serial")
+public class SitePatterns implements Serializable {
+
+	// ENCODING FOR LOCI PAST THE END OF THE SEQUENCE
+	public static final int NO_PATTERN = -1;
+
+	int seqLength;
+	int numLoci;
+	int maxNumPatterns;
+
+	int[][] patternLoci; // [codon position][pattern] representative loci of pattern
+	int[][] patternWeights; // [codon position][pattern] number of loci with pattern
+	int[][] lociPatterns; // [codon position][loci] pattern of loci or NO_PATTERN
+
+	protected SitePatterns() {};
+
+	// No compression, each loci is its own pattern
+	public SitePatterns(int seqLength) {
+		this.seqLength=seqLength;
+		numLoci = (seqLength-1)/3+1;
+		patternLoci = new int[3][];
+		patternWeights = new int[3][];
+		lociPatterns = new int[3][numLoci];
+		for (int codonPos=0;codonPos<3;codonPos++) {
+			int numPatterns = 0;
+			for (int loc=0;loc<numLoci;loc++) {
+				if ((loc*3+codonPos) >= seqLength)
+					lociPatterns[codonPos][loc]=NO_PATTERN;
+				else
+					lociPatterns[codonPos][loc]=numPatterns++;
+			}
+			patternLoci[codonPos] = new int[numPatterns];
+			patternWeights[codonPos] = new int[numPatterns];
+			for (int i=0;i<numPatterns;i++) {
+				patternLoci[codonPos][i]=i;
+				patternWeights[codonPos][i]=1;
+			}
+			maxNumPatterns = Math.max(maxNumPatterns, numPatterns);
+		}
+	}
+
+	// Compress alignment columns of seqs, separately for each codon position
+	public SitePatterns(Collection<Sequence> seqs, int seqLength) {
+		this.seqLength=seqLength;
+		numLoci = (seqLength-1)/3+1;
+		patternLoci = new int[3][];
+		patternWeights = new int[3][];
+		lociPatterns = new int[3][numLoci];
+		for (int codonPos=0;codonPos<3;codonPos++) {
+			HashMap<String,Integer> patterns = new HashMap<String,Integer>();
+			List<Integer> loci = new ArrayList<Integer>();
+			List<Integer> weights = new ArrayList<Integer>();
+			for (int loc=0;loc<numLoci;loc++) {
+				int site = loc*3+codonPos;
+				if (site >= seqLength) {
+					lociPatterns[codonPos][loc]=NO_PATTERN;
+					continue;
+				}
+				StringBuilder column = new StringBuilder(seqs.size());
+				for (Sequence seq : seqs) {
+					if (seq.isTip() && site<seq.length())
+						column.append((char) seq.getCode(site));
+					else
+						column.append('?');
+				}
+				Integer pattern = patterns.get(column.toString());
+				if (pattern==null) {
+					pattern = loci.size();
+					patterns.put(column.toString(), pattern);
+					loci.add(loc);
+					weights.add(0);
+				}
+				weights.set(pattern, weights.get(pattern)+1);
+				lociPatterns[codonPos][loc]=pattern;
+			}
+			patternLoci[codonPos] = new int[loci.size()];
+			patternWeights[codonPos] = new int[loci.size()];
+			for (int i=0;i<loci.size();i++) {
+				patternLoci[codonPos][i]=loci.get(i);
+				patternWeights[codonPos][i]=weights.get(i);
+			}
+			maxNumPatterns = Math.max(maxNumPatterns, loci.size());
+		}
+	}
+
+	public int getNumPatterns(int codonPos) {
+		return patternLoci[codonPos].length;
+	}
+
+	public int getNumPatterns() {
+		return patternLoci[0].length+patternLoci[1].length+patternLoci[2].length;
+	}
+
+	public int getMaxNumPatterns() {
+		return maxNumPatterns;
+	}
+
+	public int getPatternLoci(int codonPos, int pattern) {
+		return patternLoci[codonPos][pattern];
+	}
+
+	public int getPatternWeight(int codonPos, int pattern) {
+		return patternWeights[codonPos][pattern];
+	}
+
+	public int getPattern(int codonPos, int loc) {
+		return lociPatterns[codonPos][loc];
+	}
+
+	public int getSeqLength() {
+		return seqLength;
+	}
+
+}
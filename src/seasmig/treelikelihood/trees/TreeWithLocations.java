@@ -1,23 +1,34 @@
 package seasmig.treelikelihood.trees;
 
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Stack;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinTask;
 
 import jebl.evolution.taxa.Taxon;
 import jebl.evolution.trees.SimpleRootedTree;
+import mc3kit.output.StreamedText;
 import seasmig.migrationmain.Config;
 import seasmig.migrationmain.Config.MigrationModelType;
 import seasmig.migrationmain.Config.SeqModelType;
+import seasmig.treelikelihood.ConstantRateModel;
 import seasmig.treelikelihood.LikelihoodTree;
+import seasmig.treelikelihood.MatrixExponentialAction;
 import seasmig.treelikelihood.TransitionModel;
 import seasmig.treelikelihood.TransitionModel.Transition;
+import seasmig.treelikelihood.transitionmodels.ConstantTransitionBaseModel;
+import seasmig.treelikelihood.transitionmodels.MarkovJumpExpectation;
 import seasmig.treelikelihood.trees.TreeWithLocationsNode.NodeType;
 import seasmig.util.AltTreeOutput;
-import seasmig.util.Util;
+import seasmig.util.Parallel;
+import seasmig.util.SplittableRng;
 import cern.colt.matrix.DoubleMatrix1D;
 import cern.colt.matrix.DoubleMatrix2D;
 
@@ -40,7 +51,11 @@ public class TreeWithLocations implements LikelihoodTree {
 	public static final double minNegative = Double.NEGATIVE_INFINITY;
 
 	// Tree & Models
-	TreeWithLocationsNode root = null;		
+	TreeWithLocationsNode root = null; // for working copies built from source only when needed for output		
+	TreeWithLocations source = null; // loaded tree this working copy was made from
+	CompiledTree compiled = null; // shared between copies 
+	SitePatterns sitePatterns = null; // shared between copies
+	TreeWithLocationsNode[] nodes = null; // this tree's nodes in compiled index order
 	private TransitionModel migrationModel = null;
 	private TransitionModel[] codonModel = new TransitionModel[3]; // CP1, CP2, CP3
 
@@ -68,11 +83,47 @@ public class TreeWithLocations implements LikelihoodTree {
 	private double seqLogLike;
 	private double locationLogLike;
 
+	// conditional likelihoods, flat arrays indexed by compiled node index 
+	private double[] logProbsLOC = null; // [node][location]
+	private double[] logProbsCP = null; // [internal node][codon position][loci][nucleotide]
+	
+	// probability space conditional likelihoods for Config.PartialsMode.SCALED
+	private double[] probsLOC = null; // [node][location] 
+	private double[] logScaleLOC = null; // [node] log scale factors accumulated over subtree
+	private double[] probsCP = null; // [internal node][codon position][loci][nucleotide]
+	private double[] logScaleCP = null; // [internal node][codon position][loci] log scale factors accumulated over subtree
+
+	// branch matrix tables, P and log P of the branch leading to each node, filled once per model (see fillLocMatrices/fillSeqMatrices)
+	private double[] locMatrices = null; // [node][P,log P][from location][to location]
+	private double[] seqMatrices = null; // [node][codon position][P,log P][from nucleotide][to nucleotide]
+	private TransitionModel locMatricesModel = null; // model and tree the tables were filled for
+	private CompiledTree locMatricesTree = null;
+	private TransitionModel[] seqMatricesModel = null;
+	private CompiledTree seqMatricesTree = null;
+
 	// FOR OUTPUT
 	private boolean stochasticallyMapped = false;
 	private boolean asrDone =false;
 	private boolean asrSeqDone =false;
 	private boolean sortingDone = false;
+	private SplittableRng rng = null; // random stream of ASR and stochastic mapping, see setRng
+	private EventLog migrationLog = null; // mapped migrations grouped by branch, see stochasticMapping 
+	private EventLog mutationLog = null; // mapped mutations grouped by branch, in codon position, locus and time order, see stochsticMappingSeq
+	private EventLog pooledMigrationLog = null; // migrations of all realizations grouped by branch, see smRealizations
+	private EventLog pooledTipDwellings = null; // tip dwellings of all realizations, see smRealizations
+	private boolean seqStochasticallyMapped = false;
+
+	// Outside (preorder) pass, marginal posteriors and expected migrations, see outsideLOC, outsideCP and expectations
+	private double[] logAboveLOC = null; // [node][location] log probability of the data outside the subtree of node given the location at the start of its branch
+	private double[] logOutsideLOC = null; // [node][location] log probability of the data outside the subtree of node jointly with its location
+	private double[] logPosteriorLOC = null; // [node][location] log marginal posterior of the location of node given all data
+	private double[] logOutsideCP = null; // [node][codon position][site pattern][nucleotide] as logOutsideLOC for sequences
+	private double[] expectedJumps = null; // [node][from location][to location] expected migrations on the branch leading to node
+	private double[] expectedDwellings = null; // [node][location] expected time spent at each location on the branch leading to node
+	private boolean outsideDone = false;
+	private boolean nodeProbsDone = false; // logProbsLOC of the nodes filled from logPosteriorLOC, see marginalPosteriors
+	private boolean outsideSeqDone = false;
+	private boolean expectationsDone = false;
 
 	static final Comparator<TreeWithLocationsNode> descendantOrder = new Comparator<TreeWithLocationsNode>() {
 		public int compare(TreeWithLocationsNode v1, TreeWithLocationsNode v2) {
@@ -167,7 +218,7 @@ public class TreeWithLocations implements LikelihoodTree {
 				double p=0;
 				for (int location=0;location<numLocations;location++) {
 					p=p+Math.exp(migrationModel.logprobability(root.getLoc(), location, root.time, child.time));
-					if (cern.jet.random.Uniform.staticNextDouble()<=p) {
+					if (getRng().nextDouble()<=p) {
 						child.setLoc(location);
 						break;
 					}
@@ -185,7 +236,7 @@ public class TreeWithLocations implements LikelihoodTree {
 
 	// Load a tree from a basic jebl tree
 	// locations are loaded from a hashmap	
-	public TreeWithLocations(jebl.evolution.trees.SimpleRootedTree tree,HashMap<String,Integer> taxaIndices_, HashMap<String, Integer> locationMap, int num_locations_, double lastTipTime, HashMap<String, Sequence> seqMap_, int seqLength_, Config config, TransitionModel migrationModel, TransitionModel[] codonModel) {
+	public TreeWithLocations(jebl.evolution.trees.SimpleRootedTree tree,HashMap<String,Integer> taxaIndices_, HashMap<String, Integer> locationMap, int num_locations_, double lastTipTime, HashMap<String, Sequence> seqMap_, int seqLength_, SitePatterns sitePatterns_, Config config, TransitionModel migrationModel, TransitionModel[] codonModel) {
 		if (migrationModel!=null) this.migrationModel = migrationModel;
 		if (codonModel!=null) this.codonModel=codonModel;
 		this.config = config;
@@ -193,6 +244,7 @@ public class TreeWithLocations implements LikelihoodTree {
 		numLocations=num_locations_;
 		seqMap=seqMap_;
 		seqLength=seqLength_;
+		sitePatterns=sitePatterns_;
 		ZERO_LOG_PROBS = new double[numLocations];
 		for (int i=0;i<numLocations;i++){
 			ZERO_LOG_PROBS[i]=Double.NEGATIVE_INFINITY;
@@ -227,6 +279,7 @@ public class TreeWithLocations implements LikelihoodTree {
 
 		makeSubTree(tree,locationMap,root,tree.getRootNode());
 		recalibrateTimes(root, lastTipTime);		
+		compile();
 	}
 
 	private void recalibrateTimes(TreeWithLocationsNode root, double lastTipTime) {		
@@ -252,111 +305,523 @@ public class TreeWithLocations implements LikelihoodTree {
 		}
 	}
 
-	public double locLogLikelihood() {
-		for (TreeWithLocationsNode node : root) { // Postorder 
+	// Builds the flat array form of the tree, done once, copies share it
+	public void compile() {
+		if (compiled==null) {
+			compiled = new CompiledTree(root);
+			nodes = CompiledTree.nodes(root);
+		}
+		if (sitePatterns==null) {
+			sitePatterns = new SitePatterns(seqLength);
+		}
+	}
 
-			if (node.getLoc()==TreeWithLocations.UNKNOWN_LOCATION) {
-				node.logProbsLOC =new double[numLocations]; // Internal node initialization
+	public void setSitePatterns(SitePatterns sitePatterns) {
+		this.sitePatterns = sitePatterns;
+	}
+
+	private int numLoci() {
+		return (seqLength-1)/3+1;
+	}
+
+	// offset of the conditional likelihoods of an internal node, codon position and site pattern in logProbsCP
+	private int cpOffset(int node, int codonPos, int pattern) {
+		return ((compiled.internalIndex[node]*3+codonPos)*sitePatterns.maxNumPatterns+pattern)*4;
+	}
+
+	// offset of the log scale factor of an internal node, codon position and site pattern in logScaleCP
+	private int scaleOffset(int node, int codonPos, int pattern) {
+		return (compiled.internalIndex[node]*3+codonPos)*sitePatterns.maxNumPatterns+pattern;
+	}
+
+	private boolean scaledPartials() {
+		return config!=null && config.partialsMode==Config.PartialsMode.SCALED;
+	}
+
+	// log conditional likelihood of location at node given its subtree
+	private double logProbLOC(int node, int loc) {
+		if (scaledPartials()) 
+			return Math.log(probsLOC[node*numLocations+loc])+logScaleLOC[node];
+		else
+			return logProbsLOC[node*numLocations+loc];
+	}
+
+	// log conditional likelihood of nucleotide at node and loci given its subtree
+	private double logProbCP(int node, int codonPos, int loc, int nuc) {
+		if (compiled.isTip(node)) 
+			return compiled.tipSeq[node].get(loc*3+codonPos)[nuc];
+		int pattern = sitePatterns.getPattern(codonPos, loc);
+		if (scaledPartials())
+			return Math.log(probsCP[cpOffset(node,codonPos,pattern)+nuc])+logScaleCP[scaleOffset(node,codonPos,pattern)];
+		else
+			return logProbsCP[cpOffset(node,codonPos,pattern)+nuc];
+	}
+
+	// offset of the transition matrix of the branch leading to node in locMatrices, log P is at +numLocations^2
+	private int locMatrixOffset(int node) {
+		return node*2*numLocations*numLocations;
+	}
+
+	// offset of the codon position transition matrix of the branch leading to node in seqMatrices, log P is at +16
+	private int seqMatrixOffset(int node, int codonPos) {
+		return (node*3+codonPos)*32;
+	}
+
+	// Fills locMatrices for the current migration model with one batch call per range of branches, only for a new model
+	private void fillLocMatrices() {
+		if (locMatrices!=null && locMatricesModel==migrationModel && locMatricesTree==compiled) return;
+		final int size = numLocations*numLocations;
+		if (locMatrices==null || locMatrices.length!=compiled.numNodes*2*size) {
+			locMatrices = new double[compiled.numNodes*2*size];
+		}
+		fillBranchMatrices(new Parallel.RangeTask() {
+			@Override
+			public void run(int from, int to) {
+				from = Math.max(from, 1); // root (no branch)
+				if (from>=to) return;
+				migrationModel.transitionMatrices(compiled.parentTime, compiled.nodeTime, from, to, locMatrices, 0, 2*size);
+				for (int node=from;node<to;node++) {
+					int offset = locMatrixOffset(node);
+					for (int i=0;i<size;i++) {
+						locMatrices[offset+size+i]=Math.log(locMatrices[offset+i]);
+					}
+				}
 			}
-			else {
-				node.logProbsLOC= ZERO_LOG_PROBS.clone();
-				node.logProbsLOC[node.getLoc()]=0; // Tip node
-			}
-
-			if (node.children.size()!=0) { // this is an internal node		
-				for (TreeWithLocationsNode child : node.children ) {
-					// for now caching is done inside likelihood model...
-					DoubleMatrix2D p;						
-					//					// TODO: check if clause (here for numerics issues) 
-					p = migrationModel.transitionMatrix(node.time, child.time);
-
-					for (int from = 0; from < numLocations; from++) {
-						double[] alphas = new double[numLocations];						
-						for (int to = 0; to < numLocations; to++) { // Integrate over all possible locations
-							alphas[to]=(Math.log(p.get(from,to)) + child.logProbsLOC[to]);							
-						}						
-						node.logProbsLOC[from] += logSumExp(alphas); // Probability of internal node state based on children 
-					}								
+		});
+		locMatricesModel=migrationModel;
+		locMatricesTree=compiled;
+	}
+
+	// Fills seqMatrices for the current codon model with one batch call per range of branches, only for a new model
+	private void fillSeqMatrices() {
+		if (seqMatrices!=null && seqMatricesModel==codonModel && seqMatricesTree==compiled) return;
+		if (seqMatrices==null || seqMatrices.length!=compiled.numNodes*3*32) {
+			seqMatrices = new double[compiled.numNodes*3*32];
+		}
+		fillBranchMatrices(new Parallel.RangeTask() {
+			@Override
+			public void run(int from, int to) {
+				from = Math.max(from, 1); // root (no branch)
+				if (from>=to) return;
+				for (int codonPos = 0; codonPos <3 ; codonPos++) {
+					codonModel[codonPos].transitionMatrices(compiled.parentTime, compiled.nodeTime, from, to, seqMatrices, seqMatrixOffset(0,codonPos), 3*32);
+				}
+				for (int node=from;node<to;node++) {
+					for (int codonPos = 0; codonPos <3 ; codonPos++) {
+						int offset = seqMatrixOffset(node,codonPos);
+						for (int i=0;i<16;i++) {
+							seqMatrices[offset+16+i]=Math.log(seqMatrices[offset+i]);
+						}
+					}
 				}
+			}
+		});
+		seqMatricesModel=codonModel;
+		seqMatricesTree=compiled;
+	}
+
+	private void fillBranchMatrices(Parallel.RangeTask fill) {
+		if (parallelPruning()) 
+			Parallel.forRange(config.numThreads, compiled.numNodes, config.parallelPruningGrainSize, fill);
+		else 
+			fill.run(0, compiled.numNodes);
+	}
+
+	// For many locations branch matrices are replaced by the action of exp(Q*t) on partials (see ExpmvMatrixExp), 
+	// null if locMatrices are used
+	private MatrixExponentialAction locAction() {
+		if (config==null || numLocations<config.expmvMinLocations) return null;
+		if (!(migrationModel instanceof ConstantTransitionBaseModel)) return null;
+		return ((ConstantTransitionBaseModel) migrationModel).getMatrixExponentialAction();
+	}
+
+	// length of the branch leading to node
+	private double branchLength(int node) {
+		return compiled.nodeTime[node]-compiled.parentTime[node];
+	}
 
+	// Computes partials of a node from the partials of its children, for sequence partials 
+	// only of codon position codonPos and site patterns [patternFrom,patternTo)
+	private interface PartialsKernel {
+		void compute(int node, int codonPos, int patternFrom, int patternTo, double[] alphas);
+	}
+
+	// Large trees are pruned level by level on the fork join pool (see prune) 
+	private boolean parallelPruning() {
+		return config!=null && config.numThreads>1 && compiled.numNodes>=config.parallelPruningMinNodes;
+	}
+
+	// Runs kernel over all nodes (internal nodes only for sequence partials), children before parents.
+	// For large trees nodes of the same height are computed concurrently, one level after the other, 
+	// for sequence partials each node is further split into blocks of site patterns.
+	private void prune(final PartialsKernel kernel, boolean sequence, final int alphasLength) {
+		if (!parallelPruning()) {
+			double[] alphas = new double[alphasLength];
+			for (int i=0;i<compiled.numNodes;i++) { // Postorder 
+				int node = compiled.postorder[i];
+				if (!sequence) {
+					kernel.compute(node, 0, 0, 0, alphas);
+				}
+				else if (!compiled.isTip(node)) {
+					for (int codonPos = 0; codonPos <3 ; codonPos++) {
+						kernel.compute(node, codonPos, 0, sitePatterns.getNumPatterns(codonPos), alphas);
+					}
+				}
+			}
+			return;
+		}
+
+		// Blocks of each node
+		int numBlocks = 1;
+		final int[] blockCodonPos; 
+		final int[] blockFrom;
+		final int[] blockTo;
+		if (sequence) {
+			int blockSize = Math.max(1, config.parallelPruningSiteBlock);
+			numBlocks = 0;
+			for (int codonPos = 0; codonPos <3 ; codonPos++) {
+				numBlocks+=(sitePatterns.getNumPatterns(codonPos)+blockSize-1)/blockSize;
 			}
+			blockCodonPos = new int[numBlocks];
+			blockFrom = new int[numBlocks];
+			blockTo = new int[numBlocks];
+			int block = 0;
+			for (int codonPos = 0; codonPos <3 ; codonPos++) {
+				for (int pattern=0;pattern<sitePatterns.getNumPatterns(codonPos);pattern+=blockSize) {
+					blockCodonPos[block]=codonPos;
+					blockFrom[block]=pattern;
+					blockTo[block]=Math.min(pattern+blockSize, sitePatterns.getNumPatterns(codonPos));
+					block++;
+				}
+			}
+		}
+		else {
+			blockCodonPos = new int[]{0};
+			blockFrom = new int[]{0};
+			blockTo = new int[]{0};
+		}
+		final int blocksPerNode = numBlocks;
+		int grainSize = (sequence ? 1 : Math.max(1, config.parallelPruningGrainSize));
+
+		for (int level=(sequence ? 1 : 0);level<compiled.numLevels;level++) { // Level 0 are the tips 
+			final int levelStart = compiled.levelStart[level];
+			int numItems = (compiled.levelStart[level+1]-levelStart)*blocksPerNode;
+			Parallel.forRange(config.numThreads, numItems, grainSize, new Parallel.RangeTask() {
+				@Override
+				public void run(int from, int to) {
+					double[] alphas = new double[alphasLength];
+					for (int item=from;item<to;item++) {
+						int node = compiled.levelOrder[levelStart+item/blocksPerNode];
+						int block = item%blocksPerNode;
+						kernel.compute(node, blockCodonPos[block], blockFrom[block], blockTo[block], alphas);
+					}
+				}
+			});
 		}
+	}
+
+	public double locLogLikelihood() {
+		compile();
+		if (scaledPartials()) return scaledLocLogLikelihood();
+		if (logProbsLOC==null || logProbsLOC.length!=compiled.numNodes*numLocations) {
+			logProbsLOC = new double[compiled.numNodes*numLocations];
+		}
+		final MatrixExponentialAction action = locAction();
+		if (action==null) 
+			fillLocMatrices();
+
+		prune(new PartialsKernel() {
+			@Override
+			public void compute(int node, int codonPos, int patternFrom, int patternTo, double[] alphas) {
+				locPartials(node, alphas, action);
+			}
+		}, false, (action==null ? numLocations : 2*numLocations)); // logSumExp sums all of alphas
 
 		// Calculate root base frequency contribution... 
-		DoubleMatrix1D rootFreq = migrationModel.rootfreq(root.time);
-		double[] alphas = new double[numLocations];	
+		double[] alphas = new double[numLocations];
+		DoubleMatrix1D rootFreq = migrationModel.rootfreq(compiled.nodeTime[0]);
 		for (int i = 0; i < numLocations; i++) {
-			alphas[i]=root.logProbsLOC[i] + Math.log(rootFreq.get(i));
+			alphas[i]=logProbsLOC[i] + Math.log(rootFreq.get(i));
 		}	
 		locationLogLike = logSumExp(alphas);
 		return locationLogLike;		
 	}
 
-	public double seqLogLikelihood() {
-		seqLogLike=0;
-		if (seqLength>0) {
-			for (TreeWithLocationsNode node : root) { // Postorder
+	private void locPartials(int node, double[] alphas, MatrixExponentialAction action) {
+		int offset = node*numLocations;
 
-				if (node.children.size()!=0) { // this is an internal node		
-					if (node.logProbsCP==null) {
-						node.logProbsCP = new double[3][(seqLength-1)/3+1][4];
-					}					
+		if (compiled.loc[node]==TreeWithLocations.UNKNOWN_LOCATION) {
+			Arrays.fill(logProbsLOC, offset, offset+numLocations, 0); // Internal node initialization
+		}
+		else {
+			Arrays.fill(logProbsLOC, offset, offset+numLocations, Double.NEGATIVE_INFINITY);
+			logProbsLOC[offset+compiled.loc[node]]=0; // Tip node
+		}
+
+		for (int c=0;c<2;c++) { 
+			int child = (c==0 ? compiled.leftChild[node] : compiled.rightChild[node]);
+			if (child==CompiledTree.NO_NODE) continue; 
+			int logPOffset = locMatrixOffset(child)+numLocations*numLocations;
+			int childOffset = child*numLocations;
+
+			if (action!=null) {
+				// child partials shifted by their max into probability space, propagated by exp(Q*t) 
+				double max = Double.NEGATIVE_INFINITY;
+				for (int to = 0; to < numLocations; to++) {
+					max = Math.max(max, logProbsLOC[childOffset+to]);
 				}
-				else { // this is a tip
-					node.logProbsCP = new double[3][(seqLength-1)/3+1][];
-					for (int codonPos = 0; codonPos<3 ; codonPos++) {
-						for (int loc=0;loc<(seqLength-1)/3+1;loc++) {
-							if ((loc*3+codonPos) >= seqLength) continue;					
-							node.logProbsCP[codonPos][loc]=node.seq.get(loc*3+codonPos);
-						}
-					}		
+				for (int to = 0; to < numLocations; to++) {
+					alphas[to] = (max==Double.NEGATIVE_INFINITY ? 0 : Math.exp(logProbsLOC[childOffset+to]-max));
+				}
+				action.expmv(branchLength(child), alphas, 0, alphas, numLocations);
+				for (int from = 0; from < numLocations; from++) {
+					logProbsLOC[offset+from] += Math.log(Math.max(alphas[numLocations+from], 0))+max;
 				}
+				continue;
+			}
 
-				if (node.children.size()!=0) { // this is an internal node			
-					for (TreeWithLocationsNode child : node.children ) {					
-						for (int codonPos = 0; codonPos <3 ; codonPos++) {
-							DoubleMatrix2D p = null;						
-							// TODO: Util.minValue here for numerics issues, check this... 
-							p = codonModel[codonPos].transitionMatrix(node.time, child.time);
-
-							for (int loc=0;loc<((seqLength-1)/3+1);loc++) {
-								for (int from = 0; from < 4; from++) {													
-									if ((loc*3+codonPos) >= seqLength) continue;							
-									double[] alphas = new double[4];						
-									for (int to = 0; to < 4; to++) { // Integrate over all possible nucleotides												
-										alphas[to]=(Math.log(p.get(from,to)) + child.logProbsCP[codonPos][loc][to]);										
-									}									
-									node.logProbsCP[codonPos][loc][from] += logSumExp(alphas);
-								}
-							}
-						}								
-					}
+			for (int from = 0; from < numLocations; from++) {
+				for (int to = 0; to < numLocations; to++) { // Integrate over all possible locations
+					alphas[to]=(locMatrices[logPOffset+from*numLocations+to] + logProbsLOC[childOffset+to]);							
+				}						
+				logProbsLOC[offset+from] += logSumExp(alphas); // Probability of internal node state based on children 
+			}								
+		}
+	}
+
+	// Probability space version of locLogLikelihood(), partials are matrix-vector products 
+	// rescaled at each internal node by their maximum, the log of which is kept in logScaleLOC
+	private double scaledLocLogLikelihood() {
+		if (probsLOC==null || probsLOC.length!=compiled.numNodes*numLocations) {
+			probsLOC = new double[compiled.numNodes*numLocations];
+			logScaleLOC = new double[compiled.numNodes];
+		}
+		final MatrixExponentialAction action = locAction();
+		if (action==null) 
+			fillLocMatrices();
+
+		prune(new PartialsKernel() {
+			@Override
+			public void compute(int node, int codonPos, int patternFrom, int patternTo, double[] alphas) {
+				scaledLocPartials(node, alphas, action);
+			}
+		}, false, (action==null ? 0 : numLocations));
+
+		// Calculate root base frequency contribution... 
+		DoubleMatrix1D rootFreq = migrationModel.rootfreq(compiled.nodeTime[0]);
+		double sum = 0;
+		for (int i = 0; i < numLocations; i++) {
+			sum+=probsLOC[i]*rootFreq.get(i);
+		}	
+		locationLogLike = Math.log(sum)+logScaleLOC[0];
+		return locationLogLike;		
+	}
+
+	private void scaledLocPartials(int node, double[] alphas, MatrixExponentialAction action) {
+		int offset = node*numLocations;
+		logScaleLOC[node]=0;
+
+		if (compiled.loc[node]==TreeWithLocations.UNKNOWN_LOCATION) {
+			Arrays.fill(probsLOC, offset, offset+numLocations, 1); // Internal node initialization
+		}
+		else {
+			Arrays.fill(probsLOC, offset, offset+numLocations, 0);
+			probsLOC[offset+compiled.loc[node]]=1; // Tip node
+		}
+		if (compiled.isTip(node)) return;
+
+		for (int c=0;c<2;c++) { 
+			int child = (c==0 ? compiled.leftChild[node] : compiled.rightChild[node]);
+			if (child==CompiledTree.NO_NODE) continue; 
+			int pOffset = locMatrixOffset(child);
+			int childOffset = child*numLocations;
+
+			if (action!=null) {
+				action.expmv(branchLength(child), probsLOC, childOffset, alphas, 0);
+				for (int from = 0; from < numLocations; from++) {
+					probsLOC[offset+from]*=Math.max(alphas[from], 0);
 				}
-			}		
+				logScaleLOC[node]+=logScaleLOC[child];
+				continue;
+			}
+
+			for (int from = 0; from < numLocations; from++) {
+				double sum = 0;
+				for (int to = 0; to < numLocations; to++) { // Integrate over all possible locations
+					sum+=locMatrices[pOffset+from*numLocations+to]*probsLOC[childOffset+to];
+				}
+				probsLOC[offset+from]*=sum;
+			}
+			logScaleLOC[node]+=logScaleLOC[child];
+		}
+
+		// Rescale 
+		double max = 0;
+		for (int j=0;j<numLocations;j++) {
+			if (probsLOC[offset+j]>max) max=probsLOC[offset+j];
+		}
+		if (max>0) {
+			for (int j=0;j<numLocations;j++) {
+				probsLOC[offset+j]/=max;
+			}
+			logScaleLOC[node]+=Math.log(max);
+		}
+	}
+
+	public double seqLogLikelihood() {
+		seqLogLike=0;
+		if (seqLength>0) {
+			compile();
+			if (scaledPartials()) return scaledSeqLogLikelihood();
+			int maxNumPatterns = sitePatterns.getMaxNumPatterns();
+			if (logProbsCP==null || logProbsCP.length!=compiled.numInternal*3*maxNumPatterns*4) {
+				logProbsCP = new double[compiled.numInternal*3*maxNumPatterns*4];
+			}
+			fillSeqMatrices();
+
+			prune(new PartialsKernel() {
+				@Override
+				public void compute(int node, int codonPos, int patternFrom, int patternTo, double[] alphas) {
+					seqPartials(node, codonPos, patternFrom, patternTo, alphas);
+				}
+			}, true, 4);
 
 			// Add root frequency		
+			double[] alphas = new double[4];
 			DoubleMatrix1D pi[] = new DoubleMatrix1D[3];
 
 			for (int i=0;i<3;i++) {
-				pi[i]=codonModel[i].rootfreq(root.time);
+				pi[i]=codonModel[i].rootfreq(compiled.nodeTime[0]);
 			}
 
-
 			for (int codonPos = 0; codonPos <3 ; codonPos++) {
-				for (int loc=0;loc<((seqLength-1)/3+1);loc++) {				
-					if ((loc*3+codonPos) >= seqLength) continue;			
-					double[] alphas = new double[4];	
+				for (int pattern=0;pattern<sitePatterns.getNumPatterns(codonPos);pattern++) {				
 					for (int i = 0; i < 4; i++) {
-						alphas[i]=root.logProbsCP[codonPos][loc][i] + Math.log(pi[codonPos].get(i));
+						alphas[i]=logProbCP(0,codonPos,sitePatterns.getPatternLoci(codonPos,pattern),i) + Math.log(pi[codonPos].get(i));
 					}					
-					seqLogLike += logSumExp(alphas);
+					seqLogLike += sitePatterns.getPatternWeight(codonPos,pattern)*logSumExp(alphas);
 				}			
 			}			
 		}
 		return seqLogLike;		
 	}
 
+	private void seqPartials(int node, int codonPos, int patternFrom, int patternTo, double[] alphas) {
+		Arrays.fill(logProbsCP, cpOffset(node,codonPos,patternFrom), cpOffset(node,codonPos,patternTo), 0); // Internal node initialization
+
+		for (int c=0;c<2;c++) { 
+			int child = (c==0 ? compiled.leftChild[node] : compiled.rightChild[node]);
+			if (child==CompiledTree.NO_NODE) continue;
+			boolean childIsTip = compiled.isTip(child);
+			int logPOffset = seqMatrixOffset(child,codonPos)+16;
+
+			for (int pattern=patternFrom;pattern<patternTo;pattern++) {
+				double[] childProbs;
+				int childOffset;
+				if (childIsTip) {
+					childProbs = compiled.tipSeq[child].get(sitePatterns.getPatternLoci(codonPos,pattern)*3+codonPos);
+					childOffset = 0;
+				}
+				else {
+					childProbs = logProbsCP;
+					childOffset = cpOffset(child,codonPos,pattern);
+				}
+				int nodeOffset = cpOffset(node,codonPos,pattern);
+				for (int from = 0; from < 4; from++) {													
+					for (int to = 0; to < 4; to++) { // Integrate over all possible nucleotides												
+						alphas[to]=(seqMatrices[logPOffset+from*4+to] + childProbs[childOffset+to]);										
+					}									
+					logProbsCP[nodeOffset+from] += logSumExp(alphas);
+				}
+			}
+		}
+	}
+
+	// Probability space version of seqLogLikelihood(), partials are matrix-vector products 
+	// rescaled at each internal node, codon position and site pattern by their maximum, the log of which is kept in logScaleCP
+	private double scaledSeqLogLikelihood() {
+		int maxNumPatterns = sitePatterns.getMaxNumPatterns();
+		if (probsCP==null || probsCP.length!=compiled.numInternal*3*maxNumPatterns*4) {
+			probsCP = new double[compiled.numInternal*3*maxNumPatterns*4];
+			logScaleCP = new double[compiled.numInternal*3*maxNumPatterns];
+		}
+		fillSeqMatrices();
+
+		prune(new PartialsKernel() {
+			@Override
+			public void compute(int node, int codonPos, int patternFrom, int patternTo, double[] alphas) {
+				scaledSeqPartials(node, codonPos, patternFrom, patternTo);
+			}
+		}, true, 0);
+
+		// Add root frequency		
+		DoubleMatrix1D pi[] = new DoubleMatrix1D[3];
+
+		for (int i=0;i<3;i++) {
+			pi[i]=codonModel[i].rootfreq(compiled.nodeTime[0]);
+		}
+
+		for (int codonPos = 0; codonPos <3 ; codonPos++) {
+			for (int pattern=0;pattern<sitePatterns.getNumPatterns(codonPos);pattern++) {				
+				int rootOffset = cpOffset(0,codonPos,pattern);
+				double sum = 0;
+				for (int i = 0; i < 4; i++) {
+					sum+=probsCP[rootOffset+i]*pi[codonPos].get(i);
+				}					
+				seqLogLike += sitePatterns.getPatternWeight(codonPos,pattern)*(Math.log(sum)+logScaleCP[scaleOffset(0,codonPos,pattern)]);
+			}			
+		}			
+		return seqLogLike;		
+	}
+
+	private void scaledSeqPartials(int node, int codonPos, int patternFrom, int patternTo) {
+		Arrays.fill(probsCP, cpOffset(node,codonPos,patternFrom), cpOffset(node,codonPos,patternTo), 1); // Internal node initialization
+		Arrays.fill(logScaleCP, scaleOffset(node,codonPos,patternFrom), scaleOffset(node,codonPos,patternTo), 0);
+
+		for (int c=0;c<2;c++) { 
+			int child = (c==0 ? compiled.leftChild[node] : compiled.rightChild[node]);
+			if (child==CompiledTree.NO_NODE) continue;
+			boolean childIsTip = compiled.isTip(child);
+			int pOffset = seqMatrixOffset(child,codonPos);
+
+			for (int pattern=patternFrom;pattern<patternTo;pattern++) {
+				double[] childProbs;
+				int childOffset;
+				if (childIsTip) {
+					childProbs = compiled.tipSeq[child].getProbs(sitePatterns.getPatternLoci(codonPos,pattern)*3+codonPos);
+					childOffset = 0;
+				}
+				else {
+					childProbs = probsCP;
+					childOffset = cpOffset(child,codonPos,pattern);
+					logScaleCP[scaleOffset(node,codonPos,pattern)]+=logScaleCP[scaleOffset(child,codonPos,pattern)];
+				}
+				int nodeOffset = cpOffset(node,codonPos,pattern);
+				for (int from = 0; from < 4; from++) {		
+					double sum = 0;
+					for (int to = 0; to < 4; to++) { // Integrate over all possible nucleotides												
+						sum+=seqMatrices[pOffset+from*4+to]*childProbs[childOffset+to];
+					}									
+					probsCP[nodeOffset+from]*=sum;
+				}
+			}
+		}
+
+		// Rescale
+		for (int pattern=patternFrom;pattern<patternTo;pattern++) {
+			int nodeOffset = cpOffset(node,codonPos,pattern);
+			double max = Math.max(Math.max(probsCP[nodeOffset],probsCP[nodeOffset+1]),Math.max(probsCP[nodeOffset+2],probsCP[nodeOffset+3]));
+			if (max>0) {
+				for (int j=0;j<4;j++) {
+					probsCP[nodeOffset+j]/=max;
+				}
+				logScaleCP[scaleOffset(node,codonPos,pattern)]+=Math.log(max);
+			}
+		}
+	}
+
 	public Iterable<TreeWithLocationsNode> eachPreorder() {
+		materialize();
 		ArrayList<TreeWithLocationsNode> returnValue = new ArrayList<TreeWithLocationsNode>();
 		if(root==null) return returnValue;
 		TreeWithLocationsNode current = root;
@@ -380,11 +845,27 @@ public class TreeWithLocations implements LikelihoodTree {
 	public double logLikelihood() {
 		if (logLike==null) {			
 			logLike=new Double(0);
-			if (config.migrationModelType!=MigrationModelType.CONSTANT_AS_INPUT) {
+			boolean loc = (config.migrationModelType!=MigrationModelType.CONSTANT_AS_INPUT);
+			boolean seq = (config.seqModelType!=SeqModelType.HKY_3CP_AS_INPUT);
+			if (loc && seq && config.numThreads>1) {
+				// location and sequence pruning share only the (immutable) compiled tree
+				compile();
+				ForkJoinTask<Double> seqTask = Parallel.fork(config.numThreads, new Callable<Double>() {
+					@Override
+					public Double call() {
+						return seqLogLikelihood();
+					}
+				});
 				logLike+=locLogLikelihood();
+				logLike+=seqTask.join();
 			}
-			if (config.seqModelType!=SeqModelType.HKY_3CP_AS_INPUT) {
-				logLike+=seqLogLikelihood();
+			else {
+				if (loc) {
+					logLike+=locLogLikelihood();
+				}
+				if (seq) {
+					logLike+=seqLogLikelihood();
+				}
 			}
 		}
 		return logLike;
@@ -392,7 +873,25 @@ public class TreeWithLocations implements LikelihoodTree {
 
 	@Override
 	public LikelihoodTree copy() {
-		TreeWithLocations copyTree = new TreeWithLocations();
+		return copy(null);
+	}
+
+	// Working copy sharing the compiled tree, the state (partials) of reuse is recycled if it is a 
+	// working copy that is no longer needed, so that no memory proportional to tree size is allocated
+	// the node tree is only built if output requires it   
+	@Override
+	public LikelihoodTree copy(LikelihoodTree reuse) {
+		compile();
+		TreeWithLocations copyTree;
+		if (reuse instanceof TreeWithLocations && reuse!=this && ((TreeWithLocations) reuse).source!=null)
+			copyTree = (TreeWithLocations) reuse;
+		else 
+			copyTree = new TreeWithLocations();
+		copyTree.source=(this.source!=null ? this.source : this);
+		copyTree.root=null;
+		copyTree.nodes=null;
+		copyTree.compiled=this.compiled;
+		copyTree.sitePatterns=this.sitePatterns;
 		copyTree.migrationModel=this.migrationModel;
 		copyTree.codonModel=this.codonModel;
 		copyTree.numIdentifiedLocations=this.numIdentifiedLocations;
@@ -401,21 +900,45 @@ public class TreeWithLocations implements LikelihoodTree {
 		copyTree.numLocations=this.numLocations;		
 		copyTree.ZERO_LOG_PROBS=this.ZERO_LOG_PROBS;
 		copyTree.logLike=null;
-		if (config.seqModelType==SeqModelType.NONE)
-			copyTree.root = new TreeWithLocationsNode(root.seq, root.getLoc(),root.taxonIndex,root.time,null,false);
-		else
-			copyTree.root = new TreeWithLocationsNode(root.seq, root.getLoc(),root.taxonIndex,root.time,null,true);
+		copyTree.locationLogLike=0;
+		copyTree.seqLogLike=0;
 		copyTree.taxaIndices = taxaIndices;
 		copyTree.config=config;
 		copyTree.stochasticallyMapped=false;
 		copyTree.asrDone=false;
 		copyTree.asrSeqDone=false;
 		copyTree.sortingDone=false;
-		copyTree(this.root, copyTree.root);  
+		copyTree.rng=null;
+		copyTree.migrationLog=null;
+		copyTree.mutationLog=null;
+		copyTree.pooledMigrationLog=null;
+		copyTree.pooledTipDwellings=null;
+		copyTree.seqStochasticallyMapped=false;
+		copyTree.outsideDone=false;
+		copyTree.nodeProbsDone=false;
+		copyTree.outsideSeqDone=false;
+		copyTree.expectationsDone=false;
 		return copyTree;			
 	}
 
-	private void copyTree(TreeWithLocationsNode from, TreeWithLocationsNode to) {
+	// Builds the node tree of a working copy from its source tree
+	private void materialize() {
+		if (root!=null) return;
+		TreeWithLocationsNode sourceRoot = source.root;
+		if (config.seqModelType==SeqModelType.NONE)
+			root = new TreeWithLocationsNode(sourceRoot.seq, sourceRoot.getLoc(),sourceRoot.taxonIndex,sourceRoot.time,null,false);
+		else
+			root = new TreeWithLocationsNode(sourceRoot.seq, sourceRoot.getLoc(),sourceRoot.taxonIndex,sourceRoot.time,null,true);
+		IdentityHashMap<TreeWithLocationsNode, TreeWithLocationsNode> copies = new IdentityHashMap<TreeWithLocationsNode, TreeWithLocationsNode>();
+		copies.put(sourceRoot, root);
+		copyTree(sourceRoot, root, copies);  
+		nodes = new TreeWithLocationsNode[source.nodes.length];
+		for (int i=0;i<nodes.length;i++) {
+			nodes[i]=copies.get(source.nodes[i]);
+		}
+	}
+
+	private void copyTree(TreeWithLocationsNode from, TreeWithLocationsNode to, IdentityHashMap<TreeWithLocationsNode, TreeWithLocationsNode> copies) {
 		for (TreeWithLocationsNode child : from.children) {
 			TreeWithLocationsNode newChild = null;
 			if (config.seqModelType==SeqModelType.NONE)
@@ -423,14 +946,20 @@ public class TreeWithLocations implements LikelihoodTree {
 			else
 				newChild = new TreeWithLocationsNode(child.seq, child.getLoc(),child.taxonIndex,child.time, to,true);
 			to.children.add(newChild);			
-			copyTree(child, newChild);
+			copies.put(child, newChild);
+			copyTree(child, newChild, copies);
 		}		
 	}
 
 	@Override
 	public void clearInternalNodes() {
+		if (root==null) return;
+		migrationLog=null;
+		mutationLog=null;
+		seqStochasticallyMapped=false;
+		pooledMigrationLog=null;
+		pooledTipDwellings=null;
 		for (TreeWithLocationsNode node : root) {
-			node.mutations=null;
 			node.migrations=null;
 			if (node.children!=null) {
 				if (node.children.size()>0) {
@@ -510,12 +1039,12 @@ public class TreeWithLocations implements LikelihoodTree {
 		if (nNodes>1) {
 			for (int child=0;child<2;child++) {
 				// Decide on branch length
-				double to_time = root.time+cern.jet.random.Gamma.staticNextDouble(testBranchLengthMean*testBranchLengthMean/testBranchLengthVariance,1.0/(testBranchLengthVariance/testBranchLengthMean));
+				double to_time = root.time+new cern.jet.random.Gamma(testBranchLengthMean*testBranchLengthMean/testBranchLengthVariance,1.0/(testBranchLengthVariance/testBranchLengthMean),getRng()).nextDouble();
 				double p=0;		
 
 				for (int location=0;location<numLocations;location++) {
 					p=p+Math.exp(m.logprobability(root.getLoc(), location, root.time, to_time));
-					if (cern.jet.random.Uniform.staticNextDouble()<=p) {
+					if (getRng().nextDouble()<=p) {
 						if (config.seqModelType==SeqModelType.NONE)
 							root.children.add(new TreeWithLocationsNode(new Sequence(seqLength), location,TreeWithLocations.UNKNOWN_LOCATION,to_time,root,false));
 						else
@@ -544,6 +1073,18 @@ public class TreeWithLocations implements LikelihoodTree {
 
 	@Override 
 	public void setMigrationModel(Object likelihoodModel_) {
+		if (migrationModel!=likelihoodModel_) {
+			// location partials and reconstructions are no longer valid
+			locationLogLike=0;
+			logLike=null;
+			asrDone=false;
+			stochasticallyMapped=false;
+			pooledMigrationLog=null;
+			pooledTipDwellings=null;
+			outsideDone=false;
+			nodeProbsDone=false;
+			expectationsDone=false;
+		}
 		migrationModel = (TransitionModel) likelihoodModel_;
 	}
 
@@ -552,34 +1093,58 @@ public class TreeWithLocations implements LikelihoodTree {
 		if (seqLogLike==0) seqLogLikelihood();		
 	}
 
-	public String newickProbs() {		
-		fillConditionalLikelihoods();
-		return newickProbs(root,migrationModel.rootfreq(root.time).toArray());
+	// Location partials only, location reconstructions don't need the sequence partials
+	private void fillLocConditionalLikelihoods() {
+		if (locationLogLike==0) locLogLikelihood();
 	}
 
-	private String newickProbs(TreeWithLocationsNode treePart, double[] rootFreq) {				
-		String returnValue = new String();
+	// Marginal posterior of the location of each node (see outsideLOC), kept on the nodes for output
+	@Override
+	public void marginalPosteriors() {
+		materialize();
+		if (nodeProbsDone) return;
+		outsideLOC();
+		for (int i=0;i<compiled.numNodes;i++) {
+			nodes[i].logProbsLOC=Arrays.copyOfRange(logPosteriorLOC, i*numLocations, (i+1)*numLocations);
+		}
+		nodeProbsDone=true;
+	}
 
+	@Override
+	public void newickProbs(Appendable out) throws IOException {		
+		marginalPosteriors();
+		newickProbs(root, out);
+	}
+
+	public String newickProbs() {
+		return new StreamedText() {
+			@Override
+			public void writeTo(Appendable out) throws IOException {
+				newickProbs(out);
+			}
+		}.toString();
+	}
+
+	private void newickProbs(TreeWithLocationsNode treePart, Appendable out) throws IOException {				
 		if (treePart.isTip()) {
 			String branchLength = String.format("%.3f", treePart.time-treePart.getParent().time);
-			returnValue+=(Integer.toString(treePart.getTaxonIndex())+treePart.parseProbs(rootFreq)+":"+branchLength);
+			out.append(Integer.toString(treePart.getTaxonIndex())+treePart.parseProbs()+":"+branchLength);
 		}
 		else if (treePart.children.size()>0) {
-			returnValue+="(";
-			returnValue+=newickProbs(treePart.children.get(0),rootFreq);
+			out.append("(");
+			newickProbs(treePart.children.get(0), out);
 			for (int i = 1; i < treePart.children.size(); i++){
-				returnValue+=",";
-				returnValue+=newickProbs(treePart.children.get(i),rootFreq);	
+				out.append(",");
+				newickProbs(treePart.children.get(i), out);	
 			}
-			returnValue+=")";
+			out.append(")");
 			double parentTime=0;
 			if (treePart.getParent()!=null) {
 				parentTime=treePart.getParent().time;
 			}
 			String branchLength = String.format("%.3f", treePart.time-parentTime);
-			returnValue+=treePart.parseProbs(rootFreq)+":"+branchLength;
+			out.append(treePart.parseProbs()+":"+branchLength);
 		}		
-		return returnValue;
 	}
 
 	public final double logSumExp(double[] alphas) {
@@ -606,104 +1171,218 @@ public class TreeWithLocations implements LikelihoodTree {
 	}
 
 	@Override
-	public String newickSM(int maxBranchRetries) {
-		fillConditionalLikelihoods();
-		sortChildrenByDescendants();
-		asr(); // Ancestral state reconstruction
+	public void newickSM(int maxBranchRetries, Appendable out) throws IOException {
 		stochasticMapping(maxBranchRetries);
-
-		return newickSM(root);
+		newickSM(root, out);
 	}
 
-	private String newickSM(TreeWithLocationsNode treePart) {		
-		String returnValue = new String();
+	public String newickSM(final int maxBranchRetries) {
+		return new StreamedText() {
+			@Override
+			public void writeTo(Appendable out) throws IOException {
+				newickSM(maxBranchRetries, out);
+			}
+		}.toString();
+	}
 
+	private void newickSM(TreeWithLocationsNode treePart, Appendable out) throws IOException {		
 		if (treePart.isTip()) {
 			String branchLength = String.format("%.3f", treePart.time-treePart.getParent().time);
-			returnValue+=(Integer.toString(treePart.getTaxonIndex())+ "[&states="+Integer.toString(treePart.getLoc())+"]:"+treePart.parseMap()+branchLength);
+			out.append(Integer.toString(treePart.getTaxonIndex())+ "[&states="+Integer.toString(treePart.getLoc())+"]:"+treePart.parseMap()+branchLength);
 		}
 		else {
-			returnValue+="(";
-			returnValue+=newickSM(treePart.children.get(0));
+			out.append("(");
+			newickSM(treePart.children.get(0), out);
 			for (int i = 1; i < treePart.children.size(); i++){
-				returnValue+=",";
-				returnValue+=newickSM(treePart.children.get(i));	
+				out.append(",");
+				newickSM(treePart.children.get(i), out);	
 			}
-			returnValue+=")";
+			out.append(")");
 			double parentTime=0;
 			if (treePart.getParent()!=null) {
 				parentTime=treePart.getParent().time;
 			}
 			String branchLength = String.format("%.3f", treePart.time-parentTime);
-			returnValue+="[&states="+Integer.toString(treePart.getLoc())+"]:"+treePart.parseMap()+branchLength;
+			out.append("[&states="+Integer.toString(treePart.getLoc())+"]:"+treePart.parseMap()+branchLength);
 		}		
-		return returnValue;
 	}
 
-	private void stochasticMapping(int maxBranchRetries) {
+	// Ancestral state reconstruction followed by stochastic mapping of migrations, 
+	// kept until the next copy so that output methods only format it
+	@Override
+	public void stochasticMapping(final int maxBranchRetries) {
+		materialize();
 		// TODO: test
 		// TODO: cite		
 		//System.err.println(" Q="+migrationModel.parse());		
 		if (stochasticallyMapped) return;		
-		fillConditionalLikelihoods();
-		for (TreeWithLocationsNode node : eachPreorder()) { 
-			if (node.getParent()==null) continue;
-			node.migrations=new ArrayList<Transition>();
-			int currentLoc = node.getParent().getLoc();
-			double currentTime = node.getParent().time;
-			boolean doneWithBranch = false;
-			boolean failedMapping = false;
-			Transition event = null;
-			int repeats = 0;
-			do {
-				repeats+=1;
-				event = migrationModel.nextEvent(currentTime, currentLoc);				
-				if (event.time < node.time) {				
-					node.migrations.add(event);					
-					currentLoc = event.toTrait;
-					currentTime = event.time;
-				}
-				else {
-					if (currentLoc!=node.getLoc()) {
-						// If there is a mismatch between stochastic mapping and child ASR than we 
-						// restart the entire branch
-						node.migrations.clear();
-						currentLoc = node.getParent().getLoc();
-						currentTime = node.getParent().time;
-					} else {						
-						doneWithBranch = true;								
+		fillLocConditionalLikelihoods();
+		sortChildrenByDescendants();
+		asr(); // Ancestral state reconstruction
+		final int numBranches = compiled.numNodes-1;
+		final String[] failures = new String[numBranches]; // per branch, reported in preorder once all branches are done
+		if (config==null || !config.parallelStochasticMapping) {
+			SplittableRng rng = getRng();
+			Transition event = new Transition(0, 0); // reused by rejection sampling, copied when kept
+			for (int i=1;i<compiled.numNodes;i++) { // Preorder, skipping root 
+				failures[i-1]=mapBranch(nodes[compiled.preorder[i]], maxBranchRetries, rng, event);
+			}
+		}
+		else {
+			// Branches (given the ASR) are independent, blocks of consecutive preorder branches each get their own 
+			// stream split from the tree's stream in block order, so the mapping does not depend on scheduling or numThreads
+			final int blockSize = Math.max(1, config.parallelMappingBlockSize);
+			int numBlocks = (numBranches+blockSize-1)/blockSize;
+			final SplittableRng[] blockRngs = new SplittableRng[numBlocks];
+			for (int b=0;b<numBlocks;b++) {
+				blockRngs[b]=getRng().split();
+			}
+			Parallel.forRange(config.numThreads, numBlocks, 1, new Parallel.RangeTask() {				
+				@Override
+				public void run(int from, int to) {
+					Transition event = new Transition(0, 0);
+					for (int b=from;b<to;b++) {
+						for (int i=b*blockSize;i<Math.min(numBranches, (b+1)*blockSize);i++) {
+							failures[i]=mapBranch(nodes[compiled.preorder[i+1]], maxBranchRetries, blockRngs[b], event);
+						}
 					}
 				}
-				if (repeats>maxBranchRetries) {
-					// TODO: 
-					System.err.println("Failed to stochasticaly map branch locations after "+Integer.toString(maxBranchRetries)+" iterations\nReasons include: 1. Low retry limit. 2. Unconverged matrices 3. Long branch 4. Aggresive rounding of tip time, consider adding jitter to tip times.\n{("+Integer.toString(node.getParent().taxonIndex)+","+Double.toString(node.getParent().time)+","+Double.toString(node.getParent().getLoc())+"),("+Integer.toString(node.taxonIndex)+","+Double.toString(node.time)+","+Double.toString(node.getLoc())+")}");					
-					failedMapping=true;
+			});
+		}
+		for (int i=0;i<numBranches;i++) {
+			if (failures[i]!=null) 
+				System.err.println(failures[i]);
+		}
+		if (migrationLog==null) 
+			migrationLog = new EventLog();
+		else 
+			migrationLog.clear();
+		for (int i=1;i<compiled.numNodes;i++) { // Preorder, skipping root 
+			int node = compiled.preorder[i];
+			int fromLocation = nodes[node].getParent().getLoc();
+			for (Transition migration : nodes[node].migrations) {
+				migrationLog.add(migration.time, node, 0, fromLocation, migration.toTrait, EventLog.MIGRATION);
+				fromLocation = migration.toTrait;
+			}
+		}
+		migrationLog.groupByBranch(compiled.numNodes);
+		stochasticallyMapped=true;
+	}
+
+	// Draws numRealizations independent reconstructions and mappings from the same conditional likelihoods and
+	// branch matrices, smTransitions and smTipDwellings then summarize all of them, other outputs the last one 
+	@Override
+	public void smRealizations(int numRealizations, int maxBranchRetries) {
+		materialize();
+		fillLocConditionalLikelihoods();
+		sortChildrenByDescendants();
+		EventLog pooledLog = new EventLog();
+		EventLog pooledDwellings = new EventLog();
+		for (int r=0;r<numRealizations;r++) {
+			asrDone=false;
+			stochasticallyMapped=false;
+			asr();
+			stochasticMapping(maxBranchRetries);
+			pooledLog.addAll(migrationLog);
+			addTipDwellings(pooledDwellings);
+		}
+		pooledLog.groupByBranch(compiled.numNodes);
+		pooledMigrationLog=pooledLog;
+		pooledTipDwellings=pooledDwellings;
+	}
+
+	// Maps migrations along the branch leading to node into node.migrations, returns a failure message or null
+	private String mapBranch(TreeWithLocationsNode node, int maxBranchRetries, SplittableRng rng, Transition event) {
+		String returnValue = null;
+		node.migrations=new ArrayList<Transition>();
+		int currentLoc = node.getParent().getLoc();
+		double currentTime = node.getParent().time;
+		boolean doneWithBranch = false;
+		boolean failedMapping = false;
+		int repeats = 0;
+		if (useUniformization()) {
+			ArrayList<Transition> events = migrationModel.endpointConditionedEvents(currentLoc, node.getLoc(), currentTime, node.time, rng);
+			if (events!=null) {
+				node.migrations=events;
+				doneWithBranch=true;
+			}
+		}
+		while (!doneWithBranch && !failedMapping) { // rejection sampling
+			repeats+=1;
+			migrationModel.nextEvent(currentTime, currentLoc, event, rng);				
+			if (event.time < node.time) {				
+				node.migrations.add(new Transition(event.time, event.toTrait));					
+				currentLoc = event.toTrait;
+				currentTime = event.time;
+			}
+			else {
+				if (node.getLoc()>=0 && currentLoc!=node.getLoc()) { // unknown child location accepts any end location
+					// If there is a mismatch between stochastic mapping and child ASR than we 
+					// restart the entire branch
 					node.migrations.clear();
+					currentLoc = node.getParent().getLoc();
+					currentTime = node.getParent().time;
+				} else {						
+					doneWithBranch = true;								
 				}
-			} while (!doneWithBranch && !failedMapping);
+			}
+			if (repeats>maxBranchRetries) {
+				// TODO: 
+				returnValue = "Failed to stochasticaly map branch locations after "+Integer.toString(maxBranchRetries)+" iterations\nReasons include: 1. Low retry limit. 2. Unconverged matrices 3. Long branch 4. Aggresive rounding of tip time, consider adding jitter to tip times.\n{("+Integer.toString(node.getParent().taxonIndex)+","+Double.toString(node.getParent().time)+","+Double.toString(node.getParent().getLoc())+"),("+Integer.toString(node.taxonIndex)+","+Double.toString(node.time)+","+Double.toString(node.getLoc())+")}";					
+				failedMapping=true;
+				node.migrations.clear();
+			}
+		}
 
-			// TODO: organize this
-			if (node.migrations!=null) {
-				if (node.migrations.size()>0) {
-					if (node.migrations.get(node.migrations.size()-1).toTrait!=node.getLoc()) {
-						System.err.println("failed branch location stochastic mapping (last migration)!");
-						System.exit(-1);						
-					}
-					if (node.migrations.get(0).toTrait==node.getParent().getLoc()) {
-						System.err.println("failed branch location stochastic mapping (first migration)!");
-						System.exit(-1);						
-					}
+		// TODO: organize this
+		if (node.migrations!=null) {
+			if (node.migrations.size()>0) {
+				if (node.getLoc()>=0 && node.migrations.get(node.migrations.size()-1).toTrait!=node.getLoc()) {
+					System.err.println("failed branch location stochastic mapping (last migration)!");
+					System.exit(-1);						
 				}
-			}			
-		}			
-		stochasticallyMapped=true;
+				if (node.migrations.get(0).toTrait==node.getParent().getLoc()) {
+					System.err.println("failed branch location stochastic mapping (first migration)!");
+					System.exit(-1);						
+				}
+			}
+		}
+		return returnValue;
+	}
+
+	// Compiled index of each node, for reading the event logs in traversals of the node tree
+	private IdentityHashMap<TreeWithLocationsNode, Integer> nodeIndices() {
+		IdentityHashMap<TreeWithLocationsNode, Integer> returnValue = new IdentityHashMap<TreeWithLocationsNode, Integer>();
+		for (int i=0;i<nodes.length;i++) {
+			returnValue.put(nodes[i], i);
+		}
+		return returnValue;
+	}
+
+	// Stream for this tree's sampling, i.e. split from the chain's stream before each output so
+	// that output is reproducible from config.randomSeed
+	@Override
+	public void setRng(SplittableRng rng_) {
+		rng = rng_;
+	}
+
+	// Independent default stream if none was set
+	private SplittableRng getRng() {
+		if (rng==null) 
+			rng = SplittableRng.newDefault();
+		return rng;
+	}
+
+	// Endpoint conditioned sampling of branches (see UniformizationSampler), otherwise rejection sampling
+	private boolean useUniformization() {
+		return config==null || config.stochasticMappingMethod==Config.StochasticMappingMethod.UNIFORMIZATION;
 	}
 
 	private int getRandomSampleFrom(DoubleMatrix1D doubleMatrix1D) {
 		double p=0;		
 		for (int i=0;i<doubleMatrix1D.size();i++) {
 			p=p+doubleMatrix1D.get(i);
-			if (cern.jet.random.Uniform.staticNextDouble()<=p) {
+			if (getRng().nextDouble()<=p) {
 				return i;				
 			}			
 		}
@@ -711,6 +1390,7 @@ public class TreeWithLocations implements LikelihoodTree {
 	}
 
 	private int normalizeAndGetRandomSampleFromLogProbs(double[] logProbs) {
+		SplittableRng rng = getRng();
 		double min=logProbs[0];		
 		for (int i=1;i<logProbs.length;i++) {
 			if (Double.isInfinite(min)) 
@@ -726,7 +1406,7 @@ public class TreeWithLocations implements LikelihoodTree {
 		double p=0;	
 		for (int i=0;i<logProbs.length;i++) {
 			p=p+cern.jet.math.Functions.exp.apply(logProbs[i]-min);
-			if (cern.jet.random.Uniform.staticNextDouble()<=(p/sum)) {
+			if (rng.nextDouble()<=(p/sum)) {
 				return i;				
 			}			
 		}
@@ -734,7 +1414,7 @@ public class TreeWithLocations implements LikelihoodTree {
 		p=0;	
 		for (int i=0;i<logProbs.length;i++) {
 			p=p+cern.jet.math.Functions.exp.apply(logProbs[i]-min);
-			if (cern.jet.random.Uniform.staticNextDouble()<=(p/sum)) {
+			if (rng.nextDouble()<=(p/sum)) {
 				return i;				
 			}			
 		}
@@ -744,164 +1424,588 @@ public class TreeWithLocations implements LikelihoodTree {
 	}
 
 	private void asr() {
+		materialize();
 		if (asrDone) return;		
 		// Calculate root state
 		// TODO: check this
-		fillConditionalLikelihoods();
-		DoubleMatrix1D rootFreq = migrationModel.rootfreq(root.time);
+		fillLocConditionalLikelihoods();
+		MatrixExponentialAction action = locAction();
+		double[] row = null;
+		if (action==null) 
+			fillLocMatrices();
+		else 
+			row = new double[2*numLocations];
 		double[] alphas = new double[numLocations];	
-		for (int i = 0; i < numLocations; i++) {
-			alphas[i]=root.logProbsLOC[i] + Math.log(rootFreq.get(i));
-		}		
-		root.setLoc(normalizeAndGetRandomSampleFromLogProbs(alphas));		
-		for (TreeWithLocationsNode node : eachPreorder()) {
-			if (node.getParent()==null) continue;
-			TreeWithLocationsNode parent = node.getParent();					
+		if (outsideDone) { // cached marginal posterior of the root
+			System.arraycopy(logPosteriorLOC, 0, alphas, 0, numLocations);
+		}
+		else {
+			DoubleMatrix1D rootFreq = migrationModel.rootfreq(compiled.nodeTime[0]);
+			for (int i = 0; i < numLocations; i++) {
+				alphas[i]=logProbLOC(0,i) + Math.log(rootFreq.get(i));
+			}		
+		}
+		nodes[0].setLoc(normalizeAndGetRandomSampleFromLogProbs(alphas));		
+		for (int n=1;n<compiled.numNodes;n++) { // Preorder, skipping root
+			int node = compiled.preorder[n];
+			int parent = compiled.parent[node];
+			if (action!=null) { // row of exp(Q*t) for the parent location
+				Arrays.fill(row, 0, numLocations, 0);
+				row[nodes[parent].getLoc()]=1;
+				action.vexpm(branchLength(node), row, 0, row, numLocations);
+				for (int i=0; i < numLocations; i++) {
+					alphas[i] = Math.log(Math.max(row[numLocations+i], 0)) + logProbLOC(node,i);
+				}
+				nodes[node].setLoc(normalizeAndGetRandomSampleFromLogProbs(alphas));
+				continue;
+			}
 			// TODO: check if clause (here for numerics issues)
-			DoubleMatrix1D p = migrationModel.probability(parent.getLoc(), parent.time, node.time);
+			int pOffset = locMatrixOffset(node)+nodes[parent].getLoc()*numLocations;
+			int logPOffset = pOffset+numLocations*numLocations;
 			for (int i=0; i < numLocations; i++) {				
-				alphas[i] = cern.jet.math.Functions.log.apply(p.get(i)) + node.logProbsLOC[i];
+				alphas[i] = locMatrices[logPOffset+i] + logProbLOC(node,i);
 				if (Double.isNaN(alphas[i])) {
-					if (p.get(i)<0) p.set(i, Double.MIN_VALUE);
-					alphas[i]=cern.jet.math.Functions.log.apply(p.get(i)*cern.jet.math.Functions.exp.apply(node.logProbsLOC[i]));
+					double p = Math.max(locMatrices[pOffset+i], Double.MIN_VALUE);
+					alphas[i]=cern.jet.math.Functions.log.apply(p*cern.jet.math.Functions.exp.apply(logProbLOC(node,i)));
 				}
 			}	
-			node.setLoc(normalizeAndGetRandomSampleFromLogProbs(alphas));
+			nodes[node].setLoc(normalizeAndGetRandomSampleFromLogProbs(alphas));
+
+		}	
+		asrDone=true;
+	}	
+
+	// Ancestral state reconstruction, kept until the next copy so that output methods only format it
+	@Override
+	public void ancestralStateReconstruction() {
+		materialize();
+		// TODO: Check this
+		fillLocConditionalLikelihoods();
+		sortChildrenByDescendants();
+		asr();
+	}
+
+	@Override
+	public void newickASR(Appendable out) throws IOException {
+		ancestralStateReconstruction();
+		newickStates(root, out);
+	}
+
+	public String newickASR() {
+		return new StreamedText() {
+			@Override
+			public void writeTo(Appendable out) throws IOException {
+				newickASR(out);
+			}
+		}.toString();
+	}
+
+	private void newickStates(TreeWithLocationsNode treePart, Appendable out) throws IOException {		
+		sortChildrenByDescendants();
+		if (treePart.isTip()) {
+			String branchLength = String.format("%.3f", treePart.time-treePart.getParent().time);			
+			out.append(Integer.toString(treePart.getTaxonIndex())+ "[&states="+Integer.toString(treePart.getLoc())+"]:"+branchLength);
+		}
+		else {
+			out.append("(");
+			newickStates(treePart.children.get(0), out);
+			for (int i = 1; i < treePart.children.size(); i++){
+				out.append(",");
+				newickStates(treePart.children.get(i), out);	
+			}
+			out.append(")");
+			double parentTime=0;
+			if (treePart.getParent()!=null) {
+				parentTime=treePart.getParent().time;
+			}
+			String branchLength = String.format("%.3f", treePart.time-parentTime);
+			out.append("[&states="+Integer.toString(treePart.getLoc())+"]:"+branchLength);
+		}		
+	}
+
+	// Outside (preorder) pass of the location partials, for a branch leading to node with parent p and sibling s
+	//   above(node,a) = outside(p,a) + log sum_x P_s[a][x]*exp(logProbLOC(s,x))
+	//   outside(node,b) = log sum_a exp(above(node,a)) * P_node[a][b]
+	// with the root frequencies as outside probabilities of the root, so that outside(node,b)+logProbLOC(node,b) 
+	// is the log joint probability of all data and location b at node, normalized into logPosteriorLOC.
+	// One pass over the tree in O(numNodes*numLocations^2) after the postorder pass, the result is kept until the model changes
+	private void outsideLOC() {
+		if (outsideDone) return;
+		fillLocConditionalLikelihoods();
+		fillLocMatrices();
+		int size = numLocations*numLocations;
+		if (logOutsideLOC==null || logOutsideLOC.length!=compiled.numNodes*numLocations) {
+			logAboveLOC = new double[compiled.numNodes*numLocations];
+			logOutsideLOC = new double[compiled.numNodes*numLocations];
+		}
+		DoubleMatrix1D rootFreq = migrationModel.rootfreq(compiled.nodeTime[0]);
+		for (int i=0;i<numLocations;i++) {
+			logAboveLOC[i]=0;
+			logOutsideLOC[i]=Math.log(rootFreq.get(i));
+		}
+		double[] alphas = new double[numLocations];
+		for (int n=1;n<compiled.numNodes;n++) { // Preorder, skipping root
+			int node = compiled.preorder[n];
+			int parent = compiled.parent[node];
+			int sibling = (compiled.leftChild[parent]==node ? compiled.rightChild[parent] : compiled.leftChild[parent]);
+			int aboveOffset = node*numLocations;
+			for (int from=0;from<numLocations;from++) {
+				double above = logOutsideLOC[parent*numLocations+from];
+				if (compiled.loc[parent]!=TreeWithLocations.UNKNOWN_LOCATION && compiled.loc[parent]!=from) 
+					above = Double.NEGATIVE_INFINITY;
+				if (sibling!=CompiledTree.NO_NODE && above!=Double.NEGATIVE_INFINITY) {
+					int logPOffset = locMatrixOffset(sibling)+size+from*numLocations;
+					for (int to=0;to<numLocations;to++) {
+						alphas[to]=locMatrices[logPOffset+to]+logProbLOC(sibling,to);
+					}
+					above+=logSumExp(alphas);
+				}
+				logAboveLOC[aboveOffset+from]=above;
+			}
+			int logPOffset = locMatrixOffset(node)+size;
+			for (int to=0;to<numLocations;to++) {
+				for (int from=0;from<numLocations;from++) {
+					alphas[from]=logAboveLOC[aboveOffset+from]+locMatrices[logPOffset+from*numLocations+to];
+				}
+				logOutsideLOC[aboveOffset+to]=logSumExp(alphas);
+			}
+		}
+		if (logPosteriorLOC==null || logPosteriorLOC.length!=compiled.numNodes*numLocations) {
+			logPosteriorLOC = new double[compiled.numNodes*numLocations];
+		}
+		for (int node=0;node<compiled.numNodes;node++) {
+			int offset = node*numLocations;
+			for (int i=0;i<numLocations;i++) {
+				alphas[i]=logOutsideLOC[offset+i]+logProbLOC(node,i);
+			}
+			double logTotal = logSumExp(alphas);
+			for (int i=0;i<numLocations;i++) {
+				logPosteriorLOC[offset+i]=alphas[i]-logTotal;
+			}
+		}
+		outsideDone=true;
+	}
+
+	// offset of the outside probabilities of a node, codon position and site pattern in logOutsideCP
+	private int outsideCPOffset(int node, int codonPos, int pattern) {
+		return ((node*3+codonPos)*sitePatterns.getMaxNumPatterns()+pattern)*4;
+	}
+
+	// Outside pass of the sequence partials as outsideLOC, per codon position and site pattern. 
+	// Site patterns are independent, so for large trees ranges of patterns are done concurrently.
+	private void outsideCP() {
+		if (outsideSeqDone || seqLength==0) return;
+		fillConditionalLikelihoods();
+		fillSeqMatrices();
+		final int maxNumPatterns = sitePatterns.getMaxNumPatterns();
+		if (logOutsideCP==null || logOutsideCP.length!=compiled.numNodes*3*maxNumPatterns*4) {
+			logOutsideCP = new double[compiled.numNodes*3*maxNumPatterns*4];
+		}
+		final double[][] logPi = new double[3][4];
+		for (int codonPos=0;codonPos<3;codonPos++) {
+			DoubleMatrix1D pi = codonModel[codonPos].rootfreq(compiled.nodeTime[0]);
+			for (int i=0;i<4;i++) {
+				logPi[codonPos][i]=Math.log(pi.get(i));
+			}
+		}
+		Parallel.RangeTask task = new Parallel.RangeTask() {
+			@Override
+			public void run(int from, int to) {
+				double[] alphas = new double[4];
+				double[] above = new double[4];
+				for (int i=from;i<to;i++) {
+					int codonPos = i/maxNumPatterns;
+					int pattern = i%maxNumPatterns;
+					if (pattern>=sitePatterns.getNumPatterns(codonPos)) continue;
+					int loc = sitePatterns.getPatternLoci(codonPos,pattern);
+					System.arraycopy(logPi[codonPos], 0, logOutsideCP, outsideCPOffset(0,codonPos,pattern), 4);
+					for (int n=1;n<compiled.numNodes;n++) { // Preorder, skipping root
+						int node = compiled.preorder[n];
+						int parent = compiled.parent[node];
+						int sibling = (compiled.leftChild[parent]==node ? compiled.rightChild[parent] : compiled.leftChild[parent]);
+						int parentOffset = outsideCPOffset(parent,codonPos,pattern);
+						for (int a=0;a<4;a++) {
+							above[a]=logOutsideCP[parentOffset+a];
+							if (sibling!=CompiledTree.NO_NODE && above[a]!=Double.NEGATIVE_INFINITY) {
+								int logPOffset = seqMatrixOffset(sibling,codonPos)+16+a*4;
+								for (int x=0;x<4;x++) {
+									alphas[x]=seqMatrices[logPOffset+x]+logProbCP(sibling,codonPos,loc,x);
+								}
+								above[a]+=logSumExp(alphas);
+							}
+						}
+						int logPOffset = seqMatrixOffset(node,codonPos)+16;
+						int nodeOffset = outsideCPOffset(node,codonPos,pattern);
+						for (int b=0;b<4;b++) {
+							for (int a=0;a<4;a++) {
+								alphas[a]=above[a]+seqMatrices[logPOffset+a*4+b];
+							}
+							logOutsideCP[nodeOffset+b]=logSumExp(alphas);
+						}
+					}
+				}
+			}
+		};
+		if (parallelPruning()) 
+			Parallel.forRange(config.numThreads, 3*maxNumPatterns, 1, task);
+		else 
+			task.run(0, 3*maxNumPatterns);
+		outsideSeqDone=true;
+	}
+
+	// log marginal posterior of the nucleotides of node at codon position and loci given all data, requires outsideCP
+	private void logPosteriorCP(int node, int codonPos, int loc, double[] logProbs) {
+		int offset = outsideCPOffset(node,codonPos,sitePatterns.getPattern(codonPos,loc));
+		for (int i=0;i<4;i++) {
+			logProbs[i]=logOutsideCP[offset+i]+logProbCP(node,codonPos,loc,i);
+		}
+		double logTotal = logSumExp(logProbs);
+		for (int i=0;i<4;i++) {
+			logProbs[i]-=logTotal;
+		}
+	}
+
+	// compiled index of node
+	private int nodeIndex(TreeWithLocationsNode node) {
+		for (int i=0;i<nodes.length;i++) {
+			if (nodes[i]==node) return i;
+		}
+		return CompiledTree.NO_NODE;
+	}
 
-		}	
-		asrDone=true;
-	}	
+	// Marginal posterior probabilities of the locations of node given all data
+	public double[] locationPosterior(TreeWithLocationsNode node) {
+		materialize();
+		outsideLOC();
+		int index = nodeIndex(node);
+		double[] returnValue = new double[numLocations];
+		for (int i=0;i<numLocations;i++) {
+			returnValue[i]=Math.exp(logPosteriorLOC[index*numLocations+i]);
+		}
+		return returnValue;
+	}
 
-	@Override
-	public String newickASR() {
-		// TODO: Check this
-		fillConditionalLikelihoods();
-		sortChildrenByDescendants();
-		asr();
-		String returnValue = newickStates(root);
+	// Marginal posterior probabilities of the nucleotides of node at site given all data
+	public double[] nucleotidePosterior(TreeWithLocationsNode node, int site) {
+		materialize();
+		outsideCP();
+		double[] returnValue = new double[4];
+		logPosteriorCP(nodeIndex(node), site%3, site/3, returnValue);
+		for (int i=0;i<4;i++) {
+			returnValue[i]=Math.exp(returnValue[i]);
+		}
 		return returnValue;
+	}
+
+	// Expected migrations and dwelling times of each branch given all data (see MarkovJumpExpectation), 
+	// with the constant rate pieces of the branch for seasonal and epochal models
+	@Override
+	public void expectations() {
+		if (expectationsDone) return;
+		outsideLOC();
+		final int size = numLocations*numLocations;
+		if (expectedJumps==null || expectedJumps.length!=compiled.numNodes*size) {
+			expectedJumps = new double[compiled.numNodes*size];
+			expectedDwellings = new double[compiled.numNodes*numLocations];
+		}
+		final boolean[] failed = new boolean[compiled.numNodes];
+		fillBranchMatrices(new Parallel.RangeTask() {
+			@Override
+			public void run(int from, int to) {
+				double[] alpha = new double[numLocations];
+				double[] beta = new double[numLocations];
+				double[] jumps = new double[size];
+				double[] dwellings = new double[numLocations];
+				List<Double> times = new ArrayList<Double>();
+				List<ConstantRateModel> models = new ArrayList<ConstantRateModel>();
+				for (int node=Math.max(from, 1);node<to;node++) { // root (no branch)
+					double maxAbove = Double.NEGATIVE_INFINITY;
+					double maxBelow = Double.NEGATIVE_INFINITY;
+					for (int i=0;i<numLocations;i++) {
+						maxAbove = Math.max(maxAbove, logAboveLOC[node*numLocations+i]);
+						maxBelow = Math.max(maxBelow, logProbLOC(node,i));
+					}
+					for (int i=0;i<numLocations;i++) {
+						alpha[i]=Math.exp(logAboveLOC[node*numLocations+i]-maxAbove);
+						beta[i]=Math.exp(logProbLOC(node,i)-maxBelow);
+					}
+					Arrays.fill(jumps, 0);
+					Arrays.fill(dwellings, 0);
+					times.clear();
+					models.clear();
+					migrationModel.constantSegments(compiled.parentTime[node], compiled.nodeTime[node], times, models);
+					failed[node] = !MarkovJumpExpectation.addExpectations(times, models, alpha, beta, jumps, dwellings);
+					System.arraycopy(jumps, 0, expectedJumps, node*size, size);
+					System.arraycopy(dwellings, 0, expectedDwellings, node*numLocations, numLocations);
+				}
+			}
+		});
+		for (int node=1;node<compiled.numNodes;node++) {
+			if (failed[node])
+				System.err.println("Failed expected migrations of branch "+node);
+		}
+		expectationsDone=true;
+	}
 
+	@Override
+	public void newickExpectation(Appendable out) throws IOException {
+		materialize();
+		expectations();
+		newickExpectation(root, nodeIndices(), out);
 	}
 
-	private String newickStates(TreeWithLocationsNode treePart) {		
-		sortChildrenByDescendants();
-		String returnValue = new String();
+	public String newickExpectation() {
+		return new StreamedText() {
+			@Override
+			public void writeTo(Appendable out) throws IOException {
+				newickExpectation(out);
+			}
+		}.toString();
+	}
 
+	private void newickExpectation(TreeWithLocationsNode treePart, IdentityHashMap<TreeWithLocationsNode, Integer> nodeIndices, Appendable out) throws IOException {		
 		if (treePart.isTip()) {
-			String branchLength = String.format("%.3f", treePart.time-treePart.getParent().time);			
-			returnValue+=(Integer.toString(treePart.getTaxonIndex())+ "[&states="+Integer.toString(treePart.getLoc())+"]:"+branchLength);
+			out.append(Integer.toString(treePart.getTaxonIndex()));
 		}
 		else {
-			returnValue+="(";
-			returnValue+=newickStates(treePart.children.get(0));
+			out.append("(");
+			newickExpectation(treePart.children.get(0),nodeIndices,out);
 			for (int i = 1; i < treePart.children.size(); i++){
-				returnValue+=",";
-				returnValue+=newickStates(treePart.children.get(i));	
+				out.append(",");
+				newickExpectation(treePart.children.get(i),nodeIndices,out);	
 			}
-			returnValue+=")";
-			double parentTime=0;
-			if (treePart.getParent()!=null) {
-				parentTime=treePart.getParent().time;
+			out.append(")");
+		}
+		double parentTime=treePart.time;
+		if (treePart.getParent()!=null) {
+			parentTime=treePart.getParent().time;
+		}
+		int node = nodeIndices.get(treePart);
+		String branchLength = String.format("%.3f", treePart.time-parentTime);
+		out.append("[&jumps=");
+		parseMatrix(expectedJumps, node*numLocations*numLocations, out);
+		out.append(",dwellings=");
+		parseVector(expectedDwellings, node*numLocations, out);
+		out.append("]:"+branchLength);
+	}
+
+	// Expected migrations between each pair of locations summed over branches
+	@Override
+	public void expectedTransitions(Appendable out) throws IOException {
+		expectations();
+		int size = numLocations*numLocations;
+		double[] totals = new double[size];
+		for (int node=1;node<compiled.numNodes;node++) {
+			for (int i=0;i<size;i++) {
+				totals[i]+=expectedJumps[node*size+i];
 			}
-			String branchLength = String.format("%.3f", treePart.time-parentTime);
-			returnValue+="[&states="+Integer.toString(treePart.getLoc())+"]:"+branchLength;
-		}		
-		return returnValue;
+		}
+		parseMatrix(totals, 0, out);
+	}
+
+	public String expectedTransitions() {
+		return new StreamedText() {
+			@Override
+			public void writeTo(Appendable out) throws IOException {
+				expectedTransitions(out);
+			}
+		}.toString();
+	}
+
+	// Expected time spent at each location summed over branches
+	@Override
+	public void expectedDwellings(Appendable out) throws IOException {
+		expectations();
+		double[] totals = new double[numLocations];
+		for (int node=1;node<compiled.numNodes;node++) {
+			for (int i=0;i<numLocations;i++) {
+				totals[i]+=expectedDwellings[node*numLocations+i];
+			}
+		}
+		parseVector(totals, 0, out);
+	}
+
+	public String expectedDwellings() {
+		return new StreamedText() {
+			@Override
+			public void writeTo(Appendable out) throws IOException {
+				expectedDwellings(out);
+			}
+		}.toString();
+	}
+
+	// {{m00,m01,...},{m10,...},...} of a row major numLocations x numLocations matrix at offset
+	private void parseMatrix(double[] matrix, int offset, Appendable out) throws IOException {
+		out.append("{");
+		for (int i=0;i<numLocations;i++) {
+			parseVector(matrix, offset+i*numLocations, out);
+			if (i!=(numLocations-1)) {
+				out.append(",");
+			}
+		}
+		out.append("}");
+	}
+
+	// {v0,v1,...} of numLocations values at offset
+	private void parseVector(double[] vector, int offset, Appendable out) throws IOException {
+		out.append("{");
+		for (int i=0;i<numLocations;i++) {
+			out.append(String.format("%.3f",vector[offset+i]));
+			if (i!=(numLocations-1)) {
+				out.append(",");
+			}
+		}
+		out.append("}");
 	}
 
 	@Override
+	public void smTransitions(Appendable out) throws IOException {
+		materialize();
+		EventLog log = (pooledMigrationLog!=null ? pooledMigrationLog : migrationLog); // all realizations if pooled
+		migrationsByLocations(log, false, out);
+	}
+
 	public String smTransitions() {
-		String returnValue = "{";
-		String[][] transitionTimes = new String[numLocations][numLocations];		
+		return new StreamedText() {
+			@Override
+			public void writeTo(Appendable out) throws IOException {
+				smTransitions(out);
+			}
+		}.toString();
+	}
 
+	// {{{m,m,...},{...},...},...} of migrations in log by from and to location, in postorder of their branches.
+	// Each migration is its time, or {is tip,post order node number,time} with smMigrationNodeNumTipAndSequenceData 
+	// followed by the sequence at the migration if withSequence
+	private void migrationsByLocations(EventLog log, boolean withSequence, Appendable out) throws IOException {
+		int numCells = numLocations*numLocations;
+		int[] postOrder = new int[compiled.numNodes]; // compiled indices in postorder
+		int[] postOrderIndices = new int[compiled.numNodes];
+		IdentityHashMap<TreeWithLocationsNode, Integer> nodeIndices = nodeIndices();
 		int postOrderIndex=0;
 		for (TreeWithLocationsNode node : root) {
+			int index = nodeIndices.get(node);
+			postOrder[postOrderIndex]=index;
 			postOrderIndex++;
-			if (node==root) continue;
-			if (node.migrations!=null) {
-				int fromLocation = node.getParent().getLoc();
-				for (Transition transition : node.migrations) {
-					if (transitionTimes[fromLocation][transition.toTrait]==null) {
-						transitionTimes[fromLocation][transition.toTrait]=new String();
-					}
-					assert(fromLocation!=transition.toTrait);
-					if (config.smMigrationNodeNumTipAndSequenceData) { 
-						String nodeString = "";
-						// is tip
-						nodeString+="{"+node.isTip()+",";
-						// post order node number
-						nodeString+=Integer.toString(postOrderIndex)+",";
-						// migraration time
-						nodeString+=String.format("%.3f",transition.time)+"},";
-						//
-						transitionTimes[fromLocation][transition.toTrait]+=nodeString;
-					}
-					else  {
-						transitionTimes[fromLocation][transition.toTrait]+=String.format("%.3f,",transition.time);
-					}
-					fromLocation=transition.toTrait;
-				}				
+			postOrderIndices[index]=postOrderIndex;
+		}
+
+		// Events of cell from*numLocations+to are events[offsets[cell]..offsets[cell+1])
+		int[] offsets = new int[numCells+1];
+		int[] events = new int[0];
+		if (log!=null) {
+			for (int n=0;n<compiled.numNodes;n++) {
+				int index = postOrder[n];
+				if (nodes[index]==root) continue;
+				for (int e=log.branchStart(index);e<log.branchEnd(index);e++) {
+					assert(log.getFrom(e)!=log.getTo(e));
+					offsets[log.getFrom(e)*numLocations+log.getTo(e)+1]++;
+				}
+			}
+			for (int cell=0;cell<numCells;cell++) {
+				offsets[cell+1]+=offsets[cell];
+			}
+			int[] next = Arrays.copyOf(offsets, numCells);
+			events = new int[offsets[numCells]];
+			for (int n=0;n<compiled.numNodes;n++) {
+				int index = postOrder[n];
+				if (nodes[index]==root) continue;
+				for (int e=log.branchStart(index);e<log.branchEnd(index);e++) {
+					events[next[log.getFrom(e)*numLocations+log.getTo(e)]++]=e;
+				}
 			}
 		}
 
+		out.append("{");
 		for (int i=0;i<numLocations;i++) {
-			returnValue+="{";
-			for (int j=0;j<numLocations;j++) {						
-				if (transitionTimes[i][j]!=null) {
-					if (transitionTimes[i][j].length()>=2) { 
-						returnValue+="{"+transitionTimes[i][j].substring(0, transitionTimes[i][j].length()-1)+"}";
+			out.append("{");
+			for (int j=0;j<numLocations;j++) {
+				int cell = i*numLocations+j;
+				out.append("{");
+				for (int k=offsets[cell];k<offsets[cell+1];k++) {
+					int e = events[k];
+					if (k>offsets[cell]) out.append(",");
+					if (config.smMigrationNodeNumTipAndSequenceData) { 
+						TreeWithLocationsNode node = nodes[log.getNode(e)];
+						// is tip, post order node number, migration time
+						out.append("{"+node.isTip()+","+Integer.toString(postOrderIndices[log.getNode(e)])+","+String.format("%.3f",log.getTime(e)));
+						// sequence at migration
+						if (withSequence) {
+							out.append(",");
+							out.append(mapMutationsToSequence(node.getParent().seq, log.getNode(e), log.getTime(e)));
+						}
+						out.append("}");
 					}
-					else {
-						returnValue+="{}";
+					else  {
+						out.append(String.format("%.3f",log.getTime(e)));
 					}
 				}
-				else {
-					returnValue+="{}";
-				}
+				out.append("}");
 				if (j!=(numLocations-1)) {
-					returnValue+=",";
+					out.append(",");
 				}				
 			}
-			returnValue+="}";
+			out.append("}");
 			if (i!=(numLocations-1)) {
-				returnValue+=",";
+				out.append(",");
 			}
 		}
-		returnValue+="}";
-		return returnValue;
+		out.append("}");
 	}
 
 	@Override
-	public String smTipDwellings() {
+	public void smTipDwellings(Appendable out) throws IOException {
+		materialize();
 		sortChildrenByDescendants();
-		String returnValue = "{";
-		String[] tipDwellings = new String[numLocations];	
+		EventLog tipDwellings = pooledTipDwellings; // all realizations if pooled
 
-		for (int i=0;i<numLocations;i++) {	
-			tipDwellings[i]=new String();			
+		if (tipDwellings==null) {
+			tipDwellings = new EventLog();
+			addTipDwellings(tipDwellings);
+		}
+
+		out.append("{");
+		for (int i=0;i<numLocations;i++) {
+			out.append("{");
+			boolean first = true;
+			for (int e=0;e<tipDwellings.size();e++) {
+				if (tipDwellings.getFrom(e)==i)
+					first = appendInterval(tipDwellings.getTime(e), nodes[tipDwellings.getNode(e)].time, first, out);
+			}
+			out.append("}");
+			if (i!=(numLocations-1)) {
+				out.append(",");
+			}			
 		}
+		out.append("}");
+	}
+
+	public String smTipDwellings() {
+		return new StreamedText() {
+			@Override
+			public void writeTo(Appendable out) throws IOException {
+				smTipDwellings(out);
+			}
+		}.toString();
+	}
 
+	// Adds the time since the last migration of each tip to log, as a TIP_DWELLING event at the tip 
+	private void addTipDwellings(EventLog log) {
+		IdentityHashMap<TreeWithLocationsNode, Integer> nodeIndices = nodeIndices();
 		for (TreeWithLocationsNode node : root) {			
 			if (node==root) continue;
 			if (!node.isTip()) continue;
 			int fromLocation = node.getLoc();
 			double fromTime = tracebackWithNoChanges(node);
-			tipDwellings[fromLocation]+=String.format("{%.3f,%.3f},",fromTime,node.time);
+			log.add(fromTime, nodeIndices.get(node), 0, fromLocation, fromLocation, EventLog.TIP_DWELLING);
 		}
+	}
 
-		for (int i=0;i<numLocations;i++) {
-			if (tipDwellings[i].length()>=2) {
-				returnValue+="{"+tipDwellings[i].substring(0, tipDwellings[i].length()-1)+"}";
-			}
-			else {
-				returnValue+="{}";
-			}
-			if (i!=(numLocations-1)) {
-				returnValue+=",";
-			}			
-		}
-		returnValue+="}";
-		return returnValue;
+	// Appends {from time,to time}, preceded by a comma unless first, returns false
+	private static boolean appendInterval(double fromTime, double toTime, boolean first, Appendable out) throws IOException {
+		if (!first) out.append(",");
+		out.append(String.format("{%.3f,%.3f}",fromTime,toTime));
+		return false;
 	}
 
 	private double tracebackWithNoChanges(TreeWithLocationsNode node) {
@@ -923,94 +2027,69 @@ public class TreeWithLocations implements LikelihoodTree {
 	}
 
 	@Override
-	public String smLineages() {
+	public void smLineages(Appendable out) throws IOException {
+		materialize();
 		// TODO: test this
 		sortChildrenByDescendants();
-		String returnValue = "{";
-		String[] lineages = new String[numLocations];	
-
-		for (int i=0;i<numLocations;i++) {	
-			lineages[i]=new String();			
-		}
-
-		for (TreeWithLocationsNode node : root) {
-			// Only record lineages from node.parent.time to node.time  
-			if (node==root) continue;
-			int fromLocation = node.getLoc();
-			double fromTime = node.getParent().time;
-			if (node.migrations==null) {
-				lineages[fromLocation]+=String.format("{%.3f,%.3f},",fromTime,node.time);
-			}
-			else if (node.migrations.size()==0) {
-				lineages[fromLocation]+=String.format("{%.3f,%.3f},",fromTime,node.time);
-			}
-			else {	
-				for (Transition transition : node.migrations) { 														
-					lineages[fromLocation]+=String.format("{%.3f,%.3f},",fromTime,transition.time);
-					fromLocation=transition.toTrait;
-					fromTime=transition.time;
-				}
-				lineages[fromLocation]+=String.format("{%.3f,%.3f},",fromTime,node.time);
-			}			
-		}
 
+		// Lineages of each location in turn, from node.parent.time to node.time 
+		out.append("{");
 		for (int i=0;i<numLocations;i++) {	
-			if (lineages[i]!=null) {
-				if (lineages[i].length()>=2) { 
-					returnValue+="{"+lineages[i].substring(0, lineages[i].length()-1)+"}";
-				}
-				else {
-					returnValue+="{}";
+			out.append("{");
+			boolean first = true;
+			for (TreeWithLocationsNode node : root) {
+				if (node==root) continue;
+				int fromLocation = node.getLoc();
+				double fromTime = node.getParent().time;
+				if (node.migrations!=null) {
+					for (Transition transition : node.migrations) { 														
+						if (fromLocation==i) 
+							first = appendInterval(fromTime, transition.time, first, out);
+						fromLocation=transition.toTrait;
+						fromTime=transition.time;
+					}
 				}
-
-			} else {
-				returnValue+="{}";
-			}				
+				if (fromLocation==i) 
+					first = appendInterval(fromTime, node.time, first, out);
+			}
+			out.append("}");
 			if (i!=(numLocations-1)) {
-				returnValue+=",";
+				out.append(",");
 			}			
 		}
-		returnValue+="}";
-		return returnValue;
-
+		out.append("}");
 	}
 
 	@Override
-	public String smTrunkStats(double presentDayTipInterval, double timeToDesignateTrunk) {
+	public void smTrunkStats(double presentDayTipInterval, double timeToDesignateTrunk, Appendable out) throws IOException {
+		materialize();
 		// TODO: test this
 		sortChildrenByDescendants();
 		List<TreeWithLocationsNode> trunkNodes = markTrunk(presentDayTipInterval, timeToDesignateTrunk);
 
-		String returnValue = "{";
-
-
+		out.append("{");
+		boolean first = true;
 		for (TreeWithLocationsNode node : trunkNodes) {
 			if (node.getParent()!=null) {
-				if (node.migrations!=null) {
-					if (node.migrations.size()==0) {
-						if (returnValue.charAt(returnValue.length()-1)=='}') returnValue+=",";
-						returnValue+=("{"+node.getLoc()+","+node.getParent().time+","+node.time+"}");
-					}
-					else {
-						double fromTime = node.getParent().time;
-						int fromLoc = node.getLoc();
-						for (Transition transition : node.migrations) {
-							if (returnValue.charAt(returnValue.length()-1)=='}') returnValue+=",";
-							returnValue+=("{"+fromLoc+","+fromTime+","+transition.time+"}"); // TODO:
-							fromTime = transition.time;
-							fromLoc = transition.toTrait;
-						}
+				if (node.migrations!=null && node.migrations.size()>0) {
+					double fromTime = node.getParent().time;
+					int fromLoc = node.getLoc();
+					for (Transition transition : node.migrations) {
+						if (!first) out.append(",");
+						first = false;
+						out.append("{"+fromLoc+","+fromTime+","+transition.time+"}"); // TODO:
+						fromTime = transition.time;
+						fromLoc = transition.toTrait;
 					}
 				}
 				else {
-					if (returnValue.charAt(returnValue.length()-1)=='}') returnValue+=",";
-					returnValue+=("{"+node.getLoc()+","+node.getParent().time+","+node.time+"}");
+					if (!first) out.append(",");
+					first = false;
+					out.append("{"+node.getLoc()+","+node.getParent().time+","+node.time+"}");
 				}
 			}
 		}		
-		returnValue+="}";
-		return returnValue;
-
+		out.append("}");
 	}
 
 	private List<TreeWithLocationsNode> markTrunk(double presentDayTipInterval, double timeToDesignateTrunk) {
@@ -1049,54 +2128,78 @@ public class TreeWithLocations implements LikelihoodTree {
 	}
 
 	@Override
-	public String smDescendants() {
+	public void smDescendants(Appendable out) throws IOException {
+		materialize();
 		// TODO: this
 		sortChildrenByDescendants();
-		String returnValue = "{";
-		String[][] decendants = new String[numLocations][numLocations];		
 
+		// Migrations by from and to location in postorder, those of cell from*numLocations+to are [offsets[cell],offsets[cell+1])
+		int numCells = numLocations*numLocations;
+		int[] offsets = new int[numCells+1];
 		for (TreeWithLocationsNode node : root) {
 			if (node==root) continue;
 			if (node.migrations!=null) {
 				int fromLocation = node.getParent().getLoc();
 				for (Transition transition : node.migrations) {
-					if (decendants[fromLocation][transition.toTrait]==null) {
-						decendants[fromLocation][transition.toTrait]=new String();
-					}
 					if (fromLocation!=transition.toTrait) 
-						decendants[fromLocation][transition.toTrait]+=String.format("{%.3f,%d,%.3f,%d,%.3f},",transition.time,getTotalNumTips(node,transition),getTotalBranchLength(node,transition),getLocalNumTips(node,transition),getLocalBranchLength(node,transition));
+						offsets[fromLocation*numLocations+transition.toTrait+1]++;
+					fromLocation=transition.toTrait;
+				}				
+			}
+		}
+		for (int cell=0;cell<numCells;cell++) {
+			offsets[cell+1]+=offsets[cell];
+		}
+		int[] next = Arrays.copyOf(offsets, numCells);
+		TreeWithLocationsNode[] migrationNodes = new TreeWithLocationsNode[offsets[numCells]];
+		Transition[] migrations = new Transition[offsets[numCells]];
+		for (TreeWithLocationsNode node : root) {
+			if (node==root) continue;
+			if (node.migrations!=null) {
+				int fromLocation = node.getParent().getLoc();
+				for (Transition transition : node.migrations) {
+					if (fromLocation!=transition.toTrait) {
+						int k = next[fromLocation*numLocations+transition.toTrait]++;
+						migrationNodes[k]=node;
+						migrations[k]=transition;
+					}
 					fromLocation=transition.toTrait;
 				}				
 			}
 		}
 
+		out.append("{");
 		for (int i=0;i<numLocations;i++) {
-			returnValue+="{";
+			out.append("{");
 			for (int j=0;j<numLocations;j++) {						
-				if (decendants[i][j]!=null) {
-					if (decendants[i][j].length()>=2) { 
-						returnValue+="{"+decendants[i][j].substring(0,decendants[i][j].length()-1)+"}";
-					}
-					else {
-						returnValue+="{}";
-					}
-				}
-				else {
-					returnValue+="{}";
+				int cell = i*numLocations+j;
+				out.append("{");
+				for (int k=offsets[cell];k<offsets[cell+1];k++) {
+					TreeWithLocationsNode node = migrationNodes[k];
+					Transition transition = migrations[k];
+					if (k>offsets[cell]) out.append(",");
+					out.append(String.format("{%.3f,%d,%.3f,%d,%.3f}",transition.time,getTotalNumTips(node,transition),getTotalBranchLength(node,transition),getLocalNumTips(node,transition),getLocalBranchLength(node,transition)));
 				}
+				out.append("}");
 				if (j!=(numLocations-1)) {
-					returnValue+=",";
+					out.append(",");
 				}				
 			}
-			returnValue+="}";
+			out.append("}");
 			if (i!=(numLocations-1)) {
-				returnValue+=",";
+				out.append(",");
 			}
 		}
-		returnValue+="}";
-
-		return returnValue;
+		out.append("}");
+	}
 
+	public String smDescendants() {
+		return new StreamedText() {
+			@Override
+			public void writeTo(Appendable out) throws IOException {
+				smDescendants(out);
+			}
+		}.toString();
 	}
 
 
@@ -1199,6 +2302,14 @@ public class TreeWithLocations implements LikelihoodTree {
 
 	@Override
 	public void setCodonModel(Object codonModel) {
+		if (this.codonModel!=codonModel) {
+			// sequence partials and reconstructions are no longer valid
+			seqLogLike=0;
+			logLike=null;
+			asrSeqDone=false;
+			seqStochasticallyMapped=false;
+			outsideSeqDone=false;
+		}
 		this.codonModel = (TransitionModel[]) codonModel;
 	}
 
@@ -1206,8 +2317,11 @@ public class TreeWithLocations implements LikelihoodTree {
 		return numIdentifiedSeqs;
 	}
 
+	// Sequence ASR followed by stochastic mapping of mutations, kept until the next copy so that output methods only format it
 	@Override
-	public String seqMutationStats(int maxBranchRetries) throws Exception {
+	public void seqStochasticMapping(int maxBranchRetries) throws Exception {
+		materialize();
+		if (seqStochasticallyMapped) return;
 
 		// TODO: check SM time at change in node...
 
@@ -1222,77 +2336,75 @@ public class TreeWithLocations implements LikelihoodTree {
 		System.out.print("Sequence SM....");
 		stochsticMappingSeq(maxBranchRetries);
 		System.out.print("done! ");
+		seqStochasticallyMapped=true;
+	}
+
+	@Override
+	public void seqMutationStats(int maxBranchRetries, Appendable out) throws Exception {
+		seqStochasticMapping(maxBranchRetries);
 
 		System.out.print("Generating output");
-		String returnValue = "{";	
+		out.append("{");	
+		boolean first = true;
+		IdentityHashMap<TreeWithLocationsNode, Integer> nodeIndices = nodeIndices();
 		int i=0;		
 		for (TreeWithLocationsNode node : root) {
 			i++;
 			if (i%10==0) System.out.print(".");
 			if (i%1000==0) System.out.println();
-			for (int codonPosition = 0; codonPosition<3;codonPosition++) {				
-				for (int loc=0; loc<((seqLength-1)/3+1);loc++) {
-					if ((loc*3+codonPosition) >= seqLength) continue;
-					if (node==root) continue;
-					if (node.mutations.get(codonPosition).get(loc)!=null) {						
-						int fromNuc = 0;
-						fromNuc = node.getParent().seq.getNuc(loc*3+codonPosition);						
-						for (Transition transition : node.mutations.get(codonPosition).get(loc)) {
-							if (transition.time>config.seqStochasticMappingStartTime) {
-								if (returnValue.charAt(returnValue.length()-1)=='}') returnValue+=",";
-								returnValue+=String.format("{%.3f,",transition.time);
-								returnValue+=Integer.toString(loc*3+codonPosition)+",";
-								returnValue+=Sequence.toChar(fromNuc)+",";								
-								returnValue+=Sequence.toChar(transition.toTrait)+",";
-								/// codon
-								if (config.seqMutationsStatsCodonOutput) {
-									String fromCodon=mapMutationsToCodon(node.getParent().seq, loc, node.mutations, transition.time);								
-									returnValue+=fromCodon+",";
-									returnValue+=(codonPosition==0 ? Sequence.toChar(transition.toTrait) : fromCodon.charAt(0));
-									returnValue+=(codonPosition==1 ? Sequence.toChar(transition.toTrait) : fromCodon.charAt(1));
-									returnValue+=(codonPosition==2 ? Sequence.toChar(transition.toTrait) : fromCodon.charAt(2));
-									returnValue+=",";
-								}
-								// source seq						
-								if (config.seqMutationsStatsSeqOutput) {
-									String fromSeq=mapMutationsToSequence(node.getParent().seq, node.mutations, transition.time);
-									returnValue+=fromSeq+",";
-								}							
-								// location
-								returnValue+=getSequenceTransitionLocation(node,transition.time) + ",";
-								// is tip
-								returnValue+=node.isTip()+",";
-								// post order node number
-								returnValue+=Integer.toString(i);
-								//
-								returnValue+="}";								
-							}
-							fromNuc=transition.toTrait;
-						}									
+			if (node==root) continue;
+			int index = nodeIndices.get(node);
+			for (int e=mutationLog.branchStart(index);e<mutationLog.branchEnd(index);e++) {
+				double time = mutationLog.getTime(e);
+				if (time>config.seqStochasticMappingStartTime) {
+					int site = mutationLog.getSite(e);
+					int codonPosition = site%3;
+					int toNuc = mutationLog.getTo(e);
+					if (!first) out.append(",");
+					first = false;
+					out.append(String.format("{%.3f,",time));
+					out.append(Integer.toString(site)+",");
+					out.append(Sequence.toChar(mutationLog.getFrom(e))+",");								
+					out.append(Sequence.toChar(toNuc)+",");
+					/// codon
+					if (config.seqMutationsStatsCodonOutput) {
+						String fromCodon=mapMutationsToCodon(node.getParent().seq, site/3, index, time);								
+						out.append(fromCodon+",");
+						out.append(codonPosition==0 ? Sequence.toChar(toNuc) : fromCodon.charAt(0));
+						out.append(codonPosition==1 ? Sequence.toChar(toNuc) : fromCodon.charAt(1));
+						out.append(codonPosition==2 ? Sequence.toChar(toNuc) : fromCodon.charAt(2));
+						out.append(",");
 					}
+					// source seq						
+					if (config.seqMutationsStatsSeqOutput) {
+						out.append(mapMutationsToSequence(node.getParent().seq, index, time));
+						out.append(",");
+					}							
+					// location
+					out.append(getSequenceTransitionLocation(node,time) + ",");
+					// is tip
+					out.append(node.isTip()+",");
+					// post order node number
+					out.append(Integer.toString(i));
+					//
+					out.append("}");								
 				}
 			}
 		}
-		returnValue+="}";
+		out.append("}");
 		System.out.println("done!");
-		return returnValue;
 	}
 
+	// seq with the mutations of the branch leading to node (compiled index) before upToTime applied
 	private String mapMutationsToSequence(Sequence seq,
-			ArrayList<ArrayList<ArrayList<Transition>>> mutations, double upToTime) {
-		if (mutations==null) 
+			int node, double upToTime) {
+		if (mutationLog==null) 
 			return seq.toString();
 		else {
 			Sequence seqCopy = seq.copy();		
-			for (int loc=0; loc<((seqLength-1)/3+1);loc++) {
-				for (int cp = 0; cp<3; cp++) {
-					if ((loc*3+cp) >= seqLength) continue;	
-
-					for (Transition mutation : mutations.get(cp).get(loc)) {
-						if (mutation.time<upToTime) {
-							seqCopy.set(loc*3+cp, mutation.toTrait);
-						}
-					}
+			for (int e=mutationLog.branchStart(node);e<mutationLog.branchEnd(node);e++) {
+				if (mutationLog.getTime(e)<upToTime) {
+					seqCopy.set(mutationLog.getSite(e), mutationLog.getTo(e));
 				}
 			}		
 			return seqCopy.toString();
@@ -1300,22 +2412,16 @@ public class TreeWithLocations implements LikelihoodTree {
 	}
 
 	private String mapMutationsToCodon(Sequence seq, int loc,
-			ArrayList<ArrayList<ArrayList<Transition>>> mutations, double upToTime) {
+			int node, double upToTime) {
 		Sequence seqCopy = seq.copy();
-		for (int cp = 0; cp<3; cp++) {
-			for (Transition mutation : mutations.get(cp).get(loc)) {
-				if (mutation.time<upToTime) {
-					seqCopy.set(loc*3+cp, mutation.toTrait);
-				}
+		for (int e=mutationLog.branchStart(node);e<mutationLog.branchEnd(node);e++) {
+			if (mutationLog.getSite(e)/3==loc && mutationLog.getTime(e)<upToTime) {
+				seqCopy.set(mutationLog.getSite(e), mutationLog.getTo(e));
 			}
 		}
 		String returnValue=new String();
 		for (int cp = 0; cp<3; cp++) {
-			try {
-				returnValue+=Sequence.toChar(seqCopy.getNuc(loc*3+cp));
-			} catch (Exception e) {
-				e.printStackTrace();
-			}
+			returnValue+=Sequence.toChar(seqCopy.getNuc(loc*3+cp));
 		}
 		return returnValue;
 	}
@@ -1358,120 +2464,204 @@ public class TreeWithLocations implements LikelihoodTree {
 	}
 
 	@Override
-	public String pies() {
+	public void pies(Appendable out) throws IOException {
+		materialize();
 
-		String returnValue = "{";	
+		out.append("{");	
 		for (int i=0; i<3; i++) {
-			returnValue+=Integer.toString(i)+": {";			
+			out.append(Integer.toString(i)+": {");			
 			for (int j=0; j<3; j++) {
-				returnValue+=Integer.toString(j)+": "+codonModel[i].rootfreq(0).get(j);
-				if (j!=2) returnValue+=",";
-				returnValue+=" ";
+				out.append(Integer.toString(j)+": "+codonModel[i].rootfreq(0).get(j));
+				if (j!=2) out.append(",");
+				out.append(" ");
 			}			
-			returnValue+="}";
-			if (i!=2) returnValue+=",";
+			out.append("}");
+			if (i!=2) out.append(",");
 		}
-		returnValue+="}";			
-		return returnValue;
+		out.append("}");			
 	}
 
 
 
 
-	private void stochsticMappingSeq(int maxBranchRetries) throws Exception {
+	private void stochsticMappingSeq(final int maxBranchRetries) throws Exception {
+		materialize();
 		// TODO: test
 		// TODO: cite	
 
 		sortChildrenByDescendants();
-		for (TreeWithLocationsNode node : eachPreorder()) {
-			if (node.getParent()==null) continue;
-			if (node.mutations==null) {
-				node.mutations = new ArrayList<ArrayList<ArrayList<TransitionModel.Transition>>>();
-				for (int i=0;i<3;i++) {
-					node.mutations.add(new ArrayList<ArrayList<TransitionModel.Transition>>());
-					for (int j=0;j<((seqLength-1)/3+1);j++) {
-						node.mutations.get(i).add(new ArrayList<TransitionModel.Transition>());
+		fillSeqMatrices();
+		// sites by codon position and locus
+		final int[] siteOrder = new int[seqLength];
+		int numSites = 0;
+		for (int codonPosition = 0; codonPosition<3;codonPosition++) {
+			for (int loc=0; loc<((seqLength-1)/3+1);loc++) { 
+				if ((loc*3+codonPosition) >= seqLength) continue;
+				siteOrder[numSites++]=loc*3+codonPosition;
+			}
+		}
+		if (mutationLog==null) 
+			mutationLog = new EventLog();
+		else 
+			mutationLog.clear();
+
+		if (config==null || !config.parallelStochasticMapping) {
+			StringBuilder failures = new StringBuilder();
+			mapSites(siteOrder, 0, seqLength, maxBranchRetries, getRng(), new Transition(0, 0), mutationLog, failures);
+			System.err.print(failures);
+		}
+		else {
+			// Sites (given the ASR) are independent, blocks of consecutive sites each get their own stream split 
+			// from the tree's stream in block order, so the mapping does not depend on scheduling or numThreads
+			final int blockSize = Math.max(1, config.parallelSeqMappingSiteBlock);
+			int numBlocks = (seqLength+blockSize-1)/blockSize;
+			final SplittableRng[] blockRngs = new SplittableRng[numBlocks];
+			final EventLog[] blockLogs = new EventLog[numBlocks];
+			final StringBuilder[] failures = new StringBuilder[numBlocks];
+			for (int b=0;b<numBlocks;b++) {
+				blockRngs[b]=getRng().split();
+				blockLogs[b]=new EventLog();
+				failures[b]=new StringBuilder();
+			}
+			Parallel.forRange(config.numThreads, numBlocks, 1, new Parallel.RangeTask() {				
+				@Override
+				public void run(int from, int to) {
+					Transition event = new Transition(0, 0);
+					for (int b=from;b<to;b++) {
+						mapSites(siteOrder, b*blockSize, Math.min(seqLength, (b+1)*blockSize), maxBranchRetries, blockRngs[b], event, blockLogs[b], failures[b]);
 					}
 				}
+			});
+			for (int b=0;b<numBlocks;b++) {
+				mutationLog.addAll(blockLogs[b]);
+				System.err.print(failures[b]);
 			}
-
-			for (int codonPosition = 0; codonPosition<3;codonPosition++) {
-				for (int loc=0; loc<((seqLength-1)/3+1);loc++) { 
-					if ((loc*3+codonPosition) >= seqLength) continue;
-					node.mutations.get(codonPosition).get(loc).clear();
-					int currentNuc =  node.getParent().seq.getNuc(loc*3+codonPosition);
-					double currentTime = node.getParent().time;
-					boolean doneWithBranch = false;
-					boolean failedMapping = false;
-					Transition event = null;
-					int repeats = 0;
-					do {
-						repeats+=1;
-						event = codonModel[codonPosition].nextEvent(currentTime, currentNuc);						
-						if (event.time < node.time) {					
-							node.mutations.get(codonPosition).get(loc).add(event);
-							currentNuc = event.toTrait;
-							currentTime = event.time;
-						} 
-						else if (currentNuc!=node.seq.getNuc(loc*3+codonPosition)) {
-							// If there is a mismatch between stochastic mapping and child ASR than we 
-							// restart the entire branch
-							node.mutations.get(codonPosition).get(loc).clear();							
-							currentNuc = node.getParent().seq.getNuc(loc*3+codonPosition);
-							currentTime = node.getParent().time;
-						} 
-						else {							
-							doneWithBranch = true;								
-						}
-						if (repeats>maxBranchRetries) {
-							System.err.println("Failed to stochasticaly map branch sequence after "+Integer.toString(maxBranchRetries)+" iterations at loci: "+(loc*3+codonPosition)+"\nusing last attempt for output. sing last attempt for output.\nReasons include: 1. Low retry limit. 2. Unconverged matrices 3. Long branch 4. Aggresive rounding of tip time, consider adding jitter to tip times\n{("+Integer.toString(node.getParent().taxonIndex)+","+Double.toString(node.getParent().time)+","+Double.toString(node.getParent().seq.getNuc(loc*3+codonPosition))+"),("+Integer.toString(node.taxonIndex)+","+Double.toString(node.time)+","+Double.toString(node.seq.getNuc(loc*3+codonPosition))+")}");											
-							failedMapping=true;
-						}
-					} while (!doneWithBranch && !failedMapping);
-				}				
+		}
+		mutationLog.groupByBranch(compiled.numNodes);
+	}
+
+	// Maps mutations of sites siteOrder[from..to) on all branches into log, failure messages are appended to failures.
+	// For equal end nucleotides no substitution is drawn directly with probability exp(q_ii*t)/P_ii(t), 
+	// otherwise the path is sampled conditioned on at least one substitution.
+	private void mapSites(int[] siteOrder, int from, int to, int maxBranchRetries, SplittableRng rng, Transition event, EventLog log, StringBuilder failures) {
+		ArrayList<Transition> mutations = new ArrayList<Transition>(); // path of the current site, reused
+		for (int n=1;n<compiled.numNodes;n++) { // Preorder, skipping root
+			int nodeIndex = compiled.preorder[n];
+			TreeWithLocationsNode node = nodes[nodeIndex];
+			for (int i=from;i<to;i++) {
+				int site = siteOrder[i];
+				int codonPosition = site%3;
+				mutations.clear();
+				int parentNuc = node.getParent().seq.getNuc(site);
+				int childNuc = node.seq.getNuc(site);
+				boolean changeRequired = false;
+				if (parentNuc==childNuc) {
+					double noChange = noChangeProbability(nodeIndex, codonPosition, parentNuc);
+					if (noChange>=0) {
+						if (rng.nextDouble()<noChange) continue;
+						changeRequired = true;
+					}
+				}
+				int currentNuc = parentNuc;
+				double currentTime = node.getParent().time;
+				boolean doneWithBranch = false;
+				boolean failedMapping = false;
+				int repeats = 0;
+				if (useUniformization()) {
+					ArrayList<Transition> events = null;
+					if (changeRequired) 
+						events = ((ConstantTransitionBaseModel) codonModel[codonPosition]).getUniformizationSampler().sampleWithChange(parentNuc, currentTime, node.time, rng);
+					else
+						events = codonModel[codonPosition].endpointConditionedEvents(currentNuc, childNuc, currentTime, node.time, rng);
+					if (events!=null) {
+						mutations.addAll(events);
+						doneWithBranch=true;
+					}
+				}
+				while (!doneWithBranch && !failedMapping) { // rejection sampling
+					repeats+=1;
+					codonModel[codonPosition].nextEvent(currentTime, currentNuc, event, rng);						
+					if (event.time < node.time) {					
+						mutations.add(new Transition(event.time, event.toTrait));
+						currentNuc = event.toTrait;
+						currentTime = event.time;
+					} 
+					else if ((childNuc>=0 && currentNuc!=childNuc) || (changeRequired && mutations.isEmpty())) { // unknown child nuc accepts any end nuc
+						// If there is a mismatch between stochastic mapping and child ASR than we 
+						// restart the entire branch
+						mutations.clear();							
+						currentNuc = parentNuc;
+						currentTime = node.getParent().time;
+					} 
+					else {							
+						doneWithBranch = true;								
+					}
+					if (repeats>maxBranchRetries) {
+						failures.append("Failed to stochasticaly map branch sequence after "+Integer.toString(maxBranchRetries)+" iterations at loci: "+site+"\nusing last attempt for output. sing last attempt for output.\nReasons include: 1. Low retry limit. 2. Unconverged matrices 3. Long branch 4. Aggresive rounding of tip time, consider adding jitter to tip times\n{("+Integer.toString(node.getParent().taxonIndex)+","+Double.toString(node.getParent().time)+","+Double.toString(parentNuc)+"),("+Integer.toString(node.taxonIndex)+","+Double.toString(node.time)+","+Double.toString(childNuc)+")}\n");											
+						failedMapping=true;
+					}
+				}
+				int fromNuc = parentNuc;
+				for (Transition mutation : mutations) {
+					log.add(mutation.time, nodeIndex, site, fromNuc, mutation.toTrait, EventLog.MUTATION);
+					fromNuc = mutation.toTrait;
+				}
 			}			
 		}		
 	}
 
+	// Probability of no substitution along the branch leading to node given nucleotide nuc at both ends, exp(q_ii*t)/P_ii(t),
+	// -1 if not available for the codon model
+	private double noChangeProbability(int node, int codonPos, int nuc) {
+		if (!(codonModel[codonPos] instanceof ConstantTransitionBaseModel)) return -1;
+		double pii = seqMatrices[seqMatrixOffset(node,codonPos)+nuc*4+nuc];
+		if (!(pii>0)) return -1;
+		return Math.min(1, Math.exp(((ConstantTransitionBaseModel) codonModel[codonPos]).Q[nuc][nuc]*branchLength(node))/pii);
+	}
+
 	private void asrSeq() throws Exception {
+		materialize();
 
 		if (asrSeqDone) return;	
 		fillConditionalLikelihoods();
+		fillSeqMatrices();
 		// Add root frequency		
 		DoubleMatrix1D pi[] = new DoubleMatrix1D[3];
 
 		for (int i=0;i<3;i++) {
-			pi[i]=codonModel[i].rootfreq(root.time);
+			pi[i]=codonModel[i].rootfreq(compiled.nodeTime[0]);
 		}
 
+		double[] alphas = new double[4];	
 		for (int codonPos = 0; codonPos <3 ; codonPos++) {
-			for (int loc=0;loc<((seqLength-1)/3+1);loc++) {				
+			for (int loc=0;loc<numLoci();loc++) {				
 				if ((loc*3+codonPos) >= seqLength) continue;			
-				double[] alphas = new double[4];	
-				for (int i = 0; i < 4; i++) {				
-					alphas[i]=root.logProbsCP[codonPos][loc][i] + Math.log(pi[codonPos].get(i));
+				if (outsideSeqDone) { // cached marginal posterior of the root
+					logPosteriorCP(0, codonPos, loc, alphas);
+				}
+				else {
+					for (int i = 0; i < 4; i++) {				
+						alphas[i]=logProbCP(0,codonPos,loc,i) + Math.log(pi[codonPos].get(i));
+					}
 				}
-				root.seq.set(loc*3+codonPos,normalizeAndGetRandomSampleFromLogProbs(alphas));
+				nodes[0].seq.set(loc*3+codonPos,normalizeAndGetRandomSampleFromLogProbs(alphas));
 			}			
 		}			
 
-		for (TreeWithLocationsNode node : eachPreorder()) {
-			if (node.getParent()==null) continue;
+		for (int n=1;n<compiled.numNodes;n++) { // Preorder, skipping root
+			int node = compiled.preorder[n];
+			// TODO: check this
+			int parent = compiled.parent[node];
 			for (int codonPosition = 0; codonPosition<3;codonPosition++) {
-				for (int loc=0; loc<((seqLength-1)/3+1);loc++) { 
+				for (int loc=0; loc<numLoci();loc++) { 
 					if ((loc*3+codonPosition) >= seqLength) continue;
 
-					// TODO: check this
-					TreeWithLocationsNode parent = node.getParent();
-
-					double[] alphas = new double[4];	
-					// TODO: check need for Util.minValue
-					DoubleMatrix1D p = codonModel[codonPosition].probability(parent.seq.getNuc(loc*3+codonPosition), parent.time, node.time+Util.minValue);
+					int logPOffset = seqMatrixOffset(node,codonPosition)+16+nodes[parent].seq.getNuc(loc*3+codonPosition)*4;
 
 					for (int i=0; i < 4; i++) {								
-						alphas[i] = cern.jet.math.Functions.log.apply(p.get(i)) + node.logProbsCP[codonPosition][loc][i];
+						alphas[i] = seqMatrices[logPOffset+i] + logProbCP(node,codonPosition,loc,i);
 					}		
-					node.seq.set(loc*3+codonPosition,normalizeAndGetRandomSampleFromLogProbs(alphas));
+					nodes[node].seq.set(loc*3+codonPosition,normalizeAndGetRandomSampleFromLogProbs(alphas));
 				}
 			}
 		}		
@@ -1481,92 +2671,37 @@ public class TreeWithLocations implements LikelihoodTree {
 
 	@Override	
 	public Double seqLikelihood() {
-		fillConditionalLikelihoods();
+		if (seqLogLike==0) seqLogLikelihood();
 		return this.seqLogLike;
 	}
 
 	@Override
 	public Double locLikelihood() {
-		fillConditionalLikelihoods();
+		fillLocConditionalLikelihoods();
 		return this.locationLogLike;
 	}
 
 	@Override
-	public String seqMigrationsSeqOutput() throws Exception {
+	public void seqMigrationsSeqOutput(Appendable out) throws Exception {
+		materialize();
 
 		sortChildrenByDescendants();
-		String returnValue = "{";
-		String[][] transitionTimes = new String[numLocations][numLocations];		
-
-		int postOrderIndex=0;
-		for (TreeWithLocationsNode node : root) {
-			postOrderIndex++;
-			if (node==root) continue;
-			if (node.migrations!=null) {
-				int fromLocation = node.getParent().getLoc();
-				for (Transition transition : node.migrations) {
-					if (transitionTimes[fromLocation][transition.toTrait]==null) {
-						transitionTimes[fromLocation][transition.toTrait]=new String();
-					}
-					assert(fromLocation!=transition.toTrait);
-					if (config.smMigrationNodeNumTipAndSequenceData) { 
-						String nodeString = "";
-						// is tip
-						nodeString+="{"+node.isTip()+",";
-						// post order node number
-						nodeString+=Integer.toString(postOrderIndex)+",";
-						// migraration time
-						nodeString+=String.format("%.3f",transition.time)+",";
-						// sequence at migration
-						nodeString+=mapMutationsToSequence(node.getParent().seq, node.mutations, transition.time)+"},";
-						// add to list
-						transitionTimes[fromLocation][transition.toTrait]+=nodeString;
-					}
-					else  {
-						transitionTimes[fromLocation][transition.toTrait]+=String.format("%.3f,",transition.time);
-					}
-					fromLocation=transition.toTrait;
-				}				
-			}
-		}
-
-		for (int i=0;i<numLocations;i++) {
-			returnValue+="{";
-			for (int j=0;j<numLocations;j++) {						
-				if (transitionTimes[i][j]!=null) {
-					if (transitionTimes[i][j].length()>=2) { 
-						returnValue+="{"+transitionTimes[i][j].substring(0, transitionTimes[i][j].length()-1)+"}";
-					}
-					else {
-						returnValue+="{}";
-					}
-				}
-				else {
-					returnValue+="{}";
-				}
-				if (j!=(numLocations-1)) {
-					returnValue+=",";
-				}				
-			}
-			returnValue+="}";
-			if (i!=(numLocations-1)) {
-				returnValue+=",";
-			}
-		}
-		returnValue+="}";
-		return returnValue;
+		migrationsByLocations(migrationLog, true, out);
 	}
 
 	@Override
-	public AltTreeOutput smAlternativeTreeOutput() {
+	public void smAlternativeTreeOutput(Appendable out) throws IOException {
+		smAlternativeTreeOutput(new AltTreeOutput(out));
+	}
+
+	private void smAlternativeTreeOutput(AltTreeOutput altTreeOutput) throws IOException {
+		materialize();
 		
 		TreeWithLocations outputCopy = copyWithAllEventsMappedOntoBranches();
 
 		outputCopy.sortChildrenByDescendants();
 		outputCopy.setLayoutByDescendants();
 
-		AltTreeOutput altTreeOutput = new AltTreeOutput();
-
 		int postOrderIndex=0;
 		for (TreeWithLocationsNode node : outputCopy.root) {
 			postOrderIndex++;	
@@ -1579,13 +2714,11 @@ public class TreeWithLocations implements LikelihoodTree {
 			else
 				altTreeOutput.addNode(node.postOrderIndex, node.time, node.getLoc(), node.getLayout(),node.seq.toString(), node.getType(), node.getTaxonIndex(), -1);
 		}
-
-		return altTreeOutput;
-
 	}
 
 	// sets node layout based on a postorder traversal & number of descendants 
 	public void setLayoutByDescendants() {
+		materialize();
 
 		// sort children so that the child with the more descendants is left most
 		sortChildrenByDescendants();
@@ -1633,6 +2766,7 @@ public class TreeWithLocations implements LikelihoodTree {
 	}	
 
 	public void sortChildrenByDescendants() {		
+		materialize();
 		if (!sortingDone) 
 			sortChildrenByDescendants(root);
 		sortingDone=true;
@@ -1659,6 +2793,7 @@ public class TreeWithLocations implements LikelihoodTree {
 	}
 
 	TreeWithLocations copyWithAllEventsMappedOntoBranches() {
+		materialize();
 		// TODO: organize this
 		TreeWithLocations copyTree = new TreeWithLocations();
 		copyTree.migrationModel=this.migrationModel;
@@ -1679,14 +2814,13 @@ public class TreeWithLocations implements LikelihoodTree {
 		copyTree.asrDone=this.asrDone;
 		copyTree.asrSeqDone=this.asrSeqDone;
 		copyTree.sortingDone=false; // this copy will break node names
-		treeCopyExpandingStocasticMappings(this.root, copyTree.root);  
+		treeCopyExpandingStocasticMappings(this.root, copyTree.root, nodeIndices());  
 		return copyTree;			
 	}
 
-	private void treeCopyExpandingStocasticMappings(TreeWithLocationsNode from, TreeWithLocationsNode to) {
+	private void treeCopyExpandingStocasticMappings(TreeWithLocationsNode from, TreeWithLocationsNode to, IdentityHashMap<TreeWithLocationsNode, Integer> nodeIndices) {
 		// TODO: this...
 
-		to.logProbsCP=from.logProbsCP;
 		to.logProbsLOC=from.logProbsLOC;
 		to.postOrderIndex = 0; // (re-sort after, will break names ...) 
 		to.seq = from.seq;
@@ -1695,18 +2829,17 @@ public class TreeWithLocations implements LikelihoodTree {
 		// to.addChild(locationTreeNode);
 		for (TreeWithLocationsNode child : from.children) {
 			ArrayList<Event> mutationsAndMigrationsSortedByTime = new ArrayList<Event>();
-			for (int cp=0;cp<3;cp++) {
-				if (child.mutations!=null) {
-					for (int loci=0; loci<child.mutations.get(cp).size();loci++) {
-						for (Transition mutation : child.mutations.get(cp).get(loci)) {
-							mutationsAndMigrationsSortedByTime.add(new Event(mutation, TransitionType.MUTATION, loci*3+cp));
-						}
-					}	
+			int index = nodeIndices.get(child);
+			if (mutationLog!=null) {
+				for (int e=mutationLog.branchStart(index);e<mutationLog.branchEnd(index);e++) {
+					mutationsAndMigrationsSortedByTime.add(new Event(new Transition(mutationLog.getTime(e), mutationLog.getTo(e)), TransitionType.MUTATION, mutationLog.getSite(e)));
 				}
 			}
 			
-			for (Transition migration : child.migrations) {
-				mutationsAndMigrationsSortedByTime.add(new Event(migration,TransitionType.MIGRATION,0));																
+			if (migrationLog!=null) {
+				for (int e=migrationLog.branchStart(index);e<migrationLog.branchEnd(index);e++) {
+					mutationsAndMigrationsSortedByTime.add(new Event(new Transition(migrationLog.getTime(e), migrationLog.getTo(e)),TransitionType.MIGRATION,0));																
+				}
 			}
 			
 			Collections.sort(mutationsAndMigrationsSortedByTime, eventOrder);
@@ -1745,7 +2878,7 @@ public class TreeWithLocations implements LikelihoodTree {
 				newChild = new TreeWithLocationsNode(child.seq, child.getLoc(),child.taxonIndex,child.time, parentNode,true);
 			
 			parentNode.children.add(newChild);			
-			treeCopyExpandingStocasticMappings(child, newChild);			
+			treeCopyExpandingStocasticMappings(child, newChild, nodeIndices);			
 		}
 		
 	}
@@ -2,6 +2,7 @@ package seasmig.treelikelihood.trees;
 
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.List;
 
@@ -19,15 +20,13 @@ public class TreeWithLocationsNode implements Serializable, Iterable<TreeWithLoc
 	private int loc = TreeWithLocations.UNKNOWN_LOCATION;
 	public Sequence seq;
 	
-	public double[] logProbsLOC;
-	public double[][][] logProbsCP; // codon position 0,1,2; sequence position TODO: 
+	public double[] logProbsLOC; // log marginal posterior of locations, filled from the flat tree for output (see TreeWithLocations.newickProbs)
 
 	// For stochastic mapping
 	public List<Transition> migrations = null;
-	public ArrayList<ArrayList<ArrayList<Transition>>> mutations = null; // cp (0,1,2)  loci (0,1,2...length/3-1) mutation 0-1 etc..  
 	
 	private boolean isTrunk = false;
-	private Sequence noSequence = new Sequence(0);
+	private static final Sequence noSequence = new Sequence(0); // shared, never set
 	public int postOrderIndex;
 	private float layout;
 	private NodeType type;
@@ -150,19 +149,12 @@ public class TreeWithLocationsNode implements Serializable, Iterable<TreeWithLoc
 	}
 
 	// TODO: (348[&antigenic={-6.00510611736,5.84199000915},rate=1.1478703001047978,states="japan_korea"]:2.44, ....
-	public String parseProbs(double[] rootfreq) {			
+	public String parseProbs() {			
 		String returnValue = "[&prob={";		
 
-		double[] logAncStateProbs = new double[logProbsLOC.length];
+		double[] logAncStateProbs = Arrays.copyOf(logProbsLOC, logProbsLOC.length);
 		double[] logAncProbs = new double[logProbsLOC.length];
 
-		for (int i=0;i<logProbsLOC.length;i++) {	
-			if (getParent()!=null)
-				logAncStateProbs[i] = logProbsLOC[i]+getParent().logProbsLOC[i];
-			else
-				logAncStateProbs[i] = logProbsLOC[i]+rootfreq[i];					
-		}
-
 		double logTotalProb = logSumExp(logAncStateProbs);
 		for (int i=0;i<logProbsLOC.length;i++) {
 			logAncStateProbs[i]=logAncStateProbs[i]-logTotalProb;
@@ -272,4 +264,4 @@ public class TreeWithLocationsNode implements Serializable, Iterable<TreeWithLoc
 	public void setType(NodeType type) {
 		this.type=type;		
 	}
-}
\ No newline at end of file
+}
\ No newline at end of file
@@ -0,0 +1,84 @@
+package seasmig.util;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+// Walker alias table (Vose's construction) for sampling from a fixed discrete distribution in constant time.
+// Outcome i is kept with probability prob[i] and otherwise replaced by alias[i].
+@SuppressWarnings("serial")
+public class AliasTable implements Serializable {
+
+	private double[] prob;
+	private int[] alias;
+
+	protected AliasTable() {};
+
+	// weights need not be normalized, at least one weight must be positive
+	public AliasTable(double[] weights) {
+		int n = weights.length;
+		prob = new double[n];
+		alias = new int[n];
+		double total = 0;
+		for (int i=0;i<n;i++) {
+			total+=Math.max(0, weights[i]);
+		}
+		int[] small = new int[n];
+		int[] large = new int[n];
+		int numSmall = 0;
+		int numLarge = 0;
+		double[] scaled = new double[n];
+		for (int i=0;i<n;i++) {
+			scaled[i]=Math.max(0, weights[i])*n/total;
+			if (scaled[i]<1)
+				small[numSmall++]=i;
+			else
+				large[numLarge++]=i;
+		}
+		while (numSmall>0 && numLarge>0) {
+			int s = small[--numSmall];
+			int l = large[--numLarge];
+			prob[s]=scaled[s];
+			alias[s]=l;
+			scaled[l]=(scaled[l]+scaled[s])-1;
+			if (scaled[l]<1)
+				small[numSmall++]=l;
+			else
+				large[numLarge++]=l;
+		}
+		// leftovers are 1 up to rounding
+		while (numLarge>0) {
+			int l = large[--numLarge];
+			prob[l]=1;
+			alias[l]=l;
+		}
+		while (numSmall>0) {
+			int s = small[--numSmall];
+			prob[s]=(scaled[s]>0 ? 1 : 0);
+			alias[s]=(scaled[s]>0 ? s : firstPositive(weights));
+		}
+	}
+
+	private static int firstPositive(double[] weights) {
+		for (int i=0;i<weights.length;i++) {
+			if (weights[i]>0) return i;
+		}
+		return 0;
+	}
+
+	// Outcome for a uniform draw u in [0,1)
+	public int sample(double u) {
+		double x = u*prob.length;
+		int i = (int) x;
+		if (i>=prob.length) i = prob.length-1;
+		return (x-i<prob[i]) ? i : alias[i];
+	}
+
+	public int size() {
+		return prob.length;
+	}
+
+	public String toString() {
+		return "prob="+Arrays.toString(prob)+" alias="+Arrays.toString(alias);
+	}
+
+}
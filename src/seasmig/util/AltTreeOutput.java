@@ -1,19 +1,34 @@
 package seasmig.util;
 
+import java.io.IOException;
+
 import seasmig.treelikelihood.trees.TreeWithLocationsNode.NodeType;
 
 public class AltTreeOutput {
 
-	private String nodes="";
+	private Appendable nodes; // nodes are written here as they are added
+	private boolean empty = true;
+
+	public AltTreeOutput() {
+		nodes = new StringBuilder();
+	}
+
+	public AltTreeOutput(Appendable nodes_) {
+		nodes = nodes_;
+	}
 
-	public void addNode(int postOrderIndex, double time, int loc, float layout, String seq, NodeType nodeType, int taxonIndex, int parent) {
-		if (nodes.length()>0)
-			nodes+=",";		
-		nodes+="{"+"index:"+Integer.toString(postOrderIndex)+","+"time:"+String.format("%.3f", time)+","+"location:"+Integer.toString(loc)+","+"layout:"+String.format("%.3f", layout)+","+"seq:"+seq+","+"type:"+nodeType+","+"taxon:"+Integer.toString(taxonIndex)+","+"parent:"+Integer.toString(parent)+"}";			
+	public void addNode(int postOrderIndex, double time, int loc, float layout, String seq, NodeType nodeType, int taxonIndex, int parent) throws IOException {
+		if (!empty)
+			nodes.append(",");
+		empty = false;
+		nodes.append("{"+"index:"+Integer.toString(postOrderIndex)+","+"time:"+String.format("%.3f", time)+","+"location:"+Integer.toString(loc)+","+"layout:"+String.format("%.3f", layout)+","+"seq:");
+		nodes.append(seq);
+		nodes.append(","+"type:"+nodeType+","+"taxon:"+Integer.toString(taxonIndex)+","+"parent:"+Integer.toString(parent)+"}");
 	}
 
+	// Nodes added so far if no sink was given
 	public String getNodes() {
-		return nodes;
+		return nodes.toString();
 	}
-	
-}
\ No newline at end of file
+
+}
@@ -0,0 +1,124 @@
+package seasmig.util;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.Future;
+import java.util.concurrent.RecursiveAction;
+
+// Shared fork join pools for likelihood evaluation, sized by the thread budget (config.numThreads).
+// Tasks submitted from within a pool are joined by work stealing, so nested forking does not deadlock.
+public class Parallel {
+
+	// One pool per thread budget, pools are never shut down as tasks of other callers may be running in them
+	private static Map<Integer, ForkJoinPool> pools = new HashMap<Integer, ForkJoinPool>();
+
+	protected Parallel() {};
+
+	public static synchronized ForkJoinPool getPool(int numThreads) {
+		ForkJoinPool pool = pools.get(numThreads);
+		if (pool==null) {
+			pool = new ForkJoinPool(numThreads);
+			pools.put(numThreads, pool);
+		}
+		return pool;
+	}
+
+	// Start task in the pool, result is obtained with join()
+	public static ForkJoinTask<Double> fork(int numThreads, Callable<Double> task) {
+		if (ForkJoinTask.inForkJoinPool()) 
+			return ForkJoinTask.adapt(task).fork();
+		else
+			return getPool(numThreads).submit(task);
+	}
+
+	// Evaluate tasks concurrently, results are returned in task order
+	public static double[] invokeAll(int numThreads, List<Callable<Double>> tasks) {
+		double[] returnValue = new double[tasks.size()];
+		if (numThreads<=1 || tasks.size()<=1) {
+			for (int i=0;i<tasks.size();i++) {
+				try {
+					returnValue[i]=tasks.get(i).call();
+				} catch (Exception e) {
+					e.printStackTrace();
+					System.exit(-1);
+				}
+			}
+			return returnValue;
+		}
+		if (ForkJoinTask.inForkJoinPool()) {
+			List<ForkJoinTask<Double>> forked = new ArrayList<ForkJoinTask<Double>>(tasks.size());
+			for (int i=0;i<tasks.size();i++) {
+				forked.add(ForkJoinTask.adapt(tasks.get(i)).fork());
+			}
+			for (int i=0;i<tasks.size();i++) {
+				returnValue[i]=forked.get(i).join();
+			}
+			return returnValue;
+		}
+		List<Future<Double>> results = getPool(numThreads).invokeAll(tasks);
+		for (int i=0;i<tasks.size();i++) {
+			try {
+				returnValue[i]=results.get(i).get();
+			} catch (InterruptedException e) {
+				e.printStackTrace();
+				System.exit(-1);
+			} catch (ExecutionException e) {
+				e.printStackTrace();
+				System.exit(-1);
+			}
+		}
+		return returnValue;
+	}
+
+	// Body of a parallel loop, called with consecutive ranges [from,to) of the iterations
+	public static interface RangeTask {
+		void run(int from, int to);
+	}
+
+	// Runs body over [0,n) split into ranges of at least grainSize iterations, returns when all are done
+	public static void forRange(int numThreads, int n, int grainSize, RangeTask body) {
+		int chunkSize = Math.max(Math.max(1,grainSize), (n+numThreads*4-1)/(numThreads*4));
+		if (numThreads<=1 || n<=chunkSize) {
+			body.run(0, n);
+			return;
+		}
+		RangeAction action = new RangeAction(body, 0, n, chunkSize);
+		if (ForkJoinTask.inForkJoinPool()) 
+			action.invoke();
+		else
+			getPool(numThreads).invoke(action);
+	}
+
+	@SuppressWarnings("serial")
+	private static class RangeAction extends RecursiveAction {
+		final RangeTask body;
+		final int from;
+		final int to;
+		final int chunkSize;
+
+		RangeAction(RangeTask body, int from, int to, int chunkSize) {
+			this.body=body;
+			this.from=from;
+			this.to=to;
+			this.chunkSize=chunkSize;
+		}
+
+		@Override
+		protected void compute() {
+			if (to-from<=chunkSize) {
+				body.run(from, to);
+			}
+			else {
+				int mid = (from+to)>>>1;
+				invokeAll(new RangeAction(body, from, mid, chunkSize), new RangeAction(body, mid, to, chunkSize));
+			}
+		}
+	}
+
+}
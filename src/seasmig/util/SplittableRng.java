@@ -0,0 +1,94 @@
+package seasmig.util;
+
+import cern.jet.random.engine.RandomEngine;
+
+// SplitMix64 generator (Steele, Lea and Flood 2014) that can be split into statistically independent streams.
+// Not thread safe, each chain or worker thread owns its own instance, so sampling needs no locking and
+// output is reproducible from config.randomSeed regardless of thread scheduling.
+@SuppressWarnings("serial")
+public class SplittableRng extends RandomEngine {
+
+	private static final long GOLDEN_GAMMA = 0x9E3779B97F4A7C15L;
+	private static final double DOUBLE_UNIT = 1.0/(1L<<53);
+
+	// Source of streams for samplers that are not handed a generator (i.e. tests), seeded from the clock
+	private static SplittableRng defaultRoot = new SplittableRng(System.nanoTime()^System.currentTimeMillis());
+
+	private long seed;
+	private long gamma; // odd
+
+	protected SplittableRng() {};
+
+	public SplittableRng(long seed_) {
+		this(seed_, GOLDEN_GAMMA);
+	}
+
+	private SplittableRng(long seed_, long gamma_) {
+		seed = seed_;
+		gamma = gamma_;
+	}
+
+	// Stream index of the generator seeded with seed, i.e. one per chain
+	public static SplittableRng stream(long seed, int index) {
+		SplittableRng root = new SplittableRng(seed);
+		SplittableRng returnValue = root.split();
+		for (int i=0;i<index;i++) {
+			returnValue = root.split();
+		}
+		return returnValue;
+	}
+
+	// New independent stream from the default root
+	public static synchronized SplittableRng newDefault() {
+		return defaultRoot.split();
+	}
+
+	// New generator with an independent stream, advances this one
+	public SplittableRng split() {
+		return new SplittableRng(nextLong(), mixGamma(nextSeed()));
+	}
+
+	private long nextSeed() {
+		return (seed += gamma);
+	}
+
+	public long nextLong() {
+		return mix64(nextSeed());
+	}
+
+	@Override
+	public int nextInt() {
+		return (int) (mix64(nextSeed())>>>32);
+	}
+
+	// Uniform in (0,1), 53 bits
+	@Override
+	public double nextDouble() {
+		return ((nextLong()>>>11)+0.5)*DOUBLE_UNIT;
+	}
+
+	// Uniform in [0,n)
+	public int nextInt(int n) {
+		return (int) (nextDouble()*n);
+	}
+
+	// Exponential with the given rate
+	public double nextExponential(double rate) {
+		return -Math.log(nextDouble())/rate;
+	}
+
+	private static long mix64(long z) {
+		z = (z^(z>>>30))*0xBF58476D1CE4E5B9L;
+		z = (z^(z>>>27))*0x94D049BB133111EBL;
+		return z^(z>>>31);
+	}
+
+	private static long mixGamma(long z) {
+		z = (z^(z>>>33))*0xFF51AFD7ED558CCDL;
+		z = (z^(z>>>33))*0xC4CEB9FE1A85EC53L;
+		z = (z^(z>>>33))|1L;
+		int n = Long.bitCount(z^(z>>>1));
+		return (n<24) ? z^0xAAAAAAAAAAAAAAAAL : z;
+	}
+
+}
@@ -0,0 +1,82 @@
+package seasmig.util;
+
+// Opt-in snapping of transition times to a grid (config.transitionTimeGrid), so that branches of
+// all trees map to a common set of cached transition matrices.
+// Moving the ends of an interval by d changes any transition probability by at most exp(|Q|*|d|)-1,
+// where |Q| is the max absolute row sum of the rate matrix. The largest such bound induced so far is tracked and reported.
+public class TimeQuantization {
+
+	private static double grid = 0; // 0 for exact times
+	private static double maxScaledShift = 0; // max |Q|*|d| over snapped intervals
+	private static double reportedErrorBound = 0;
+
+	protected TimeQuantization() {};
+
+	public static void setGrid(double grid_) {
+		grid = Math.max(0, grid_);
+	}
+
+	public static double getGrid() {
+		return grid;
+	}
+
+	public static boolean isOn() {
+		return grid>0;
+	}
+
+	// Nearest grid point
+	public static double snap(double t) {
+		if (grid<=0) return t;
+		return Math.rint(t/grid)*grid;
+	}
+
+	// Max absolute row sum
+	public static double rateNorm(double[][] Q) {
+		double returnValue = 0;
+		for (int i=0;i<Q.length;i++) {
+			double rowSum = 0;
+			for (int j=0;j<Q[i].length;j++) {
+				rowSum+=Math.abs(Q[i][j]);
+			}
+			returnValue = Math.max(returnValue, rowSum);
+		}
+		return returnValue;
+	}
+
+	// Interval [from,to] with its start and duration snapped to the grid, {snapped from, snapped to},
+	// the shift is recorded for a model with rate norm rateNorm
+	public static double[] snapInterval(double rateNorm, double from, double to) {
+		double snappedFrom = snap(from);
+		double snappedTo = snappedFrom+snap(to-from);
+		recordShift(rateNorm, Math.abs(snappedFrom-from)+Math.abs(snappedTo-to));
+		return new double[]{snappedFrom, snappedTo};
+	}
+
+	// Record that an interval of a model with rate norm rateNorm was moved by a total of shift
+	public static void recordShift(double rateNorm, double shift) {
+		double scaledShift = rateNorm*Math.abs(shift);
+		if (scaledShift>maxScaledShift)
+			updateMaxScaledShift(scaledShift);
+	}
+
+	private static synchronized void updateMaxScaledShift(double scaledShift) {
+		if (scaledShift<=maxScaledShift) return;
+		maxScaledShift = scaledShift;
+		double errorBound = Math.expm1(maxScaledShift);
+		if (errorBound>=2*reportedErrorBound) {
+			reportedErrorBound = errorBound;
+			System.out.println("time quantization (grid="+grid+"): max transition probability error bound "+errorBound);
+		}
+	}
+
+	// Bound on the error of any transition probability over all snapped intervals so far
+	public static synchronized double getMaxErrorBound() {
+		return Math.expm1(maxScaledShift);
+	}
+
+	public static synchronized void resetErrorBound() {
+		maxScaledShift = 0;
+		reportedErrorBound = 0;
+	}
+
+}
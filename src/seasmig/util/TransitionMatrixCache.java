@@ -0,0 +1,187 @@
+package seasmig.util;
+
+import java.io.Serializable;
+
+import cern.colt.matrix.DoubleMatrix2D;
+
+// Bounded cache of transition matrices keyed by one or two times (i.e. branch length, or from/to time).
+// Keys are stored as raw double bits in an open addressing table (linear probing), so lookups do not box or allocate.
+// When full, entries are evicted with the CLOCK (second chance) approximation of LRU.
+// Methods are synchronized, trees of different files may share a model and its cache.
+@SuppressWarnings("serial")
+public class TransitionMatrixCache implements Serializable {
+
+	// Capacity used instead of the per model defaults if >0 (see Config.transitionMatrixCacheCapacity)
+	private static int capacityOverride = 0;
+
+	private static final int EMPTY = -1;
+
+	private int capacity;
+
+	// Entries, filled in order and then replaced in place
+	private long[] key1;
+	private long[] key2;
+	private DoubleMatrix2D[] values;
+	private boolean[] referenced;
+	private int size = 0;
+	private int hand = 0; // CLOCK hand
+
+	// Hash index, entry of each slot or EMPTY
+	private int[] index;
+	private int mask;
+
+	// Statistics
+	private long hits = 0;
+	private long misses = 0;
+	private long evictions = 0;
+
+	protected TransitionMatrixCache() {};
+
+	public TransitionMatrixCache(int defaultCapacity) {
+		capacity = Math.max(1, capacityOverride>0 ? capacityOverride : defaultCapacity);
+		key1 = new long[capacity];
+		key2 = new long[capacity];
+		values = new DoubleMatrix2D[capacity];
+		referenced = new boolean[capacity];
+		int slots = Integer.highestOneBit(capacity*2-1)<<1; // at most half full
+		index = new int[slots];
+		mask = slots-1;
+		for (int i=0;i<slots;i++) {
+			index[i]=EMPTY;
+		}
+	}
+
+	public static void setCapacityOverride(int capacity) {
+		capacityOverride = capacity;
+	}
+
+	public synchronized DoubleMatrix2D get(double t) {
+		return get(t, 0);
+	}
+
+	public synchronized DoubleMatrix2D get(double t1, double t2) {
+		long k1 = Double.doubleToLongBits(t1);
+		long k2 = Double.doubleToLongBits(t2);
+		int slot = find(k1, k2);
+		if (index[slot]==EMPTY) {
+			misses++;
+			return null;
+		}
+		hits++;
+		referenced[index[slot]]=true;
+		return values[index[slot]];
+	}
+
+	public synchronized void put(double t, DoubleMatrix2D value) {
+		put(t, 0, value);
+	}
+
+	public synchronized void put(double t1, double t2, DoubleMatrix2D value) {
+		long k1 = Double.doubleToLongBits(t1);
+		long k2 = Double.doubleToLongBits(t2);
+		int slot = find(k1, k2);
+		if (index[slot]!=EMPTY) { // already cached (i.e. computed concurrently)
+			values[index[slot]]=value;
+			return;
+		}
+		int entry;
+		if (size<capacity) {
+			entry = size++;
+		}
+		else {
+			entry = evict();
+			slot = find(k1, k2); // slots may have moved
+		}
+		key1[entry]=k1;
+		key2[entry]=k2;
+		values[entry]=value;
+		referenced[entry]=false;
+		index[slot]=entry;
+	}
+
+	public synchronized void clear() {
+		for (int i=0;i<index.length;i++) {
+			index[i]=EMPTY;
+		}
+		for (int i=0;i<size;i++) {
+			values[i]=null;
+		}
+		size=0;
+		hand=0;
+	}
+
+	// Slot holding key or the empty slot where it would be inserted
+	private int find(long k1, long k2) {
+		int slot = hash(k1, k2) & mask;
+		while (index[slot]!=EMPTY) {
+			int entry = index[slot];
+			if (key1[entry]==k1 && key2[entry]==k2)
+				return slot;
+			slot = (slot+1) & mask;
+		}
+		return slot;
+	}
+
+	// Frees the first entry from the hand on that was not used since the hand last passed it
+	private int evict() {
+		while (referenced[hand]) {
+			referenced[hand]=false;
+			hand = (hand+1) % capacity;
+		}
+		int entry = hand;
+		hand = (hand+1) % capacity;
+		removeSlot(find(key1[entry], key2[entry]));
+		values[entry]=null;
+		evictions++;
+		return entry;
+	}
+
+	// Backward shift deletion, keeps probe sequences of the remaining keys intact
+	private void removeSlot(int slot) {
+		index[slot]=EMPTY;
+		int next = (slot+1) & mask;
+		while (index[next]!=EMPTY) {
+			int entry = index[next];
+			int home = hash(key1[entry], key2[entry]) & mask;
+			// move entry back if its home slot is not in (slot,next]
+			if (((next-home) & mask) >= ((next-slot) & mask)) {
+				index[slot]=entry;
+				index[next]=EMPTY;
+				slot=next;
+			}
+			next = (next+1) & mask;
+		}
+	}
+
+	private static int hash(long k1, long k2) {
+		long h = k1*0x9E3779B97F4A7C15L + k2;
+		h ^= (h>>>32);
+		h *= 0xD6E8FEB86659FD93L;
+		return (int) (h ^ (h>>>32));
+	}
+
+	public synchronized int size() {
+		return size;
+	}
+
+	public int getCapacity() {
+		return capacity;
+	}
+
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+	public synchronized long getEvictions() {
+		return evictions;
+	}
+
+	public synchronized String toString() {
+		return "size="+size+"/"+capacity+" hits="+hits+" misses="+misses+" evictions="+evictions;
+	}
+
+}
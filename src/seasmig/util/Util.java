@@ -3,6 +3,7 @@ package seasmig.util;
 import java.util.Arrays;
 import java.util.Comparator;
 
+import cern.colt.matrix.DoubleMatrix2D;
 import cern.jet.random.engine.RandomEngine;
 
 public class Util {
@@ -27,6 +28,16 @@ public class Util {
 	}
 	
 	
+	// Copies matrix row major into out starting at offset
+	public static void toArray(DoubleMatrix2D matrix, double[] out, int offset) {
+		int columns = matrix.columns();
+		for (int i=0;i<matrix.rows();i++) {
+			for (int j=0;j<columns;j++) {
+				out[offset+i*columns+j]=matrix.getQuick(i,j);
+			}
+		}
+	}
+
 	static public String print(double[][] Q) {		
 		String returnValue = "{";
 		for (int i=0; i<Q.length;i++) {
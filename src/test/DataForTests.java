@@ -282,7 +282,7 @@ public class DataForTests implements Data {
 				if (stateMap==null) {
 					for (jebl.evolution.trees.Tree tree : nexsusTreeTail) {
 						HashMap<String, Sequence> seqMap = new HashMap<String,Sequence>();
-						trees.get(0).add(new TreeWithLocations((SimpleRootedTree) tree,taxaIndices,locationMap,numLocations,config.lastTipTime[0],seqMap,0,config, null, null));
+						trees.get(0).add(new TreeWithLocations((SimpleRootedTree) tree,taxaIndices,locationMap,numLocations,config.lastTipTime[0],seqMap,0,null,config, null, null));
 					}
 				}
 				else {
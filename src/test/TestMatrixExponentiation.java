@@ -2,6 +2,9 @@ package test;
 
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 
 import java.util.Vector;
 
@@ -11,13 +14,20 @@ import seasmig.treelikelihood.MatrixExponentiator;
 import seasmig.treelikelihood.matrixexp.AnalyticMatrixExp2;
 import seasmig.treelikelihood.matrixexp.AnalyticMatrixExp3;
 import seasmig.treelikelihood.matrixexp.EigenDecomposionExp;
+import seasmig.treelikelihood.matrixexp.ExpmvMatrixExp;
 import seasmig.treelikelihood.matrixexp.HKY85MatrixExp;
 import seasmig.treelikelihood.matrixexp.JC69MatrixExp;
 import seasmig.treelikelihood.matrixexp.JamaMolerMatrixExp;
 import seasmig.treelikelihood.matrixexp.JblasMatrixExp;
 import seasmig.treelikelihood.matrixexp.Matlab7MatrixExp;
 import seasmig.treelikelihood.matrixexp.TaylorMatrixExp;
+import seasmig.treelikelihood.transitionmodels.ConstantTransitionBaseModel;
+import seasmig.treelikelihood.transitionmodels.TwoSeasonMigrationBaseModel;
+import seasmig.util.TimeQuantization;
+import seasmig.util.TransitionMatrixCache;
 import seasmig.util.Util;
+import cern.colt.matrix.DoubleFactory2D;
+import cern.colt.matrix.DoubleMatrix2D;
 
 public class TestMatrixExponentiation {
 	// TODO: Organize this....
@@ -239,6 +249,167 @@ public class TestMatrixExponentiation {
 
 	}	
 
+	@Test
+	public void testBatchExpm() {
+		// batch expm into a strided table should match single expm calls
+		double[] times = new double[(int) numTimeSteps];
+		for (int i=0;i<times.length;i++) {
+			times[i]=minTime+i*(maxTime-minTime)/numTimeSteps;
+		}
+		Vector<MatrixExponentiator> tests = new Vector<MatrixExponentiator>();
+		for (int numLocations : new int[]{4,7,20}) {
+			tests.add(new EigenDecomposionExp(DataForTests.makeRandomMigrationMatrix(numLocations,1.0)));
+		}
+		tests.add(new HKY85MatrixExp(1.5, 2.0, 0.15, 0.15, 0.36));
+		tests.add(new JC69MatrixExp(0.1));
+
+		for (MatrixExponentiator expMethod : tests) {
+			int n = expMethod.expm(0).rows();
+			int stride = 2*n*n+1;
+			double[] out = new double[1+times.length*stride];
+			expMethod.expm(times, 1, times.length, out, 1, stride);
+			assertEquals(0, out[1], 0); // times[0] is not computed
+			for (int b=1;b<times.length;b++) {
+				double[][] expected = expMethod.expm(times[b]).toArray();
+				for (int i=0;i<n;i++) {
+					for (int j=0;j<n;j++) {
+						assertEquals(expected[i][j], out[1+b*stride+i*n+j], 1E-12);
+					}
+				}
+			}
+		}
+	}
+
+	@Test
+	public void testTransitionMatrixCache() {
+		TransitionMatrixCache cache = new TransitionMatrixCache(100);
+		DoubleMatrix2D[] matrices = new DoubleMatrix2D[300];
+		for (int i=0;i<matrices.length;i++) {
+			matrices[i] = DoubleFactory2D.dense.make(1,1,i);
+		}
+
+		// two keys, distinct by either time or by sign of zero
+		cache.put(0.5, 1.0, matrices[0]);
+		cache.put(1.0, 0.5, matrices[1]);
+		cache.put(-0.0, 0.5, matrices[2]);
+		assertTrue(cache.get(0.5, 1.0)==matrices[0]);
+		assertTrue(cache.get(1.0, 0.5)==matrices[1]);
+		assertTrue(cache.get(-0.0, 0.5)==matrices[2]);
+		assertNull(cache.get(0.0, 0.5));
+		assertEquals(3, cache.getHits());
+		assertEquals(1, cache.getMisses());
+		cache.clear();
+		assertEquals(0, cache.size());
+		assertNull(cache.get(0.5, 1.0));
+
+		// keep a hot set referenced while filling the cache 3 times over
+		for (int i=0;i<matrices.length;i++) {
+			cache.put(i*0.1, matrices[i]);
+			for (int j=0;j<10 && j<=i;j++) {
+				assertTrue(cache.get(j*0.1)==matrices[j]);
+			}
+		}
+		assertEquals(100, cache.size());
+		assertEquals(200, cache.getEvictions());
+		for (int j=0;j<10;j++) {
+			assertTrue(cache.get(j*0.1)==matrices[j]);
+		}
+		// remaining entries must still be found after backward shift deletions
+		int found = 0;
+		for (int i=0;i<matrices.length;i++) {
+			DoubleMatrix2D cached = cache.get(i*0.1);
+			if (cached!=null) {
+				assertTrue(cached==matrices[i]);
+				found++;
+			}
+		}
+		assertEquals(100, found);
+		assertNotNull(cache.get(299*0.1));
+	}
+
+	@Test
+	public void testTimeQuantization() {
+		double[][] Q = {{-1.0,0.5,0.3,0.2},{0.4,-0.9,0.3,0.2},{0.2,0.2,-0.6,0.2},{1.0,0.1,0.4,-1.5}};
+		double[][] Q2 = {{-0.2,0.1,0.05,0.05},{0.1,-0.3,0.1,0.1},{0.3,0.2,-0.6,0.1},{0.5,0.1,0.4,-1.0}};
+		double grid = 1E-3;
+		TimeQuantization.setGrid(grid);
+		TimeQuantization.resetErrorBound();
+		try {
+			ConstantTransitionBaseModel model = new ConstantTransitionBaseModel(Q);
+			MatrixExponentiator exact = new EigenDecomposionExp(Q);
+			// durations in the same grid cell share a cached matrix, within the error bound of the exact one
+			DoubleMatrix2D P1 = model.transitionMatrix(2005.1234, 2005.6786);
+			DoubleMatrix2D P2 = model.transitionMatrix(2007.0, 2007.5548);
+			assertTrue(P1==P2);
+			double maxError = 0;
+			for (double t : new double[]{0.5552, 0.5548}) {
+				DoubleMatrix2D P = exact.expm(t);
+				for (int i=0;i<4;i++) {
+					for (int j=0;j<4;j++) {
+						maxError = Math.max(maxError, Math.abs(P.get(i,j)-P1.get(i,j)));
+					}
+				}
+			}
+			assertTrue(maxError>0);
+			assertTrue(maxError<=TimeQuantization.getMaxErrorBound());
+			assertTrue(TimeQuantization.getMaxErrorBound()<=Math.expm1(TimeQuantization.rateNorm(Q)*grid/2)+1E-15);
+
+			// seasonal models share matrices between years with the same snapped phase and duration
+			TwoSeasonMigrationBaseModel seasonalModel = new TwoSeasonMigrationBaseModel(Q,Q2,0.25,0.75);
+			DoubleMatrix2D S1 = seasonalModel.transitionMatrix(2005.30002, 2005.90004);
+			DoubleMatrix2D S2 = seasonalModel.transitionMatrix(2009.29998, 2009.89997);
+			assertTrue(S1==S2);
+
+			// batch quantized exponentiation matches single lookups 
+			double[] out = new double[3*16];
+			model.transitionMatrices(new double[]{0,1,2}, new double[]{0.10001,1.2,2.30004}, 0, 3, out, 0, 16);
+			for (int b=0;b<3;b++) {
+				DoubleMatrix2D P = model.transitionMatrix(b, b+0.1*(b+1));
+				for (int i=0;i<4;i++) {
+					for (int j=0;j<4;j++) {
+						assertEquals(P.get(i,j), out[b*16+i*4+j], 0);
+					}
+				}
+			}
+		}
+		finally {
+			TimeQuantization.setGrid(0);
+			TimeQuantization.resetErrorBound();
+		}
+	}
+
+	@Test
+	public void testExpmv() {
+		// action of exp(Q*t) on vectors against dense Pade exponentiation
+		for (int n : new int[]{4,20,60}) {
+			double[][] Q = DataForTests.makeRandomMigrationMatrix(n, 1.0);
+			ExpmvMatrixExp expmv = new ExpmvMatrixExp(Q);
+			MatrixExponentiator dense = new Matlab7MatrixExp(Q);
+			for (double t : new double[]{0, 0.01, 0.7, 5.0}) {
+				double[][] P = dense.expm(t).toArray();
+				assertEqualMatrixExp(expmv, dense, expmv.expm(t).toArray(), P, Q, t, 1E-9);
+				double[] v = new double[n+1];
+				for (int i=0;i<n;i++) {
+					v[i+1]=Math.random();
+				}
+				double[] col = new double[n];
+				double[] row = new double[n];
+				expmv.expmv(t, v, 1, col, 0);
+				expmv.vexpm(t, v, 1, row, 0);
+				for (int i=0;i<n;i++) {
+					double expectedCol = 0;
+					double expectedRow = 0;
+					for (int j=0;j<n;j++) {
+						expectedCol+=P[i][j]*v[j+1];
+						expectedRow+=v[j+1]*P[j][i];
+					}
+					assertEquals(expectedCol, col[i], 1E-9);
+					assertEquals(expectedRow, row[i], 1E-9);
+				}
+			}
+		}
+	}
+
 	private void assertEqualMatrixExp(MatrixExponentiator matrixExp1, MatrixExponentiator matrixExp2, 
 			double[][] mat1, double[][] mat2, double[][] Q, double t, double tol) {
 		assertEquals(mat1.length,mat2.length,0);
@@ -1,16 +1,46 @@
 package test;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.logging.Logger;
+
+import mc3kit.Chain;
+import mc3kit.DoubleVariable;
+import mc3kit.Model;
+import mc3kit.Variable;
 
 import org.junit.Test;
 
+import seasmig.data.Data;
+import seasmig.migrationmain.Config;
+import seasmig.models.TreesLikelihoodVariable;
+import seasmig.models.TreesLikelihoodVariable.TreesLikelihoodVariableOutputObject;
+import seasmig.models.migrationandsequencemodels.HKY_3CP_ConstantMigrationRates;
+import seasmig.treelikelihood.ConstantRateModel;
+import seasmig.treelikelihood.LikelihoodTree;
 import seasmig.treelikelihood.TransitionModel;
 import seasmig.treelikelihood.TransitionModel.Transition;
 import seasmig.treelikelihood.transitionmodels.ConstantTransitionBaseModel;
+import seasmig.treelikelihood.transitionmodels.MarkovJumpExpectation;
+import seasmig.treelikelihood.transitionmodels.SinusoidialSeasonalMigrationBaseModel;
 import seasmig.treelikelihood.transitionmodels.TwoSeasonMigrationBaseModel;
+import seasmig.treelikelihood.trees.AlignmentStore;
+import seasmig.treelikelihood.trees.EventLog;
 import seasmig.treelikelihood.trees.Sequence;
+import seasmig.treelikelihood.trees.SitePatterns;
 import seasmig.treelikelihood.trees.TreeWithLocations;
 import seasmig.treelikelihood.trees.TreeWithLocationsNode;
+import seasmig.util.Parallel;
+import seasmig.util.SplittableRng;
+import seasmig.util.Util;
+import cern.jet.random.engine.MersenneTwister;
+import cern.jet.random.engine.RandomEngine;
 
 
 public class TreeWithLocationsTest {
@@ -429,14 +459,429 @@ public class TreeWithLocationsTest {
 //		assertEquals(0.33333333333333,a[1], 0.01 ); // TODO:
 //		assertEquals(0.33333333333333,a[2], 0.01 ); // TODO:
 //		assertEquals(0.33333333333333,a[3], 0.01 ); // TODO:
-		assertEquals(13.333,interval[0], 0.1);
-		assertEquals(13.333,interval[1], 0.1 );
-		assertEquals(13.333,interval[2], 0.1 );
-		assertEquals(13.333,interval[3], 0.1 );
+		// mean waiting times are 1/-Q[i][i], exit rates of this model are 0.0625, 0.0875, 0.075 and 0.075 
+		assertEquals(1/0.0625,interval[0], 0.1);
+		assertEquals(1/0.0875,interval[1], 0.1 );
+		assertEquals(1/0.075,interval[2], 0.1 );
+		assertEquals(1/0.075,interval[3], 0.1 );
 		
 		// TODO: better test
 	}
 	
+	@Test
+	public void testNextEventHolder() throws Exception {
+		// Jumps drawn from alias tables into a reused holder follow the rows of Q
+		double[][] Q = new double[][]{{-1,0.2,0.8},
+				{ 0.333333,-0.5,0.166667},
+				{ 1.333333,0.333333,-1.666666}};
+		TransitionModel model = new ConstantTransitionBaseModel(Q);
+		Transition event = new Transition(0, 0);
+		SplittableRng rng = new SplittableRng(1234);
+		int numSamples = 200000;
+		for (int from=0;from<3;from++) {
+			double[] a = new double[3];
+			double interval = 0;
+			for (int i=0;i<numSamples;i++) {
+				assertTrue(model.nextEvent(1.0, from, event, rng)==event);
+				a[event.toTrait]+=1.0/numSamples;
+				interval+=(event.time-1.0)/numSamples;
+			}
+			assertEquals(0, a[from], 0);
+			for (int to=0;to<3;to++) {
+				if (to!=from) assertEquals(-Q[from][to]/Q[from][from], a[to], 0.01);
+			}
+			assertEquals(-1.0/Q[from][from], interval, 0.02/-Q[from][from]);
+		}
+	}
+	
+	@Test
+	public void testSeasonalNextEvent() throws Exception {
+		// Paths of next events drawn part by part of the year end in states distributed as the transition matrix
+		double[][] rates = new double[][]{{0,0.4,0.6},{0.3,0,0.5},{1.2,0.2,0}};
+		double[][] amp = new double[][]{{0,0.9,0.5},{0.8,0,0.3},{0.6,0.9,0}};
+		double[][] phase = new double[][]{{0,0.1,0.7},{0.4,0,0.2},{0.9,0.5,0}};
+		TransitionModel model = new SinusoidialSeasonalMigrationBaseModel(rates, amp, phase);
+		Transition event = new Transition(0, 0);
+		SplittableRng rng = new SplittableRng(1234);
+		int numSamples = 200000;
+		double fromTime = 0.3;
+		double toTime = 1.45;
+		for (int from=0;from<3;from++) {
+			double[] a = new double[3];
+			for (int i=0;i<numSamples;i++) {
+				int state = from;
+				double time = fromTime;
+				while (true) {
+					assertTrue(model.nextEvent(time, state, event, rng)==event);
+					assertTrue(event.time>time);
+					if (event.time>=toTime) break;
+					state = event.toTrait;
+					time = event.time;
+				}
+				a[state]+=1.0/numSamples;
+			}
+			for (int to=0;to<3;to++) {
+				assertEquals(model.transitionMatrix(fromTime, toTime).get(from, to), a[to], 0.01);
+			}
+		}
+	}
+	
+	@Test
+	public void testEndpointConditionedEvents() throws Exception {
+		/*
+		 Paths sampled by uniformization should end in the requested state and match 
+		 the rejection sampler in distribution (mean number of migrations and time spent in location 2).
+		 */
+		TransitionModel model = new ConstantTransitionBaseModel(new double[][]{{-1,0.2,0.8},
+				{ 0.333333,-0.5,0.166667},
+				{ 1.333333,0.333333,-1.666666}});
+		SplittableRng rng = new SplittableRng(4321);
+		int numSamples = 50000;
+		double fromTime = 1.0;
+		double toTime = 2.5;
+		double[] meanEvents = new double[2];
+		double[] meanDwelling = new double[2];
+		for (int i=0;i<numSamples;i++) {
+			ArrayList<Transition> events = model.endpointConditionedEvents(0, 1, fromTime, toTime, rng);
+			assertTrue(events!=null);
+			int current = 0;
+			double currentTime = fromTime;
+			for (Transition event : events) {
+				assertTrue(event.toTrait!=current);
+				assertTrue(event.time>=currentTime && event.time<=toTime);
+				if (current==2) meanDwelling[0]+=(event.time-currentTime)/numSamples;
+				current = event.toTrait;
+				currentTime = event.time;
+			}
+			assertEquals(1, current);
+			meanEvents[0]+=(double) events.size()/numSamples;
+
+			// rejection sampling
+			do {
+				events.clear();
+				current = 0;
+				currentTime = fromTime;
+				Transition event = model.nextEvent(currentTime, current);
+				while (event.time<toTime) {
+					events.add(event);
+					current = event.toTrait;
+					currentTime = event.time;
+					event = model.nextEvent(currentTime, current);
+				}
+			} while (current!=1);
+			current = 0;
+			currentTime = fromTime;
+			for (Transition event : events) {
+				if (current==2) meanDwelling[1]+=(event.time-currentTime)/numSamples;
+				current = event.toTrait;
+				currentTime = event.time;
+			}
+			meanEvents[1]+=(double) events.size()/numSamples;
+		}
+		assertEquals(meanEvents[1], meanEvents[0], 0.05);
+		assertEquals(meanDwelling[1], meanDwelling[0], 0.01);
+
+		// Seasonal model, with a free end state the end of sampled paths follows the transition matrix
+		TransitionModel seasonalModel = new TwoSeasonMigrationBaseModel(new double[][]{{-1,0.2,0.8},
+				{ 0.333333,-0.5,0.166667},
+				{ 1.333333,0.333333,-1.666666}}, 
+				new double[][]{{-0.2,0.1,0.1},
+				{ 2.0,-3.0,1.0},
+				{ 0.5,0.5,-1.0}}, 0.3, 0.7);
+		double[] endFreq = new double[3];
+		for (int i=0;i<numSamples;i++) {
+			ArrayList<Transition> events = seasonalModel.endpointConditionedEvents(1, -1, 2005.2, 2006.9, rng);
+			int current = 1;
+			double currentTime = 2005.2;
+			for (Transition event : events) {
+				assertTrue(event.toTrait!=current);
+				assertTrue(event.time>=currentTime && event.time<=2006.9);
+				current = event.toTrait;
+				currentTime = event.time;
+			}
+			endFreq[current]+=1.0/numSamples;
+		}
+		for (int i=0;i<3;i++) {
+			assertEquals(seasonalModel.transitionMatrix(2005.2, 2006.9).get(1, i), endFreq[i], 0.01);
+		}
+		ArrayList<Transition> events = seasonalModel.endpointConditionedEvents(2, 0, 2005.2, 2006.9, rng);
+		assertTrue(events.size()>0);
+		assertEquals(0, events.get(events.size()-1).toTrait);
+
+		// Long branch, with more jumps than the cached powers of R
+		events = model.endpointConditionedEvents(0, 2, 0, 20000, rng);
+		assertTrue(events.size()>1000);
+		int current = 0;
+		for (Transition event : events) {
+			assertTrue(event.toTrait!=current);
+			current = event.toTrait;
+		}
+		assertEquals(2, current);
+	}
+
+	@Test
+	public void testNoChangeFastPath() throws Exception {
+		/*
+		 Drawing no change with probability exp(q_ii*t)/P_ii(t) and otherwise a path with at least one change 
+		 should match endpoint conditioned paths from state 1 to itself in distribution.
+		 */
+		double[][] Q = new double[][]{{-1,0.2,0.8},
+				{ 0.333333,-0.5,0.166667},
+				{ 1.333333,0.333333,-1.666666}};
+		ConstantTransitionBaseModel model = new ConstantTransitionBaseModel(Q);
+		SplittableRng rng = new SplittableRng(5678);
+		int numSamples = 50000;
+		double fromTime = 1.0;
+		double toTime = 3.0;
+		double noChange = Math.exp(Q[1][1]*(toTime-fromTime))/model.transitionMatrix(fromTime, toTime).get(1, 1);
+		double[] meanEvents = new double[2];
+		for (int i=0;i<numSamples;i++) {
+			if (rng.nextDouble()>=noChange) {
+				ArrayList<Transition> events = model.getUniformizationSampler().sampleWithChange(1, fromTime, toTime, rng);
+				assertTrue(events.size()>0);
+				assertEquals(1, events.get(events.size()-1).toTrait);
+				int current = 1;
+				for (Transition event : events) {
+					assertTrue(event.toTrait!=current);
+					current = event.toTrait;
+				}
+				meanEvents[0]+=(double) events.size()/numSamples;
+			}
+			meanEvents[1]+=(double) model.endpointConditionedEvents(1, 1, fromTime, toTime, rng).size()/numSamples;
+		}
+		assertEquals(meanEvents[1], meanEvents[0], 0.03);
+	}
+	
+	@Test
+	public void testMarkovJumpExpectation() throws Exception {
+		/*
+		 Expected migrations and dwelling times of a branch with given end states should match the means 
+		 of endpoint conditioned paths, for distinct real eigenvalues, for complex eigenvalues (block exponential) 
+		 and for a seasonal model (constant pieces). Dwelling times add up to the branch length.
+		 */
+		double[][][] Qs = new double[][][]{{{-1,0.2,0.8},
+				{ 0.333333,-0.5,0.166667},
+				{ 1.333333,0.333333,-1.666666}},
+				{{-1,1,0},{0,-1,1},{1,0,-1}}};
+		boolean[] usesEigenDecomposition = new boolean[]{true,false};
+		SplittableRng rng = new SplittableRng(2468);
+		int numSamples = 50000;
+		double fromTime = 1.0;
+		double toTime = 2.5;
+		for (int q=0;q<Qs.length;q++) {
+			ConstantTransitionBaseModel model = new ConstantTransitionBaseModel(Qs[q]);
+			MarkovJumpExpectation expectation = model.getMarkovJumpExpectation();
+			assertEquals(usesEigenDecomposition[q], expectation.usesEigenDecomposition());
+			double[] jumps = new double[9];
+			double[] dwellings = new double[3];
+			assertTrue(expectation.addExpectations(new double[]{1,0,0}, new double[]{0,1,0}, toTime-fromTime, jumps, dwellings));
+			double[] sampledJumps = new double[9];
+			double[] sampledDwellings = new double[3];
+			for (int i=0;i<numSamples;i++) {
+				addSampledPath(model.endpointConditionedEvents(0, 1, fromTime, toTime, rng), 0, fromTime, toTime, numSamples, sampledJumps, sampledDwellings);
+			}
+			for (int i=0;i<9;i++) {
+				assertEquals(sampledJumps[i], jumps[i], 0.02);
+			}
+			for (int i=0;i<3;i++) {
+				assertEquals(sampledDwellings[i], dwellings[i], 0.01);
+			}
+			assertEquals(toTime-fromTime, dwellings[0]+dwellings[1]+dwellings[2], 1E-9);
+		}
+
+		TransitionModel seasonalModel = new TwoSeasonMigrationBaseModel(Qs[0], 
+				new double[][]{{-0.2,0.1,0.1},
+				{ 2.0,-3.0,1.0},
+				{ 0.5,0.5,-1.0}}, 0.3, 0.7);
+		List<Double> times = new ArrayList<Double>();
+		List<ConstantRateModel> models = new ArrayList<ConstantRateModel>();
+		seasonalModel.constantSegments(2005.2, 2006.9, times, models);
+		assertEquals(5, models.size());
+		double[] jumps = new double[9];
+		double[] dwellings = new double[3];
+		assertTrue(MarkovJumpExpectation.addExpectations(times, models, new double[]{0,0,1}, new double[]{1,0,0}, jumps, dwellings));
+		double[] sampledJumps = new double[9];
+		double[] sampledDwellings = new double[3];
+		for (int i=0;i<numSamples;i++) {
+			addSampledPath(seasonalModel.endpointConditionedEvents(2, 0, 2005.2, 2006.9, rng), 2, 2005.2, 2006.9, numSamples, sampledJumps, sampledDwellings);
+		}
+		for (int i=0;i<9;i++) {
+			assertEquals(sampledJumps[i], jumps[i], 0.02);
+		}
+		for (int i=0;i<3;i++) {
+			assertEquals(sampledDwellings[i], dwellings[i], 0.01);
+		}
+		assertEquals(2006.9-2005.2, dwellings[0]+dwellings[1]+dwellings[2], 1E-9);
+	}
+
+	private static void addSampledPath(ArrayList<Transition> events, int from, double fromTime, double toTime, int numSamples, double[] jumps, double[] dwellings) {
+		int current = from;
+		double currentTime = fromTime;
+		for (Transition event : events) {
+			jumps[current*3+event.toTrait]+=1.0/numSamples;
+			dwellings[current]+=(event.time-currentTime)/numSamples;
+			current = event.toTrait;
+			currentTime = event.time;
+		}
+		dwellings[current]+=(toTime-currentTime)/numSamples;
+	}
+
+	@Test
+	public void testExactMappingExpectation() throws Exception {
+		/*
+		    --
+		   /  \
+		  0    1
+		 
+		 Expected migrations of the tree should match stochastic mapping averaged over root states drawn 
+		 given the tips, total expected dwelling time is the total branch length.
+		 */
+		double[][] Q = new double[][]{{-1,0.2,0.8},
+				{ 0.333333,-0.5,0.166667},
+				{ 1.333333,0.333333,-1.666666}};
+		ConstantTransitionBaseModel locModel = new ConstantTransitionBaseModel(Q);
+		TreeWithLocationsNode root = new TreeWithLocationsNode(null,TreeWithLocations.UNKNOWN_LOCATION,TreeWithLocations.UNKNOWN_TAXA,0.0,null,false);
+		TreeWithLocationsNode tip0 = new TreeWithLocationsNode(null,0,TreeWithLocations.UNKNOWN_TAXA,1.2,root,false);
+		TreeWithLocationsNode tip1 = new TreeWithLocationsNode(null,1,TreeWithLocations.UNKNOWN_TAXA,0.7,root,false);
+		root.addChild(tip0);
+		root.addChild(tip1);
+		Config config = new Config();
+		config.migrationModelType = Config.MigrationModelType.CONSTANT;
+		TreeWithLocations tree = new TreeWithLocations(root, 3, 0, config);
+		tree.setMigrationModel(locModel);
+		tree.locLogLikelihood();
+		double[] jumps = parseNumbers(tree.expectedTransitions());
+		double[] dwellings = parseNumbers(tree.expectedDwellings());
+		assertEquals(9, jumps.length);
+		assertEquals(1.2+0.7, dwellings[0]+dwellings[1]+dwellings[2], 0.002);
+
+		SplittableRng rng = new SplittableRng(1357);
+		int numSamples = 50000;
+		double[] rootWeights = new double[3];
+		for (int r=0;r<3;r++) {
+			rootWeights[r]=locModel.rootfreq(0.0).get(r)*locModel.transitionMatrix(0.0, 1.2).get(r, 0)*locModel.transitionMatrix(0.0, 0.7).get(r, 1);
+		}
+		double[] sampledJumps = new double[9];
+		double[] sampledDwellings = new double[3];
+		for (int i=0;i<numSamples;i++) {
+			double u = rng.nextDouble()*(rootWeights[0]+rootWeights[1]+rootWeights[2]);
+			int r = (u<rootWeights[0] ? 0 : (u<rootWeights[0]+rootWeights[1] ? 1 : 2));
+			addSampledPath(locModel.endpointConditionedEvents(r, 0, 0.0, 1.2, rng), r, 0.0, 1.2, numSamples, sampledJumps, sampledDwellings);
+			addSampledPath(locModel.endpointConditionedEvents(r, 1, 0.0, 0.7, rng), r, 0.0, 0.7, numSamples, sampledJumps, sampledDwellings);
+		}
+		for (int i=0;i<9;i++) {
+			assertEquals(sampledJumps[i], jumps[i], 0.02);
+		}
+		for (int i=0;i<3;i++) {
+			assertEquals(sampledDwellings[i], dwellings[i], 0.01);
+		}
+		assertTrue(tree.newickExpectation().startsWith("(-1[&jumps={{0.000,"));
+	}
+
+	private static double[] parseNumbers(String braces) {
+		String[] values = braces.replace("{", "").replace("}", "").split(",");
+		double[] returnValue = new double[values.length];
+		for (int i=0;i<values.length;i++) {
+			returnValue[i]=Double.parseDouble(values[i]);
+		}
+		return returnValue;
+	}
+
+	@Test
+	public void testMarginalPosteriors() throws Exception {
+		/*
+		      root
+		     /    \
+		    m      C
+		   / \
+		  A   B
+		 
+		 Marginal posteriors of the locations of root and m and of the nucleotides of all nodes 
+		 (including tips with ambiguous nucleotides) from the outside pass, compared to enumeration 
+		 of the states of all nodes, for log and scaled partials.
+		 */
+		double[][] Q = new double[][]{{-1,0.2,0.8},
+				{ 0.333333,-0.5,0.166667},
+				{ 1.333333,0.333333,-1.666666}};
+		TransitionModel locModel = new ConstantTransitionBaseModel(Q);
+		TransitionModel[] codonModel = new TransitionModel[]{new ConstantTransitionBaseModel(1.0, 2.0, 0.2, 0.3, 0.3),
+				new ConstantTransitionBaseModel(0.5, 3.0, 0.25, 0.25, 0.25),
+				new ConstantTransitionBaseModel(2.0, 1.0, 0.1, 0.4, 0.2)};
+		String[] seqs = new String[]{"ACGTR","RCNTA","GC-AA"};
+		int seqLength = 5;
+		double[] times = new double[]{0.0, 0.4, 1.1, 0.9, 1.5}; // root, m, A, B, C
+		int[] parents = new int[]{-1, 0, 1, 1, 0};
+		int[] locs = new int[]{TreeWithLocations.UNKNOWN_LOCATION, TreeWithLocations.UNKNOWN_LOCATION, 0, 2, 1};
+
+		for (Config.PartialsMode partialsMode : Config.PartialsMode.values()) {
+			TreeWithLocationsNode[] nodes = new TreeWithLocationsNode[5];
+			for (int i=0;i<5;i++) {
+				Sequence seq = (i<2 ? new Sequence(seqLength) : new Sequence("TIP"+i, seqs[i-2]));
+				nodes[i] = new TreeWithLocationsNode(seq,locs[i],TreeWithLocations.UNKNOWN_TAXA,times[i],(i==0 ? null : nodes[parents[i]]),true);
+				if (i>0) nodes[parents[i]].addChild(nodes[i]);
+			}
+			Config config = new Config();
+			config.partialsMode = partialsMode;
+			TreeWithLocations tree = new TreeWithLocations(nodes[0], 3, seqLength, config);
+			tree.setMigrationModel(locModel);
+			tree.setCodonModel(codonModel);
+			tree.locLogLikelihood();
+			tree.seqLogLikelihood();
+
+			// locations
+			double[][] expected = new double[2][3];
+			double total = 0;
+			for (int r=0;r<3;r++) {
+				for (int m=0;m<3;m++) {
+					double p = locModel.rootfreq(0.0).get(r)*locModel.transitionMatrix(times[0], times[1]).get(r, m)*
+							locModel.transitionMatrix(times[1], times[2]).get(m, locs[2])*locModel.transitionMatrix(times[1], times[3]).get(m, locs[3])*
+							locModel.transitionMatrix(times[0], times[4]).get(r, locs[4]);
+					expected[0][r]+=p;
+					expected[1][m]+=p;
+					total+=p;
+				}
+			}
+			for (int n=0;n<2;n++) {
+				double[] posterior = tree.locationPosterior(nodes[n]);
+				for (int i=0;i<3;i++) {
+					assertEquals(expected[n][i]/total, posterior[i], 1E-9);
+				}
+			}
+			assertEquals(1.0, tree.locationPosterior(nodes[2])[0], 1E-9);
+
+			// nucleotides
+			for (int site=0;site<seqLength;site++) {
+				TransitionModel model = codonModel[site%3];
+				double[][] expectedNucs = new double[5][4];
+				double totalNucs = 0;
+				int[] states = new int[5];
+				for (int s=0;s<4*4*4*4*4;s++) {
+					for (int i=0, rest=s;i<5;i++, rest/=4) {
+						states[i]=rest%4;
+					}
+					double p = model.rootfreq(0.0).get(states[0]);
+					for (int i=1;i<5;i++) {
+						p*=model.transitionMatrix(times[parents[i]], times[i]).get(states[parents[i]], states[i]);
+						if (i>=2) p*=Math.exp(nodes[i].seq.get(site)[states[i]]);
+					}
+					for (int i=0;i<5;i++) {
+						expectedNucs[i][states[i]]+=p;
+					}
+					totalNucs+=p;
+				}
+				for (int n=0;n<5;n++) {
+					double[] posterior = tree.nucleotidePosterior(nodes[n], site);
+					for (int i=0;i<4;i++) {
+						assertEquals(expectedNucs[n][i]/totalNucs, posterior[i], 1E-9);
+					}
+				}
+			}
+
+			// PROBS output is the marginal posterior
+			assertTrue(tree.newickProbs().endsWith(String.format("[&prob={%.3f,%.3f,%.3f}]:0.000", expected[0][0]/total, expected[0][1]/total, expected[0][2]/total)));
+		}
+	}
+
 	@Test
 	public void testLikelihoodWithSeq() throws Exception {
 		/* 
@@ -501,6 +946,357 @@ public class TreeWithLocationsTest {
 		assertEquals(expectedResult, logLikelihood,0.01);			
 	}
 	
+	@Test
+	public void testSplitLikelihoodVariables() throws Exception {
+		// Location and sequence likelihood variables add up to the likelihood of the tree, a migration rate
+		// change doesn't change the sequence likelihood and a codon model change doesn't change the location likelihood
+		TreeWithLocationsNode root = new TreeWithLocationsNode(new Sequence(6), TreeWithLocations.UNKNOWN_LOCATION,TreeWithLocations.UNKNOWN_TAXA,0.0,null,true);		
+		root.addChild(new TreeWithLocationsNode(new Sequence("S0","AGTCCA"),0,TreeWithLocations.UNKNOWN_TAXA,1.0,root,true));
+		root.addChild(new TreeWithLocationsNode(new Sequence(6),TreeWithLocations.UNKNOWN_LOCATION,TreeWithLocations.UNKNOWN_TAXA,0.5,root,true));
+		root.children.get(1).addChild(new TreeWithLocationsNode(new Sequence("S1","CTGCAN"), 1,TreeWithLocations.UNKNOWN_TAXA,2.0,root.children.get(1),true));
+		root.children.get(1).addChild(new TreeWithLocationsNode(new Sequence("S2","AGGTCA"),2,TreeWithLocations.UNKNOWN_TAXA,1.5,root.children.get(1),true));
+		final Config config = new Config();
+		config.migrationModelType = Config.MigrationModelType.CONSTANT;
+		config.seqModelType = Config.SeqModelType.HKY_3CP;
+		config.stateReconstructionAndTreeOutput = Config.StateReconstructionAndTreeOutput.NONE;
+		config.randomSeed = 1L;
+		final TreeWithLocations tree = new TreeWithLocations(root, 3, 6, config);
+		Data data = new Data() {
+			@Override
+			public List<ArrayList<LikelihoodTree>> getTrees() {
+				List<ArrayList<LikelihoodTree>> trees = new ArrayList<ArrayList<LikelihoodTree>>();
+				trees.add(new ArrayList<LikelihoodTree>());
+				trees.get(0).add(tree);
+				return trees;
+			}
+			@Override
+			public int getNumLocations() {
+				return 3;
+			}
+		};
+		Model model = new HKY_3CP_ConstantMigrationRates(testChain(), config, data, false, false);
+		Variable likeVar = model.getVariable("likeVar");
+		Variable seqLikeVar = model.getVariable("seqLikeVar");
+
+		for (int step=0;step<3;step++) {
+			double oldLocLogP = likeVar.getLogP();
+			double oldSeqLogP = seqLikeVar.getLogP();
+			if (step>0) {
+				DoubleVariable parameter = model.getDoubleVariable(step==1 ? "rateParams.0.1" : "mu.2");
+				model.beginProposal();
+				parameter.setValue(parameter.getValue()*2);
+				model.endProposal();
+				model.acceptProposal();
+				if (step==1) 
+					assertEquals(oldSeqLogP, seqLikeVar.getLogP(), 0);
+				else
+					assertEquals(oldLocLogP, likeVar.getLogP(), 0);
+			}
+
+			// Combined likelihood of the tree
+			double[][] rates = new double[3][3];
+			for (int i=0;i<3;i++) {
+				for (int j=0;j<3;j++) {
+					if (i==j) continue;
+					rates[i][j] = model.getDoubleVariable("rateParams."+i+"."+j).getValue();
+					rates[i][i]-=rates[i][j];
+				}
+			}
+			TransitionModel[] codonModel = new TransitionModel[3];
+			for (int i=0;i<3;i++) {
+				double[] forPis = new double[3];
+				for (int j=0;j<3;j++) {
+					forPis[j] = model.getDoubleVariable("forPis."+i+"."+j).getValue();
+				}
+				double[] pis = Util.toDirichletNonDegenerate(forPis);
+				codonModel[i] = new ConstantTransitionBaseModel(model.getDoubleVariable("mu."+i).getValue(), Math.exp(model.getDoubleVariable("logk."+i).getValue()), pis[0], pis[1], pis[2]);
+			}
+			LikelihoodTree combined = tree.copy();
+			combined.setMigrationModel(new ConstantTransitionBaseModel(rates));
+			combined.setCodonModel(codonModel);
+			assertEquals(combined.logLikelihood(), likeVar.getLogP()+seqLikeVar.getLogP(), 1E-10);
+
+			// Output takes the sequence likelihood of seqLikeVar
+			TreesLikelihoodVariableOutputObject output = (TreesLikelihoodVariableOutputObject) likeVar.makeOutputObject();
+			assertEquals(seqLikeVar.getLogP(), output.seqLikelihood[0], 0);
+			assertEquals(likeVar.getLogP(), output.locLikelihood[0], 0);
+		}
+	}
+
+	// Chain of a model outside of an MCMC run
+	@SuppressWarnings("serial")
+	private static Chain testChain() {
+		return new Chain() {
+			RandomEngine rng = new MersenneTwister(1);
+			@Override
+			public RandomEngine getRng() {
+				return rng;
+			}
+			@Override
+			public Logger getLogger() {
+				return Logger.getLogger("test");
+			}
+		};
+	}
+
+	// Random tree with tips at random locations and with random sequences of seqLength
+	private static TreeWithLocationsNode randomTree(Random random, int numTips, int seqLength) {
+		String nucs = "ACGTN";
+		List<TreeWithLocationsNode> lineages = new ArrayList<TreeWithLocationsNode>();
+		for (int i=0;i<numTips;i++) {
+			String seqStr = "";
+			for (int j=0;j<seqLength;j++) {
+				seqStr+=nucs.charAt(random.nextInt(nucs.length()));
+			}
+			lineages.add(new TreeWithLocationsNode(new Sequence("TIP"+i,seqStr),random.nextInt(3),TreeWithLocations.UNKNOWN_TAXA,10.0,null,true));
+		}
+		double time = 10.0;
+		while (lineages.size()>1) {
+			time-=0.3*random.nextDouble();
+			TreeWithLocationsNode parent = new TreeWithLocationsNode(new Sequence(seqLength),TreeWithLocations.UNKNOWN_LOCATION,TreeWithLocations.UNKNOWN_TAXA,time,null,true);
+			for (int j=0;j<2;j++) {
+				TreeWithLocationsNode child = lineages.remove(random.nextInt(lineages.size()));
+				child.setParent(parent);
+				parent.addChild(child);
+			}
+			lineages.add(parent);
+		}
+		return lineages.get(0);
+	}
+
+	@Test
+	public void testRecycledCopy() throws Exception {
+		// A working copy recycled with new models gives the same likelihood, ASR and mapping as a fresh copy
+		Config config = new Config();
+		config.migrationModelType = Config.MigrationModelType.CONSTANT;
+		config.seqModelType = Config.SeqModelType.HKY_3CP;
+		TreeWithLocations tree = new TreeWithLocations(randomTree(new Random(11), 20, 9), 3, 9, config);
+		TransitionModel[] locModels = new TransitionModel[]{new ConstantTransitionBaseModel(new double[][]{{-1,0.2,0.8},
+				{ 0.333333,-0.5,0.166667},
+				{ 1.333333,0.333333,-1.666666}}), 
+				new ConstantTransitionBaseModel(new double[][]{{-0.5,0.4,0.1},
+				{ 0.2,-0.3,0.1},
+				{ 0.6,0.9,-1.5}})};
+		TransitionModel[][] codonModels = new TransitionModel[][]{{new ConstantTransitionBaseModel(1.0, 2.0, 0.2, 0.3, 0.3),
+				new ConstantTransitionBaseModel(0.5, 3.0, 0.25, 0.25, 0.25),
+				new ConstantTransitionBaseModel(2.0, 1.0, 0.1, 0.4, 0.2)},
+				{new ConstantTransitionBaseModel(0.3, 4.0, 0.3, 0.2, 0.2),
+				new ConstantTransitionBaseModel(0.5, 3.0, 0.25, 0.25, 0.25),
+				new ConstantTransitionBaseModel(1.0, 1.5, 0.2, 0.2, 0.4)}};
+
+		// copies start with the first models, as trees with input models
+		tree.setMigrationModel(locModels[0]);
+		tree.setCodonModel(codonModels[0]);
+
+		// state of other models in the copy to recycle
+		LikelihoodTree recycled = tree.copy();
+		recycled.setMigrationModel(locModels[1]);
+		recycled.setCodonModel(codonModels[1]);
+		recycled.setRng(new SplittableRng(3));
+		recycled.logLikelihood();
+		recycled.marginalPosteriors();
+		recycled.stochasticMapping(1000);
+		recycled.seqMutationStats(1000, new StringBuilder());
+
+		for (int change=0;change<4;change++) { // migration model, codon model, both, neither
+			TransitionModel locModel = locModels[change==0 || change==2 ? 1 : 0];
+			TransitionModel[] codonModel = codonModels[change==1 || change==2 ? 1 : 0];
+			LikelihoodTree[] copies = new LikelihoodTree[]{tree.copy(recycled), tree.copy()};
+			assertTrue(copies[0]==recycled);
+			String[] outputs = new String[2];
+			for (int i=0;i<2;i++) {
+				copies[i].setMigrationModel(locModel);
+				copies[i].setCodonModel(codonModel);
+				copies[i].setRng(new SplittableRng(7));
+				StringBuilder output = new StringBuilder();
+				output.append(copies[i].locLikelihood()+","+copies[i].seqLikelihood()+"\n");
+				copies[i].newickProbs(output);
+				copies[i].newickASR(output);
+				copies[i].newickSM(1000, output);
+				copies[i].smTransitions(output);
+				copies[i].seqMutationStats(1000, output);
+				output.append(copies[i].logLikelihood()+"\n");
+				outputs[i]=output.toString();
+			}
+			assertEquals(outputs[1], outputs[0]);
+		}
+	}
+
+	// Exposes the working copies of TreesLikelihoodVariable for a single tree
+	@SuppressWarnings("serial")
+	private static class WorkingCopiesVariable extends TreesLikelihoodVariable {
+		WorkingCopiesVariable(Model m, Config config) {
+			super(m, "workingCopies", true, 1, config);
+		}
+		LikelihoodTree next(LikelihoodTree tree, TransitionModel migrationModel) {
+			trees[0]=workingCopy(0, tree);
+			trees[0].setMigrationModel(migrationModel);
+			return trees[0];
+		}
+		LikelihoodTree current() {
+			return trees[0];
+		}
+		void release() {
+			releaseOutputTrees();
+		}
+	}
+
+	@Test
+	public void testWorkingCopies() throws Exception {
+		// Working copies are recycled unless the last output object references them, 
+		// releaseOutputTrees replaces a working copy that is still referenced
+		Config config = new Config();
+		config.migrationModelType = Config.MigrationModelType.CONSTANT;
+		config.seqModelType = Config.SeqModelType.NONE;
+		config.stateReconstructionAndTreeOutput = Config.StateReconstructionAndTreeOutput.ASR;
+		config.randomSeed = 1L;
+		TreeWithLocations tree = new TreeWithLocations(randomTree(new Random(12), 20, 0), 3, 0, config);
+		TransitionModel[] locModels = new TransitionModel[]{new ConstantTransitionBaseModel(new double[][]{{-1,0.2,0.8},
+				{ 0.333333,-0.5,0.166667},
+				{ 1.333333,0.333333,-1.666666}}), 
+				new ConstantTransitionBaseModel(new double[][]{{-0.5,0.4,0.1},
+				{ 0.2,-0.3,0.1},
+				{ 0.6,0.9,-1.5}})};
+		Model model = new Model(testChain());
+		model.beginConstruction();
+		WorkingCopiesVariable var = new WorkingCopiesVariable(model, config);
+		model.endConstruction();
+
+		LikelihoodTree first = var.next(tree, locModels[0]);
+		assertTrue(var.next(tree, locModels[1])==first);
+
+		// the tree of the output object is not recycled
+		TreesLikelihoodVariableOutputObject output = (TreesLikelihoodVariableOutputObject) var.makeOutputObject();
+		LikelihoodTree outputTree = var.current();
+		String asrTree = output.asrTrees[0].toString();
+		LikelihoodTree second = var.next(tree, locModels[0]);
+		assertTrue(second!=outputTree);
+		second.ancestralStateReconstruction();
+		assertEquals(asrTree, output.asrTrees[0].toString());
+		assertTrue(var.next(tree, locModels[1])==second);
+
+		// the output tree is replaced by a copy with the same models
+		output = (TreesLikelihoodVariableOutputObject) var.makeOutputObject();
+		outputTree = var.current();
+		asrTree = output.asrTrees[0].toString();
+		var.release();
+		LikelihoodTree released = var.current();
+		assertTrue(released!=outputTree);
+		assertEquals(outputTree.logLikelihood(), released.logLikelihood(), 0);
+		assertTrue(var.next(tree, locModels[0])==released);
+		released.ancestralStateReconstruction();
+		assertEquals(asrTree, output.asrTrees[0].toString());
+	}
+
+	@Test
+	public void testScaledPartials() throws Exception {
+		/* 
+		 Caterpillar tree with 2000 tips, random locations and sequences, 
+		 long enough for probability space partials to underflow without scaling.
+		 Compare scaled probability space partials to log space partials. 
+		 */
+
+		int numTips = 2000;
+		int seqLength = 7;
+		Random random = new Random(1234);
+		String nucs = "ACGTRN-";
+
+		TreeWithLocationsNode root = new TreeWithLocationsNode(new Sequence(seqLength), TreeWithLocations.UNKNOWN_LOCATION,TreeWithLocations.UNKNOWN_TAXA,0.0,null,true);
+		TreeWithLocationsNode node = root;
+		double time = 0;
+		for (int i=0;i<numTips;i++) {
+			String seqStr = "";
+			for (int j=0;j<seqLength;j++) {
+				seqStr+=nucs.charAt(random.nextInt(nucs.length()));
+			}
+			node.addChild(new TreeWithLocationsNode(new Sequence("TIP"+i,seqStr),random.nextInt(3),TreeWithLocations.UNKNOWN_TAXA,time+random.nextDouble(),node,true));
+			if (i<numTips-2) {
+				time+=0.1*random.nextDouble();
+				node.addChild(new TreeWithLocationsNode(new Sequence(seqLength),TreeWithLocations.UNKNOWN_LOCATION,TreeWithLocations.UNKNOWN_TAXA,time,node,true));
+				node = node.children.get(1);
+			}
+		}
+
+		TransitionModel locModel = new ConstantTransitionBaseModel(new double[][]{{-1,0.2,0.8},
+				{ 0.333333,-0.5,0.166667},
+				{ 1.333333,0.333333,-1.666666}});
+		TransitionModel[] codonModel = new TransitionModel[]{new ConstantTransitionBaseModel(1.0, 2.0, 0.2, 0.3, 0.3),
+				new ConstantTransitionBaseModel(0.5, 3.0, 0.25, 0.25, 0.25),
+				new ConstantTransitionBaseModel(2.0, 1.0, 0.1, 0.4, 0.2)};
+
+		Config logConfig = new Config();
+		logConfig.partialsMode = Config.PartialsMode.LOG;
+		TreeWithLocations logTree = new TreeWithLocations(root, 3, seqLength, logConfig);
+		logTree.setMigrationModel(locModel);
+		logTree.setCodonModel(codonModel);
+
+		Config scaledConfig = new Config();
+		scaledConfig.partialsMode = Config.PartialsMode.SCALED;
+		TreeWithLocations scaledTree = new TreeWithLocations(root, 3, seqLength, scaledConfig);
+		scaledTree.setMigrationModel(locModel);
+		scaledTree.setCodonModel(codonModel);
+
+		double logLocLikelihood = logTree.locLogLikelihood();
+		double logSeqLikelihood = logTree.seqLogLikelihood();
+
+		assertTrue(logLocLikelihood < -800);
+		assertEquals(logLocLikelihood, scaledTree.locLogLikelihood(), Math.abs(logLocLikelihood)*1E-10);
+		assertEquals(logSeqLikelihood, scaledTree.seqLogLikelihood(), Math.abs(logSeqLikelihood)*1E-10);
+	}
+
+	@Test
+	public void testSitePatterns() throws Exception {
+		/* 
+		   --
+		  /   \
+		 S1   --
+		     /  \
+		    S2   --
+		        /  \
+		       S3   S4
+		 
+		 Columns repeat within each codon position, compressed and uncompressed likelihoods should match.
+		 */
+
+		String[] seqStrs = {"AGTAGTACTAG","CGTCGTCCTCG","AGCAGCAGCAG","ATTATTATTAT"};
+		int seqLength = seqStrs[0].length();
+		ArrayList<Sequence> seqs = new ArrayList<Sequence>();
+		for (int i=0;i<seqStrs.length;i++) {
+			seqs.add(new Sequence("S"+i,seqStrs[i]));
+		}
+
+		TreeWithLocationsNode root = new TreeWithLocationsNode(new Sequence(seqLength), TreeWithLocations.UNKNOWN_LOCATION,TreeWithLocations.UNKNOWN_TAXA,0.0,null,true);
+		root.addChild(new TreeWithLocationsNode(seqs.get(0),0,TreeWithLocations.UNKNOWN_TAXA,1.0,root,true));
+		root.addChild(new TreeWithLocationsNode(new Sequence(seqLength),TreeWithLocations.UNKNOWN_LOCATION,TreeWithLocations.UNKNOWN_TAXA,0.5,root,true));
+		TreeWithLocationsNode node = root.children.get(1);
+		node.addChild(new TreeWithLocationsNode(seqs.get(1),1,TreeWithLocations.UNKNOWN_TAXA,1.5,node,true));
+		node.addChild(new TreeWithLocationsNode(new Sequence(seqLength),TreeWithLocations.UNKNOWN_LOCATION,TreeWithLocations.UNKNOWN_TAXA,1.0,node,true));
+		node = node.children.get(1);
+		node.addChild(new TreeWithLocationsNode(seqs.get(2),0,TreeWithLocations.UNKNOWN_TAXA,2.0,node,true));
+		node.addChild(new TreeWithLocationsNode(seqs.get(3),1,TreeWithLocations.UNKNOWN_TAXA,2.5,node,true));
+
+		TransitionModel[] codonModel = new TransitionModel[]{new ConstantTransitionBaseModel(1.0, 2.0, 0.2, 0.3, 0.3),
+				new ConstantTransitionBaseModel(0.5, 3.0, 0.25, 0.25, 0.25),
+				new ConstantTransitionBaseModel(2.0, 1.0, 0.1, 0.4, 0.2)};
+
+		SitePatterns sitePatterns = new SitePatterns(seqs, seqLength);
+		assertEquals(4, sitePatterns.getNumPatterns());
+
+		for (Config.PartialsMode partialsMode : Config.PartialsMode.values()) {
+			Config config = new Config();
+			config.partialsMode = partialsMode;
+
+			TreeWithLocations tree = new TreeWithLocations(root, 2, seqLength, config);
+			tree.setCodonModel(codonModel);
+
+			TreeWithLocations compressedTree = new TreeWithLocations(root, 2, seqLength, config);
+			compressedTree.setCodonModel(codonModel);
+			compressedTree.setSitePatterns(sitePatterns);
+
+			assertEquals(tree.seqLogLikelihood(), compressedTree.seqLogLikelihood(), 1E-10);
+		}
+	}
+
 	@Test
 	public void testPreorderIter() throws Exception {
 		/* 
@@ -535,4 +1331,320 @@ public class TreeWithLocationsTest {
 		}
 		assertEquals(returnValue,expectedResult);
 	}
+
+	@Test
+	public void testParallelLikelihood() throws Exception {
+		/* 
+		 Random tree with 200 tips, location and sequence pruning evaluated concurrently,
+		 and level by level pruning, should give the same likelihood as sequential evaluation. 
+		 */
+
+		int numTips = 200;
+		int seqLength = 30;
+		Random random = new Random(4321);
+		String nucs = "ACGT";
+
+		List<TreeWithLocationsNode> lineages = new ArrayList<TreeWithLocationsNode>();
+		for (int i=0;i<numTips;i++) {
+			String seqStr = "";
+			for (int j=0;j<seqLength;j++) {
+				seqStr+=nucs.charAt(random.nextInt(nucs.length()));
+			}
+			lineages.add(new TreeWithLocationsNode(new Sequence("TIP"+i,seqStr),random.nextInt(3),TreeWithLocations.UNKNOWN_TAXA,10.0,null,true));
+		}
+		double time = 10.0;
+		while (lineages.size()>1) {
+			time-=0.05*random.nextDouble();
+			TreeWithLocationsNode parent = new TreeWithLocationsNode(new Sequence(seqLength),TreeWithLocations.UNKNOWN_LOCATION,TreeWithLocations.UNKNOWN_TAXA,time,null,true);
+			for (int i=0;i<2;i++) {
+				TreeWithLocationsNode child = lineages.remove(random.nextInt(lineages.size()));
+				child.setParent(parent);
+				parent.addChild(child);
+			}
+			lineages.add(parent);
+		}
+		TreeWithLocationsNode root = lineages.get(0);
+
+		TransitionModel locModel = new ConstantTransitionBaseModel(new double[][]{{-1,0.2,0.8},
+				{ 0.333333,-0.5,0.166667},
+				{ 1.333333,0.333333,-1.666666}});
+		TransitionModel[] codonModel = new TransitionModel[]{new ConstantTransitionBaseModel(1.0, 2.0, 0.2, 0.3, 0.3),
+				new ConstantTransitionBaseModel(0.5, 3.0, 0.25, 0.25, 0.25),
+				new ConstantTransitionBaseModel(2.0, 1.0, 0.1, 0.4, 0.2)};
+
+		Config config = new Config();
+		config.migrationModelType = Config.MigrationModelType.CONSTANT;
+		config.seqModelType = Config.SeqModelType.HKY_3CP;
+		TreeWithLocations sequentialTree = new TreeWithLocations(root, 3, seqLength, config);
+		sequentialTree.setMigrationModel(locModel);
+		sequentialTree.setCodonModel(codonModel);
+		double expected = sequentialTree.locLogLikelihood()+sequentialTree.seqLogLikelihood();
+
+		Config parallelConfig = new Config();
+		parallelConfig.migrationModelType = Config.MigrationModelType.CONSTANT;
+		parallelConfig.seqModelType = Config.SeqModelType.HKY_3CP;
+		parallelConfig.numThreads = 4;
+		TreeWithLocations parallelTree = new TreeWithLocations(root, 3, seqLength, parallelConfig);
+		parallelTree.setMigrationModel(locModel);
+		parallelTree.setCodonModel(codonModel);
+
+		assertEquals(expected, parallelTree.logLikelihood(), 0);
+
+		// Level scheduled pruning with small tasks and site blocks, for both partials representations
+		for (Config.PartialsMode partialsMode : Config.PartialsMode.values()) {
+			Config modeConfig = new Config();
+			modeConfig.migrationModelType = Config.MigrationModelType.CONSTANT;
+			modeConfig.seqModelType = Config.SeqModelType.HKY_3CP;
+			modeConfig.partialsMode = partialsMode;
+			TreeWithLocations modeTree = new TreeWithLocations(root, 3, seqLength, modeConfig);
+			modeTree.setMigrationModel(locModel);
+			modeTree.setCodonModel(codonModel);
+
+			Config levelConfig = new Config();
+			levelConfig.migrationModelType = Config.MigrationModelType.CONSTANT;
+			levelConfig.seqModelType = Config.SeqModelType.HKY_3CP;
+			levelConfig.partialsMode = partialsMode;
+			levelConfig.numThreads = 4;
+			levelConfig.parallelPruningMinNodes = 1;
+			levelConfig.parallelPruningGrainSize = 4;
+			levelConfig.parallelPruningSiteBlock = 3;
+			TreeWithLocations levelTree = new TreeWithLocations(root, 3, seqLength, levelConfig);
+			levelTree.setMigrationModel(locModel);
+			levelTree.setCodonModel(codonModel);
+
+			assertEquals(modeTree.locLogLikelihood(), levelTree.locLogLikelihood(), 0);
+			assertEquals(modeTree.seqLogLikelihood(), levelTree.seqLogLikelihood(), 0);
+		}
+
+		// A pool of another thread budget doesn't replace (shut down) the pool in use
+		ForkJoinPool pool = Parallel.getPool(4);
+		assertTrue(Parallel.getPool(2)!=pool);
+		assertTrue(Parallel.getPool(4)==pool);
+		assertTrue(!pool.isShutdown());
+	}
+
+	@Test
+	public void testExpmvLikelihood() throws Exception {
+		/*
+		 Random tree with many locations, applying exp(Q*t) to partials should give the 
+		 same likelihood as per branch transition matrices, for both partials representations.
+		 */
+
+		int numTips = 100;
+		int numLocations = 60;
+		Random random = new Random(1234);
+
+		List<TreeWithLocationsNode> lineages = new ArrayList<TreeWithLocationsNode>();
+		for (int i=0;i<numTips;i++) {
+			lineages.add(new TreeWithLocationsNode(null,random.nextInt(numLocations),TreeWithLocations.UNKNOWN_TAXA,10.0,null,false));
+		}
+		double time = 10.0;
+		while (lineages.size()>1) {
+			time-=0.1*random.nextDouble();
+			TreeWithLocationsNode parent = new TreeWithLocationsNode(null,TreeWithLocations.UNKNOWN_LOCATION,TreeWithLocations.UNKNOWN_TAXA,time,null,false);
+			for (int i=0;i<2;i++) {
+				TreeWithLocationsNode child = lineages.remove(random.nextInt(lineages.size()));
+				child.setParent(parent);
+				parent.addChild(child);
+			}
+			lineages.add(parent);
+		}
+		TreeWithLocationsNode root = lineages.get(0);
+
+		TransitionModel locModel = new ConstantTransitionBaseModel(DataForTests.makeRandomMigrationMatrix(numLocations, 0.05));
+
+		for (Config.PartialsMode partialsMode : Config.PartialsMode.values()) {
+			Config denseConfig = new Config();
+			denseConfig.migrationModelType = Config.MigrationModelType.CONSTANT;
+			denseConfig.partialsMode = partialsMode;
+			denseConfig.expmvMinLocations = numLocations+1;
+			TreeWithLocations denseTree = new TreeWithLocations(root, numLocations, 0, denseConfig);
+			denseTree.setMigrationModel(locModel);
+
+			Config expmvConfig = new Config();
+			expmvConfig.migrationModelType = Config.MigrationModelType.CONSTANT;
+			expmvConfig.partialsMode = partialsMode;
+			expmvConfig.expmvMinLocations = numLocations;
+			TreeWithLocations expmvTree = new TreeWithLocations(root, numLocations, 0, expmvConfig);
+			expmvTree.setMigrationModel(locModel);
+
+			double expected = denseTree.locLogLikelihood();
+			assertEquals(expected, expmvTree.locLogLikelihood(), Math.abs(expected)*1E-9);
+			assertTrue(expmvTree.newickASR().contains("[&states="));
+		}
+	}
+
+	@Test
+	public void testDeterministicMapping() throws Exception {
+		// Reconstruction and stochastic mapping are reproducible from the seed of the tree's stream,
+		// parallel mapping does not depend on the number of threads
+		TransitionModel locModel = new ConstantTransitionBaseModel(new double[][]{{-1,0.2,0.8},
+				{ 0.333333,-0.5,0.166667},
+				{ 1.333333,0.333333,-1.666666}});
+
+		String[] smTrees = new String[4];
+		for (int i=0;i<4;i++) {
+			// same topology, fresh nodes for each tree
+			Random random = new Random(99);
+			List<TreeWithLocationsNode> lineages = new ArrayList<TreeWithLocationsNode>();
+			for (int j=0;j<50;j++) {
+				lineages.add(new TreeWithLocationsNode(null,random.nextInt(3),TreeWithLocations.UNKNOWN_TAXA,10.0,null,false));
+			}
+			double time = 10.0;
+			while (lineages.size()>1) {
+				time-=0.2*random.nextDouble();
+				TreeWithLocationsNode parent = new TreeWithLocationsNode(null,TreeWithLocations.UNKNOWN_LOCATION,TreeWithLocations.UNKNOWN_TAXA,time,null,false);
+				for (int j=0;j<2;j++) {
+					TreeWithLocationsNode child = lineages.remove(random.nextInt(lineages.size()));
+					child.setParent(parent);
+					parent.addChild(child);
+				}
+				lineages.add(parent);
+			}
+			TreeWithLocationsNode root = lineages.get(0);
+			Config config = new Config();
+			config.migrationModelType = Config.MigrationModelType.CONSTANT;
+			config.parallelStochasticMapping = (i>=2);
+			config.parallelMappingBlockSize = 8;
+			config.numThreads = (i==3 ? 4 : 1);
+			TreeWithLocations tree = new TreeWithLocations(root, 3, 0, config);
+			tree.setMigrationModel(locModel);
+			tree.locLogLikelihood();
+			tree.setRng(SplittableRng.stream(2013, 1).split());
+			smTrees[i] = tree.newickSM(1000);
+		}
+		assertEquals(smTrees[0], smTrees[1]);
+		assertEquals(smTrees[2], smTrees[3]);
+
+		// streams of different chains differ, draws are in (0,1)
+		SplittableRng rng0 = SplittableRng.stream(2013, 0);
+		SplittableRng rng1 = SplittableRng.stream(2013, 1);
+		assertTrue(rng0.nextLong()!=rng1.nextLong());
+		for (int i=0;i<1000;i++) {
+			double u = rng0.nextDouble();
+			assertTrue(u>0 && u<1);
+		}
+	}
+
+	@Test
+	public void testSMRealizations() throws Exception {
+		// Realizations pooled from one pruning pass match realizations drawn one at a time from the same stream, 
+		// tree output shows the last realization
+		TransitionModel locModel = new ConstantTransitionBaseModel(new double[][]{{-1,0.2,0.8},
+				{ 0.333333,-0.5,0.166667},
+				{ 1.333333,0.333333,-1.666666}});
+		int numTips = 30;
+		int numRealizations = 3;
+		TreeWithLocations[] trees = new TreeWithLocations[2];
+		for (int i=0;i<2;i++) {
+			Random random = new Random(77);
+			List<TreeWithLocationsNode> lineages = new ArrayList<TreeWithLocationsNode>();
+			for (int j=0;j<numTips;j++) {
+				lineages.add(new TreeWithLocationsNode(null,random.nextInt(3),TreeWithLocations.UNKNOWN_TAXA,10.0,null,false));
+			}
+			double time = 10.0;
+			while (lineages.size()>1) {
+				time-=0.3*random.nextDouble();
+				TreeWithLocationsNode parent = new TreeWithLocationsNode(null,TreeWithLocations.UNKNOWN_LOCATION,TreeWithLocations.UNKNOWN_TAXA,time,null,false);
+				for (int j=0;j<2;j++) {
+					TreeWithLocationsNode child = lineages.remove(random.nextInt(lineages.size()));
+					child.setParent(parent);
+					parent.addChild(child);
+				}
+				lineages.add(parent);
+			}
+			Config config = new Config();
+			config.migrationModelType = Config.MigrationModelType.CONSTANT;
+			trees[i] = new TreeWithLocations(lineages.get(0), 3, 0, config);
+			trees[i].setMigrationModel(locModel);
+			trees[i].locLogLikelihood();
+			trees[i].setRng(new SplittableRng(31));
+		}
+
+		trees[0].smRealizations(numRealizations, 1000);
+		int numMigrations = 0;
+		int numDwellings = 0;
+		for (int r=0;r<numRealizations;r++) {
+			trees[1].smRealizations(1, 1000);
+			numMigrations+=count(trees[1].smTransitions(), "true,")+count(trees[1].smTransitions(), "false,");
+			numDwellings+=count(trees[1].smTipDwellings(), ".")/2; // {from time,tip time} per tip
+		}
+		String pooledTransitions = trees[0].smTransitions();
+		String pooledDwellings = trees[0].smTipDwellings();
+		assertTrue(numMigrations>0);
+		assertEquals(numMigrations, count(pooledTransitions, "true,")+count(pooledTransitions, "false,"));
+		assertEquals(numRealizations*numTips, numDwellings);
+		assertEquals(numDwellings, count(pooledDwellings, ".")/2);
+		assertEquals(trees[1].newickSM(1000), trees[0].newickSM(1000));
+	}
+
+	private static int count(String str, String sub) {
+		int returnValue = 0;
+		for (int i=str.indexOf(sub);i>=0;i=str.indexOf(sub, i+1)) {
+			returnValue++;
+		}
+		return returnValue;
+	}
+
+	@Test
+	public void testAlignmentStore() throws Exception {
+		AlignmentStore alignment = new AlignmentStore();
+		alignment.add("S0","ACGTR-");
+		alignment.add("S1","TTGCAN");
+		HashMap<String,Sequence> seqs = alignment.getSequences();
+		assertEquals(2, alignment.getNumSequences());
+
+		Sequence s0 = seqs.get("S0");
+		Sequence s1 = seqs.get("S1");
+		assertEquals(6, s0.length());
+		assertTrue(s0.isTip());
+		assertEquals("ACGT??", s0.toString());
+		assertEquals("TTGCA?", s1.toString());
+		assertEquals(2, s0.getNuc(0));
+		assertEquals(-1, s0.getNuc(4)); // ambiguous
+		assertEquals(-1, s0.getNuc(6)); // past the end
+		assertTrue(s0.get(4)==Sequence.NUC_R);
+		assertTrue(s1.get(5)==Sequence.NUC_N);
+		assertEquals(0.5, s0.getProbs(4)[2], 1E-15);
+
+		// Setting a copy does not change the store or the original
+		Sequence copy = s0.copy();
+		copy.set(4, 3);
+		assertEquals("ACGTG?", copy.toString());
+		assertEquals("ACGT??", s0.toString());
+		assertEquals("ACGT??", alignment.getSequences().get("S0").toString());
+
+		// Internal node sequences start unset
+		Sequence internal = new Sequence(3);
+		assertTrue(internal.get(1)==Sequence.INTERNAL);
+		assertEquals(-1, internal.getNuc(1));
+		Sequence internalCopy = internal.copy();
+		internal.set(1, 1);
+		assertEquals("?C?", internal.toString());
+		assertEquals("???", internalCopy.toString());
+	}
+
+	@Test
+	public void testEventLog() throws Exception {
+		// Events are grouped by branch keeping the order they were added in, across growth and merged logs
+		EventLog log = new EventLog();
+		EventLog other = new EventLog();
+		for (int i=0;i<200;i++) {
+			(i%2==0 ? log : other).add(i, i%5, i, i%4, 300+i, EventLog.MUTATION);
+		}
+		log.addAll(other);
+		log.groupByBranch(6);
+		assertEquals(200, log.size());
+		assertEquals(log.branchStart(5), log.branchEnd(5));
+		for (int node=0;node<5;node++) {
+			assertEquals(40, log.branchEnd(node)-log.branchStart(node));
+			for (int e=log.branchStart(node);e<log.branchEnd(node);e++) {
+				assertEquals(node, log.getNode(e));
+				assertEquals(300+log.getSite(e), log.getTo(e));
+				assertEquals(log.getSite(e)%4, log.getFrom(e));
+				if (e>log.branchStart(node) && (log.getSite(e)%2==log.getSite(e-1)%2)) 
+					assertTrue(log.getTime(e)>log.getTime(e-1));
+			}
+		}
+	}
 }